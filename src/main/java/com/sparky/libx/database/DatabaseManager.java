@@ -4,6 +4,9 @@ import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
@@ -17,6 +20,8 @@ public class DatabaseManager {
     private final HikariDataSource dataSource;
     private final String databaseType;
     private final AtomicInteger queryCounter = new AtomicInteger(0);
+    private final StatementCache statementCache = new StatementCache(128);
+    private final QueryMetrics queryMetrics = new QueryMetrics(50);
     
     /**
      * створити менеджер бази даних
@@ -41,6 +46,7 @@ public class DatabaseManager {
         // налаштування для різних типів баз даних
         switch (this.databaseType) {
             case "mysql":
+                // підготовлені запити кешує драйвер для кожного з'єднання
                 config.addDataSourceProperty("cachePrepStmts", "true");
                 config.addDataSourceProperty("prepStmtCacheSize", "250");
                 config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
@@ -53,7 +59,8 @@ public class DatabaseManager {
                 config.addDataSourceProperty("maintainTimeStats", "false");
                 break;
             case "postgresql":
-                config.addDataSourceProperty("prepareThreshold", "100");
+                // драйвер кешує підготовлені запити кожного з'єднання і переходить на серверні після 5 виконань
+                config.addDataSourceProperty("prepareThreshold", "5");
                 config.addDataSourceProperty("preparedStatementCacheQueries", "256");
                 config.addDataSourceProperty("preparedStatementCacheSizeMiB", "10");
                 break;
@@ -74,7 +81,10 @@ public class DatabaseManager {
      * @return з'єднання
      */
     public Connection getConnection() throws SQLException {
-        return dataSource.getConnection();
+        long start = System.nanoTime();
+        Connection connection = dataSource.getConnection();
+        queryMetrics.recordPoolWait(System.nanoTime() - start);
+        return connection;
     }
     
     /**
@@ -87,10 +97,18 @@ public class DatabaseManager {
         queryCounter.incrementAndGet();
         
         try (Connection connection = getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
+             StatementCache.Lease lease = statementCache.prepare(connection, sql)) {
             
-            setParameters(statement, parameters);
-            return statement.executeUpdate();
+            PreparedStatement statement = lease.statement();
+            long start = System.nanoTime();
+            int rows = -1;
+            try {
+                setParameters(statement, parameters);
+                rows = statement.executeUpdate();
+                return rows;
+            } finally {
+                queryMetrics.recordQuery(sql, System.nanoTime() - start, rows, rows >= 0);
+            }
         }
     }
     
@@ -104,16 +122,233 @@ public class DatabaseManager {
         queryCounter.incrementAndGet();
         
         try (Connection connection = getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
+             StatementCache.Lease lease = statementCache.prepare(connection, sql)) {
+            
+            PreparedStatement statement = lease.statement();
+            long start = System.nanoTime();
+            List<Map<String, Object>> results = null;
+            try {
+                setParameters(statement, parameters);
+                
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    results = resultSetToList(resultSet);
+                    return results;
+                }
+            } finally {
+                queryMetrics.recordQuery(sql, System.nanoTime() - start,
+                    results != null ? results.size() : 0, results != null);
+            }
+        }
+    }
+    
+    /**
+     * виконати SQL запит і перетворити рядки за допомогою RowMapper
+     * @param sql SQL запит
+     * @param rowMapper перетворювач рядків
+     * @param parameters параметри
+     * @return список об'єктів
+     */
+    public <T> List<T> query(String sql, RowMapper<T> rowMapper, Object... parameters) throws SQLException {
+        List<T> results = new ArrayList<>();
+        query(sql, rowMapper, results::add, parameters);
+        return results;
+    }
+    
+    /**
+     * виконати SQL запит і передавати рядки споживачу по одному, не накопичуючи весь результат
+     * @param sql SQL запит
+     * @param rowMapper перетворювач рядків
+     * @param consumer споживач рядків
+     * @param parameters параметри
+     */
+    public <T> void query(String sql, RowMapper<T> rowMapper, Consumer<T> consumer, Object... parameters) throws SQLException {
+        queryCounter.incrementAndGet();
+        
+        try (Connection connection = getConnection();
+             StatementCache.Lease lease = statementCache.prepare(connection, sql)) {
+            
+            PreparedStatement statement = lease.statement();
+            long start = System.nanoTime();
+            int rowNumber = 0;
+            boolean success = false;
+            try {
+                setParameters(statement, parameters);
+                
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        consumer.accept(rowMapper.mapRow(resultSet, rowNumber++));
+                    }
+                }
+                success = true;
+            } finally {
+                queryMetrics.recordQuery(sql, System.nanoTime() - start, rowNumber, success);
+            }
+        }
+    }
+    
+    /**
+     * виконати SQL запит з поверненням одного об'єкта
+     * @param sql SQL запит
+     * @param rowMapper перетворювач рядків
+     * @param parameters параметри
+     * @return перший об'єкт або null
+     */
+    public <T> T querySingle(String sql, RowMapper<T> rowMapper, Object... parameters) throws SQLException {
+        queryCounter.incrementAndGet();
+        
+        try (Connection connection = getConnection();
+             StatementCache.Lease lease = statementCache.prepare(connection, sql)) {
+            
+            PreparedStatement statement = lease.statement();
+            long start = System.nanoTime();
+            int rows = 0;
+            boolean success = false;
+            try {
+                setParameters(statement, parameters);
+                statement.setMaxRows(1);
+                
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    T result = null;
+                    if (resultSet.next()) {
+                        result = rowMapper.mapRow(resultSet, 0);
+                        rows = 1;
+                    }
+                    success = true;
+                    return result;
+                }
+            } finally {
+                if (lease.isCached()) {
+                    statement.setMaxRows(0);
+                }
+                queryMetrics.recordQuery(sql, System.nanoTime() - start, rows, success);
+            }
+        }
+    }
+    
+    /**
+     * виконати SQL запит і повернути ліниві рядки як Stream
+     *
+     * з'єднання утримується, поки потік не буде вичерпано або закрито,
+     * тому потік треба використовувати в try-with-resources
+     * @param sql SQL запит
+     * @param rowMapper перетворювач рядків
+     * @param fetchSize кількість рядків, які драйвер отримує за один раз (MySQL завжди читає по одному рядку)
+     * @param parameters параметри
+     * @return потік об'єктів
+     */
+    public <T> Stream<T> stream(String sql, RowMapper<T> rowMapper, int fetchSize, Object... parameters) throws SQLException {
+        queryCounter.incrementAndGet();
+        
+        Connection connection = getConnection();
+        long start = System.nanoTime();
+        try {
+            // PostgreSQL використовує курсор лише поза режимом autocommit
+            boolean restoreAutoCommit = databaseType.equals("postgresql") && connection.getAutoCommit();
+            if (restoreAutoCommit) {
+                connection.setAutoCommit(false);
+            }
             
+            PreparedStatement statement = connection.prepareStatement(sql,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // Connector/J без useCursorFetch буферизує весь результат при будь-якому іншому fetchSize,
+            // а Integer.MIN_VALUE вмикає читання рядків по одному
+            statement.setFetchSize(databaseType.equals("mysql") ? Integer.MIN_VALUE : fetchSize);
             setParameters(statement, parameters);
+            ResultSet resultSet = statement.executeQuery();
             
-            try (ResultSet resultSet = statement.executeQuery()) {
-                return resultSetToList(resultSet);
+            RowCursor<T> cursor = new RowCursor<>(sql, connection, statement, resultSet, rowMapper, restoreAutoCommit, start);
+            return StreamSupport.stream(cursor, false).onClose(cursor::close);
+        } catch (SQLException | RuntimeException e) {
+            queryMetrics.recordQuery(sql, System.nanoTime() - start, 0, false);
+            connection.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * курсор по ResultSet для лінивого потоку, закриває ресурси після останнього рядка
+     */
+    private class RowCursor<T> extends Spliterators.AbstractSpliterator<T> {
+        private final String sql;
+        private final Connection connection;
+        private final PreparedStatement statement;
+        private final ResultSet resultSet;
+        private final RowMapper<T> rowMapper;
+        private final boolean restoreAutoCommit;
+        private final long start;
+        private int rowNumber = 0;
+        private boolean closed = false;
+        private boolean failed = false;
+        
+        RowCursor(String sql, Connection connection, PreparedStatement statement, ResultSet resultSet,
+                  RowMapper<T> rowMapper, boolean restoreAutoCommit, long start) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.sql = sql;
+            this.connection = connection;
+            this.statement = statement;
+            this.resultSet = resultSet;
+            this.rowMapper = rowMapper;
+            this.restoreAutoCommit = restoreAutoCommit;
+            this.start = start;
+        }
+        
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (!resultSet.next()) {
+                    close();
+                    return false;
+                }
+                action.accept(rowMapper.mapRow(resultSet, rowNumber++));
+                return true;
+            } catch (SQLException e) {
+                failed = true;
+                close();
+                throw new IllegalStateException("Не вдалося прочитати рядок " + rowNumber, e);
+            }
+        }
+        
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                resultSet.close();
+                statement.close();
+                if (restoreAutoCommit) {
+                    connection.commit();
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                failed = true;
+            } finally {
+                try {
+                    connection.close();
+                } catch (SQLException ignored) {
+                }
+                queryMetrics.recordQuery(sql, System.nanoTime() - start, rowNumber, !failed);
             }
         }
     }
     
+    /**
+     * функціональний інтерфейс для перетворення рядка ResultSet в об'єкт
+     */
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        /**
+         * перетворити поточний рядок
+         * @param resultSet ResultSet, встановлений на рядок
+         * @param rowNumber номер рядка починаючи з 0
+         * @return об'єкт
+         */
+        T mapRow(ResultSet resultSet, int rowNumber) throws SQLException;
+    }
+    
     /**
      * виконати SQL запит з поверненням одного результату
      * @param sql SQL запит
@@ -132,17 +367,98 @@ public class DatabaseManager {
      * @return масив кількостей змінених рядків
      */
     public int[] executeBatch(String sql, List<Object[]> batchParameters) throws SQLException {
+        try (Connection connection = getConnection()) {
+            return executeBatch(connection, sql, batchParameters);
+        }
+    }
+    
+    /**
+     * виконати пакетний запит на переданому з'єднанні, наприклад всередині транзакції
+     * @param connection з'єднання
+     * @param sql SQL запит
+     * @param batchParameters список параметрів для кожного запиту
+     * @return масив кількостей змінених рядків
+     */
+    public int[] executeBatch(Connection connection, String sql, List<Object[]> batchParameters) throws SQLException {
         queryCounter.incrementAndGet();
         
-        try (Connection connection = getConnection();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            
-            for (Object[] parameters : batchParameters) {
-                setParameters(statement, parameters);
-                statement.addBatch();
+        try (StatementCache.Lease lease = statementCache.prepare(connection, sql)) {
+            PreparedStatement statement = lease.statement();
+            long start = System.nanoTime();
+            int[] results = null;
+            try {
+                for (Object[] parameters : batchParameters) {
+                    setParameters(statement, parameters);
+                    statement.addBatch();
+                }
+                
+                results = statement.executeBatch();
+                return results;
+            } finally {
+                long rows = 0;
+                if (results != null) {
+                    for (int count : results) {
+                        rows += Math.max(0, count);
+                    }
+                }
+                queryMetrics.recordQuery(sql, System.nanoTime() - start, rows, results != null);
+            }
+        }
+    }
+    
+    /**
+     * виконати пакетну вставку з поверненням згенерованих ключів
+     * @param sql SQL запит
+     * @param batchParameters список параметрів для кожного запиту
+     * @param keyColumn назва колонки ключа
+     * @return згенеровані ключі в порядку вставки (драйвер може повернути не всі)
+     */
+    public List<Object> executeBatchReturningKeys(String sql, List<Object[]> batchParameters, String keyColumn) throws SQLException {
+        try (Connection connection = getConnection()) {
+            return executeBatchReturningKeys(connection, sql, batchParameters, keyColumn);
+        }
+    }
+    
+    /**
+     * виконати пакетну вставку з поверненням згенерованих ключів на переданому з'єднанні
+     *
+     * ключ запитується за назвою колонки: з RETURN_GENERATED_KEYS PostgreSQL повертає
+     * весь рядок, і перша колонка не обов'язково є ключем
+     * @param connection з'єднання
+     * @param sql SQL запит
+     * @param batchParameters список параметрів для кожного запиту
+     * @param keyColumn назва колонки ключа
+     * @return згенеровані ключі в порядку вставки (драйвер може повернути не всі)
+     */
+    public List<Object> executeBatchReturningKeys(Connection connection, String sql, List<Object[]> batchParameters,
+                                                 String keyColumn) throws SQLException {
+        queryCounter.incrementAndGet();
+        
+        // PostgreSQL бере назву в лапки, а назви без лапок у схемі зберігаються в нижньому регістрі
+        String column = databaseType.equals("postgresql") ? keyColumn.toLowerCase(Locale.ROOT) : keyColumn;
+        try (PreparedStatement statement = connection.prepareStatement(sql, new String[]{column})) {
+            long start = System.nanoTime();
+            List<Object> keys = null;
+            try {
+                for (Object[] parameters : batchParameters) {
+                    setParameters(statement, parameters);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                
+                keys = new ArrayList<>(batchParameters.size());
+                try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                    // SQLite повертає одну колонку з власною назвою
+                    boolean singleColumn = generatedKeys.getMetaData().getColumnCount() == 1;
+                    while (generatedKeys.next()) {
+                        keys.add(singleColumn ? generatedKeys.getObject(1) : generatedKeys.getObject(column));
+                    }
+                }
+                return keys;
+            } finally {
+                queryMetrics.recordQuery(sql, System.nanoTime() - start,
+                    keys != null ? batchParameters.size() : 0, keys != null);
             }
-            
-            return statement.executeBatch();
         }
     }
     
@@ -167,12 +483,17 @@ public class DatabaseManager {
         ResultSetMetaData metaData = resultSet.getMetaData();
         int columnCount = metaData.getColumnCount();
         
+        // назви колонок читаються з метаданих один раз, а не для кожного рядка
+        String[] columnNames = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columnNames[i] = metaData.getColumnLabel(i + 1);
+        }
+        int capacity = (int) (columnCount / 0.75f) + 1;
+        
         while (resultSet.next()) {
-            Map<String, Object> row = new HashMap<>();
-            for (int i = 1; i <= columnCount; i++) {
-                String columnName = metaData.getColumnLabel(i);
-                Object value = resultSet.getObject(i);
-                row.put(columnName, value);
+            Map<String, Object> row = new HashMap<>(capacity);
+            for (int i = 0; i < columnCount; i++) {
+                row.put(columnNames[i], resultSet.getObject(i + 1));
             }
             results.add(row);
         }
@@ -397,11 +718,42 @@ public class DatabaseManager {
      * закрити менеджер бази даних
      */
     public void close() {
+        statementCache.close();
         if (dataSource != null) {
             dataSource.close();
         }
     }
     
+    /**
+     * отримати метрики запитів
+     * @return метрики запитів
+     */
+    public QueryMetrics getQueryMetrics() {
+        return queryMetrics;
+    }
+    
+    /**
+     * отримати знімок метрик: статистику запитів, очікування пулу і стан пулу
+     * @return знімок метрик
+     */
+    public Map<String, Object> getMetricsSnapshot() {
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("queries", queryMetrics.getQuerySnapshot());
+        snapshot.put("poolWait", queryMetrics.getPoolWaitSnapshot());
+        snapshot.put("pool", getPoolInfo());
+        snapshot.put("slowQueryThresholdMs", queryMetrics.getSlowQueryThresholdMillis());
+        snapshot.put("slowQueries", queryMetrics.getSlowQueries().size());
+        return snapshot;
+    }
+    
+    /**
+     * отримати кількість підготовлених запитів у кеші
+     * @return кількість запитів
+     */
+    public int getCachedStatementCount() {
+        return statementCache.size();
+    }
+    
     /**
      * отримати інформацію про пул з'єднань
      * @return інформація про пул
@@ -0,0 +1,273 @@
+package com.sparky.libx.database;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * метрики запитів: гістограми затримок для кожного нормалізованого запиту,
+ * кількість рядків, журнал повільних запитів і час очікування з'єднання з пулу
+ * @author Андрій Будильников
+ */
+public class QueryMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(QueryMetrics.class.getName());
+    private static final int MAX_SLOW_QUERIES = 100;
+    private static final int MAX_NORMALIZED_CACHE = 1024;
+
+    private final Map<String, StatementStats> statementStats = new ConcurrentHashMap<>();
+    private final Map<String, String> normalizedCache = new ConcurrentHashMap<>();
+    private final LatencyHistogram poolWait = new LatencyHistogram();
+    private final ConcurrentLinkedDeque<SlowQuery> slowQueries = new ConcurrentLinkedDeque<>();
+    private volatile long slowQueryThresholdNanos;
+    private volatile boolean enabled = true;
+
+    /**
+     * створити метрики
+     * @param slowQueryThresholdMillis поріг повільного запиту в мілісекундах
+     */
+    public QueryMetrics(long slowQueryThresholdMillis) {
+        setSlowQueryThreshold(slowQueryThresholdMillis);
+    }
+
+    /**
+     * записати виконання запиту
+     * @param sql SQL запит
+     * @param elapsedNanos час виконання в наносекундах
+     * @param rows кількість повернутих або змінених рядків
+     * @param success чи виконався запит без помилки
+     */
+    public void recordQuery(String sql, long elapsedNanos, long rows, boolean success) {
+        if (!enabled) {
+            return;
+        }
+
+        String normalized = normalize(sql);
+        StatementStats stats = statementStats.computeIfAbsent(normalized, key -> new StatementStats());
+        stats.latency.record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        stats.rows.add(Math.max(0, rows));
+        if (!success) {
+            stats.errors.increment();
+        }
+
+        if (elapsedNanos >= slowQueryThresholdNanos) {
+            SlowQuery slowQuery = new SlowQuery(normalized, sql, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                rows, System.currentTimeMillis());
+            slowQueries.addFirst(slowQuery);
+            while (slowQueries.size() > MAX_SLOW_QUERIES) {
+                slowQueries.pollLast();
+            }
+            LOGGER.warning("Повільний запит (" + slowQuery.getElapsedMillis() + " мс, " + rows + " рядків): " + sql);
+        }
+    }
+
+    /**
+     * записати час очікування з'єднання з пулу
+     * @param waitNanos час очікування в наносекундах
+     */
+    public void recordPoolWait(long waitNanos) {
+        if (enabled) {
+            poolWait.record(TimeUnit.NANOSECONDS.toMicros(waitNanos));
+        }
+    }
+
+    /**
+     * нормалізувати SQL запит: літерали замінюються на ?, списки IN згортаються,
+     * пробіли стискаються, щоб запити з різними значеннями потрапляли в одну статистику
+     * @param sql SQL запит
+     * @return нормалізований запит
+     */
+    public String normalize(String sql) {
+        String cached = normalizedCache.get(sql);
+        if (cached != null) {
+            return cached;
+        }
+
+        String normalized = normalizeSql(sql);
+        if (normalizedCache.size() < MAX_NORMALIZED_CACHE) {
+            normalizedCache.put(sql, normalized);
+        }
+        return normalized;
+    }
+
+    /**
+     * нормалізувати SQL запит без кешування
+     * @param sql SQL запит
+     * @return нормалізований запит
+     */
+    public static String normalizeSql(String sql) {
+        StringBuilder result = new StringBuilder(sql.length());
+        int length = sql.length();
+        int i = 0;
+        boolean pendingSpace = false;
+
+        while (i < length) {
+            char c = sql.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                pendingSpace = result.length() > 0;
+                i++;
+                continue;
+            }
+            if (pendingSpace) {
+                result.append(' ');
+                pendingSpace = false;
+            }
+
+            if (c == '\'') {
+                // рядковий літерал, '' всередині є екрануванням
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                result.append('?');
+            } else if (Character.isDigit(c) && !isIdentifierPart(result)) {
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                result.append('?');
+            } else if (Character.isLetter(c) || c == '_') {
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_')) {
+                    result.append(sql.charAt(i));
+                    i++;
+                }
+            } else {
+                result.append(c);
+                i++;
+            }
+        }
+
+        return collapseLists(result.toString());
+    }
+
+    private static boolean isIdentifierPart(StringBuilder result) {
+        if (result.length() == 0) {
+            return false;
+        }
+        char last = result.charAt(result.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_';
+    }
+
+    /**
+     * згорнути списки на кшталт (?, ?, ?) в (?+)
+     */
+    private static String collapseLists(String sql) {
+        return sql.replaceAll("\\(\\?(?:\\s*,\\s*\\?)+\\)", "(?+)");
+    }
+
+    /**
+     * отримати знімок метрик
+     * @return мапа нормалізований запит -> статистика
+     */
+    public Map<String, Map<String, Object>> getQuerySnapshot() {
+        Map<String, Map<String, Object>> snapshot = new HashMap<>();
+        for (Map.Entry<String, StatementStats> entry : statementStats.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return snapshot;
+    }
+
+    /**
+     * отримати статистику очікування з'єднань з пулу
+     * @return мапа з кількістю і перцентилями в мілісекундах
+     */
+    public Map<String, Object> getPoolWaitSnapshot() {
+        return histogramToMap(poolWait);
+    }
+
+    /**
+     * отримати останні повільні запити, від найновішого
+     * @return список повільних запитів
+     */
+    public List<SlowQuery> getSlowQueries() {
+        return new ArrayList<>(slowQueries);
+    }
+
+    public long getSlowQueryThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(slowQueryThresholdNanos);
+    }
+
+    public void setSlowQueryThreshold(long slowQueryThresholdMillis) {
+        this.slowQueryThresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, slowQueryThresholdMillis));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * скинути всі метрики
+     */
+    public void reset() {
+        statementStats.clear();
+        slowQueries.clear();
+        poolWait.reset();
+    }
+
+    private static Map<String, Object> histogramToMap(LatencyHistogram histogram) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("count", histogram.getCount());
+        map.put("meanMs", histogram.getMean() / 1000.0);
+        map.put("p50Ms", histogram.getValueAtPercentile(50.0) / 1000.0);
+        map.put("p99Ms", histogram.getValueAtPercentile(99.0) / 1000.0);
+        map.put("p999Ms", histogram.getValueAtPercentile(99.9) / 1000.0);
+        map.put("maxMs", histogram.getMax() / 1000.0);
+        return map;
+    }
+
+    /**
+     * статистика одного нормалізованого запиту
+     */
+    private static class StatementStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder rows = new LongAdder();
+        final LongAdder errors = new LongAdder();
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = histogramToMap(latency);
+            map.put("rows", rows.sum());
+            map.put("errors", errors.sum());
+            return map;
+        }
+    }
+
+    /**
+     * запис журналу повільних запитів
+     */
+    public static class SlowQuery {
+        private final String normalizedSql;
+        private final String sql;
+        private final long elapsedMillis;
+        private final long rows;
+        private final long timestamp;
+
+        SlowQuery(String normalizedSql, String sql, long elapsedMillis, long rows, long timestamp) {
+            this.normalizedSql = normalizedSql;
+            this.sql = sql;
+            this.elapsedMillis = elapsedMillis;
+            this.rows = rows;
+            this.timestamp = timestamp;
+        }
+
+        public String getNormalizedSql() { return normalizedSql; }
+        public String getSql() { return sql; }
+        public long getElapsedMillis() { return elapsedMillis; }
+        public long getRows() { return rows; }
+        public long getTimestamp() { return timestamp; }
+    }
+}
@@ -0,0 +1,245 @@
+package com.sparky.libx.database;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * кеш підготовлених запитів для кожного фізичного з'єднання пулу
+ *
+ * з'єднання з HikariCP є проксі, які закривають свої запити при поверненні в пул,
+ * тому запити готуються на фізичному з'єднанні і живуть стільки ж, скільки воно.
+ * коли в кеш потрапляє нове фізичне з'єднання, записи закритих з'єднань видаляються,
+ * тож з'єднання, які пул вже закрив, не лишаються в пам'яті.
+ * кешуються лише запити з'єднань в режимі autocommit: запит на фізичному з'єднанні
+ * HikariCP не бачить, тому не відкотив би транзакцію, залишену незавершеною
+ * @author Андрій Будильников
+ */
+public class StatementCache {
+
+    private final Map<Connection, ConnectionStatements> cache = new ConcurrentHashMap<>();
+    private final int maxStatementsPerConnection;
+    private volatile boolean closed = false;
+
+    /**
+     * створити кеш запитів
+     * @param maxStatementsPerConnection максимальна кількість запитів на одне з'єднання
+     */
+    public StatementCache(int maxStatementsPerConnection) {
+        this.maxStatementsPerConnection = maxStatementsPerConnection;
+    }
+
+    /**
+     * отримати запит з кешу або підготувати новий
+     * @param connection з'єднання
+     * @param sql SQL запит
+     * @return оренда запиту, яку треба закрити після використання
+     */
+    public Lease prepare(Connection connection, String sql) throws SQLException {
+        if (closed || maxStatementsPerConnection <= 0 || !connection.getAutoCommit()) {
+            return new Lease(connection.prepareStatement(sql), null, sql);
+        }
+
+        Connection physical = unwrap(connection);
+        ConnectionStatements statements = cache.get(physical);
+        if (statements == null) {
+            // нове фізичне з'єднання зазвичай замінює закрите, тому записи закритих прибираються саме тут
+            evictClosedConnections();
+            statements = cache.computeIfAbsent(physical, key -> new ConnectionStatements(maxStatementsPerConnection));
+        }
+
+        synchronized (statements) {
+            if (statements.evicted) {
+                return new Lease(connection.prepareStatement(sql), null, sql);
+            }
+
+            CachedStatement cached = statements.get(sql);
+            if (cached != null && !cached.inUse && !cached.statement.isClosed()) {
+                cached.inUse = true;
+                return new Lease(cached.statement, statements, sql);
+            }
+            if (cached != null && cached.inUse) {
+                // той самий запит вже використовується на цьому з'єднанні
+                return new Lease(connection.prepareStatement(sql), null, sql);
+            }
+
+            CachedStatement fresh = new CachedStatement(physical.prepareStatement(sql));
+            fresh.inUse = true;
+            statements.put(sql, fresh);
+            return new Lease(fresh.statement, statements, sql);
+        }
+    }
+
+    /**
+     * отримати кількість закешованих запитів
+     * @return кількість запитів
+     */
+    public int size() {
+        int size = 0;
+        for (ConnectionStatements statements : cache.values()) {
+            synchronized (statements) {
+                size += statements.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * отримати кількість фізичних з'єднань у кеші
+     * @return кількість з'єднань
+     */
+    public int getConnectionCount() {
+        return cache.size();
+    }
+
+    /**
+     * закрити всі закешовані запити
+     */
+    public void close() {
+        closed = true;
+        for (Connection connection : cache.keySet()) {
+            evict(connection);
+        }
+    }
+
+    /**
+     * видалити записи фізичних з'єднань, які пул вже закрив
+     */
+    private void evictClosedConnections() {
+        for (Connection connection : cache.keySet()) {
+            boolean connectionClosed;
+            try {
+                connectionClosed = connection.isClosed();
+            } catch (SQLException e) {
+                connectionClosed = true;
+            }
+            if (connectionClosed) {
+                evict(connection);
+            }
+        }
+    }
+
+    private void evict(Connection connection) {
+        ConnectionStatements statements = cache.remove(connection);
+        if (statements == null) {
+            return;
+        }
+        synchronized (statements) {
+            statements.evicted = true;
+            for (CachedStatement cached : statements.values()) {
+                if (!cached.inUse) {
+                    closeQuietly(cached.statement);
+                }
+            }
+            statements.clear();
+        }
+    }
+
+    private static Connection unwrap(Connection connection) throws SQLException {
+        if (connection.isWrapperFor(Connection.class)) {
+            Connection unwrapped = connection.unwrap(Connection.class);
+            if (unwrapped != null) {
+                return unwrapped;
+            }
+        }
+        return connection;
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    /**
+     * оренда підготовленого запиту
+     */
+    public static class Lease implements AutoCloseable {
+        private final PreparedStatement statement;
+        private final ConnectionStatements owner;
+        private final String sql;
+
+        Lease(PreparedStatement statement, ConnectionStatements owner, String sql) {
+            this.statement = statement;
+            this.owner = owner;
+            this.sql = sql;
+        }
+
+        public PreparedStatement statement() {
+            return statement;
+        }
+
+        public boolean isCached() {
+            return owner != null;
+        }
+
+        /**
+         * повернути запит в кеш або закрити його, якщо він не кешований
+         */
+        @Override
+        public void close() throws SQLException {
+            if (owner == null) {
+                statement.close();
+                return;
+            }
+
+            synchronized (owner) {
+                CachedStatement cached = owner.get(sql);
+                if (cached == null || cached.statement != statement) {
+                    // запит витіснили з кешу, поки він використовувався
+                    statement.close();
+                    return;
+                }
+
+                try {
+                    statement.clearParameters();
+                    statement.clearBatch();
+                    cached.inUse = false;
+                } catch (SQLException e) {
+                    owner.remove(sql);
+                    closeQuietly(statement);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * запит у кеші
+     */
+    private static class CachedStatement {
+        final PreparedStatement statement;
+        boolean inUse;
+
+        CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+    }
+
+    /**
+     * LRU кеш запитів одного з'єднання
+     */
+    private static class ConnectionStatements extends LinkedHashMap<String, CachedStatement> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+        boolean evicted;
+
+        ConnectionStatements(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+            if (size() > maxSize) {
+                if (!eldest.getValue().inUse) {
+                    closeQuietly(eldest.getValue().statement);
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+}
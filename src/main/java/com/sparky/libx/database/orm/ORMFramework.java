@@ -1,10 +1,14 @@
 package com.sparky.libx.database.orm;
 
 import java.lang.annotation.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 import com.sparky.libx.database.DatabaseManager;
 
@@ -14,8 +18,12 @@ import com.sparky.libx.database.DatabaseManager;
  */
 public class ORMFramework {
     
+    private static final int BATCH_SIZE = 500;
+    
     private final DatabaseManager databaseManager;
     private final Map<Class<?>, EntityInfo> entityCache = new ConcurrentHashMap<>();
+    private final Map<Class<?>, SecondLevelCache> secondLevelCaches = new ConcurrentHashMap<>();
+    private volatile int streamFetchSize = 256;
     
     public ORMFramework(DatabaseManager databaseManager) {
         this.databaseManager = databaseManager;
@@ -51,22 +59,139 @@ public class ORMFramework {
     }
     
     /**
-     * інформація про сутність
+     * інформація про сутність з наперед підготовленими SQL запитами і конструктором
      */
     private static class EntityInfo {
+        final Class<?> entityClass;
         final String tableName;
         final List<FieldInfo> fields;
         final FieldInfo primaryKey;
+        final List<FieldInfo> insertFields;
+        final List<FieldInfo> updateFields;
+        final String insertSql;
+        final String updateSql;
+        final String selectAllSql;
+        final String selectByIdSql;
+        final String deleteByIdSql;
+        final String upsertSql;
+        final MethodHandle constructor;
         
-        EntityInfo(String tableName, List<FieldInfo> fields, FieldInfo primaryKey) {
+        EntityInfo(Class<?> entityClass, String tableName, List<FieldInfo> fields, FieldInfo primaryKey, String databaseType) {
+            this.entityClass = entityClass;
             this.tableName = tableName;
             this.fields = fields;
             this.primaryKey = primaryKey;
+            
+            List<FieldInfo> insertable = new ArrayList<>();
+            List<FieldInfo> updatable = new ArrayList<>();
+            for (FieldInfo fieldInfo : fields) {
+                if (!fieldInfo.isAutoIncrement) {
+                    insertable.add(fieldInfo);
+                }
+                if (!fieldInfo.isPrimaryKey) {
+                    updatable.add(fieldInfo);
+                }
+            }
+            this.insertFields = Collections.unmodifiableList(insertable);
+            this.updateFields = Collections.unmodifiableList(updatable);
+            
+            List<String> columnNames = new ArrayList<>();
+            List<String> placeholders = new ArrayList<>();
+            for (FieldInfo fieldInfo : insertFields) {
+                columnNames.add(fieldInfo.columnName);
+                placeholders.add("?");
+            }
+            this.insertSql = "INSERT INTO " + tableName + 
+                    " (" + String.join(", ", columnNames) + ")" +
+                    " VALUES (" + String.join(", ", placeholders) + ")";
+            
+            this.selectAllSql = "SELECT * FROM " + tableName;
+            
+            if (primaryKey != null) {
+                List<String> setClauses = new ArrayList<>();
+                for (FieldInfo fieldInfo : updateFields) {
+                    setClauses.add(fieldInfo.columnName + " = ?");
+                }
+                this.updateSql = "UPDATE " + tableName + 
+                        " SET " + String.join(", ", setClauses) +
+                        " WHERE " + primaryKey.columnName + " = ?";
+                this.selectByIdSql = selectAllSql + " WHERE " + primaryKey.columnName + " = ?";
+                this.deleteByIdSql = "DELETE FROM " + tableName + " WHERE " + primaryKey.columnName + " = ?";
+                this.upsertSql = buildUpsertSql(databaseType);
+            } else {
+                this.updateSql = null;
+                this.selectByIdSql = null;
+                this.deleteByIdSql = null;
+                this.upsertSql = null;
+            }
+            
+            MethodHandle ctor;
+            try {
+                Constructor<?> declared = entityClass.getDeclaredConstructor();
+                declared.setAccessible(true);
+                ctor = MethodHandles.lookup().unreflectConstructor(declared)
+                        .asType(MethodType.methodType(Object.class));
+            } catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+                // без конструктора за замовчуванням сутність можна зберігати, але не читати
+                ctor = null;
+            }
+            this.constructor = ctor;
+        }
+        
+        /**
+         * побудувати upsert для діалекту бази даних (всі колонки, включно з первинним ключем)
+         */
+        private String buildUpsertSql(String databaseType) {
+            List<String> columnNames = new ArrayList<>();
+            List<String> placeholders = new ArrayList<>();
+            for (FieldInfo fieldInfo : fields) {
+                columnNames.add(fieldInfo.columnName);
+                placeholders.add("?");
+            }
+            String columns = " (" + String.join(", ", columnNames) + ")";
+            String values = " VALUES (" + String.join(", ", placeholders) + ")";
+            String pk = primaryKey.columnName;
+            
+            List<String> assignments = new ArrayList<>();
+            switch (databaseType) {
+                case "h2":
+                    return "MERGE INTO " + tableName + columns + " KEY (" + pk + ")" + values;
+                case "mysql":
+                case "mariadb":
+                    for (FieldInfo fieldInfo : updateFields) {
+                        assignments.add(fieldInfo.columnName + " = VALUES(" + fieldInfo.columnName + ")");
+                    }
+                    if (assignments.isEmpty()) {
+                        assignments.add(pk + " = " + pk);
+                    }
+                    return "INSERT INTO " + tableName + columns + values +
+                            " ON DUPLICATE KEY UPDATE " + String.join(", ", assignments);
+                case "sqlite":
+                case "postgresql":
+                    for (FieldInfo fieldInfo : updateFields) {
+                        assignments.add(fieldInfo.columnName + " = excluded." + fieldInfo.columnName);
+                    }
+                    return "INSERT INTO " + tableName + columns + values + " ON CONFLICT (" + pk + ")" +
+                            (assignments.isEmpty() ? " DO NOTHING" : " DO UPDATE SET " + String.join(", ", assignments));
+                default:
+                    return null;
+            }
+        }
+        
+        Object newInstance() throws SQLException {
+            if (constructor == null) {
+                throw new SQLException("Сутність " + entityClass.getName() + " не має конструктора без параметрів");
+            }
+            try {
+                return constructor.invokeExact();
+            } catch (Throwable e) {
+                throw new SQLException("Не вдалося створити екземпляр сутності " + entityClass.getName(), e);
+            }
         }
     }
     
     /**
-     * інформація про поле
+     * інформація про поле зі скомпільованими аксесорами і конвертером колонки
      */
     private static class FieldInfo {
         final Field field;
@@ -74,6 +199,9 @@ public class ORMFramework {
         final boolean isPrimaryKey;
         final boolean isAutoIncrement;
         final boolean isNullable;
+        final MethodHandle getter;
+        final MethodHandle setter;
+        final ColumnConverter converter;
         
         FieldInfo(Field field, String columnName, boolean isPrimaryKey, boolean isAutoIncrement, boolean isNullable) {
             this.field = field;
@@ -82,6 +210,134 @@ public class ORMFramework {
             this.isAutoIncrement = isAutoIncrement;
             this.isNullable = isNullable;
             field.setAccessible(true);
+            
+            MethodType getterType = MethodType.methodType(Object.class, Object.class);
+            MethodType setterType = MethodType.methodType(void.class, Object.class, Object.class);
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                this.getter = lookup.unreflectGetter(field).asType(getterType);
+                this.setter = lookup.unreflectSetter(field).asType(setterType);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Не вдалося отримати доступ до поля " + field.getName(), e);
+            }
+            this.converter = ColumnConverter.forType(field.getType());
+        }
+        
+        Object get(Object entity) throws SQLException {
+            try {
+                return getter.invokeExact(entity);
+            } catch (Throwable e) {
+                throw new SQLException("Не вдалося отримати значення поля " + field.getName(), e);
+            }
+        }
+        
+        void set(Object entity, Object value) throws SQLException {
+            try {
+                setter.invokeExact(entity, value);
+            } catch (Throwable e) {
+                throw new SQLException("Не вдалося встановити значення поля " + field.getName(), e);
+            }
+        }
+    }
+    
+    /**
+     * конвертер значення колонки до типу поля, вибирається один раз для кожного поля
+     */
+    @FunctionalInterface
+    private interface ColumnConverter {
+        Object convert(Object value);
+        
+        static ColumnConverter forType(Class<?> targetType) {
+            if (targetType == int.class || targetType == Integer.class) {
+                return value -> value instanceof Number ? ((Number) value).intValue() : value;
+            } else if (targetType == long.class || targetType == Long.class) {
+                return value -> value instanceof Number ? ((Number) value).longValue() : value;
+            } else if (targetType == double.class || targetType == Double.class) {
+                return value -> value instanceof Number ? ((Number) value).doubleValue() : value;
+            } else if (targetType == float.class || targetType == Float.class) {
+                return value -> value instanceof Number ? ((Number) value).floatValue() : value;
+            } else if (targetType == short.class || targetType == Short.class) {
+                return value -> value instanceof Number ? ((Number) value).shortValue() : value;
+            } else if (targetType == byte.class || targetType == Byte.class) {
+                return value -> value instanceof Number ? ((Number) value).byteValue() : value;
+            } else if (targetType == boolean.class || targetType == Boolean.class) {
+                return value -> value instanceof String ? Boolean.parseBoolean((String) value) : value;
+            }
+            return value -> value;
+        }
+    }
+    
+    /**
+     * перетворювач рядків ResultSet в сутності без проміжної мапи
+     *
+     * індекси колонок визначаються один раз за першим рядком результату
+     */
+    private static class EntityRowMapper<T> implements DatabaseManager.RowMapper<T> {
+        private final Class<T> clazz;
+        private final EntityInfo entityInfo;
+        private ResultSet boundResultSet;
+        private int[] columnIndexes;
+        
+        EntityRowMapper(Class<T> clazz, EntityInfo entityInfo) {
+            this.clazz = clazz;
+            this.entityInfo = entityInfo;
+        }
+        
+        @Override
+        public T mapRow(ResultSet resultSet, int rowNumber) throws SQLException {
+            if (resultSet != boundResultSet) {
+                bind(resultSet);
+            }
+            
+            Object entity = entityInfo.newInstance();
+            List<FieldInfo> fields = entityInfo.fields;
+            for (int i = 0; i < columnIndexes.length; i++) {
+                int columnIndex = columnIndexes[i];
+                if (columnIndex == 0) {
+                    continue;
+                }
+                
+                Object value = resultSet.getObject(columnIndex);
+                if (value != null) {
+                    FieldInfo fieldInfo = fields.get(i);
+                    fieldInfo.set(entity, fieldInfo.converter.convert(value));
+                }
+            }
+            
+            return clazz.cast(entity);
+        }
+        
+        private void bind(ResultSet resultSet) throws SQLException {
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            int columnCount = metaData.getColumnCount();
+            String[] labels = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                labels[i] = metaData.getColumnLabel(i + 1);
+            }
+            
+            List<FieldInfo> fields = entityInfo.fields;
+            int[] indexes = new int[fields.size()];
+            for (int i = 0; i < fields.size(); i++) {
+                indexes[i] = findColumn(labels, fields.get(i).columnName);
+            }
+            
+            this.columnIndexes = indexes;
+            this.boundResultSet = resultSet;
+        }
+        
+        private static int findColumn(String[] labels, String columnName) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i].equals(columnName)) {
+                    return i + 1;
+                }
+            }
+            // деякі бази (наприклад H2) повертають назви у верхньому регістрі
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i].equalsIgnoreCase(columnName)) {
+                    return i + 1;
+                }
+            }
+            return 0;
         }
     }
     
@@ -96,15 +352,12 @@ public class ORMFramework {
         // перевірити чи є первинний ключ
         if (entityInfo.primaryKey != null) {
             // спробувати отримати значення первинного ключа
-            try {
-                Object primaryKeyValue = entityInfo.primaryKey.field.get(entity);
-                if (primaryKeyValue != null) {
-                    // оновити існуючу сутність
-                    update(entity, entityInfo);
-                    return;
-                }
-            } catch (IllegalAccessException e) {
-                throw new SQLException("Не вдалося отримати значення первинного ключа", e);
+            Object primaryKeyValue = entityInfo.primaryKey.get(entity);
+            if (primaryKeyValue != null) {
+                // оновити існуючу сутність
+                update(entity, entityInfo);
+                evict(clazz, primaryKeyValue);
+                return;
             }
         }
         
@@ -113,76 +366,198 @@ public class ORMFramework {
     }
     
     /**
-     * вставити нову сутність
+     * зберегти колекцію сутностей пакетами: нові сутності вставляються одним пакетом,
+     * існуючі (з первинним ключем) оновлюються іншим
+     *
+     * усі пакети виконуються в одній транзакції; якщо вона відкочується, згенеровані ключі,
+     * вже записані в сутності, лишаються в них
+     * @param entities сутності
+     * @return згенеровані ключі вставлених сутностей в порядку вставки
      */
-    private <T> void insert(T entity, EntityInfo entityInfo) throws SQLException {
-        List<String> columnNames = new ArrayList<>();
-        List<Object> values = new ArrayList<>();
-        List<String> placeholders = new ArrayList<>();
+    public <T> List<Object> saveAll(Collection<T> entities) throws SQLException {
+        return persistAll(entities, false);
+    }
+    
+    /**
+     * вставити або оновити колекцію сутностей одним пакетним upsert запитом
+     * (MERGE для H2, ON DUPLICATE KEY UPDATE для MySQL, ON CONFLICT для SQLite і PostgreSQL);
+     * сутності без значення первинного ключа вставляються звичайним пакетом;
+     * усе виконується в одній транзакції
+     * @param entities сутності
+     * @return згенеровані ключі вставлених сутностей в порядку вставки
+     */
+    public <T> List<Object> upsertAll(Collection<T> entities) throws SQLException {
+        return persistAll(entities, true);
+    }
+    
+    /**
+     * згрупувати сутності за класом і зберегти кожну групу пакетами в одній транзакції
+     */
+    private List<Object> persistAll(Collection<?> entities, boolean upsert) throws SQLException {
+        List<Object> generatedKeys = new ArrayList<>();
+        databaseManager.executeTransaction(connection -> generatedKeys.addAll(persistAll(connection, entities, upsert)));
         
-        for (FieldInfo fieldInfo : entityInfo.fields) {
-            // пропустити автоінкрементні поля
-            if (fieldInfo.isAutoIncrement) {
-                continue;
+        // кеш другого рівня очищується лише після коміту, інакше паралельний findById
+        // може встигнути повернути в нього старий рядок
+        for (Object entity : entities) {
+            EntityInfo entityInfo = getEntityInfo(entity.getClass());
+            if (entityInfo.primaryKey != null) {
+                evict(entity.getClass(), entityInfo.primaryKey.get(entity));
             }
+        }
+        return generatedKeys;
+    }
+    
+    private List<Object> persistAll(Connection connection, Collection<?> entities, boolean upsert) throws SQLException {
+        Map<Class<?>, List<Object>> byClass = new LinkedHashMap<>();
+        for (Object entity : entities) {
+            byClass.computeIfAbsent(entity.getClass(), key -> new ArrayList<>()).add(entity);
+        }
+        
+        List<Object> generatedKeys = new ArrayList<>();
+        for (Map.Entry<Class<?>, List<Object>> group : byClass.entrySet()) {
+            EntityInfo entityInfo = getEntityInfo(group.getKey());
             
-            try {
-                Object value = fieldInfo.field.get(entity);
-                columnNames.add(fieldInfo.columnName);
-                values.add(value);
-                placeholders.add("?");
-            } catch (IllegalAccessException e) {
-                throw new SQLException("Не вдалося отримати значення поля " + fieldInfo.field.getName(), e);
+            if (upsert && entityInfo.primaryKey == null) {
+                throw new SQLException("Сутність " + group.getKey().getName() + " не має первинного ключа");
+            }
+            if (upsert && entityInfo.upsertSql == null) {
+                throw new SQLException("Upsert не підтримується для бази даних " + databaseManager.getDatabaseType());
+            }
+            
+            List<Object> inserts = new ArrayList<>();
+            List<Object> existing = new ArrayList<>();
+            for (Object entity : group.getValue()) {
+                Object primaryKeyValue = entityInfo.primaryKey != null ? entityInfo.primaryKey.get(entity) : null;
+                if (primaryKeyValue != null) {
+                    existing.add(entity);
+                } else {
+                    inserts.add(entity);
+                }
+            }
+            
+            generatedKeys.addAll(insertBatch(connection, inserts, entityInfo));
+            if (upsert) {
+                upsertBatch(connection, existing, entityInfo);
+            } else {
+                updateBatch(connection, existing, entityInfo);
             }
         }
         
-        String sql = "INSERT INTO " + entityInfo.tableName + 
-                    " (" + String.join(", ", columnNames) + ")" +
-                    " VALUES (" + String.join(", ", placeholders) + ")";
-        
-        int rowsAffected = databaseManager.executeUpdate(sql, values.toArray());
-        if (rowsAffected == 0) {
-            throw new SQLException("Не вдалося вставити сутність");
-        }
+        return generatedKeys;
     }
     
     /**
-     * оновити існуючу сутність
+     * вставити сутності пакетами і записати згенеровані ключі в сутності
      */
-    private <T> void update(T entity, EntityInfo entityInfo) throws SQLException {
-        List<String> setClauses = new ArrayList<>();
-        List<Object> values = new ArrayList<>();
-        
-        Object primaryKeyValue = null;
+    private List<Object> insertBatch(Connection connection, List<Object> entities, EntityInfo entityInfo) throws SQLException {
+        List<Object> generatedKeys = new ArrayList<>();
+        FieldInfo primaryKey = entityInfo.primaryKey;
+        boolean returnKeys = primaryKey != null && primaryKey.isAutoIncrement;
         
-        for (FieldInfo fieldInfo : entityInfo.fields) {
-            // пропустити первинний ключ в SET частині
-            if (fieldInfo.isPrimaryKey) {
-                try {
-                    primaryKeyValue = fieldInfo.field.get(entity);
-                } catch (IllegalAccessException e) {
-                    throw new SQLException("Не вдалося отримати значення первинного ключа", e);
-                }
+        for (int from = 0; from < entities.size(); from += BATCH_SIZE) {
+            List<Object> chunk = entities.subList(from, Math.min(entities.size(), from + BATCH_SIZE));
+            List<Object[]> parameters = toParameters(chunk, entityInfo.insertFields, null);
+            
+            if (!returnKeys) {
+                databaseManager.executeBatch(connection, entityInfo.insertSql, parameters);
                 continue;
             }
             
-            try {
-                Object value = fieldInfo.field.get(entity);
-                setClauses.add(fieldInfo.columnName + " = ?");
-                values.add(value);
-            } catch (IllegalAccessException e) {
-                throw new SQLException("Не вдалося отримати значення поля " + fieldInfo.field.getName(), e);
+            List<Object> keys = databaseManager.executeBatchReturningKeys(connection, entityInfo.insertSql, parameters,
+                primaryKey.columnName);
+            // деякі драйвери (наприклад SQLite) повертають лише останній ключ пакета
+            if (keys.size() == chunk.size()) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    primaryKey.set(chunk.get(i), primaryKey.converter.convert(keys.get(i)));
+                }
             }
+            generatedKeys.addAll(keys);
         }
         
-        // додати значення первинного ключа в кінець
-        values.add(primaryKeyValue);
+        return generatedKeys;
+    }
+    
+    /**
+     * оновити сутності пакетами
+     */
+    private void updateBatch(Connection connection, List<Object> entities, EntityInfo entityInfo) throws SQLException {
+        for (int from = 0; from < entities.size(); from += BATCH_SIZE) {
+            List<Object> chunk = entities.subList(from, Math.min(entities.size(), from + BATCH_SIZE));
+            int[] results = databaseManager.executeBatch(connection, entityInfo.updateSql,
+                toParameters(chunk, entityInfo.updateFields, entityInfo.primaryKey));
+            
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] == 0) {
+                    throw new SQLException("Не вдалося оновити сутність з ID " + entityInfo.primaryKey.get(chunk.get(i)));
+                }
+            }
+        }
+    }
+    
+    /**
+     * виконати upsert сутностей пакетами
+     */
+    private void upsertBatch(Connection connection, List<Object> entities, EntityInfo entityInfo) throws SQLException {
+        for (int from = 0; from < entities.size(); from += BATCH_SIZE) {
+            List<Object> chunk = entities.subList(from, Math.min(entities.size(), from + BATCH_SIZE));
+            databaseManager.executeBatch(connection, entityInfo.upsertSql, toParameters(chunk, entityInfo.fields, null));
+        }
+    }
+    
+    /**
+     * зібрати параметри пакета зі значень полів
+     * @param trailing поле, значення якого додається в кінець (первинний ключ для UPDATE) або null
+     */
+    private List<Object[]> toParameters(List<Object> entities, List<FieldInfo> fields, FieldInfo trailing) throws SQLException {
+        List<Object[]> parameters = new ArrayList<>(entities.size());
+        int width = fields.size() + (trailing != null ? 1 : 0);
         
-        String sql = "UPDATE " + entityInfo.tableName + 
-                    " SET " + String.join(", ", setClauses) +
-                    " WHERE " + entityInfo.primaryKey.columnName + " = ?";
+        for (Object entity : entities) {
+            Object[] values = new Object[width];
+            for (int i = 0; i < fields.size(); i++) {
+                values[i] = fields.get(i).get(entity);
+            }
+            if (trailing != null) {
+                values[width - 1] = trailing.get(entity);
+            }
+            parameters.add(values);
+        }
         
-        int rowsAffected = databaseManager.executeUpdate(sql, values.toArray());
+        return parameters;
+    }
+    
+    /**
+     * вставити нову сутність
+     */
+    private <T> void insert(T entity, EntityInfo entityInfo) throws SQLException {
+        // автоінкрементні поля вже виключені з insertFields
+        List<FieldInfo> fields = entityInfo.insertFields;
+        Object[] values = new Object[fields.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = fields.get(i).get(entity);
+        }
+        
+        int rowsAffected = databaseManager.executeUpdate(entityInfo.insertSql, values);
+        if (rowsAffected == 0) {
+            throw new SQLException("Не вдалося вставити сутність");
+        }
+    }
+    
+    /**
+     * оновити існуючу сутність
+     */
+    private <T> void update(T entity, EntityInfo entityInfo) throws SQLException {
+        // первинний ключ пропускається в SET частині і додається в кінець
+        List<FieldInfo> fields = entityInfo.updateFields;
+        Object[] values = new Object[fields.size() + 1];
+        for (int i = 0; i < fields.size(); i++) {
+            values[i] = fields.get(i).get(entity);
+        }
+        Object primaryKeyValue = entityInfo.primaryKey.get(entity);
+        values[fields.size()] = primaryKeyValue;
+        
+        int rowsAffected = databaseManager.executeUpdate(entityInfo.updateSql, values);
         if (rowsAffected == 0) {
             throw new SQLException("Не вдалося оновити сутність з ID " + primaryKeyValue);
         }
@@ -201,15 +576,19 @@ public class ORMFramework {
             throw new SQLException("Сутність " + clazz.getName() + " не має первинного ключа");
         }
         
-        String sql = "SELECT * FROM " + entityInfo.tableName + 
-                    " WHERE " + entityInfo.primaryKey.columnName + " = ?";
-        
-        List<Map<String, Object>> results = databaseManager.executeQuery(sql, id);
-        if (results.isEmpty()) {
-            return null;
+        SecondLevelCache cache = secondLevelCaches.get(clazz);
+        if (cache != null) {
+            Object cached = cache.get(entityInfo.primaryKey.converter.convert(id));
+            if (cached != null) {
+                return clazz.cast(copyEntity(cached, entityInfo));
+            }
         }
         
-        return mapResultSetToEntity(results.get(0), clazz, entityInfo);
+        T entity = databaseManager.querySingle(entityInfo.selectByIdSql, new EntityRowMapper<>(clazz, entityInfo), id);
+        if (entity != null && cache != null) {
+            cache.put(entityInfo.primaryKey.converter.convert(id), copyEntity(entity, entityInfo));
+        }
+        return entity;
     }
     
     /**
@@ -220,16 +599,7 @@ public class ORMFramework {
     public <T> List<T> findAll(Class<T> clazz) throws SQLException {
         EntityInfo entityInfo = getEntityInfo(clazz);
         
-        String sql = "SELECT * FROM " + entityInfo.tableName;
-        
-        List<Map<String, Object>> results = databaseManager.executeQuery(sql);
-        List<T> entities = new ArrayList<>();
-        
-        for (Map<String, Object> row : results) {
-            entities.add(mapResultSetToEntity(row, clazz, entityInfo));
-        }
-        
-        return entities;
+        return databaseManager.query(entityInfo.selectAllSql, new EntityRowMapper<>(clazz, entityInfo));
     }
     
     /**
@@ -242,16 +612,40 @@ public class ORMFramework {
     public <T> List<T> findByCondition(Class<T> clazz, String whereClause, Object... parameters) throws SQLException {
         EntityInfo entityInfo = getEntityInfo(clazz);
         
-        String sql = "SELECT * FROM " + entityInfo.tableName + " WHERE " + whereClause;
+        String sql = entityInfo.selectAllSql + " WHERE " + whereClause;
         
-        List<Map<String, Object>> results = databaseManager.executeQuery(sql, parameters);
-        List<T> entities = new ArrayList<>();
+        return databaseManager.query(sql, new EntityRowMapper<>(clazz, entityInfo), parameters);
+    }
+    
+    /**
+     * отримати сутності як лінивий потік, що читає рядки курсором по мірі споживання
+     *
+     * потік утримує з'єднання до вичерпання або закриття, тому його треба закривати
+     * @param clazz клас сутності
+     * @param whereClause умова WHERE (null якщо немає)
+     * @param parameters параметри
+     * @return потік сутностей
+     */
+    public <T> Stream<T> stream(Class<T> clazz, String whereClause, Object... parameters) throws SQLException {
+        EntityInfo entityInfo = getEntityInfo(clazz);
         
-        for (Map<String, Object> row : results) {
-            entities.add(mapResultSetToEntity(row, clazz, entityInfo));
-        }
+        String sql = (whereClause == null || whereClause.isEmpty())
+                    ? entityInfo.selectAllSql
+                    : entityInfo.selectAllSql + " WHERE " + whereClause;
         
-        return entities;
+        return databaseManager.stream(sql, new EntityRowMapper<>(clazz, entityInfo), streamFetchSize, parameters);
+    }
+    
+    /**
+     * встановити кількість рядків, які драйвер отримує за раз для stream
+     * @param fetchSize кількість рядків
+     */
+    public void setStreamFetchSize(int fetchSize) {
+        this.streamFetchSize = Math.max(1, fetchSize);
+    }
+    
+    public int getStreamFetchSize() {
+        return streamFetchSize;
     }
     
     /**
@@ -266,18 +660,12 @@ public class ORMFramework {
             throw new SQLException("Сутність " + clazz.getName() + " не має первинного ключа");
         }
         
-        try {
-            Object primaryKeyValue = entityInfo.primaryKey.field.get(entity);
-            
-            String sql = "DELETE FROM " + entityInfo.tableName + 
-                        " WHERE " + entityInfo.primaryKey.columnName + " = ?";
-            
-            int rowsAffected = databaseManager.executeUpdate(sql, primaryKeyValue);
-            if (rowsAffected == 0) {
-                throw new SQLException("Не вдалося видалити сутність з ID " + primaryKeyValue);
-            }
-        } catch (IllegalAccessException e) {
-            throw new SQLException("Не вдалося отримати значення первинного ключа", e);
+        Object primaryKeyValue = entityInfo.primaryKey.get(entity);
+        
+        int rowsAffected = databaseManager.executeUpdate(entityInfo.deleteByIdSql, primaryKeyValue);
+        evict(clazz, primaryKeyValue);
+        if (rowsAffected == 0) {
+            throw new SQLException("Не вдалося видалити сутність з ID " + primaryKeyValue);
         }
     }
     
@@ -293,10 +681,8 @@ public class ORMFramework {
             throw new SQLException("Сутність " + clazz.getName() + " не має первинного ключа");
         }
         
-        String sql = "DELETE FROM " + entityInfo.tableName + 
-                    " WHERE " + entityInfo.primaryKey.columnName + " = ?";
-        
-        int rowsAffected = databaseManager.executeUpdate(sql, id);
+        int rowsAffected = databaseManager.executeUpdate(entityInfo.deleteByIdSql, id);
+        evict(clazz, id);
         if (rowsAffected == 0) {
             throw new SQLException("Не вдалося видалити сутність з ID " + id);
         }
@@ -356,68 +742,7 @@ public class ORMFramework {
             }
         }
         
-        return new EntityInfo(tableName, fields, primaryKey);
-    }
-    
-    /**
-     * перетворити результат запиту в сутність
-     */
-    @SuppressWarnings("unchecked")
-    private <T> T mapResultSetToEntity(Map<String, Object> row, Class<T> clazz, EntityInfo entityInfo) throws SQLException {
-        try {
-            T entity = clazz.getDeclaredConstructor().newInstance();
-            
-            for (FieldInfo fieldInfo : entityInfo.fields) {
-                Object value = row.get(fieldInfo.columnName);
-                if (value != null) {
-                    // конвертувати типи якщо потрібно
-                    value = convertValue(value, fieldInfo.field.getType());
-                    fieldInfo.field.set(entity, value);
-                }
-            }
-            
-            return entity;
-        } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
-            throw new SQLException("Не вдалося створити екземпляр сутності " + clazz.getName(), e);
-        }
-    }
-    
-    /**
-     * конвертувати значення до потрібного типу
-     */
-    private Object convertValue(Object value, Class<?> targetType) {
-        if (value == null || targetType.isAssignableFrom(value.getClass())) {
-            return value;
-        }
-        
-        // конвертація числових типів
-        if (value instanceof Number) {
-            Number number = (Number) value;
-            if (targetType == int.class || targetType == Integer.class) {
-                return number.intValue();
-            } else if (targetType == long.class || targetType == Long.class) {
-                return number.longValue();
-            } else if (targetType == double.class || targetType == Double.class) {
-                return number.doubleValue();
-            } else if (targetType == float.class || targetType == Float.class) {
-                return number.floatValue();
-            } else if (targetType == short.class || targetType == Short.class) {
-                return number.shortValue();
-            } else if (targetType == byte.class || targetType == Byte.class) {
-                return number.byteValue();
-            }
-        }
-        
-        // конвертація строкових типів
-        if (value instanceof String) {
-            String str = (String) value;
-            if (targetType == boolean.class || targetType == Boolean.class) {
-                return Boolean.parseBoolean(str);
-            }
-        }
-        
-        // якщо не вдалося конвертувати, повертаємо оригінальне значення
-        return value;
+        return new EntityInfo(clazz, tableName, fields, primaryKey, databaseManager.getDatabaseType());
     }
     
     /**
@@ -525,4 +850,242 @@ public class ORMFramework {
     public void clearCache() {
         entityCache.clear();
     }
+    
+    /**
+     * увімкнути кеш другого рівня для класу сутності: findById повертає копії
+     * закешованих сутностей без запиту, поки не мине ttl
+     * @param clazz клас сутності
+     * @param maxSize максимальна кількість сутностей у кеші
+     * @param ttlMillis час життя запису в мілісекундах
+     */
+    public void enableSecondLevelCache(Class<?> clazz, int maxSize, long ttlMillis) {
+        if (getEntityInfo(clazz).primaryKey == null) {
+            throw new IllegalArgumentException("Сутність " + clazz.getName() + " не має первинного ключа");
+        }
+        secondLevelCaches.put(clazz, new SecondLevelCache(maxSize, ttlMillis));
+    }
+    
+    /**
+     * вимкнути кеш другого рівня для класу сутності
+     * @param clazz клас сутності
+     */
+    public void disableSecondLevelCache(Class<?> clazz) {
+        secondLevelCaches.remove(clazz);
+    }
+    
+    /**
+     * очистити кеші другого рівня всіх сутностей
+     */
+    public void clearSecondLevelCache() {
+        for (SecondLevelCache cache : secondLevelCaches.values()) {
+            cache.clear();
+        }
+    }
+    
+    /**
+     * видалити сутність з кешу другого рівня
+     */
+    private void evict(Class<?> clazz, Object id) {
+        SecondLevelCache cache = secondLevelCaches.get(clazz);
+        if (cache != null && id != null) {
+            cache.remove(getEntityInfo(clazz).primaryKey.converter.convert(id));
+        }
+    }
+    
+    /**
+     * створити поверхневу копію сутності через скомпільовані аксесори
+     */
+    private Object copyEntity(Object source, EntityInfo entityInfo) throws SQLException {
+        Object copy = entityInfo.newInstance();
+        for (FieldInfo fieldInfo : entityInfo.fields) {
+            fieldInfo.set(copy, fieldInfo.get(source));
+        }
+        return copy;
+    }
+    
+    /**
+     * відкрити сесію з картою ідентичності
+     * @return нова сесія
+     */
+    public Session openSession() {
+        return new Session();
+    }
+    
+    /**
+     * сесія (одиниця роботи) з картою ідентичності: повторний findById в межах сесії
+     * повертає той самий екземпляр без запиту. сесія не потокобезпечна
+     */
+    public class Session implements AutoCloseable {
+        private final Map<Class<?>, Map<Object, Object>> identityMap = new HashMap<>();
+        
+        private Session() {
+        }
+        
+        /**
+         * знайти сутність за первинним ключем, спочатку в карті ідентичності
+         * @param clazz клас сутності
+         * @param id значення первинного ключа
+         * @return сутність або null
+         */
+        public <T> T findById(Class<T> clazz, Object id) throws SQLException {
+            EntityInfo entityInfo = getEntityInfo(clazz);
+            if (entityInfo.primaryKey == null) {
+                throw new SQLException("Сутність " + clazz.getName() + " не має первинного ключа");
+            }
+            
+            Object key = entityInfo.primaryKey.converter.convert(id);
+            Object known = entitiesOf(clazz).get(key);
+            if (known != null) {
+                return clazz.cast(known);
+            }
+            
+            T entity = ORMFramework.this.findById(clazz, id);
+            if (entity != null) {
+                entitiesOf(clazz).put(key, entity);
+            }
+            return entity;
+        }
+        
+        /**
+         * знайти всі сутності, підставивши вже відомі сесії екземпляри
+         * @param clazz клас сутності
+         * @return список сутностей
+         */
+        public <T> List<T> findAll(Class<T> clazz) throws SQLException {
+            return register(clazz, ORMFramework.this.findAll(clazz));
+        }
+        
+        /**
+         * знайти сутності за умовою, підставивши вже відомі сесії екземпляри
+         * @param clazz клас сутності
+         * @param whereClause умова WHERE
+         * @param parameters параметри
+         * @return список сутностей
+         */
+        public <T> List<T> findByCondition(Class<T> clazz, String whereClause, Object... parameters) throws SQLException {
+            return register(clazz, ORMFramework.this.findByCondition(clazz, whereClause, parameters));
+        }
+        
+        /**
+         * зберегти сутність і додати її в карту ідентичності
+         * @param entity сутність
+         */
+        public <T> void save(T entity) throws SQLException {
+            ORMFramework.this.save(entity);
+            
+            EntityInfo entityInfo = getEntityInfo(entity.getClass());
+            if (entityInfo.primaryKey != null) {
+                Object id = entityInfo.primaryKey.get(entity);
+                if (id != null) {
+                    entitiesOf(entity.getClass()).put(id, entity);
+                }
+            }
+        }
+        
+        /**
+         * видалити сутність і прибрати її з карти ідентичності
+         * @param entity сутність
+         */
+        public <T> void delete(T entity) throws SQLException {
+            ORMFramework.this.delete(entity);
+            entitiesOf(entity.getClass()).values().remove(entity);
+        }
+        
+        /**
+         * перевірити чи сутність належить сесії
+         * @param entity сутність
+         * @return true якщо сутність є в карті ідентичності
+         */
+        public boolean contains(Object entity) {
+            Map<Object, Object> entities = identityMap.get(entity.getClass());
+            return entities != null && entities.containsValue(entity);
+        }
+        
+        /**
+         * очистити карту ідентичності
+         */
+        public void clear() {
+            identityMap.clear();
+        }
+        
+        @Override
+        public void close() {
+            clear();
+        }
+        
+        private Map<Object, Object> entitiesOf(Class<?> clazz) {
+            return identityMap.computeIfAbsent(clazz, key -> new HashMap<>());
+        }
+        
+        private <T> List<T> register(Class<T> clazz, List<T> loaded) throws SQLException {
+            EntityInfo entityInfo = getEntityInfo(clazz);
+            if (entityInfo.primaryKey == null) {
+                return loaded;
+            }
+            
+            Map<Object, Object> entities = entitiesOf(clazz);
+            List<T> result = new ArrayList<>(loaded.size());
+            for (T entity : loaded) {
+                Object id = entityInfo.primaryKey.get(entity);
+                Object known = id != null ? entities.putIfAbsent(id, entity) : null;
+                result.add(known != null ? clazz.cast(known) : entity);
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * обмежений LRU кеш другого рівня з часом життя записів
+     */
+    private static class SecondLevelCache {
+        private final Map<Object, CacheEntry> entries;
+        private final long ttlMillis;
+        
+        SecondLevelCache(int maxSize, long ttlMillis) {
+            this.ttlMillis = ttlMillis;
+            this.entries = new LinkedHashMap<Object, CacheEntry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, CacheEntry> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+        
+        synchronized Object get(Object id) {
+            CacheEntry entry = entries.get(id);
+            if (entry == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() > entry.expiresAt) {
+                entries.remove(id);
+                return null;
+            }
+            return entry.entity;
+        }
+        
+        synchronized void put(Object id, Object entity) {
+            entries.put(id, new CacheEntry(entity, System.currentTimeMillis() + ttlMillis));
+        }
+        
+        synchronized void remove(Object id) {
+            entries.remove(id);
+        }
+        
+        synchronized void clear() {
+            entries.clear();
+        }
+    }
+    
+    /**
+     * запис кешу другого рівня
+     */
+    private static class CacheEntry {
+        final Object entity;
+        final long expiresAt;
+        
+        CacheEntry(Object entity, long expiresAt) {
+            this.entity = entity;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package com.sparky.libx.db;
 
+import com.sparky.libx.database.LatencyHistogram;
+import com.sparky.libx.database.QueryMetrics;
 import com.sparky.libx.math.Vector3D;
 import java.sql.*;
 import java.util.*;
@@ -21,30 +23,71 @@ import java.util.zip.*;
 public class AdvancedDatabaseManagement {
     
     /**
-     * Represents a database connection pool
+     * Represents a database connection pool.
+     * Idle connections live in a concurrent bag: a borrower first tries the connections its own
+     * thread returned recently, then scans the shared list, claiming entries with a CAS on their
+     * state, and finally waits on a hand-off queue while a background thread opens a new connection.
+     * The total connection count is reserved with a CAS, so bursts never overshoot maxSize.
      */
     public static class ConnectionPool {
+        private static final int THREAD_LOCAL_CAPACITY = 16;
+        private static final long VALIDATION_BYPASS_MILLIS = 500;
+        private static final long HOUSEKEEPING_PERIOD_MILLIS = 5000;
+        private static final long CLOSE_GRACE_MILLIS = 10000;
+        private static final int MAX_COMPILED_QUERIES = 1024;
+        
         private final String url;
         private final String username;
         private final String password;
+        private final int minIdle;
         private final int maxSize;
-        private final BlockingQueue<PooledConnection> availableConnections;
-        private final List<PooledConnection> usedConnections;
-        private final Lock poolLock;
+        private final long connectionTimeoutMillis;
+        private final long idleTimeoutMillis;
+        private final long leakDetectionThresholdMillis;
+        private final CopyOnWriteArrayList<PoolEntry> sharedList;
+        private final ThreadLocal<ArrayList<PoolEntry>> threadList;
+        private final SynchronousQueue<PoolEntry> handoffQueue;
+        private final AtomicInteger totalConnections;
+        private final AtomicInteger pendingCreations;
+        private final AtomicInteger waiters;
+        private final AtomicLong leakCount;
+        private final ExecutorService creator;
+        private final ScheduledExecutorService housekeeper;
+        private final Map<String, CompiledQuery> compiledQueries;
+        private volatile int statementCacheSize;
         private volatile boolean closed;
         
         public ConnectionPool(String url, String username, String password, int maxSize) {
+            this(url, username, password, Math.min(5, maxSize), maxSize, 30000, 600000, 0);
+        }
+        
+        public ConnectionPool(String url, String username, String password, int minIdle, int maxSize,
+                              long connectionTimeoutMillis, long idleTimeoutMillis, long leakDetectionThresholdMillis) {
             this.url = url;
             this.username = username;
             this.password = password;
-            this.maxSize = maxSize;
-            this.availableConnections = new LinkedBlockingQueue<>();
-            this.usedConnections = new ArrayList<>();
-            this.poolLock = new ReentrantLock();
+            this.maxSize = Math.max(1, maxSize);
+            this.minIdle = Math.max(0, Math.min(minIdle, this.maxSize));
+            this.connectionTimeoutMillis = connectionTimeoutMillis;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.leakDetectionThresholdMillis = leakDetectionThresholdMillis;
+            this.sharedList = new CopyOnWriteArrayList<>();
+            this.threadList = ThreadLocal.withInitial(() -> new ArrayList<>(THREAD_LOCAL_CAPACITY));
+            this.handoffQueue = new SynchronousQueue<>(true);
+            this.totalConnections = new AtomicInteger();
+            this.pendingCreations = new AtomicInteger();
+            this.waiters = new AtomicInteger();
+            this.leakCount = new AtomicLong();
+            this.creator = Executors.newSingleThreadExecutor(daemonThreads("ConnectionPool-creator"));
+            this.housekeeper = Executors.newSingleThreadScheduledExecutor(daemonThreads("ConnectionPool-housekeeper"));
+            this.compiledQueries = new ConcurrentHashMap<>();
+            this.statementCacheSize = 64;
             this.closed = false;
             
             // Initialize pool with minimum connections
-            initializePool(Math.min(5, maxSize));
+            initializePool(this.minIdle);
+            housekeeper.scheduleWithFixedDelay(this::housekeep, HOUSEKEEPING_PERIOD_MILLIS,
+                HOUSEKEEPING_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
         }
         
         /**
@@ -52,76 +95,277 @@ public class AdvancedDatabaseManagement {
          */
         private void initializePool(int count) {
             for (int i = 0; i < count; i++) {
+                if (!reserveSlot()) {
+                    return;
+                }
                 try {
-                    Connection connection = DriverManager.getConnection(url, username, password);
-                    PooledConnection pooledConnection = new PooledConnection(connection, this);
-                    availableConnections.offer(pooledConnection);
+                    addEntry(openEntry());
                 } catch (SQLException e) {
+                    totalConnections.decrementAndGet();
                     System.err.println("Failed to create connection: " + e.getMessage());
                 }
             }
         }
         
         /**
-         * Gets a connection from the pool
+         * Gets a connection from the pool, waiting up to the connection timeout
          */
         public Connection getConnection() throws SQLException {
+            return getConnection(connectionTimeoutMillis);
+        }
+        
+        /**
+         * Gets a connection from the pool, waiting up to the given timeout
+         */
+        public Connection getConnection(long timeoutMillis) throws SQLException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            
+            while (true) {
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                
+                PoolEntry entry = borrow(deadline);
+                if (entry == null) {
+                    throw new SQLException("Timed out waiting for connection after " + timeoutMillis + "ms (total: " +
+                        totalConnections.get() + ", in use: " + getUsedConnectionCount() + ")");
+                }
+                if (closed) {
+                    // close() ran while this thread was claiming the entry
+                    removeEntry(entry);
+                    throw new SQLException("Connection pool is closed");
+                }
+                
+                // Validate connections that sat idle long enough to have gone stale
+                long now = System.currentTimeMillis();
+                if (now - entry.lastAccessed > VALIDATION_BYPASS_MILLIS && !entry.isAlive()) {
+                    removeEntry(entry);
+                    continue;
+                }
+                
+                entry.lastBorrowed = now;
+                entry.leakTrace = leakDetectionThresholdMillis > 0
+                    ? new Exception("Connection borrowed by " + Thread.currentThread().getName())
+                    : null;
+                entry.leakReported = false;
+                entry.statementCacheSize = statementCacheSize;
+                return new PooledConnection(entry, this);
+            }
+        }
+        
+        /**
+         * Claims an idle entry or waits for one until the deadline
+         */
+        private PoolEntry borrow(long deadline) throws SQLException {
+            // Connections this thread returned recently are likely still idle and warm in cache
+            ArrayList<PoolEntry> local = threadList.get();
+            for (int i = local.size() - 1; i >= 0; i--) {
+                PoolEntry entry = local.remove(i);
+                if (entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.IN_USE)) {
+                    return entry;
+                }
+            }
+            
+            waiters.incrementAndGet();
+            try {
+                for (PoolEntry entry : sharedList) {
+                    if (entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.IN_USE)) {
+                        if (waiters.get() > 1) {
+                            fillPool();
+                        }
+                        return entry;
+                    }
+                }
+                
+                fillPool();
+                
+                long remaining = deadline - System.nanoTime();
+                while (remaining > 0) {
+                    PoolEntry entry = handoffQueue.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(10)),
+                        TimeUnit.NANOSECONDS);
+                    if (entry == null) {
+                        // A connection may have been returned while nobody was polling
+                        for (PoolEntry candidate : sharedList) {
+                            if (candidate.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.IN_USE)) {
+                                return candidate;
+                            }
+                        }
+                        if (closed) {
+                            return null;
+                        }
+                    } else if (entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.IN_USE)) {
+                        return entry;
+                    }
+                    remaining = deadline - System.nanoTime();
+                }
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for connection", e);
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+        
+        /**
+         * Returns a connection to the pool
+         */
+        void returnConnection(PoolEntry entry) {
+            entry.leakTrace = null;
+            entry.lastAccessed = System.currentTimeMillis();
+            
+            if (closed || !entry.isOpen()) {
+                removeEntry(entry);
+                return;
+            }
+            
+            entry.set(PoolEntry.NOT_IN_USE);
+            // close() may have swept the idle entries before this one was released
             if (closed) {
-                throw new SQLException("Connection pool is closed");
+                if (entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.RESERVED)) {
+                    removeEntry(entry);
+                }
+                return;
             }
             
-            PooledConnection pooledConnection = availableConnections.poll();
+            // Hand the connection straight to a waiting borrower if there is one
+            for (int i = 0; waiters.get() > 0; i++) {
+                if (entry.get() != PoolEntry.NOT_IN_USE || handoffQueue.offer(entry)) {
+                    return;
+                }
+                if ((i & 0xff) == 0xff) {
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+                } else {
+                    Thread.yield();
+                }
+            }
             
-            if (pooledConnection == null && usedConnections.size() < maxSize) {
-                // Create new connection if pool is not full
-                Connection connection = DriverManager.getConnection(url, username, password);
-                pooledConnection = new PooledConnection(connection, this);
+            ArrayList<PoolEntry> local = threadList.get();
+            if (local.size() < THREAD_LOCAL_CAPACITY) {
+                local.add(entry);
+            }
+        }
+        
+        /**
+         * Reserves a slot for a new connection without exceeding maxSize
+         */
+        private boolean reserveSlot() {
+            while (true) {
+                int total = totalConnections.get();
+                if (total >= maxSize) {
+                    return false;
+                }
+                if (totalConnections.compareAndSet(total, total + 1)) {
+                    return true;
+                }
             }
+        }
+        
+        /**
+         * Opens connections in the background until waiters are served and minIdle is reached
+         */
+        private void fillPool() {
+            int idle = getAvailableConnectionCount();
+            int wanted = Math.max(waiters.get() - idle, minIdle - idle) - pendingCreations.get();
             
-            if (pooledConnection == null) {
-                // Wait for available connection
+            for (int i = 0; i < wanted && !closed && reserveSlot(); i++) {
+                pendingCreations.incrementAndGet();
                 try {
-                    pooledConnection = availableConnections.take();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new SQLException("Interrupted while waiting for connection", e);
+                    creator.execute(this::createInBackground);
+                } catch (RejectedExecutionException e) {
+                    pendingCreations.decrementAndGet();
+                    totalConnections.decrementAndGet();
+                    return;
                 }
             }
-            
-            poolLock.lock();
+        }
+        
+        private void createInBackground() {
             try {
-                usedConnections.add(pooledConnection);
+                PoolEntry entry = openEntry();
+                if (closed) {
+                    entry.closeQuietly();
+                    totalConnections.decrementAndGet();
+                    return;
+                }
+                addEntry(entry);
+                // close() may have swept the pool between the check and the add
+                if (closed) {
+                    removeEntry(entry);
+                }
+            } catch (SQLException e) {
+                totalConnections.decrementAndGet();
+                System.err.println("Failed to create connection: " + e.getMessage());
             } finally {
-                poolLock.unlock();
+                pendingCreations.decrementAndGet();
+            }
+        }
+        
+        private PoolEntry openEntry() throws SQLException {
+            return new PoolEntry(DriverManager.getConnection(url, username, password));
+        }
+        
+        private void addEntry(PoolEntry entry) {
+            sharedList.add(entry);
+            // Offer the new connection to a waiter directly
+            if (waiters.get() > 0) {
+                handoffQueue.offer(entry);
+            }
+        }
+        
+        private void removeEntry(PoolEntry entry) {
+            entry.set(PoolEntry.REMOVED);
+            if (sharedList.remove(entry)) {
+                totalConnections.decrementAndGet();
+            }
+            entry.closeQuietly();
+            if (!closed && waiters.get() > 0) {
+                fillPool();
             }
-            
-            return pooledConnection;
         }
         
         /**
-         * Returns a connection to the pool
+         * Evicts idle connections, reports leaks and tops the pool back up to minIdle
          */
-        void returnConnection(PooledConnection pooledConnection) {
-            poolLock.lock();
-            try {
-                usedConnections.remove(pooledConnection);
-                if (!closed && pooledConnection.isValid()) {
-                    availableConnections.offer(pooledConnection);
-                } else {
-                    // Close invalid connection
-                    try {
-                        pooledConnection.getRealConnection().close();
-                    } catch (SQLException e) {
-                        System.err.println("Error closing connection: " + e.getMessage());
+        private void housekeep() {
+            if (closed) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            
+            int idle = getAvailableConnectionCount();
+            for (PoolEntry entry : sharedList) {
+                if (idle <= minIdle) {
+                    break;
+                }
+                if (idleTimeoutMillis > 0 && now - entry.lastAccessed > idleTimeoutMillis
+                    && entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.RESERVED)) {
+                    removeEntry(entry);
+                    idle--;
+                }
+            }
+            
+            if (leakDetectionThresholdMillis > 0) {
+                for (PoolEntry entry : sharedList) {
+                    Exception trace = entry.leakTrace;
+                    if (entry.get() == PoolEntry.IN_USE && trace != null && !entry.leakReported
+                        && now - entry.lastBorrowed > leakDetectionThresholdMillis) {
+                        entry.leakReported = true;
+                        leakCount.incrementAndGet();
+                        System.err.println("Possible connection leak: connection held for " +
+                            (now - entry.lastBorrowed) + "ms");
+                        trace.printStackTrace();
                     }
                 }
-            } finally {
-                poolLock.unlock();
             }
+            
+            fillPool();
         }
         
         /**
-         * Closes the connection pool
+         * Closes the connection pool. Idle connections are closed immediately, borrowed ones when
+         * they are returned, or after a grace period if they are still held by then; connections
+         * still being opened are closed as soon as they open
          */
         public void close() {
             if (closed) {
@@ -129,30 +373,36 @@ public class AdvancedDatabaseManagement {
             }
             
             closed = true;
+            // Creations that never started give back their reserved slots
+            int cancelled = creator.shutdownNow().size();
+            pendingCreations.addAndGet(-cancelled);
+            totalConnections.addAndGet(-cancelled);
             
-            // Close all connections
-            poolLock.lock();
-            try {
-                for (PooledConnection pooledConnection : availableConnections) {
-                    try {
-                        pooledConnection.getRealConnection().close();
-                    } catch (SQLException e) {
-                        System.err.println("Error closing connection: " + e.getMessage());
-                    }
+            // Each entry is counted down once, by whoever removes it from the list
+            for (PoolEntry entry : sharedList) {
+                if (entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.RESERVED)) {
+                    removeEntry(entry);
                 }
-                
-                for (PooledConnection pooledConnection : usedConnections) {
-                    try {
-                        pooledConnection.getRealConnection().close();
-                    } catch (SQLException e) {
-                        System.err.println("Error closing connection: " + e.getMessage());
+            }
+            
+            // Periodic housekeeping stops at shutdown, the delayed force-close still runs
+            housekeeper.schedule(this::closeBorrowed, CLOSE_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            housekeeper.shutdown();
+        }
+        
+        /**
+         * Closes connections that were not returned within the grace period after close()
+         */
+        private void closeBorrowed() {
+            for (PoolEntry entry : sharedList) {
+                if (entry.compareAndSet(PoolEntry.IN_USE, PoolEntry.REMOVED)) {
+                    System.err.println("Closing connection still in use " + CLOSE_GRACE_MILLIS + "ms after pool close");
+                    if (sharedList.remove(entry)) {
+                        totalConnections.decrementAndGet();
                     }
+                    // The borrower still owns the statement cache and clears it when it returns the connection
+                    entry.closeConnection();
                 }
-                
-                availableConnections.clear();
-                usedConnections.clear();
-            } finally {
-                poolLock.unlock();
             }
         }
         
@@ -160,34 +410,216 @@ public class AdvancedDatabaseManagement {
          * Gets the number of available connections
          */
         public int getAvailableConnectionCount() {
-            return availableConnections.size();
+            int count = 0;
+            for (PoolEntry entry : sharedList) {
+                if (entry.get() == PoolEntry.NOT_IN_USE) {
+                    count++;
+                }
+            }
+            return count;
         }
         
         /**
          * Gets the number of used connections
          */
         public int getUsedConnectionCount() {
-            poolLock.lock();
+            int count = 0;
+            for (PoolEntry entry : sharedList) {
+                if (entry.get() == PoolEntry.IN_USE) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        
+        /**
+         * Gets the number of open connections, including ones being opened
+         */
+        public int getTotalConnectionCount() {
+            return totalConnections.get();
+        }
+        
+        /**
+         * Gets the number of threads waiting for a connection
+         */
+        public int getWaitingThreadCount() {
+            return waiters.get();
+        }
+        
+        /**
+         * Gets the number of detected connection leaks
+         */
+        public long getLeakCount() {
+            return leakCount.get();
+        }
+        
+        /**
+         * Gets the compiled template for a query shape, compiling it on first use
+         */
+        public CompiledQuery compile(String sql) {
+            CompiledQuery compiled = compiledQueries.get(sql);
+            if (compiled != null) {
+                return compiled;
+            }
+            
+            compiled = new CompiledQuery(sql, this);
+            if (compiledQueries.size() < MAX_COMPILED_QUERIES) {
+                CompiledQuery existing = compiledQueries.putIfAbsent(sql, compiled);
+                if (existing != null) {
+                    return existing;
+                }
+            }
+            return compiled;
+        }
+        
+        /**
+         * Gets the number of cached query templates
+         */
+        public int getCompiledQueryCount() {
+            return compiledQueries.size();
+        }
+        
+        /**
+         * Sets how many prepared statements each physical connection keeps open
+         */
+        public void setStatementCacheSize(int statementCacheSize) {
+            this.statementCacheSize = Math.max(0, statementCacheSize);
+        }
+        
+        /**
+         * Gets the number of prepared statements cached across all connections
+         */
+        public int getCachedStatementCount() {
+            int count = 0;
+            for (PoolEntry entry : sharedList) {
+                count += entry.statements.size();
+            }
+            return count;
+        }
+        
+        private static ThreadFactory daemonThreads(String name) {
+            return runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+    
+    /**
+     * A physical connection tracked by the pool; its state is changed only by CAS
+     */
+    static final class PoolEntry extends AtomicInteger {
+        private static final long serialVersionUID = 1L;
+        
+        static final int NOT_IN_USE = 0;
+        static final int IN_USE = 1;
+        static final int RESERVED = -1;
+        static final int REMOVED = -2;
+        
+        final Connection connection;
+        volatile long lastAccessed;
+        volatile long lastBorrowed;
+        volatile Exception leakTrace;
+        volatile boolean leakReported;
+        volatile int statementCacheSize;
+        
+        // Only the current borrower touches the statements, so the map needs no locking
+        final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    closeStatement(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        
+        PoolEntry(Connection connection) {
+            super(NOT_IN_USE);
+            this.connection = connection;
+            this.lastAccessed = System.currentTimeMillis();
+        }
+        
+        /**
+         * Gets a prepared statement cached on this physical connection, preparing it on a miss
+         */
+        PreparedStatement prepareCached(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement != null && !statement.isClosed()) {
+                return statement;
+            }
+            
+            statement = connection.prepareStatement(sql);
+            if (statementCacheSize > 0) {
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+        
+        boolean isCached(PreparedStatement statement, String sql) {
+            return statements.get(sql) == statement;
+        }
+        
+        private static void closeStatement(PreparedStatement statement) {
             try {
-                return usedConnections.size();
-            } finally {
-                poolLock.unlock();
+                statement.close();
+            } catch (SQLException e) {
+                System.err.println("Error closing statement: " + e.getMessage());
+            }
+        }
+        
+        boolean isOpen() {
+            try {
+                return !connection.isClosed();
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+        
+        boolean isAlive() {
+            try {
+                return connection.isValid(5);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+        
+        void closeQuietly() {
+            for (PreparedStatement statement : new ArrayList<>(statements.values())) {
+                closeStatement(statement);
+            }
+            statements.clear();
+            closeConnection();
+        }
+        
+        void closeConnection() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                System.err.println("Error closing connection: " + e.getMessage());
             }
         }
     }
     
     /**
      * Represents a pooled database connection
+     * A new handle is created for every borrow, so closing a handle twice or using it after
+     * close never touches a connection that another thread has borrowed since.
      */
     public static class PooledConnection implements Connection {
+        private final PoolEntry entry;
         private final Connection realConnection;
         private final ConnectionPool pool;
-        private volatile boolean closed;
+        private final AtomicBoolean closed;
+        private volatile boolean autoCommitChanged;
         
-        public PooledConnection(Connection realConnection, ConnectionPool pool) {
-            this.realConnection = realConnection;
+        PooledConnection(PoolEntry entry, ConnectionPool pool) {
+            this.entry = entry;
+            this.realConnection = entry.connection;
             this.pool = pool;
-            this.closed = false;
+            this.closed = new AtomicBoolean(false);
         }
         
         /**
@@ -197,12 +629,28 @@ public class AdvancedDatabaseManagement {
             return realConnection;
         }
         
+        /**
+         * Gets a prepared statement from the physical connection's statement cache.
+         * The statement stays owned by the cache and must not be closed by the caller.
+         */
+        PreparedStatement prepareCached(String sql) throws SQLException {
+            checkClosed();
+            return entry.prepareCached(sql);
+        }
+        
+        /**
+         * Checks whether the statement is owned by the connection's statement cache
+         */
+        boolean isCached(PreparedStatement statement, String sql) {
+            return entry.isCached(statement, sql);
+        }
+        
         /**
          * Checks if the connection is valid
          */
         public boolean isValid() {
             try {
-                return !closed && realConnection != null && !realConnection.isClosed();
+                return !closed.get() && realConnection != null && !realConnection.isClosed();
             } catch (SQLException e) {
                 return false;
             }
@@ -235,6 +683,9 @@ public class AdvancedDatabaseManagement {
         @Override
         public void setAutoCommit(boolean autoCommit) throws SQLException {
             checkClosed();
+            if (!autoCommit) {
+                autoCommitChanged = true;
+            }
             realConnection.setAutoCommit(autoCommit);
         }
         
@@ -258,15 +709,26 @@ public class AdvancedDatabaseManagement {
         
         @Override
         public void close() throws SQLException {
-            if (!closed) {
-                closed = true;
-                pool.returnConnection(this);
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            
+            // Do not hand an open transaction over to the next borrower
+            try {
+                if (autoCommitChanged && !realConnection.getAutoCommit()) {
+                    realConnection.rollback();
+                    realConnection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                System.err.println("Error resetting connection: " + e.getMessage());
+            } finally {
+                pool.returnConnection(entry);
             }
         }
         
         @Override
         public boolean isClosed() throws SQLException {
-            return closed || realConnection.isClosed();
+            return closed.get() || realConnection.isClosed();
         }
         
         @Override
@@ -451,7 +913,7 @@ public class AdvancedDatabaseManagement {
         
         @Override
         public boolean isValid(int timeout) throws SQLException {
-            return !closed && realConnection.isValid(timeout);
+            return !closed.get() && realConnection.isValid(timeout);
         }
         
         @Override
@@ -544,7 +1006,7 @@ public class AdvancedDatabaseManagement {
          * Checks if the connection is closed and throws an exception if it is
          */
         private void checkClosed() throws SQLException {
-            if (closed) {
+            if (closed.get()) {
                 throw new SQLException("Connection is closed");
             }
         }
@@ -1186,20 +1648,75 @@ public class AdvancedDatabaseManagement {
             return this;
         }
         
+        /**
+         * Freezes the current query shape into a reusable template.
+         * Templates are cached by shape, so hold on to the result and bind new values on each
+         * execution to skip string building and statement parsing for hot queries.
+         */
+        public CompiledQuery prepare() {
+            return connectionPool.compile(query.toString());
+        }
+        
         /**
          * Executes the query and returns the results
          */
         public List<Map<String, Object>> executeQuery() throws SQLException {
-            Connection connection = connectionPool.getConnection();
+            return prepare().executeQuery(parameters.toArray());
+        }
+        
+        /**
+         * Executes the query and returns the number of affected rows
+         */
+        public int executeUpdate() throws SQLException {
+            return prepare().executeUpdate(parameters.toArray());
+        }
+        
+        /**
+         * Gets the built query string
+         */
+        public String getQuery() {
+            return query.toString();
+        }
+        
+        /**
+         * Gets the parameters
+         */
+        public List<Object> getParameters() {
+            return new ArrayList<>(parameters);
+        }
+    }
+    
+    /**
+     * Represents a compiled query template: the SQL text and its parameter slots.
+     * Executions bind fresh values and reuse the prepared statement cached on the physical connection.
+     */
+    public static class CompiledQuery {
+        private final String sql;
+        private final int parameterCount;
+        private final ConnectionPool connectionPool;
+        
+        CompiledQuery(String sql, ConnectionPool connectionPool) {
+            this.sql = sql;
+            this.parameterCount = countParameters(sql);
+            this.connectionPool = connectionPool;
+        }
+        
+        /**
+         * Executes the query on a pooled connection and returns the results
+         */
+        public List<Map<String, Object>> executeQuery(Object... params) throws SQLException {
+            try (Connection connection = connectionPool.getConnection()) {
+                return executeQuery(connection, params);
+            }
+        }
+        
+        /**
+         * Executes the query on the given connection, e.g. inside a transaction
+         */
+        public List<Map<String, Object>> executeQuery(Connection connection, Object... params) throws SQLException {
+            PreparedStatement statement = bind(connection, params);
             try {
-                PreparedStatement statement = connection.prepareStatement(query.toString());
-                try {
-                    // Set parameters
-                    for (int i = 0; i < parameters.size(); i++) {
-                        statement.setObject(i + 1, parameters.get(i));
-                    }
-                    
-                    ResultSet resultSet = statement.executeQuery();
+                try (ResultSet resultSet = statement.executeQuery()) {
                     List<Map<String, Object>> results = new ArrayList<>();
                     
                     // Get column metadata
@@ -1218,51 +1735,95 @@ public class AdvancedDatabaseManagement {
                         }
                         results.add(row);
                     }
-                    
-                    resultSet.close();
                     return results;
-                } finally {
-                    statement.close();
                 }
             } finally {
-                connection.close();
+                release(connection, statement);
             }
         }
         
         /**
-         * Executes the query and returns the number of affected rows
+         * Executes the update on a pooled connection and returns the number of affected rows
          */
-        public int executeUpdate() throws SQLException {
-            Connection connection = connectionPool.getConnection();
+        public int executeUpdate(Object... params) throws SQLException {
+            try (Connection connection = connectionPool.getConnection()) {
+                return executeUpdate(connection, params);
+            }
+        }
+        
+        /**
+         * Executes the update on the given connection, e.g. inside a transaction
+         */
+        public int executeUpdate(Connection connection, Object... params) throws SQLException {
+            PreparedStatement statement = bind(connection, params);
             try {
-                PreparedStatement statement = connection.prepareStatement(query.toString());
-                try {
-                    // Set parameters
-                    for (int i = 0; i < parameters.size(); i++) {
-                        statement.setObject(i + 1, parameters.get(i));
-                    }
-                    
-                    return statement.executeUpdate();
-                } finally {
-                    statement.close();
-                }
+                return statement.executeUpdate();
             } finally {
-                connection.close();
+                release(connection, statement);
             }
         }
         
         /**
-         * Gets the built query string
+         * Gets the SQL text of the template
          */
-        public String getQuery() {
-            return query.toString();
+        public String getSql() {
+            return sql;
         }
         
         /**
-         * Gets the parameters
+         * Gets the number of parameter slots
          */
-        public List<Object> getParameters() {
-            return new ArrayList<>(parameters);
+        public int getParameterCount() {
+            return parameterCount;
+        }
+        
+        private PreparedStatement bind(Connection connection, Object[] params) throws SQLException {
+            if (params.length != parameterCount) {
+                throw new SQLException("Query expects " + parameterCount + " parameters but got " +
+                    params.length + ": " + sql);
+            }
+            
+            PreparedStatement statement = connection instanceof PooledConnection
+                ? ((PooledConnection) connection).prepareCached(sql)
+                : connection.prepareStatement(sql);
+            try {
+                for (int i = 0; i < params.length; i++) {
+                    statement.setObject(i + 1, params[i]);
+                }
+            } catch (SQLException e) {
+                release(connection, statement);
+                throw e;
+            }
+            return statement;
+        }
+        
+        private void release(Connection connection, PreparedStatement statement) throws SQLException {
+            if (connection instanceof PooledConnection && ((PooledConnection) connection).isCached(statement, sql)) {
+                statement.clearParameters();
+            } else {
+                statement.close();
+            }
+        }
+        
+        /**
+         * Counts the ? placeholders outside string literals and quoted identifiers
+         */
+        private static int countParameters(String sql) {
+            int count = 0;
+            char quote = 0;
+            for (int i = 0; i < sql.length(); i++) {
+                char c = sql.charAt(i);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '\'' || c == '"' || c == '`') {
+                    quote = c;
+                } else if (c == '?') {
+                    count++;
+                }
+            }
+            return count;
         }
     }
     
@@ -1272,10 +1833,20 @@ public class AdvancedDatabaseManagement {
     public static class TransactionManager {
         private final ConnectionPool connectionPool;
         private final ThreadLocal<TransactionContext> transactionContext;
+        private final BlockingQueue<PendingWrite<?>> pendingWrites;
+        private final AtomicLong groupCommitCount;
+        private final AtomicLong groupedTransactionCount;
+        private volatile Thread groupCommitThread;
+        private volatile boolean groupCommitEnabled;
+        private volatile int maxGroupSize;
+        private volatile long maxGroupLatencyMillis;
         
         public TransactionManager(ConnectionPool connectionPool) {
             this.connectionPool = connectionPool;
             this.transactionContext = new ThreadLocal<>();
+            this.pendingWrites = new LinkedBlockingQueue<>();
+            this.groupCommitCount = new AtomicLong();
+            this.groupedTransactionCount = new AtomicLong();
         }
         
         /**
@@ -1375,6 +1946,246 @@ public class AdvancedDatabaseManagement {
                 throw new SQLException("Transaction failed", e);
             }
         }
+        
+        /**
+         * Enables group commit: writes passed to submit() are merged into one database
+         * transaction per flush window of up to maxGroupSize writes or maxGroupLatencyMillis
+         */
+        public synchronized void enableGroupCommit(int maxGroupSize, long maxGroupLatencyMillis) {
+            this.maxGroupSize = Math.max(1, maxGroupSize);
+            this.maxGroupLatencyMillis = Math.max(0, maxGroupLatencyMillis);
+            if (groupCommitEnabled) {
+                return;
+            }
+            
+            groupCommitEnabled = true;
+            Thread thread = new Thread(this::runGroupCommit, "TransactionManager-group-commit");
+            thread.setDaemon(true);
+            groupCommitThread = thread;
+            thread.start();
+        }
+        
+        /**
+         * Disables group commit after flushing writes that are already queued
+         */
+        public synchronized void disableGroupCommit() {
+            if (!groupCommitEnabled) {
+                return;
+            }
+            
+            groupCommitEnabled = false;
+            Thread thread = groupCommitThread;
+            groupCommitThread = null;
+            // Not interrupted: some drivers close their channels when interrupted mid I/O
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            
+            // Writes that raced with shutdown still run, one transaction each
+            PendingWrite<?> write;
+            while ((write = pendingWrites.poll()) != null) {
+                runAlone(write);
+            }
+        }
+        
+        /**
+         * Checks if group commit is enabled
+         */
+        public boolean isGroupCommitEnabled() {
+            return groupCommitEnabled;
+        }
+        
+        /**
+         * Submits a short write transaction.
+         * With group commit enabled the callback runs on the group commit thread inside a shared
+         * transaction, guarded by a savepoint, and the future completes when the shared transaction
+         * commits. The callback must not commit or roll back the connection itself.
+         * Without group commit the callback runs in its own transaction on the calling thread.
+         */
+        public <T> CompletableFuture<T> submit(TransactionCallback<T> callback) {
+            PendingWrite<T> write = new PendingWrite<>(callback);
+            if (groupCommitEnabled) {
+                pendingWrites.offer(write);
+                // Re-check so a write queued during disableGroupCommit is not stranded
+                if (groupCommitEnabled || !pendingWrites.remove(write)) {
+                    return write.future;
+                }
+            }
+            
+            runAlone(write);
+            return write.future;
+        }
+        
+        /**
+         * Gets the number of shared commits performed by group commit
+         */
+        public long getGroupCommitCount() {
+            return groupCommitCount.get();
+        }
+        
+        /**
+         * Gets the number of writes committed through group commit
+         */
+        public long getGroupedTransactionCount() {
+            return groupedTransactionCount.get();
+        }
+        
+        /**
+         * Collects flush windows and commits each as one transaction
+         */
+        private void runGroupCommit() {
+            List<PendingWrite<?>> group = new ArrayList<>();
+            while (groupCommitEnabled || !pendingWrites.isEmpty()) {
+                try {
+                    PendingWrite<?> first = pendingWrites.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    group.add(first);
+                    
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxGroupLatencyMillis);
+                    while (group.size() < maxGroupSize) {
+                        long remaining = deadline - System.nanoTime();
+                        PendingWrite<?> next = remaining > 0
+                            ? pendingWrites.poll(remaining, TimeUnit.NANOSECONDS)
+                            : pendingWrites.poll();
+                        if (next == null) {
+                            break;
+                        }
+                        group.add(next);
+                    }
+                } catch (InterruptedException e) {
+                    // Commit what was collected and drain the rest without waiting
+                    pendingWrites.drainTo(group);
+                }
+                
+                if (!group.isEmpty()) {
+                    commitGroup(group);
+                    group.clear();
+                }
+            }
+        }
+        
+        /**
+         * Runs a group in one transaction, isolating failed writes with savepoints
+         */
+        private void commitGroup(List<PendingWrite<?>> group) {
+            Connection connection;
+            try {
+                connection = connectionPool.getConnection();
+            } catch (SQLException e) {
+                for (PendingWrite<?> write : group) {
+                    write.future.completeExceptionally(e);
+                }
+                return;
+            }
+            
+            List<PendingWrite<?>> succeeded = new ArrayList<>(group.size());
+            boolean fallback = false;
+            TransactionContext context = new TransactionContext(connection);
+            transactionContext.set(context);
+            try {
+                connection.setAutoCommit(false);
+                boolean savepoints = connection.getMetaData().supportsSavepoints();
+                
+                for (PendingWrite<?> write : group) {
+                    Savepoint savepoint = savepoints ? connection.setSavepoint() : null;
+                    try {
+                        write.execute(connection);
+                    } catch (Exception e) {
+                        if (savepoint == null) {
+                            // Without savepoints the failure cannot be isolated inside the group
+                            fallback = true;
+                            break;
+                        }
+                        connection.rollback(savepoint);
+                        connection.releaseSavepoint(savepoint);
+                        write.future.completeExceptionally(new SQLException("Transaction failed", e));
+                        continue;
+                    }
+                    if (savepoint != null) {
+                        // Release it so a large group does not pile up savepoints until commit
+                        connection.releaseSavepoint(savepoint);
+                    }
+                    succeeded.add(write);
+                }
+                
+                if (fallback) {
+                    connection.rollback();
+                } else {
+                    connection.commit();
+                    groupCommitCount.incrementAndGet();
+                    groupedTransactionCount.addAndGet(succeeded.size());
+                    for (PendingWrite<?> write : succeeded) {
+                        write.complete();
+                    }
+                    succeeded.clear();
+                }
+            } catch (SQLException e) {
+                try {
+                    connection.rollback();
+                } catch (SQLException rollbackError) {
+                    e.addSuppressed(rollbackError);
+                }
+                for (PendingWrite<?> write : group) {
+                    write.future.completeExceptionally(e);
+                }
+                return;
+            } finally {
+                transactionContext.remove();
+                try {
+                    connection.setAutoCommit(true);
+                    connection.close();
+                } catch (SQLException e) {
+                    System.err.println("Error cleaning up transaction: " + e.getMessage());
+                }
+            }
+            
+            if (fallback) {
+                for (PendingWrite<?> write : group) {
+                    runAlone(write);
+                }
+            }
+        }
+        
+        /**
+         * Runs a write in its own transaction
+         */
+        private <T> void runAlone(PendingWrite<T> write) {
+            if (write.future.isDone()) {
+                return;
+            }
+            try {
+                write.result = executeInTransaction(write.callback);
+                write.complete();
+            } catch (SQLException e) {
+                write.future.completeExceptionally(e);
+            }
+        }
+    }
+    
+    /**
+     * Represents a write waiting for group commit
+     */
+    private static class PendingWrite<T> {
+        private final TransactionCallback<T> callback;
+        private final CompletableFuture<T> future;
+        private T result;
+        
+        PendingWrite(TransactionCallback<T> callback) {
+            this.callback = callback;
+            this.future = new CompletableFuture<>();
+        }
+        
+        void execute(Connection connection) throws Exception {
+            result = callback.execute(connection);
+        }
+        
+        void complete() {
+            future.complete(result);
+        }
     }
     
     /**
@@ -1402,102 +2213,195 @@ public class AdvancedDatabaseManagement {
     
     /**
      * Represents a database monitoring utility
+     * Statements are keyed by their normalized SQL, so queries that differ only in inlined
+     * literals share one entry. Recording is lock-free; statistics are pulled with getSnapshot().
      */
     public static class DatabaseMonitor {
+        private static final int MAX_STATEMENTS = 1000;
+        private static final int MAX_NORMALIZED_CACHE = 4096;
+        private static final String OTHER_STATEMENTS = "<other>";
+        
         private final ConnectionPool connectionPool;
-        private final ScheduledExecutorService scheduler;
         private final Map<String, QueryStats> queryStats;
-        private final Lock statsLock;
+        private final Map<String, String> normalizedCache;
         
         private static class QueryStats {
-            volatile long executionCount;
-            volatile long totalTime;
-            volatile long maxTime;
-            volatile long errorCount;
-            
-            QueryStats() {
-                this.executionCount = 0;
-                this.totalTime = 0;
-                this.maxTime = 0;
-                this.errorCount = 0;
-            }
+            final LatencyHistogram latency = new LatencyHistogram();
+            final LongAdder errorCount = new LongAdder();
         }
         
         public DatabaseMonitor(ConnectionPool connectionPool) {
             this.connectionPool = connectionPool;
-            this.scheduler = Executors.newScheduledThreadPool(1);
             this.queryStats = new ConcurrentHashMap<>();
-            this.statsLock = new ReentrantLock();
-            
-            // Start monitoring
-            scheduler.scheduleWithFixedDelay(this::printStats, 30, 30, TimeUnit.SECONDS);
+            this.normalizedCache = new ConcurrentHashMap<>();
         }
         
         /**
-         * Records query execution statistics
+         * Records query execution statistics, with the execution time in milliseconds
          */
         public void recordQuery(String query, long executionTime, boolean success) {
-            QueryStats stats = queryStats.computeIfAbsent(query, k -> new QueryStats());
-            
-            stats.executionCount++;
-            stats.totalTime += executionTime;
-            
-            if (executionTime > stats.maxTime) {
-                stats.maxTime = executionTime;
+            recordQueryNanos(query, TimeUnit.MILLISECONDS.toNanos(executionTime), success);
+        }
+        
+        /**
+         * Records query execution statistics, with the execution time in nanoseconds
+         */
+        public void recordQueryNanos(String query, long executionTimeNanos, boolean success) {
+            String statement = normalize(query);
+            QueryStats stats = queryStats.get(statement);
+            if (stats == null) {
+                // Cap cardinality so dynamically built SQL cannot grow the map without bound
+                if (queryStats.size() >= MAX_STATEMENTS) {
+                    statement = OTHER_STATEMENTS;
+                }
+                stats = queryStats.computeIfAbsent(statement, k -> new QueryStats());
             }
             
+            stats.latency.record(TimeUnit.NANOSECONDS.toMicros(executionTimeNanos));
             if (!success) {
-                stats.errorCount++;
+                stats.errorCount.increment();
             }
         }
         
         /**
-         * Gets query statistics
+         * Gets query statistics for the statement the query normalizes to
          */
         public QueryStatistics getQueryStatistics(String query) {
-            QueryStats stats = queryStats.get(query);
+            QueryStats stats = queryStats.get(normalize(query));
             if (stats == null) {
                 return new QueryStatistics(0, 0, 0, 0, 0);
             }
+            return toStatistics(stats.latency, stats.errorCount.sum());
+        }
+        
+        /**
+         * Gets the statements with the highest p99 latency, slowest first
+         */
+        public Map<String, QueryStatistics> getSlowestStatements(int limit) {
+            List<Map.Entry<String, QueryStatistics>> entries = new ArrayList<>();
+            for (Map.Entry<String, QueryStats> entry : queryStats.entrySet()) {
+                QueryStats stats = entry.getValue();
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(),
+                    toStatistics(stats.latency, stats.errorCount.sum())));
+            }
+            entries.sort((a, b) -> {
+                int byP99 = Double.compare(b.getValue().getP99Time(), a.getValue().getP99Time());
+                return byP99 != 0 ? byP99 : Double.compare(b.getValue().getAverageTime(), a.getValue().getAverageTime());
+            });
             
-            long executionCount = stats.executionCount;
-            double averageTime = executionCount > 0 ? (double) stats.totalTime / executionCount : 0;
-            double errorRate = executionCount > 0 ? (double) stats.errorCount / executionCount : 0;
-            
-            return new QueryStatistics(executionCount, stats.totalTime, averageTime, stats.maxTime, errorRate);
+            Map<String, QueryStatistics> slowest = new LinkedHashMap<>();
+            for (int i = 0; i < Math.min(limit, entries.size()); i++) {
+                slowest.put(entries.get(i).getKey(), entries.get(i).getValue());
+            }
+            return slowest;
         }
         
         /**
-         * Prints database statistics
+         * Takes a point-in-time snapshot of pool and statement statistics
          */
-        private void printStats() {
-            System.out.println("=== Database Monitor Statistics ===");
-            System.out.println("Connection Pool - Available: " + connectionPool.getAvailableConnectionCount() + 
-                             ", Used: " + connectionPool.getUsedConnectionCount());
+        public MonitorSnapshot getSnapshot() {
+            Map<String, QueryStatistics> statements = new HashMap<>();
+            LatencyHistogram overall = new LatencyHistogram();
+            long errors = 0;
             
             for (Map.Entry<String, QueryStats> entry : queryStats.entrySet()) {
-                String query = entry.getKey();
-                QueryStatistics stats = getQueryStatistics(query);
-                System.out.printf("Query: %s%n", query.substring(0, Math.min(50, query.length())) + (query.length() > 50 ? "..." : ""));
-                System.out.printf("  Executions: %d, Avg Time: %.2fms, Max Time: %dms, Error Rate: %.2f%%%n",
-                    stats.getExecutionCount(), stats.getAverageTime(), stats.getMaxTime(), stats.getErrorRate() * 100);
+                QueryStats stats = entry.getValue();
+                long statementErrors = stats.errorCount.sum();
+                statements.put(entry.getKey(), toStatistics(stats.latency, statementErrors));
+                overall.merge(stats.latency);
+                errors += statementErrors;
             }
-            System.out.println("==================================");
+            
+            return new MonitorSnapshot(System.currentTimeMillis(),
+                connectionPool.getAvailableConnectionCount(), connectionPool.getUsedConnectionCount(),
+                connectionPool.getWaitingThreadCount(), toStatistics(overall, errors), statements);
+        }
+        
+        /**
+         * Gets the normalized form of a query: literals become placeholders and IN lists collapse
+         */
+        public String normalize(String query) {
+            String cached = normalizedCache.get(query);
+            if (cached != null) {
+                return cached;
+            }
+            
+            String normalized = QueryMetrics.normalizeSql(query);
+            if (normalizedCache.size() < MAX_NORMALIZED_CACHE) {
+                normalizedCache.put(query, normalized);
+            }
+            return normalized;
+        }
+        
+        /**
+         * Clears all recorded statistics
+         */
+        public void reset() {
+            queryStats.clear();
+            normalizedCache.clear();
         }
         
         /**
          * Shuts down the monitor
          */
         public void shutdown() {
-            scheduler.shutdown();
-            try {
-                if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                    scheduler.shutdownNow();
-                }
-            } catch (InterruptedException e) {
-                scheduler.shutdownNow();
-                Thread.currentThread().interrupt();
-            }
+            reset();
+        }
+        
+        private static QueryStatistics toStatistics(LatencyHistogram latency, long errorCount) {
+            long executionCount = latency.getCount();
+            double errorRate = executionCount > 0 ? (double) errorCount / executionCount : 0;
+            return new QueryStatistics(executionCount, latency.getSum() / 1000, latency.getMean() / 1000.0,
+                latency.getMax() / 1000, errorRate,
+                latency.getValueAtPercentile(50.0) / 1000.0,
+                latency.getValueAtPercentile(95.0) / 1000.0,
+                latency.getValueAtPercentile(99.0) / 1000.0);
+        }
+    }
+    
+    /**
+     * Represents a point-in-time view of database monitor statistics
+     */
+    public static class MonitorSnapshot {
+        private final long timestamp;
+        private final int availableConnections;
+        private final int usedConnections;
+        private final int waitingThreads;
+        private final QueryStatistics overall;
+        private final Map<String, QueryStatistics> statements;
+        
+        public MonitorSnapshot(long timestamp, int availableConnections, int usedConnections, int waitingThreads,
+                               QueryStatistics overall, Map<String, QueryStatistics> statements) {
+            this.timestamp = timestamp;
+            this.availableConnections = availableConnections;
+            this.usedConnections = usedConnections;
+            this.waitingThreads = waitingThreads;
+            this.overall = overall;
+            this.statements = Collections.unmodifiableMap(statements);
+        }
+        
+        public long getTimestamp() {
+            return timestamp;
+        }
+        
+        public int getAvailableConnections() {
+            return availableConnections;
+        }
+        
+        public int getUsedConnections() {
+            return usedConnections;
+        }
+        
+        public int getWaitingThreads() {
+            return waitingThreads;
+        }
+        
+        public QueryStatistics getOverall() {
+            return overall;
+        }
+        
+        public Map<String, QueryStatistics> getStatements() {
+            return statements;
         }
     }
     
@@ -1510,13 +2414,24 @@ public class AdvancedDatabaseManagement {
         private final double averageTime;
         private final long maxTime;
         private final double errorRate;
+        private final double p50Time;
+        private final double p95Time;
+        private final double p99Time;
         
         public QueryStatistics(long executionCount, long totalTime, double averageTime, long maxTime, double errorRate) {
+            this(executionCount, totalTime, averageTime, maxTime, errorRate, averageTime, maxTime, maxTime);
+        }
+        
+        public QueryStatistics(long executionCount, long totalTime, double averageTime, long maxTime, double errorRate,
+                               double p50Time, double p95Time, double p99Time) {
             this.executionCount = executionCount;
             this.totalTime = totalTime;
             this.averageTime = averageTime;
             this.maxTime = maxTime;
             this.errorRate = errorRate;
+            this.p50Time = p50Time;
+            this.p95Time = p95Time;
+            this.p99Time = p99Time;
         }
         
         public long getExecutionCount() {
@@ -1538,5 +2453,17 @@ public class AdvancedDatabaseManagement {
         public double getErrorRate() {
             return errorRate;
         }
+        
+        public double getP50Time() {
+            return p50Time;
+        }
+        
+        public double getP95Time() {
+            return p95Time;
+        }
+        
+        public double getP99Time() {
+            return p99Time;
+        }
     }
 }
\ No newline at end of file
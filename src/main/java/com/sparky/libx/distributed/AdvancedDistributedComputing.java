@@ -6,8 +6,16 @@ import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Advanced distributed computing framework
@@ -341,659 +349,2730 @@ public class AdvancedDistributedComputing {
     }
     
     /**
-     * Represents a distributed consensus algorithm (simplified RAFT implementation)
+     * Represents a distributed consensus algorithm (RAFT)
+     * All protocol state is owned by one event-loop thread per node, so handlers need no locks.
+     * The leader pipelines AppendEntries to each follower up to a window of unacknowledged requests,
+     * batches every proposal that arrived since its last round into the log at once, and falls back
+     * to one probe at a time after a mismatch or timeout. Applied entries are periodically folded
+     * into a state machine snapshot and the log prefix is dropped; followers too far behind receive
+     * the snapshot. Linearizable reads are served under a leader lease, or after a heartbeat round
+     * when the lease has lapsed. Nodes talk through a Transport; SimulatedNetwork is an in-process
+     * transport with configurable latency and drops.
      */
     public static class ConsensusAlgorithm {
         public enum NodeState {
             FOLLOWER, CANDIDATE, LEADER
         }
         
+        private static final Object NOOP = Noop.INSTANCE;
+        private static final double LEASE_DRIFT_FACTOR = 0.9;
+        
         private final String nodeId;
         private final List<String> clusterNodes;
-        private final Map<String, Long> nodeHeartbeats;
-        private final Lock lock;
+        private final StateMachine stateMachine;
+        private final Transport transport;
+        private final Config config;
         private final ScheduledExecutorService scheduler;
         private final Random random;
+        private final ConcurrentLinkedQueue<Proposal> proposals;
+        private final AtomicBoolean drainScheduled;
         private volatile NodeState state;
         private volatile String leaderId;
         private volatile long currentTerm;
+        private volatile long commitIndex;
+        private volatile long lastApplied;
+        private volatile boolean running;
+        
+        // Owned by the event loop
+        private final ArrayList<LogEntry> log;
+        private final Map<String, Peer> peers;
+        private final Map<Long, CompletableFuture<Object>> pendingResults;
+        private final List<PendingRead> pendingReads;
+        private String votedFor;
+        private int votesGranted;
+        private long snapshotIndex;
+        private long snapshotTerm;
+        private Object snapshotData;
+        private long electionDeadline;
+        private long lastLeaderContact;
+        private long termStartIndex;
         
         public ConsensusAlgorithm(String nodeId, List<String> clusterNodes) {
+            this(nodeId, clusterNodes, (index, command) -> command, SimulatedNetwork.shared(), new Config());
+        }
+        
+        public ConsensusAlgorithm(String nodeId, List<String> clusterNodes, StateMachine stateMachine,
+                                  Transport transport, Config config) {
             this.nodeId = nodeId;
             this.clusterNodes = new ArrayList<>(clusterNodes);
-            this.nodeHeartbeats = new ConcurrentHashMap<>();
-            this.lock = new ReentrantLock();
-            this.scheduler = Executors.newScheduledThreadPool(2);
+            if (!this.clusterNodes.contains(nodeId)) {
+                this.clusterNodes.add(nodeId);
+            }
+            this.stateMachine = stateMachine;
+            this.transport = transport;
+            this.config = config;
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "raft-" + nodeId);
+                thread.setDaemon(true);
+                return thread;
+            });
             this.random = new Random();
+            this.proposals = new ConcurrentLinkedQueue<>();
+            this.drainScheduled = new AtomicBoolean(false);
             this.state = NodeState.FOLLOWER;
             this.leaderId = null;
             this.currentTerm = 0;
+            this.log = new ArrayList<>();
+            this.peers = new HashMap<>();
+            this.pendingResults = new HashMap<>();
+            this.pendingReads = new ArrayList<>();
+            this.running = true;
             
-            // Start election timeout
-            scheduler.scheduleWithFixedDelay(this::checkElectionTimeout, 150, 150, TimeUnit.MILLISECONDS);
+            scheduler.execute(this::resetElectionDeadline);
+            transport.register(nodeId, message -> execute(() -> handle(message)));
             
-            // Start heartbeat sending (if leader)
-            scheduler.scheduleWithFixedDelay(this::sendHeartbeat, 50, 50, TimeUnit.MILLISECONDS);
+            // Election timeouts and heartbeats are both driven by one tick
+            long tick = Math.max(1, config.heartbeatIntervalMillis / 5);
+            scheduler.scheduleWithFixedDelay(this::tick, tick, tick, TimeUnit.MILLISECONDS);
         }
         
         /**
-         * Checks for election timeout
+         * Proposes a command; the future completes with the state machine's result once the
+         * command is committed and applied, or fails if this node is not or stops being the leader
          */
-        private void checkElectionTimeout() {
-            lock.lock();
-            try {
-                long now = System.currentTimeMillis();
-                long lastHeartbeat = nodeHeartbeats.getOrDefault(leaderId, 0L);
-                
-                // If no heartbeat for a while, start election
-                if (now - lastHeartbeat > 300) {
-                    if (state == NodeState.FOLLOWER || state == NodeState.CANDIDATE) {
-                        startElection();
-                    }
-                }
-            } finally {
-                lock.unlock();
+        public CompletableFuture<Object> propose(Object command) {
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            proposals.offer(new Proposal(command, future));
+            // Proposals arriving while a drain is queued join the same batch
+            if (drainScheduled.compareAndSet(false, true)) {
+                execute(this::drainProposals);
             }
+            return future;
         }
         
         /**
-         * Starts an election
+         * Runs a linearizable read against the state machine on the leader
          */
-        private void startElection() {
-            lock.lock();
-            try {
-                state = NodeState.CANDIDATE;
-                currentTerm++;
-                leaderId = null;
-                
-                int votes = 1; // Vote for self
-                for (String node : clusterNodes) {
-                    if (!node.equals(nodeId)) {
-                        if (requestVote(node)) {
-                            votes++;
-                        }
-                    }
+        @SuppressWarnings("unchecked")
+        public <T> CompletableFuture<T> read(Function<StateMachine, T> query) {
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            execute(() -> {
+                if (state != NodeState.LEADER) {
+                    future.completeExceptionally(notLeader());
+                    return;
                 }
                 
-                // If we have majority of votes, become leader
-                if (votes > clusterNodes.size() / 2) {
-                    becomeLeader();
+                PendingRead read = new PendingRead((Function<StateMachine, Object>) (Function<?, ?>) query, future,
+                    commitIndex, System.nanoTime());
+                if (!serveRead(read, System.nanoTime())) {
+                    pendingReads.add(read);
+                    // Confirm leadership with a round of heartbeats
+                    for (Peer peer : peers.values()) {
+                        sendAppend(peer, true);
+                    }
                 }
-            } finally {
-                lock.unlock();
-            }
+            });
+            return (CompletableFuture<T>) (CompletableFuture<?>) future;
         }
         
         /**
-         * Requests a vote from another node
+         * Receives heartbeat from another node
          */
-        private boolean requestVote(String node) {
-            // send a network request to the node to request a vote
-            System.out.println(nodeId + " requesting vote from " + node);
-            // Simulate random vote result
-            return random.nextBoolean();
+        public void receiveHeartbeat(String leader) {
+            execute(() -> {
+                if (leader.equals(nodeId)) {
+                    return;
+                }
+                lastLeaderContact = System.nanoTime();
+                resetElectionDeadline();
+                if (state != NodeState.FOLLOWER) {
+                    stepDown(currentTerm);
+                }
+                leaderId = leader;
+            });
         }
         
-        /**
-         * Becomes the leader
-         */
-        private void becomeLeader() {
-            lock.lock();
+        private void execute(Runnable action) {
+            if (!running) {
+                return;
+            }
             try {
-                state = NodeState.LEADER;
-                leaderId = nodeId;
-                System.out.println(nodeId + " became leader");
-            } finally {
-                lock.unlock();
+                scheduler.execute(action);
+            } catch (RejectedExecutionException e) {
+                // Shutting down
             }
         }
         
-        /**
-         * Sends heartbeat to all nodes
-         */
-        private void sendHeartbeat() {
-            lock.lock();
-            try {
-                if (state == NodeState.LEADER) {
-                    long now = System.currentTimeMillis();
-                    for (String node : clusterNodes) {
-                        if (!node.equals(nodeId)) {
-                            sendHeartbeatToNode(node);
-                            nodeHeartbeats.put(node, now);
-                        }
+        // ---- timers ----
+        
+        private void tick() {
+            long now = System.nanoTime();
+            if (state == NodeState.LEADER) {
+                long heartbeat = TimeUnit.MILLISECONDS.toNanos(config.heartbeatIntervalMillis);
+                long ackTimeout = heartbeat * 4;
+                long electionTimeout = TimeUnit.MILLISECONDS.toNanos(config.electionTimeoutMillis);
+                int reachable = 1;
+                for (Peer peer : peers.values()) {
+                    if (now - peer.lastAckNanos < electionTimeout) {
+                        reachable++;
                     }
                 }
-            } finally {
-                lock.unlock();
+                if (reachable <= clusterNodes.size() / 2) {
+                    // Cut off from a majority: a new leader may exist, so stop accepting work
+                    stepDown(currentTerm);
+                    return;
+                }
+                for (Peer peer : peers.values()) {
+                    if (peer.inflight > 0 && now - peer.lastAckNanos > ackTimeout && now - peer.lastSendNanos > ackTimeout) {
+                        // Responses were lost: restart from the last confirmed entry with a single probe
+                        peer.inflight = 0;
+                        peer.nextIndex = peer.matchIndex + 1;
+                        peer.probing = true;
+                    }
+                    if (now - peer.lastSendNanos >= heartbeat) {
+                        sendAppend(peer, true);
+                    }
+                }
+            } else if (now - electionDeadline >= 0) {
+                startElection();
             }
         }
         
-        /**
-         * Sends heartbeat to a specific node
-         */
-        private void sendHeartbeatToNode(String node) {
-            // send a network request to the node with a heartbeat message
-            System.out.println(nodeId + " sending heartbeat to " + node);
+        private void resetElectionDeadline() {
+            long timeout = config.electionTimeoutMillis + random.nextInt((int) Math.max(1, config.electionTimeoutMillis));
+            electionDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
         }
         
+        // ---- elections ----
+        
         /**
-         * Receives heartbeat from another node
+         * Starts an election
          */
-        public void receiveHeartbeat(String leader) {
-            lock.lock();
-            try {
-                nodeHeartbeats.put(leader, System.currentTimeMillis());
-                
-                if (state == NodeState.CANDIDATE || 
-                    (state == NodeState.FOLLOWER && !leader.equals(leaderId))) {
-                    state = NodeState.FOLLOWER;
-                    leaderId = leader;
-                    System.out.println(nodeId + " following leader " + leader);
+        private void startElection() {
+            state = NodeState.CANDIDATE;
+            currentTerm++;
+            leaderId = null;
+            votedFor = nodeId;
+            votesGranted = 1; // Vote for self
+            resetElectionDeadline();
+            
+            if (votesGranted > clusterNodes.size() / 2) {
+                becomeLeader();
+                return;
+            }
+            RequestVote request = new RequestVote(currentTerm, nodeId, lastLogIndex(), termAt(lastLogIndex()));
+            for (String node : clusterNodes) {
+                if (!node.equals(nodeId)) {
+                    transport.send(nodeId, node, request);
                 }
-            } finally {
-                lock.unlock();
             }
         }
         
-        /**
-         * Gets the current node state
-         */
-        public NodeState getState() {
-            return state;
+        private void handleRequestVote(RequestVote request) {
+            long now = System.nanoTime();
+            boolean leaderAlive = config.leaderLeases && leaderId != null && !leaderId.equals(request.candidateId)
+                && now - lastLeaderContact < TimeUnit.MILLISECONDS.toNanos(config.electionTimeoutMillis);
+            // While a live leader may hold a lease, its followers must not help elect another
+            if (request.term < currentTerm || leaderAlive) {
+                transport.send(nodeId, request.candidateId, new VoteResponse(currentTerm, nodeId, false));
+                return;
+            }
+            if (request.term > currentTerm) {
+                stepDown(request.term);
+            }
+            
+            long lastIndex = lastLogIndex();
+            long lastTerm = termAt(lastIndex);
+            boolean upToDate = request.lastLogTerm > lastTerm
+                || (request.lastLogTerm == lastTerm && request.lastLogIndex >= lastIndex);
+            boolean granted = upToDate && (votedFor == null || votedFor.equals(request.candidateId));
+            if (granted) {
+                votedFor = request.candidateId;
+                resetElectionDeadline();
+            }
+            transport.send(nodeId, request.candidateId, new VoteResponse(currentTerm, nodeId, granted));
         }
         
-        /**
-         * Gets the current leader
-         */
-        public String getLeader() {
-            return leaderId;
+        private void handleVoteResponse(VoteResponse response) {
+            if (response.term > currentTerm) {
+                stepDown(response.term);
+                return;
+            }
+            if (state != NodeState.CANDIDATE || response.term != currentTerm || !response.granted) {
+                return;
+            }
+            
+            // If we have majority of votes, become leader
+            if (++votesGranted > clusterNodes.size() / 2) {
+                becomeLeader();
+            }
         }
         
         /**
-         * Shuts down the consensus algorithm
+         * Becomes the leader
          */
-        public void shutdown() {
-            scheduler.shutdown();
-            try {
-                if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                    scheduler.shutdownNow();
+        private void becomeLeader() {
+            state = NodeState.LEADER;
+            leaderId = nodeId;
+            peers.clear();
+            long now = System.nanoTime();
+            for (String node : clusterNodes) {
+                if (!node.equals(nodeId)) {
+                    peers.put(node, new Peer(node, lastLogIndex() + 1, now));
                 }
-            } catch (InterruptedException e) {
-                scheduler.shutdownNow();
-                Thread.currentThread().interrupt();
             }
-        }
-    }
-    
-    /**
-     * Represents a distributed task scheduler
-     */
-    public static class DistributedTaskScheduler {
-        private final String nodeId;
-        private final List<String> clusterNodes;
-        private final Map<String, Task> taskRegistry;
-        private final PriorityQueue<ScheduledTask> taskQueue;
-        private final Lock queueLock;
-        private final ScheduledExecutorService scheduler;
-        private final Random random;
-        
-        public DistributedTaskScheduler(String nodeId, List<String> clusterNodes) {
-            this.nodeId = nodeId;
-            this.clusterNodes = new ArrayList<>(clusterNodes);
-            this.taskRegistry = new ConcurrentHashMap<>();
-            this.taskQueue = new PriorityQueue<>();
-            this.queueLock = new ReentrantLock();
-            this.scheduler = Executors.newScheduledThreadPool(2);
-            this.random = new Random();
             
-            // Start task processing
-            startTaskProcessing();
+            // A no-op from the new term commits earlier entries and marks when lease reads become safe
+            termStartIndex = appendEntry(NOOP);
+            System.out.println(nodeId + " became leader");
+            replicateAll();
         }
         
-        /**
-         * Starts task processing
-         */
-        private void startTaskProcessing() {
-            scheduler.scheduleWithFixedDelay(this::processTasks, 100, 100, TimeUnit.MILLISECONDS);
+        private void stepDown(long term) {
+            if (term > currentTerm) {
+                currentTerm = term;
+                votedFor = null;
+            }
+            boolean wasLeader = state == NodeState.LEADER;
+            state = NodeState.FOLLOWER;
+            if (wasLeader) {
+                leaderId = null;
+                IllegalStateException lost = new IllegalStateException("Leadership lost on " + nodeId);
+                for (CompletableFuture<Object> future : pendingResults.values()) {
+                    future.completeExceptionally(lost);
+                }
+                pendingResults.clear();
+                for (PendingRead read : pendingReads) {
+                    read.future.completeExceptionally(lost);
+                }
+                pendingReads.clear();
+                peers.clear();
+            }
+            resetElectionDeadline();
         }
         
-        /**
-         * Registers a task
-         */
-        public void registerTask(Task task) {
-            taskRegistry.put(task.getId(), task);
-            System.out.println("Registered task " + task.getId());
-        }
+        // ---- replication: leader side ----
         
-        /**
-         * Schedules a task
-         */
-        public void scheduleTask(String taskId, long delay, TimeUnit unit) {
-            Task task = taskRegistry.get(taskId);
-            if (task == null) {
-                throw new IllegalArgumentException("Task not found: " + taskId);
+        private void drainProposals() {
+            drainScheduled.set(false);
+            if (state != NodeState.LEADER) {
+                Proposal proposal;
+                while ((proposal = proposals.poll()) != null) {
+                    proposal.future.completeExceptionally(notLeader());
+                }
+                return;
             }
             
-            long scheduledTime = System.currentTimeMillis() + unit.toMillis(delay);
-            String assignedNode = selectNodeForTask(taskId);
-            
-            queueLock.lock();
-            try {
-                taskQueue.offer(new ScheduledTask(taskId, scheduledTime, assignedNode));
-                System.out.println("Scheduled task " + taskId + " on node " + assignedNode + 
-                                 " at " + new Date(scheduledTime));
-            } finally {
-                queueLock.unlock();
+            Proposal proposal;
+            boolean appended = false;
+            while ((proposal = proposals.poll()) != null) {
+                pendingResults.put(appendEntry(proposal.command), proposal.future);
+                appended = true;
+            }
+            if (appended) {
+                replicateAll();
             }
         }
         
-        /**
-         * Selects a node to execute a task
-         */
-        private String selectNodeForTask(String taskId) {
-            // Simple round-robin selection
-            int index = taskId.hashCode() % clusterNodes.size();
-            return clusterNodes.get(Math.abs(index));
+        private long appendEntry(Object command) {
+            long index = lastLogIndex() + 1;
+            log.add(new LogEntry(currentTerm, command));
+            return index;
         }
         
-        /**
-         * Processes scheduled tasks
-         */
-        private void processTasks() {
-            long now = System.currentTimeMillis();
-            
-            queueLock.lock();
-            try {
-                while (!taskQueue.isEmpty() && taskQueue.peek().getScheduledTime() <= now) {
-                    ScheduledTask scheduledTask = taskQueue.poll();
-                    
-                    if (scheduledTask.getAssignedNode().equals(nodeId)) {
-                        // Execute task locally
-                        executeTask(scheduledTask.getTaskId());
-                    } else {
-                        // Forward task to assigned node
-                        forwardTask(scheduledTask.getTaskId(), scheduledTask.getAssignedNode());
-                    }
-                }
-            } finally {
-                queueLock.unlock();
+        private void replicateAll() {
+            for (Peer peer : peers.values()) {
+                replicate(peer);
             }
+            advanceCommitIndex();
         }
         
         /**
-         * Executes a task locally
+         * Sends new entries to a peer while its window of unacknowledged requests has room
          */
-        private void executeTask(String taskId) {
-            Task task = taskRegistry.get(taskId);
-            if (task != null) {
-                try {
-                    Object result = task.execute();
-                    System.out.println("Executed task " + taskId + " with result: " + result);
-                } catch (Exception e) {
-                    System.err.println("Error executing task " + taskId + ": " + e.getMessage());
+        private void replicate(Peer peer) {
+            int window = peer.probing ? 1 : config.maxInflightAppends;
+            while (peer.inflight < window && peer.nextIndex <= lastLogIndex()) {
+                if (!sendAppend(peer, false)) {
+                    break;
                 }
             }
         }
         
         /**
-         * Forwards a task to another node
-         */
-        private void forwardTask(String taskId, String targetNode) {
-            // send a network request to the target node to execute the task
-            System.out.println(nodeId + " forwarding task " + taskId + " to " + targetNode);
-        }
-        
-        /**
-         * Represents a scheduled task
+         * Sends one AppendEntries (or the snapshot, if the peer needs compacted entries)
+         * @param heartbeat send even if there is nothing new or the window is full
          */
-        private static class ScheduledTask implements Comparable<ScheduledTask> {
-            private final String taskId;
-            private final long scheduledTime;
-            private final String assignedNode;
-            
-            public ScheduledTask(String taskId, long scheduledTime, String assignedNode) {
-                this.taskId = taskId;
-                this.scheduledTime = scheduledTime;
-                this.assignedNode = assignedNode;
+        private boolean sendAppend(Peer peer, boolean heartbeat) {
+            long now = System.nanoTime();
+            if (peer.nextIndex <= snapshotIndex) {
+                if (peer.snapshotSentNanos != 0 && now - peer.snapshotSentNanos < TimeUnit.MILLISECONDS.toNanos(config.electionTimeoutMillis)) {
+                    return false;
+                }
+                peer.snapshotSentNanos = now;
+                peer.lastSendNanos = now;
+                peer.inflight++;
+                transport.send(nodeId, peer.id, new InstallSnapshot(currentTerm, nodeId, snapshotIndex, snapshotTerm, snapshotData, now));
+                return false;
             }
             
-            public String getTaskId() {
-                return taskId;
+            long previous = peer.nextIndex - 1;
+            int count = (int) Math.min(config.maxBatchEntries, lastLogIndex() - previous);
+            if (count == 0 && !heartbeat) {
+                return false;
             }
-            
-            public long getScheduledTime() {
-                return scheduledTime;
+            if (heartbeat && peer.inflight >= (peer.probing ? 1 : config.maxInflightAppends)) {
+                // Window is full: the heartbeat carries no entries, so it cannot overrun the follower
+                count = 0;
             }
             
-            public String getAssignedNode() {
-                return assignedNode;
+            int from = (int) (previous - snapshotIndex);
+            List<LogEntry> entries = count == 0 ? Collections.emptyList() : new ArrayList<>(log.subList(from, from + count));
+            transport.send(nodeId, peer.id, new AppendEntries(currentTerm, nodeId, previous, termAt(previous),
+                entries, commitIndex, now));
+            peer.inflight++;
+            peer.nextIndex += count;
+            peer.lastSendNanos = now;
+            return true;
+        }
+        
+        private void handleAppendResponse(AppendResponse response) {
+            if (response.term > currentTerm) {
+                stepDown(response.term);
+                return;
+            }
+            Peer peer = peers.get(response.from);
+            if (state != NodeState.LEADER || response.term != currentTerm || peer == null) {
+                return;
             }
             
-            @Override
-            public int compareTo(ScheduledTask other) {
-                return Long.compare(this.scheduledTime, other.scheduledTime);
+            long now = System.nanoTime();
+            peer.lastAckNanos = now;
+            peer.inflight = Math.max(0, peer.inflight - 1);
+            if (response.success) {
+                peer.matchIndex = Math.max(peer.matchIndex, response.matchIndex);
+                peer.nextIndex = Math.max(peer.nextIndex, peer.matchIndex + 1);
+                peer.ackedSendNanos = Math.max(peer.ackedSendNanos, response.sentNanos);
+                peer.probing = false;
+                peer.snapshotSentNanos = 0;
+                advanceCommitIndex();
+                serveReads(now);
+            } else {
+                // Back up to the follower's hint, never below what it already confirmed
+                peer.nextIndex = Math.max(peer.matchIndex + 1, Math.min(peer.nextIndex, response.conflictIndex));
+                peer.inflight = 0;
+                peer.probing = true;
             }
+            replicate(peer);
         }
         
         /**
-         * Shuts down the task scheduler
+         * Commits the highest index stored on a majority, if it belongs to the current term
          */
-        public void shutdown() {
-            scheduler.shutdown();
-            try {
-                if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                    scheduler.shutdownNow();
-                }
-            } catch (InterruptedException e) {
-                scheduler.shutdownNow();
-                Thread.currentThread().interrupt();
+        private void advanceCommitIndex() {
+            if (state != NodeState.LEADER) {
+                return;
             }
-        }
-    }
-    
-    /**
-     * Represents a distributed task
-     */
-    public abstract static class DistributedTask extends Task {
-        public DistributedTask(String id) {
-            super(id);
-        }
-    }
-    
-    /**
-     * Represents a distributed lock service
-     */
-    public static class DistributedLockService {
-        private final String nodeId;
-        private final List<String> clusterNodes;
-        private final Map<String, LockInfo> locks;
-        private final Lock serviceLock;
-        private final ScheduledExecutorService leaseScheduler;
-        
-        private static class LockInfo {
-            String holder;
-            long leaseExpiration;
-            List<String> waiters;
-            
-            LockInfo(String holder, long leaseExpiration) {
-                this.holder = holder;
-                this.leaseExpiration = leaseExpiration;
-                this.waiters = new ArrayList<>();
+            long[] matches = new long[peers.size() + 1];
+            int i = 0;
+            matches[i++] = lastLogIndex();
+            for (Peer peer : peers.values()) {
+                matches[i++] = peer.matchIndex;
+            }
+            Arrays.sort(matches);
+            long majorityMatch = matches[matches.length - (clusterNodes.size() / 2 + 1)];
+            if (majorityMatch > commitIndex && termAt(majorityMatch) == currentTerm) {
+                commitIndex = majorityMatch;
+                applyCommitted();
             }
         }
         
-        public DistributedLockService(String nodeId, List<String> clusterNodes) {
-            this.nodeId = nodeId;
-            this.clusterNodes = new ArrayList<>(clusterNodes);
-            this.locks = new ConcurrentHashMap<>();
-            this.serviceLock = new ReentrantLock();
-            this.leaseScheduler = Executors.newScheduledThreadPool(1);
-            
-            // Start lease renewal
-            leaseScheduler.scheduleWithFixedDelay(this::renewLeases, 1000, 1000, TimeUnit.MILLISECONDS);
-        }
+        // ---- replication: follower side ----
         
-        /**
-         * Acquires a distributed lock
-         */
-        public boolean acquireLock(String lockName, long timeout, TimeUnit unit) {
-            long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        private void handleAppendEntries(AppendEntries request) {
+            if (request.term < currentTerm) {
+                transport.send(nodeId, request.leaderId, AppendResponse.rejected(currentTerm, nodeId, 0, request.sentNanos));
+                return;
+            }
+            acceptLeader(request.term, request.leaderId);
             
-            while (System.currentTimeMillis() < deadline) {
-                if (tryAcquireLock(lockName)) {
-                    return true;
+            long previous = request.prevLogIndex;
+            List<LogEntry> entries = request.entries;
+            if (previous < snapshotIndex) {
+                // The start of this batch is already in our snapshot
+                int skip = (int) Math.min(entries.size(), snapshotIndex - previous);
+                entries = entries.subList(skip, entries.size());
+                previous = snapshotIndex;
+            } else if (previous > lastLogIndex()) {
+                transport.send(nodeId, request.leaderId,
+                    AppendResponse.rejected(currentTerm, nodeId, lastLogIndex() + 1, request.sentNanos));
+                return;
+            } else if (termAt(previous) != request.prevLogTerm) {
+                // Hint the first index of the conflicting term so the leader skips it in one step
+                long conflictTerm = termAt(previous);
+                long conflictIndex = previous;
+                while (conflictIndex - 1 > snapshotIndex && termAt(conflictIndex - 1) == conflictTerm) {
+                    conflictIndex--;
                 }
-                
-                try {
-                    Thread.sleep(100); // Wait before retry
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return false;
+                transport.send(nodeId, request.leaderId,
+                    AppendResponse.rejected(currentTerm, nodeId, conflictIndex, request.sentNanos));
+                return;
+            }
+            
+            long index = previous;
+            for (LogEntry entry : entries) {
+                index++;
+                if (index <= lastLogIndex()) {
+                    if (termAt(index) == entry.term) {
+                        continue;
+                    }
+                    log.subList((int) (index - snapshotIndex - 1), log.size()).clear();
                 }
+                log.add(entry);
             }
             
-            return false;
+            if (request.leaderCommit > commitIndex) {
+                commitIndex = Math.min(request.leaderCommit, index);
+                applyCommitted();
+            }
+            transport.send(nodeId, request.leaderId, new AppendResponse(currentTerm, nodeId, true, index, 0, request.sentNanos));
         }
         
-        /**
-         * Tries to acquire a lock immediately
-         */
-        private boolean tryAcquireLock(String lockName) {
-            serviceLock.lock();
-            try {
-                LockInfo lockInfo = locks.get(lockName);
-                
-                if (lockInfo == null) {
-                    // Lock is free, acquire it
-                    locks.put(lockName, new LockInfo(nodeId, System.currentTimeMillis() + 30000)); // 30 second lease
-                    System.out.println(nodeId + " acquired lock " + lockName);
-                    return true;
-                } else if (lockInfo.holder.equals(nodeId)) {
-                    // Already hold the lock, extend lease
-                    lockInfo.leaseExpiration = System.currentTimeMillis() + 30000;
-                    return true;
-                } else if (System.currentTimeMillis() > lockInfo.leaseExpiration) {
-                    // Lease expired, acquire lock
-                    lockInfo.holder = nodeId;
-                    lockInfo.leaseExpiration = System.currentTimeMillis() + 30000;
-                    System.out.println(nodeId + " acquired expired lock " + lockName);
-                    return true;
+        private void handleInstallSnapshot(InstallSnapshot request) {
+            if (request.term < currentTerm) {
+                transport.send(nodeId, request.leaderId, AppendResponse.rejected(currentTerm, nodeId, 0, request.sentNanos));
+                return;
+            }
+            acceptLeader(request.term, request.leaderId);
+            
+            if (request.lastIndex > commitIndex) {
+                if (request.lastIndex <= lastLogIndex() && termAt(request.lastIndex) == request.lastTerm) {
+                    // Keep the entries that follow the snapshot
+                    log.subList(0, (int) (request.lastIndex - snapshotIndex)).clear();
                 } else {
-                    // Lock held by another node, add to waiters
-                    if (!lockInfo.waiters.contains(nodeId)) {
-                        lockInfo.waiters.add(nodeId);
-                    }
-                    return false;
+                    log.clear();
                 }
-            } finally {
-                serviceLock.unlock();
+                snapshotIndex = request.lastIndex;
+                snapshotTerm = request.lastTerm;
+                snapshotData = request.data;
+                stateMachine.restore(request.data);
+                commitIndex = request.lastIndex;
+                lastApplied = request.lastIndex;
             }
+            transport.send(nodeId, request.leaderId,
+                new AppendResponse(currentTerm, nodeId, true, request.lastIndex, 0, request.sentNanos));
         }
         
-        /**
-         * Releases a distributed lock
-         */
-        public void releaseLock(String lockName) {
-            serviceLock.lock();
-            try {
-                LockInfo lockInfo = locks.get(lockName);
-                if (lockInfo != null && lockInfo.holder.equals(nodeId)) {
-                    // Notify waiters
-                    for (String waiter : lockInfo.waiters) {
-                        notifyWaiter(lockName, waiter);
-                    }
-                    
-                    locks.remove(lockName);
-                    System.out.println(nodeId + " released lock " + lockName);
-                }
-            } finally {
-                serviceLock.unlock();
+        private void acceptLeader(long term, String leader) {
+            if (term > currentTerm || state != NodeState.FOLLOWER) {
+                stepDown(term);
             }
+            leaderId = leader;
+            lastLeaderContact = System.nanoTime();
+            resetElectionDeadline();
         }
         
-        /**
-         * Notifies a waiter that a lock is available
-         */
-        private void notifyWaiter(String lockName, String waiter) {
-            // send a network notification to the waiter that the lock is available
-            System.out.println(nodeId + " notifying " + waiter + " that lock " + lockName + " is available");
-        }
+        // ---- state machine ----
+        
+        private void applyCommitted() {
+            while (lastApplied < commitIndex) {
+                long index = lastApplied + 1;
+                LogEntry entry = log.get((int) (index - snapshotIndex - 1));
+                Object result = null;
+                RuntimeException failure = null;
+                if (entry.command != NOOP) {
+                    try {
+                        result = stateMachine.apply(index, entry.command);
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    }
+                }
+                lastApplied = index;
+                
+                CompletableFuture<Object> future = pendingResults.remove(index);
+                if (future != null) {
+                    if (failure != null) {
+                        future.completeExceptionally(failure);
+                    } else {
+                        future.complete(result);
+                    }
+                }
+            }
+            
+            if (lastApplied - snapshotIndex >= config.snapshotThreshold) {
+                takeSnapshot();
+            }
+            if (state == NodeState.LEADER) {
+                serveReads(System.nanoTime());
+            }
+        }
+        
+        /**
+         * Folds every applied entry into a snapshot and drops them from the log;
+         * the log is kept whole when the state machine cannot snapshot
+         */
+        private void takeSnapshot() {
+            long index = lastApplied;
+            long term = termAt(index);
+            Object data = stateMachine.snapshot();
+            if (data == null) {
+                return;
+            }
+            snapshotData = data;
+            log.subList(0, (int) (index - snapshotIndex)).clear();
+            log.trimToSize();
+            snapshotIndex = index;
+            snapshotTerm = term;
+        }
+        
+        // ---- reads ----
+        
+        private void serveReads(long now) {
+            Iterator<PendingRead> iterator = pendingReads.iterator();
+            while (iterator.hasNext()) {
+                if (serveRead(iterator.next(), now)) {
+                    iterator.remove();
+                }
+            }
+        }
+        
+        /**
+         * Serves a read once leadership is confirmed for it, either by a lease or by a majority
+         * acknowledging a request sent after the read arrived, and the state machine has caught up
+         */
+        private boolean serveRead(PendingRead read, long now) {
+            if (commitIndex < termStartIndex || lastApplied < read.readIndex) {
+                return false;
+            }
+            
+            long[] acks = new long[peers.size() + 1];
+            int i = 0;
+            acks[i++] = now;
+            for (Peer peer : peers.values()) {
+                acks[i++] = peer.ackedSendNanos;
+            }
+            Arrays.sort(acks);
+            long majorityAck = acks[acks.length - (clusterNodes.size() / 2 + 1)];
+            long lease = (long) (TimeUnit.MILLISECONDS.toNanos(config.electionTimeoutMillis) * LEASE_DRIFT_FACTOR);
+            boolean confirmed = majorityAck >= read.arrivedNanos
+                || (config.leaderLeases && now - (majorityAck + lease) < 0);
+            if (!confirmed) {
+                return false;
+            }
+            
+            try {
+                read.future.complete(read.query.apply(stateMachine));
+            } catch (RuntimeException e) {
+                read.future.completeExceptionally(e);
+            }
+            return true;
+        }
+        
+        // ---- log ----
+        
+        private long lastLogIndex() {
+            return snapshotIndex + log.size();
+        }
+        
+        private long termAt(long index) {
+            if (index == snapshotIndex) {
+                return snapshotTerm;
+            }
+            if (index < snapshotIndex || index > lastLogIndex()) {
+                return -1;
+            }
+            return log.get((int) (index - snapshotIndex - 1)).term;
+        }
+        
+        private void handle(Object message) {
+            if (message instanceof AppendEntries) {
+                handleAppendEntries((AppendEntries) message);
+            } else if (message instanceof AppendResponse) {
+                handleAppendResponse((AppendResponse) message);
+            } else if (message instanceof RequestVote) {
+                handleRequestVote((RequestVote) message);
+            } else if (message instanceof VoteResponse) {
+                handleVoteResponse((VoteResponse) message);
+            } else if (message instanceof InstallSnapshot) {
+                handleInstallSnapshot((InstallSnapshot) message);
+            }
+        }
+        
+        private IllegalStateException notLeader() {
+            return new IllegalStateException("Node " + nodeId + " is not the leader" + (leaderId != null ? "; leader is " + leaderId : ""));
+        }
+        
+        /**
+         * Gets the current node state
+         */
+        public NodeState getState() {
+            return state;
+        }
+        
+        /**
+         * Gets the current leader
+         */
+        public String getLeader() {
+            return leaderId;
+        }
+        
+        /**
+         * Gets the current term
+         */
+        public long getCurrentTerm() {
+            return currentTerm;
+        }
+        
+        /**
+         * Gets the highest log index known to be committed
+         */
+        public long getCommitIndex() {
+            return commitIndex;
+        }
+        
+        /**
+         * Gets the highest log index applied to the state machine
+         */
+        public long getLastApplied() {
+            return lastApplied;
+        }
+        
+        /**
+         * Gets the number of entries kept in memory after the last snapshot
+         */
+        public CompletableFuture<Integer> getLogSize() {
+            CompletableFuture<Integer> size = new CompletableFuture<>();
+            execute(() -> size.complete(log.size()));
+            return size;
+        }
+        
+        /**
+         * Shuts down the consensus algorithm
+         */
+        public void shutdown() {
+            running = false;
+            transport.unregister(nodeId);
+            scheduler.shutdown();
+            try {
+                if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+                    scheduler.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                scheduler.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        /**
+         * Represents the replicated state machine
+         */
+        public interface StateMachine {
+            Object apply(long index, Object command);
+            
+            /**
+             * Captures the state after the last applied command; null if snapshots are not supported
+             */
+            default Object snapshot() {
+                return null;
+            }
+            
+            default void restore(Object snapshot) {
+            }
+        }
+        
+        /**
+         * Delivers protocol messages between nodes; delivery may be delayed, reordered or lost
+         */
+        public interface Transport {
+            void register(String nodeId, Consumer<Object> inbox);
+            void unregister(String nodeId);
+            void send(String from, String to, Object message);
+        }
+        
+        /**
+         * Represents consensus tuning options
+         */
+        public static class Config {
+            private long electionTimeoutMillis = 300;
+            private long heartbeatIntervalMillis = 50;
+            private int maxBatchEntries = 256;
+            private int maxInflightAppends = 8;
+            private long snapshotThreshold = 10_000;
+            private boolean leaderLeases = true;
+            
+            /**
+             * Sets the minimum election timeout; the actual timeout is randomized up to twice this
+             */
+            public Config setElectionTimeoutMillis(long electionTimeoutMillis) {
+                this.electionTimeoutMillis = Math.max(1, electionTimeoutMillis);
+                return this;
+            }
+            
+            public Config setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+                this.heartbeatIntervalMillis = Math.max(1, heartbeatIntervalMillis);
+                return this;
+            }
+            
+            /**
+             * Sets the maximum number of entries in one AppendEntries
+             */
+            public Config setMaxBatchEntries(int maxBatchEntries) {
+                this.maxBatchEntries = Math.max(1, maxBatchEntries);
+                return this;
+            }
+            
+            /**
+             * Sets how many AppendEntries may be unacknowledged per follower
+             */
+            public Config setMaxInflightAppends(int maxInflightAppends) {
+                this.maxInflightAppends = Math.max(1, maxInflightAppends);
+                return this;
+            }
+            
+            /**
+             * Sets how many applied entries trigger a snapshot and log compaction
+             */
+            public Config setSnapshotThreshold(long snapshotThreshold) {
+                this.snapshotThreshold = Math.max(1, snapshotThreshold);
+                return this;
+            }
+            
+            /**
+             * Enables serving reads under a leader lease without a heartbeat round; relies on bounded clock drift
+             */
+            public Config setLeaderLeases(boolean leaderLeases) {
+                this.leaderLeases = leaderLeases;
+                return this;
+            }
+        }
+        
+        /**
+         * Represents an in-process network with configurable latency, drops and isolated nodes
+         */
+        public static class SimulatedNetwork implements Transport {
+            private static SimulatedNetwork shared;
+            
+            private final Map<String, Consumer<Object>> inboxes;
+            private final Set<String> isolated;
+            private final TimerWheel timerWheel;
+            private final AtomicLong delivered;
+            private final AtomicLong dropped;
+            private volatile long minLatencyMillis;
+            private volatile long maxLatencyMillis;
+            private volatile double dropRate;
+            
+            public SimulatedNetwork() {
+                this(0, 0, 0);
+            }
+            
+            public SimulatedNetwork(long minLatencyMillis, long maxLatencyMillis, double dropRate) {
+                this.inboxes = new ConcurrentHashMap<>();
+                this.isolated = ConcurrentHashMap.newKeySet();
+                this.timerWheel = new TimerWheel(1, TimeUnit.MILLISECONDS, null, "simulated-network");
+                this.delivered = new AtomicLong();
+                this.dropped = new AtomicLong();
+                setLatency(minLatencyMillis, maxLatencyMillis);
+                setDropRate(dropRate);
+            }
+            
+            /**
+             * Gets the network used by nodes created without a transport
+             */
+            static synchronized SimulatedNetwork shared() {
+                if (shared == null) {
+                    shared = new SimulatedNetwork();
+                }
+                return shared;
+            }
+            
+            public void setLatency(long minLatencyMillis, long maxLatencyMillis) {
+                this.minLatencyMillis = Math.max(0, minLatencyMillis);
+                this.maxLatencyMillis = Math.max(this.minLatencyMillis, maxLatencyMillis);
+            }
+            
+            public void setDropRate(double dropRate) {
+                this.dropRate = Math.max(0, Math.min(1, dropRate));
+            }
+            
+            /**
+             * Drops every message to and from a node until it is healed
+             */
+            public void isolate(String nodeId) {
+                isolated.add(nodeId);
+            }
+            
+            public void heal(String nodeId) {
+                isolated.remove(nodeId);
+            }
+            
+            @Override
+            public void register(String nodeId, Consumer<Object> inbox) {
+                inboxes.put(nodeId, inbox);
+            }
+            
+            @Override
+            public void unregister(String nodeId) {
+                inboxes.remove(nodeId);
+            }
+            
+            @Override
+            public void send(String from, String to, Object message) {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                if (isolated.contains(from) || isolated.contains(to) || (dropRate > 0 && random.nextDouble() < dropRate)) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                
+                long latency = minLatencyMillis + (maxLatencyMillis > minLatencyMillis
+                    ? random.nextLong(maxLatencyMillis - minLatencyMillis + 1) : 0);
+                if (latency == 0) {
+                    deliver(to, message);
+                } else {
+                    timerWheel.newTimeout(() -> deliver(to, message), latency, TimeUnit.MILLISECONDS);
+                }
+            }
+            
+            private void deliver(String to, Object message) {
+                Consumer<Object> inbox = inboxes.get(to);
+                if (inbox == null || isolated.contains(to)) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                delivered.incrementAndGet();
+                inbox.accept(message);
+            }
+            
+            public long getDeliveredCount() {
+                return delivered.get();
+            }
+            
+            public long getDroppedCount() {
+                return dropped.get();
+            }
+            
+            public void shutdown() {
+                timerWheel.stop();
+            }
+        }
+        
+        /**
+         * Leader's no-op marker; compared by identity so no client command can match it
+         */
+        private static final class Noop implements Serializable {
+            private static final long serialVersionUID = 1L;
+            static final Noop INSTANCE = new Noop();
+            
+            private Object readResolve() {
+                return INSTANCE;
+            }
+        }
+        
+        private static final class LogEntry implements Serializable {
+            private static final long serialVersionUID = 1L;
+            final long term;
+            final Object command;
+            
+            LogEntry(long term, Object command) {
+                this.term = term;
+                this.command = command;
+            }
+        }
+        
+        /**
+         * Leader's replication state for one follower
+         */
+        private static final class Peer {
+            final String id;
+            long nextIndex;
+            long matchIndex;
+            int inflight;
+            boolean probing;
+            long lastSendNanos;
+            long lastAckNanos;
+            long ackedSendNanos;
+            long snapshotSentNanos;
+            
+            Peer(String id, long nextIndex, long now) {
+                this.id = id;
+                this.nextIndex = nextIndex;
+                this.probing = true;
+                this.lastAckNanos = now;
+            }
+        }
+        
+        private static final class Proposal {
+            final Object command;
+            final CompletableFuture<Object> future;
+            
+            Proposal(Object command, CompletableFuture<Object> future) {
+                this.command = command;
+                this.future = future;
+            }
+        }
+        
+        private static final class PendingRead {
+            final Function<StateMachine, Object> query;
+            final CompletableFuture<Object> future;
+            final long readIndex;
+            final long arrivedNanos;
+            
+            PendingRead(Function<StateMachine, Object> query, CompletableFuture<Object> future, long readIndex, long arrivedNanos) {
+                this.query = query;
+                this.future = future;
+                this.readIndex = readIndex;
+                this.arrivedNanos = arrivedNanos;
+            }
+        }
+        
+        static final class RequestVote implements Serializable {
+            private static final long serialVersionUID = 1L;
+            final long term;
+            final String candidateId;
+            final long lastLogIndex;
+            final long lastLogTerm;
+            
+            RequestVote(long term, String candidateId, long lastLogIndex, long lastLogTerm) {
+                this.term = term;
+                this.candidateId = candidateId;
+                this.lastLogIndex = lastLogIndex;
+                this.lastLogTerm = lastLogTerm;
+            }
+        }
+        
+        static final class VoteResponse implements Serializable {
+            private static final long serialVersionUID = 1L;
+            final long term;
+            final String from;
+            final boolean granted;
+            
+            VoteResponse(long term, String from, boolean granted) {
+                this.term = term;
+                this.from = from;
+                this.granted = granted;
+            }
+        }
+        
+        static final class AppendEntries implements Serializable {
+            private static final long serialVersionUID = 1L;
+            final long term;
+            final String leaderId;
+            final long prevLogIndex;
+            final long prevLogTerm;
+            final List<LogEntry> entries;
+            final long leaderCommit;
+            // Echoed back so the leader knows which send time a majority has confirmed
+            final long sentNanos;
+            
+            AppendEntries(long term, String leaderId, long prevLogIndex, long prevLogTerm,
+                          List<LogEntry> entries, long leaderCommit, long sentNanos) {
+                this.term = term;
+                this.leaderId = leaderId;
+                this.prevLogIndex = prevLogIndex;
+                this.prevLogTerm = prevLogTerm;
+                this.entries = entries;
+                this.leaderCommit = leaderCommit;
+                this.sentNanos = sentNanos;
+            }
+        }
+        
+        static final class AppendResponse implements Serializable {
+            private static final long serialVersionUID = 1L;
+            final long term;
+            final String from;
+            final boolean success;
+            final long matchIndex;
+            final long conflictIndex;
+            final long sentNanos;
+            
+            AppendResponse(long term, String from, boolean success, long matchIndex, long conflictIndex, long sentNanos) {
+                this.term = term;
+                this.from = from;
+                this.success = success;
+                this.matchIndex = matchIndex;
+                this.conflictIndex = conflictIndex;
+                this.sentNanos = sentNanos;
+            }
+            
+            static AppendResponse rejected(long term, String from, long conflictIndex, long sentNanos) {
+                return new AppendResponse(term, from, false, 0, conflictIndex, sentNanos);
+            }
+        }
+        
+        static final class InstallSnapshot implements Serializable {
+            private static final long serialVersionUID = 1L;
+            final long term;
+            final String leaderId;
+            final long lastIndex;
+            final long lastTerm;
+            final Object data;
+            final long sentNanos;
+            
+            InstallSnapshot(long term, String leaderId, long lastIndex, long lastTerm, Object data, long sentNanos) {
+                this.term = term;
+                this.leaderId = leaderId;
+                this.lastIndex = lastIndex;
+                this.lastTerm = lastTerm;
+                this.data = data;
+                this.sentNanos = sentNanos;
+            }
+        }
+    }
+    
+    /**
+     * Represents a hierarchical hashed timer wheel
+     * One wheel thread owns five levels of buckets (256 slots of one tick, then 64 slots per level,
+     * each slot spanning a whole lower level), so scheduling and cancelling are O(1) and a timer is
+     * moved at most once per level as it approaches its deadline. Producers never touch the
+     * buckets: new and cancelled timeouts are handed over through lock-free multi-producer
+     * single-consumer queues and applied by the wheel thread on its next tick.
+     */
+    public static class TimerWheel {
+        private static final int ROOT_BITS = 8;
+        private static final int LEVEL_BITS = 6;
+        private static final int LEVELS = 5;
+        private static final int ROOT_SIZE = 1 << ROOT_BITS;
+        private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+        private static final long MAX_TICKS = 1L << (ROOT_BITS + LEVEL_BITS * (LEVELS - 1));
+        
+        private final long tickNanos;
+        private final Executor taskExecutor;
+        private final Bucket[][] levels;
+        private final MpscQueue<Timeout> submissions;
+        private final MpscQueue<Timeout> cancellations;
+        private final AtomicLong pending;
+        private final AtomicBoolean sleeping;
+        private final Thread worker;
+        private final long startTime;
+        private volatile boolean running;
+        private long currentTick;
+        
+        /**
+         * Creates a wheel and starts its thread
+         * @param taskExecutor runs expired tasks; null runs them on the wheel thread, which suits short tasks only
+         */
+        public TimerWheel(long tickDuration, TimeUnit unit, Executor taskExecutor, String name) {
+            this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+            this.taskExecutor = taskExecutor;
+            this.levels = new Bucket[LEVELS][];
+            for (int level = 0; level < LEVELS; level++) {
+                levels[level] = new Bucket[level == 0 ? ROOT_SIZE : LEVEL_SIZE];
+                for (int slot = 0; slot < levels[level].length; slot++) {
+                    levels[level][slot] = new Bucket();
+                }
+            }
+            this.submissions = new MpscQueue<>();
+            this.cancellations = new MpscQueue<>();
+            this.pending = new AtomicLong();
+            this.sleeping = new AtomicBoolean(false);
+            this.startTime = System.nanoTime();
+            this.running = true;
+            this.worker = new Thread(this::run, name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        
+        /**
+         * Schedules a task to run once after the delay, rounded up to the tick
+         */
+        public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+            if (!running) {
+                throw new IllegalStateException("Timer wheel is stopped");
+            }
+            
+            Timeout timeout = new Timeout(this, task, System.nanoTime() + Math.max(0, unit.toNanos(delay)));
+            pending.incrementAndGet();
+            submissions.offer(timeout);
+            wakeWorker();
+            return timeout;
+        }
+        
+        /**
+         * Gets the number of timeouts that have neither expired nor been cancelled
+         */
+        public long getPendingCount() {
+            return pending.get();
+        }
+        
+        /**
+         * Gets the tick duration in nanoseconds
+         */
+        public long getTickNanos() {
+            return tickNanos;
+        }
+        
+        /**
+         * Stops the wheel thread; pending timeouts never fire
+         */
+        public void stop() {
+            running = false;
+            LockSupport.unpark(worker);
+            if (Thread.currentThread() != worker) {
+                try {
+                    worker.join(TimeUnit.NANOSECONDS.toMillis(tickNanos) + 1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        
+        private void wakeWorker() {
+            if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+                LockSupport.unpark(worker);
+            }
+        }
+        
+        private void run() {
+            while (running) {
+                long nowTick = (System.nanoTime() - startTime) / tickNanos;
+                applyCancellations();
+                applySubmissions(nowTick);
+                
+                if (pending.get() == 0 && currentTick <= nowTick) {
+                    // Nothing is scheduled, so there are no buckets to walk: jump to now and sleep until a submission
+                    currentTick = nowTick + 1;
+                    sleeping.set(true);
+                    if (submissions.isEmpty() && cancellations.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    sleeping.set(false);
+                    continue;
+                }
+                
+                while (currentTick <= nowTick) {
+                    advance();
+                }
+                
+                long nextTickTime = startTime + currentTick * tickNanos;
+                long sleep = nextTickTime - System.nanoTime();
+                if (sleep > 0) {
+                    LockSupport.parkNanos(this, sleep);
+                }
+            }
+        }
+        
+        /**
+         * Processes one tick: cascades higher levels when the root wraps, then expires the root slot
+         */
+        private void advance() {
+            int index = (int) (currentTick & (ROOT_SIZE - 1));
+            if (index == 0) {
+                for (int level = 1; level < LEVELS; level++) {
+                    int slot = (int) ((currentTick >>> (ROOT_BITS + (level - 1) * LEVEL_BITS)) & (LEVEL_SIZE - 1));
+                    cascade(levels[level][slot]);
+                    if (slot != 0) {
+                        break;
+                    }
+                }
+            }
+            
+            Bucket bucket = levels[0][index];
+            Timeout timeout = bucket.head;
+            bucket.head = null;
+            bucket.tail = null;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.next = null;
+                timeout.prev = null;
+                timeout.bucket = null;
+                if (timeout.expireTick > currentTick) {
+                    // Clamped beyond the top level: place it again with its real deadline
+                    place(timeout);
+                } else {
+                    expire(timeout);
+                }
+                timeout = next;
+            }
+            currentTick++;
+        }
+        
+        private void cascade(Bucket bucket) {
+            Timeout timeout = bucket.head;
+            bucket.head = null;
+            bucket.tail = null;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.next = null;
+                timeout.prev = null;
+                timeout.bucket = null;
+                place(timeout);
+                timeout = next;
+            }
+        }
+        
+        private void place(Timeout timeout) {
+            long expireTick = Math.max(timeout.expireTick, currentTick);
+            long delta = expireTick - currentTick;
+            Bucket bucket;
+            if (delta < ROOT_SIZE) {
+                bucket = levels[0][(int) (expireTick & (ROOT_SIZE - 1))];
+            } else {
+                if (delta >= MAX_TICKS) {
+                    expireTick = currentTick + MAX_TICKS - 1;
+                }
+                int level = 1;
+                while (delta >= 1L << (ROOT_BITS + level * LEVEL_BITS) && level < LEVELS - 1) {
+                    level++;
+                }
+                int slot = (int) ((expireTick >>> (ROOT_BITS + (level - 1) * LEVEL_BITS)) & (LEVEL_SIZE - 1));
+                bucket = levels[level][slot];
+            }
+            bucket.add(timeout);
+        }
+        
+        private void applySubmissions(long nowTick) {
+            Timeout timeout;
+            while ((timeout = submissions.poll()) != null) {
+                if (timeout.state.get() != Timeout.PENDING) {
+                    // Cancelled before it reached the wheel; pending was already released by cancel
+                    continue;
+                }
+                long ticks = (timeout.deadline - startTime + tickNanos - 1) / tickNanos;
+                timeout.expireTick = Math.max(ticks, Math.min(currentTick, nowTick));
+                place(timeout);
+            }
+        }
+        
+        private void applyCancellations() {
+            Timeout timeout;
+            while ((timeout = cancellations.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+        
+        private void expire(Timeout timeout) {
+            if (!timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                return;
+            }
+            pending.decrementAndGet();
+            
+            try {
+                if (taskExecutor != null) {
+                    taskExecutor.execute(timeout.task);
+                } else {
+                    timeout.task.run();
+                }
+            } catch (Throwable t) {
+                System.err.println("Timer task failed: " + t.getMessage());
+            }
+        }
+        
+        /**
+         * Represents a scheduled task on a timer wheel
+         */
+        public static final class Timeout {
+            private static final int PENDING = 0;
+            private static final int CANCELLED = 1;
+            private static final int EXPIRED = 2;
+            
+            private final TimerWheel wheel;
+            private final Runnable task;
+            private final long deadline;
+            private final AtomicInteger state;
+            // Owned by the wheel thread
+            private long expireTick;
+            private Bucket bucket;
+            private Timeout prev;
+            private Timeout next;
+            
+            Timeout(TimerWheel wheel, Runnable task, long deadline) {
+                this.wheel = wheel;
+                this.task = task;
+                this.deadline = deadline;
+                this.state = new AtomicInteger(PENDING);
+            }
+            
+            /**
+             * Cancels the timeout
+             * @return false if it already expired or was cancelled
+             */
+            public boolean cancel() {
+                if (!state.compareAndSet(PENDING, CANCELLED)) {
+                    return false;
+                }
+                wheel.pending.decrementAndGet();
+                wheel.cancellations.offer(this);
+                wheel.wakeWorker();
+                return true;
+            }
+            
+            public boolean isCancelled() {
+                return state.get() == CANCELLED;
+            }
+            
+            public boolean isExpired() {
+                return state.get() == EXPIRED;
+            }
+            
+            /**
+             * Gets the time left before the timeout fires, in nanoseconds
+             */
+            public long getRemainingNanos() {
+                return Math.max(0, deadline - System.nanoTime());
+            }
+        }
+        
+        /**
+         * Doubly-linked list of timeouts in one slot, used only by the wheel thread
+         */
+        private static final class Bucket {
+            private Timeout head;
+            private Timeout tail;
+            
+            void add(Timeout timeout) {
+                timeout.bucket = this;
+                timeout.prev = tail;
+                timeout.next = null;
+                if (tail == null) {
+                    head = timeout;
+                } else {
+                    tail.next = timeout;
+                }
+                tail = timeout;
+            }
+            
+            void remove(Timeout timeout) {
+                if (timeout.prev != null) {
+                    timeout.prev.next = timeout.next;
+                } else {
+                    head = timeout.next;
+                }
+                if (timeout.next != null) {
+                    timeout.next.prev = timeout.prev;
+                } else {
+                    tail = timeout.prev;
+                }
+                timeout.prev = null;
+                timeout.next = null;
+                timeout.bucket = null;
+            }
+        }
+        
+        /**
+         * Unbounded multi-producer single-consumer queue (Vyukov): producers swap the tail with one
+         * atomic exchange and link the previous node, the single consumer follows the links
+         */
+        static final class MpscQueue<E> {
+            private final AtomicReference<Node<E>> tail;
+            private Node<E> head;
+            
+            MpscQueue() {
+                Node<E> stub = new Node<>(null);
+                this.head = stub;
+                this.tail = new AtomicReference<>(stub);
+            }
+            
+            void offer(E value) {
+                Node<E> node = new Node<>(value);
+                Node<E> previous = tail.getAndSet(node);
+                previous.next = node;
+            }
+            
+            /**
+             * Consumer side only; may return null while a producer is between its exchange and link
+             */
+            E poll() {
+                Node<E> next = head.next;
+                if (next == null) {
+                    return null;
+                }
+                E value = next.value;
+                next.value = null;
+                head = next;
+                return value;
+            }
+            
+            boolean isEmpty() {
+                return head.next == null && tail.get() == head;
+            }
+            
+            private static final class Node<E> {
+                private E value;
+                private volatile Node<E> next;
+                
+                Node(E value) {
+                    this.value = value;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Represents a distributed task scheduler
+     * Delays are tracked on a TimerWheel, so scheduling and cancelling cost O(1) regardless of how
+     * many tasks are pending, and due tasks run or are forwarded on a small executor.
+     */
+    public static class DistributedTaskScheduler {
+        private final String nodeId;
+        private final List<String> clusterNodes;
+        private final Map<String, Task> taskRegistry;
+        private final ExecutorService executor;
+        private final TimerWheel timerWheel;
+        private final Random random;
+        
+        public DistributedTaskScheduler(String nodeId, List<String> clusterNodes) {
+            this(nodeId, clusterNodes, 10, TimeUnit.MILLISECONDS);
+        }
+        
+        /**
+         * @param tickDuration resolution of scheduled delays
+         */
+        public DistributedTaskScheduler(String nodeId, List<String> clusterNodes, long tickDuration, TimeUnit unit) {
+            this.nodeId = nodeId;
+            this.clusterNodes = new ArrayList<>(clusterNodes);
+            this.taskRegistry = new ConcurrentHashMap<>();
+            this.executor = Executors.newFixedThreadPool(2);
+            this.timerWheel = new TimerWheel(tickDuration, unit, executor, "DistributedTaskScheduler-" + nodeId);
+            this.random = new Random();
+        }
+        
+        /**
+         * Registers a task
+         */
+        public void registerTask(Task task) {
+            taskRegistry.put(task.getId(), task);
+            System.out.println("Registered task " + task.getId());
+        }
+        
+        /**
+         * Schedules a task
+         * @return handle that cancels this run of the task
+         */
+        public TimerWheel.Timeout scheduleTask(String taskId, long delay, TimeUnit unit) {
+            if (!taskRegistry.containsKey(taskId)) {
+                throw new IllegalArgumentException("Task not found: " + taskId);
+            }
+            
+            String assignedNode = selectNodeForTask(taskId);
+            return timerWheel.newTimeout(() -> {
+                if (assignedNode.equals(nodeId)) {
+                    // Execute task locally
+                    executeTask(taskId);
+                } else {
+                    // Forward task to assigned node
+                    forwardTask(taskId, assignedNode);
+                }
+            }, delay, unit);
+        }
+        
+        /**
+         * Gets the number of scheduled runs that have not fired or been cancelled
+         */
+        public long getPendingTaskCount() {
+            return timerWheel.getPendingCount();
+        }
+        
+        /**
+         * Selects a node to execute a task
+         */
+        private String selectNodeForTask(String taskId) {
+            // Simple round-robin selection
+            int index = taskId.hashCode() % clusterNodes.size();
+            return clusterNodes.get(Math.abs(index));
+        }
+        
+        /**
+         * Executes a task locally
+         */
+        private void executeTask(String taskId) {
+            Task task = taskRegistry.get(taskId);
+            if (task != null) {
+                try {
+                    Object result = task.execute();
+                    System.out.println("Executed task " + taskId + " with result: " + result);
+                } catch (Exception e) {
+                    System.err.println("Error executing task " + taskId + ": " + e.getMessage());
+                }
+            }
+        }
+        
+        /**
+         * Forwards a task to another node
+         */
+        private void forwardTask(String taskId, String targetNode) {
+            // send a network request to the target node to execute the task
+            System.out.println(nodeId + " forwarding task " + taskId + " to " + targetNode);
+        }
+        
+        /**
+         * Shuts down the task scheduler
+         */
+        public void shutdown() {
+            timerWheel.stop();
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Represents a distributed task
+     */
+    public abstract static class DistributedTask extends Task {
+        public DistributedTask(String id) {
+            super(id);
+        }
+    }
+    
+    /**
+     * Represents a distributed lock service
+     * Lock names are hashed onto independently locked stripes, so operations on different names
+     * rarely contend. Each granted lease schedules its expiry on a timer wheel instead of being
+     * found by a periodic scan. Locks have shared READ and exclusive WRITE modes with FIFO waiters,
+     * and every lease carries a fencing token that increases for each grant of the same lock name.
+     */
+    public static class DistributedLockService {
+        public enum LockMode {
+            READ, WRITE
+        }
+        
+        private static final long DEFAULT_LEASE_MILLIS = 30000;
+        
+        private final String nodeId;
+        private final List<String> clusterNodes;
+        private final Stripe[] stripes;
+        private final int stripeBits;
+        private final TimerWheel leaseTimer;
+        
+        public DistributedLockService(String nodeId, List<String> clusterNodes) {
+            this(nodeId, clusterNodes, 64);
+        }
+        
+        /**
+         * @param stripeCount number of independently locked shards, rounded up to a power of two
+         */
+        public DistributedLockService(String nodeId, List<String> clusterNodes, int stripeCount) {
+            this.nodeId = nodeId;
+            this.clusterNodes = new ArrayList<>(clusterNodes);
+            int count = 1;
+            while (count < stripeCount) {
+                count <<= 1;
+            }
+            this.stripes = new Stripe[count];
+            for (int i = 0; i < count; i++) {
+                stripes[i] = new Stripe(i);
+            }
+            this.stripeBits = Integer.numberOfTrailingZeros(count);
+            this.leaseTimer = new TimerWheel(10, TimeUnit.MILLISECONDS, null, "lock-leases-" + nodeId);
+        }
+        
+        /**
+         * Acquires a distributed lock for this node, waiting up to the timeout.
+         * The lock is reentrant for the node and its lease is renewed until releaseLock is called.
+         */
+        public boolean acquireLock(String lockName, long timeout, TimeUnit unit) {
+            Stripe stripe = stripeFor(lockName);
+            stripe.lock.lock();
+            try {
+                LockState state = stripe.locks.get(lockName);
+                if (state != null && state.writer != null && state.writer.autoRenew && state.writer.owner.equals(nodeId)) {
+                    // Already hold the lock, extend lease
+                    state.writer.expiresAtNanos = System.nanoTime() + state.writer.leaseNanos;
+                    return true;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            
+            CompletableFuture<LockLease> future = acquire(lockName, nodeId, LockMode.WRITE,
+                TimeUnit.MILLISECONDS.toNanos(DEFAULT_LEASE_MILLIS), unit.toNanos(timeout), true);
+            try {
+                future.get();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandon(future);
+                return false;
+            } catch (ExecutionException | CancellationException e) {
+                return false;
+            }
+        }
+        
+        /**
+         * Releases a distributed lock held by this node through acquireLock
+         */
+        public void releaseLock(String lockName) {
+            LockLease lease = null;
+            Stripe stripe = stripeFor(lockName);
+            stripe.lock.lock();
+            try {
+                LockState state = stripe.locks.get(lockName);
+                if (state != null && state.writer != null && state.writer.autoRenew && state.writer.owner.equals(nodeId)) {
+                    lease = state.writer;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            if (lease != null) {
+                lease.release();
+            }
+        }
+        
+        /**
+         * Acquires a lease immediately if the lock is free for the mode and nobody is queued
+         * @return the lease, or null if the lock is not available
+         */
+        public LockLease tryAcquire(String lockName, String owner, LockMode mode, long leaseTime, TimeUnit unit) {
+            Stripe stripe = stripeFor(lockName);
+            stripe.lock.lock();
+            try {
+                LockState state = stripe.locks.get(lockName);
+                if (state == null) {
+                    state = new LockState();
+                    stripe.locks.put(lockName, state);
+                } else if (!state.waiters.isEmpty() || !state.compatible(mode)) {
+                    return null;
+                }
+                return grant(stripe, state, lockName, owner, mode, unit.toNanos(leaseTime), false);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        
+        /**
+         * Acquires a lease, waiting as long as it takes
+         */
+        public CompletableFuture<LockLease> acquireAsync(String lockName, String owner, LockMode mode,
+                                                         long leaseTime, TimeUnit unit) {
+            return acquire(lockName, owner, mode, unit.toNanos(leaseTime), -1, false);
+        }
+        
+        /**
+         * Acquires a lease; the future fails with a TimeoutException if it is not granted within the wait time.
+         * Leases are not reentrant: an owner waiting on a lock it already holds waits for its own lease to end.
+         */
+        public CompletableFuture<LockLease> acquireAsync(String lockName, String owner, LockMode mode,
+                                                         long leaseTime, long waitTime, TimeUnit unit) {
+            return acquire(lockName, owner, mode, unit.toNanos(leaseTime), unit.toNanos(waitTime), false);
+        }
+        
+        /**
+         * Gets the number of lock names currently held in any mode
+         */
+        public int getHeldLockCount() {
+            int held = 0;
+            for (Stripe stripe : stripes) {
+                stripe.lock.lock();
+                try {
+                    for (LockState state : stripe.locks.values()) {
+                        if (state.writer != null || !state.readers.isEmpty()) {
+                            held++;
+                        }
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+            return held;
+        }
+        
+        private CompletableFuture<LockLease> acquire(String lockName, String owner, LockMode mode,
+                                                     long leaseNanos, long waitNanos, boolean autoRenew) {
+            if (leaseNanos <= 0) {
+                throw new IllegalArgumentException("Lease time must be positive");
+            }
+            
+            CompletableFuture<LockLease> future = new CompletableFuture<>();
+            Stripe stripe = stripeFor(lockName);
+            stripe.lock.lock();
+            try {
+                LockState state = stripe.locks.get(lockName);
+                if (state == null) {
+                    state = new LockState();
+                    stripe.locks.put(lockName, state);
+                }
+                
+                if (state.waiters.isEmpty() && state.compatible(mode)) {
+                    future.complete(grant(stripe, state, lockName, owner, mode, leaseNanos, autoRenew));
+                } else if (waitNanos == 0) {
+                    future.completeExceptionally(new TimeoutException("Lock " + lockName + " is not available"));
+                } else {
+                    Waiter waiter = new Waiter(owner, mode, leaseNanos, autoRenew, future);
+                    state.waiters.add(waiter);
+                    if (waitNanos > 0) {
+                        waiter.timeout = leaseTimer.newTimeout(() -> onWaitTimeout(stripe, lockName, waiter),
+                            waitNanos, TimeUnit.NANOSECONDS);
+                    }
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            return future;
+        }
+        
+        /**
+         * Grants a lease; the caller holds the stripe lock
+         */
+        private LockLease grant(Stripe stripe, LockState state, String lockName, String owner, LockMode mode,
+                                long leaseNanos, boolean autoRenew) {
+            // The stripe index in the low bits keeps tokens unique; the counter keeps them increasing per lock name
+            long token = (++stripe.grants << stripeBits) | stripe.index;
+            LockLease lease = new LockLease(stripe, lockName, owner, mode, token, leaseNanos, autoRenew);
+            if (mode == LockMode.WRITE) {
+                state.writer = lease;
+            } else {
+                state.readers.add(lease);
+            }
+            scheduleExpiry(lease, leaseNanos);
+            return lease;
+        }
+        
+        private void scheduleExpiry(LockLease lease, long delayNanos) {
+            lease.timerDeadlineNanos = System.nanoTime() + delayNanos;
+            lease.timeout = leaseTimer.newTimeout(() -> onLeaseTimeout(lease), delayNanos, TimeUnit.NANOSECONDS);
+        }
+        
+        /**
+         * Expires a lease unless it was renewed since its timer was scheduled
+         */
+        private void onLeaseTimeout(LockLease lease) {
+            List<Grant> grants;
+            Stripe stripe = lease.stripe;
+            stripe.lock.lock();
+            try {
+                if (lease.released) {
+                    return;
+                }
+                long now = System.nanoTime();
+                if (lease.autoRenew) {
+                    lease.expiresAtNanos = now + lease.leaseNanos;
+                }
+                if (lease.expiresAtNanos - now > 0) {
+                    scheduleExpiry(lease, lease.expiresAtNanos - now);
+                    return;
+                }
+                grants = removeHolder(lease);
+            } finally {
+                stripe.lock.unlock();
+            }
+            complete(grants);
+        }
+        
+        private void onWaitTimeout(Stripe stripe, String lockName, Waiter waiter) {
+            List<Grant> grants = Collections.emptyList();
+            boolean timedOut = false;
+            stripe.lock.lock();
+            try {
+                LockState state = stripe.locks.get(lockName);
+                if (state != null && state.waiters.remove(waiter)) {
+                    timedOut = true;
+                    // A queued writer that gives up may unblock the readers behind it
+                    grants = grantWaiters(stripe, state, lockName);
+                    removeIfIdle(stripe, state, lockName);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            if (timedOut) {
+                waiter.future.completeExceptionally(new TimeoutException("Timed out waiting for lock " + lockName));
+            }
+            complete(grants);
+        }
+        
+        /**
+         * Removes a holder and grants the lock to the waiters now compatible with it; the caller holds the stripe lock
+         */
+        private List<Grant> removeHolder(LockLease lease) {
+            lease.released = true;
+            Stripe stripe = lease.stripe;
+            LockState state = stripe.locks.get(lease.lockName);
+            if (state == null) {
+                return Collections.emptyList();
+            }
+            if (state.writer == lease) {
+                state.writer = null;
+            } else {
+                state.readers.remove(lease);
+            }
+            List<Grant> grants = grantWaiters(stripe, state, lease.lockName);
+            removeIfIdle(stripe, state, lease.lockName);
+            return grants;
+        }
+        
+        private List<Grant> grantWaiters(Stripe stripe, LockState state, String lockName) {
+            List<Grant> grants = null;
+            Waiter waiter;
+            while ((waiter = state.waiters.peek()) != null) {
+                if (waiter.future.isDone()) {
+                    // Cancelled by the caller
+                    state.waiters.poll();
+                    continue;
+                }
+                if (!state.compatible(waiter.mode)) {
+                    break;
+                }
+                state.waiters.poll();
+                if (waiter.timeout != null) {
+                    waiter.timeout.cancel();
+                }
+                if (grants == null) {
+                    grants = new ArrayList<>();
+                }
+                grants.add(new Grant(waiter.future,
+                    grant(stripe, state, lockName, waiter.owner, waiter.mode, waiter.leaseNanos, waiter.autoRenew)));
+                if (waiter.mode == LockMode.WRITE) {
+                    break;
+                }
+            }
+            return grants != null ? grants : Collections.emptyList();
+        }
+        
+        private static void removeIfIdle(Stripe stripe, LockState state, String lockName) {
+            if (state.writer == null && state.readers.isEmpty() && state.waiters.isEmpty()) {
+                stripe.locks.remove(lockName);
+            }
+        }
+        
+        /**
+         * Hands granted leases to their waiters outside the stripe lock
+         */
+        private static void complete(List<Grant> grants) {
+            for (Grant grant : grants) {
+                if (!grant.future.complete(grant.lease)) {
+                    // The waiter was cancelled after it was granted
+                    grant.lease.release();
+                }
+            }
+        }
+        
+        private static void abandon(CompletableFuture<LockLease> future) {
+            if (!future.cancel(false)) {
+                LockLease lease = future.getNow(null);
+                if (lease != null) {
+                    lease.release();
+                }
+            }
+        }
+        
+        private Stripe stripeFor(String lockName) {
+            int hash = lockName.hashCode();
+            return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+        }
+        
+        /**
+         * Shuts down the lock service
+         */
+        public void shutdown() {
+            leaseTimer.stop();
+            IllegalStateException stopped = new IllegalStateException("Lock service " + nodeId + " is shut down");
+            for (Stripe stripe : stripes) {
+                List<Waiter> waiting = new ArrayList<>();
+                stripe.lock.lock();
+                try {
+                    for (LockState state : stripe.locks.values()) {
+                        waiting.addAll(state.waiters);
+                        state.waiters.clear();
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+                for (Waiter waiter : waiting) {
+                    waiter.future.completeExceptionally(stopped);
+                }
+            }
+        }
         
         /**
-         * Renews leases for locks held by this node
+         * Represents a granted lock lease
          */
-        private void renewLeases() {
-            long now = System.currentTimeMillis();
+        public class LockLease implements AutoCloseable {
+            private final Stripe stripe;
+            private final String lockName;
+            private final String owner;
+            private final LockMode mode;
+            private final long fencingToken;
+            private final boolean autoRenew;
+            private volatile long leaseNanos;
+            private volatile long expiresAtNanos;
+            private volatile boolean released;
+            private long timerDeadlineNanos;
+            private TimerWheel.Timeout timeout;
             
-            serviceLock.lock();
-            try {
-                for (Map.Entry<String, LockInfo> entry : locks.entrySet()) {
-                    String lockName = entry.getKey();
-                    LockInfo lockInfo = entry.getValue();
-                    
-                    if (lockInfo.holder.equals(nodeId) && now > lockInfo.leaseExpiration - 10000) {
-                        // Renew lease 10 seconds before expiration
-                        lockInfo.leaseExpiration = now + 30000;
-                        System.out.println(nodeId + " renewed lease for lock " + lockName);
+            LockLease(Stripe stripe, String lockName, String owner, LockMode mode, long fencingToken,
+                      long leaseNanos, boolean autoRenew) {
+                this.stripe = stripe;
+                this.lockName = lockName;
+                this.owner = owner;
+                this.mode = mode;
+                this.fencingToken = fencingToken;
+                this.autoRenew = autoRenew;
+                this.leaseNanos = leaseNanos;
+                this.expiresAtNanos = System.nanoTime() + leaseNanos;
+            }
+            
+            public String getLockName() {
+                return lockName;
+            }
+            
+            public String getOwner() {
+                return owner;
+            }
+            
+            public LockMode getMode() {
+                return mode;
+            }
+            
+            /**
+             * Gets the fencing token; a resource should reject writes carrying a lower token
+             * than the highest it has seen for this lock
+             */
+            public long getFencingToken() {
+                return fencingToken;
+            }
+            
+            /**
+             * Checks if the lease is still held
+             */
+            public boolean isValid() {
+                return !released && expiresAtNanos - System.nanoTime() > 0;
+            }
+            
+            /**
+             * Extends the lease to the given time from now
+             * @return false if the lease was already released or expired
+             */
+            public boolean renew(long leaseTime, TimeUnit unit) {
+                stripe.lock.lock();
+                try {
+                    long now = System.nanoTime();
+                    if (released || expiresAtNanos - now <= 0) {
+                        return false;
+                    }
+                    leaseNanos = unit.toNanos(leaseTime);
+                    expiresAtNanos = now + leaseNanos;
+                    // Extensions are picked up when the current timer fires; only a shorter lease needs a new timer
+                    if (expiresAtNanos - timerDeadlineNanos < 0) {
+                        timeout.cancel();
+                        scheduleExpiry(this, leaseNanos);
                     }
+                    return true;
+                } finally {
+                    stripe.lock.unlock();
                 }
-            } finally {
-                serviceLock.unlock();
+            }
+            
+            /**
+             * Releases the lease
+             * @return false if it was already released or expired
+             */
+            public boolean release() {
+                List<Grant> grants;
+                stripe.lock.lock();
+                try {
+                    if (released) {
+                        return false;
+                    }
+                    timeout.cancel();
+                    grants = removeHolder(this);
+                } finally {
+                    stripe.lock.unlock();
+                }
+                complete(grants);
+                return true;
+            }
+            
+            @Override
+            public void close() {
+                release();
             }
         }
         
-        /**
-         * Shuts down the lock service
-         */
-        public void shutdown() {
-            leaseScheduler.shutdown();
-            try {
-                if (!leaseScheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                    leaseScheduler.shutdownNow();
-                }
-            } catch (InterruptedException e) {
-                leaseScheduler.shutdownNow();
-                Thread.currentThread().interrupt();
+        private static class Stripe {
+            final int index;
+            final ReentrantLock lock;
+            final Map<String, LockState> locks;
+            long grants;
+            
+            Stripe(int index) {
+                this.index = index;
+                this.lock = new ReentrantLock();
+                this.locks = new HashMap<>();
+            }
+        }
+        
+        private static class LockState {
+            LockLease writer;
+            final List<LockLease> readers = new ArrayList<>(2);
+            final Deque<Waiter> waiters = new ArrayDeque<>();
+            
+            boolean compatible(LockMode mode) {
+                return writer == null && (mode == LockMode.READ || readers.isEmpty());
+            }
+        }
+        
+        private static class Waiter {
+            final String owner;
+            final LockMode mode;
+            final long leaseNanos;
+            final boolean autoRenew;
+            final CompletableFuture<LockLease> future;
+            TimerWheel.Timeout timeout;
+            
+            Waiter(String owner, LockMode mode, long leaseNanos, boolean autoRenew, CompletableFuture<LockLease> future) {
+                this.owner = owner;
+                this.mode = mode;
+                this.leaseNanos = leaseNanos;
+                this.autoRenew = autoRenew;
+                this.future = future;
+            }
+        }
+        
+        private static class Grant {
+            final CompletableFuture<LockLease> future;
+            final LockLease lease;
+            
+            Grant(CompletableFuture<LockLease> future, LockLease lease) {
+                this.future = future;
+                this.lease = lease;
             }
         }
     }
     
     /**
      * Represents a distributed cache
+     * Entries live in a ConcurrentHashMap so reads take no lock. Capacity is split across segments,
+     * each running W-TinyLFU: new entries enter a small LRU window, and an entry leaving the window
+     * only displaces the main region's LRU victim if a count-min sketch says it is used more often.
+     * Reads are recorded in a lossy per-segment buffer and replayed into the policy under the
+     * segment lock, which readers only ever try. Entries with a TTL are removed by a timer wheel,
+     * so expiry is accurate to one wheel tick. In near-cache mode misses are loaded from a backing
+     * source and every local write sends an invalidation for the key to the peers.
      */
     public static class DistributedCache<K, V> {
+        private static final byte WINDOW = 0;
+        private static final byte PROBATION = 1;
+        private static final byte PROTECTED = 2;
+        private static final byte REMOVED = -1;
+        private static final int READ_BUFFER_SIZE = 16;
+        private static final int READ_DRAIN_INTERVAL = 8;
+        private static final int MIN_SEGMENT_CAPACITY = 64;
+        
         private final String nodeId;
         private final List<String> clusterNodes;
-        private final Map<K, CacheEntry<V>> localCache;
+        private final ConcurrentHashMap<K, CacheEntry<K, V>> localCache;
+        private final Segment[] segments;
         private final int maxSize;
-        private final Lock cacheLock;
-        
-        private static class CacheEntry<V> {
-            V value;
-            long timestamp;
-            long ttl;
+        private final TimerWheel expiryTimer;
+        private final AtomicLong writeGeneration;
+        private final LongAdder hits;
+        private final LongAdder misses;
+        private final LongAdder evictions;
+        private final LongAdder invalidationsReceived;
+        private volatile ConsensusAlgorithm.Transport transport;
+        private volatile Function<? super K, ? extends V> loader;
+        private volatile long loadedTtlNanos;
+        
+        private static class CacheEntry<K, V> {
+            final K key;
+            final V value;
+            final int hash;
+            // Guarded by the segment lock
+            CacheEntry<K, V> prev;
+            CacheEntry<K, V> next;
+            byte queue;
+            TimerWheel.Timeout expiry;
             
-            CacheEntry(V value, long ttl) {
+            CacheEntry(K key, V value, int hash) {
+                this.key = key;
                 this.value = value;
-                this.timestamp = System.currentTimeMillis();
-                this.ttl = ttl;
-            }
-            
-            boolean isExpired() {
-                return System.currentTimeMillis() - timestamp > ttl;
+                this.hash = hash;
             }
         }
         
         public DistributedCache(String nodeId, List<String> clusterNodes, int maxSize) {
             this.nodeId = nodeId;
             this.clusterNodes = new ArrayList<>(clusterNodes);
-            this.localCache = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
-                @Override
-                protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
-                    return size() > maxSize;
-                }
-            };
-            this.maxSize = maxSize;
-            this.cacheLock = new ReentrantLock();
+            this.maxSize = Math.max(1, maxSize);
+            this.localCache = new ConcurrentHashMap<>();
+            
+            // Segments must stay large enough for frequency-based admission to be meaningful
+            int segmentCount = 1;
+            while (segmentCount < 16 && this.maxSize / (segmentCount * 2) >= MIN_SEGMENT_CAPACITY) {
+                segmentCount <<= 1;
+            }
+            this.segments = newSegmentArray(segmentCount);
+            for (int i = 0; i < segmentCount; i++) {
+                int capacity = this.maxSize / segmentCount + (i < this.maxSize % segmentCount ? 1 : 0);
+                segments[i] = new Segment(capacity);
+            }
+            
+            this.expiryTimer = new TimerWheel(10, TimeUnit.MILLISECONDS, null, "cache-expiry-" + nodeId);
+            this.writeGeneration = new AtomicLong();
+            this.hits = new LongAdder();
+            this.misses = new LongAdder();
+            this.evictions = new LongAdder();
+            this.invalidationsReceived = new LongAdder();
+            this.loadedTtlNanos = TimeUnit.SECONDS.toNanos(60);
+        }
+        
+        /**
+         * Turns this cache into a near cache: misses are loaded from the backing source, and local
+         * writes send invalidations to the caches of the other cluster nodes over the transport
+         * @param ttl how long loaded values are kept
+         */
+        public void enableNearCache(ConsensusAlgorithm.Transport transport, Function<? super K, ? extends V> loader,
+                                    long ttl, TimeUnit unit) {
+            this.loader = loader;
+            this.loadedTtlNanos = unit.toNanos(ttl);
+            this.transport = transport;
+            transport.register(address(nodeId), this::receiveInvalidation);
         }
         
         /**
-         * Puts a value in the cache
+         * Puts a value in the cache; a non-positive TTL keeps it until it is evicted or removed
          */
         public void put(K key, V value, long ttl, TimeUnit unit) {
-            cacheLock.lock();
-            try {
-                localCache.put(key, new CacheEntry<>(value, unit.toMillis(ttl)));
-                System.out.println(nodeId + " cached key " + key);
-            } finally {
-                cacheLock.unlock();
-            }
+            putLocal(key, value, unit.toNanos(ttl), -1);
+            broadcastInvalidation(key);
         }
         
         /**
          * Gets a value from the cache
          */
         public V get(K key) {
-            cacheLock.lock();
+            CacheEntry<K, V> entry = localCache.get(key);
+            if (entry != null) {
+                hits.increment();
+                segmentFor(entry.hash).recordRead(entry);
+                return entry.value;
+            }
+            
+            misses.increment();
+            // Key not found locally, try other nodes
+            return loadMissing(key);
+        }
+        
+        /**
+         * Loads a missing value from the near cache's backing source
+         */
+        private V loadMissing(K key) {
+            Function<? super K, ? extends V> source = loader;
+            if (source == null) {
+                return null;
+            }
+            
+            long generation = writeGeneration.get();
+            V value = source.apply(key);
+            if (value != null) {
+                putLocal(key, value, loadedTtlNanos, generation);
+            }
+            return value;
+        }
+        
+        /**
+         * Removes a value from the cache
+         */
+        public void remove(K key) {
+            removeLocal(key);
+            broadcastInvalidation(key);
+        }
+        
+        /**
+         * Clears the cache
+         */
+        public void clear() {
+            clearLocal();
+            broadcastInvalidation(null);
+        }
+        
+        /**
+         * Gets the cache size
+         */
+        public int size() {
+            return localCache.size();
+        }
+        
+        /**
+         * Gets the maximum number of entries
+         */
+        public int getMaxSize() {
+            return maxSize;
+        }
+        
+        public long getHitCount() {
+            return hits.sum();
+        }
+        
+        public long getMissCount() {
+            return misses.sum();
+        }
+        
+        /**
+         * Gets the fraction of lookups served from this node
+         */
+        public double getHitRate() {
+            long hitCount = hits.sum();
+            long total = hitCount + misses.sum();
+            return total == 0 ? 0 : (double) hitCount / total;
+        }
+        
+        public long getEvictionCount() {
+            return evictions.sum();
+        }
+        
+        public long getInvalidationsReceived() {
+            return invalidationsReceived.sum();
+        }
+        
+        /**
+         * Shuts down the cache's expiry timer and stops receiving invalidations
+         */
+        public void shutdown() {
+            ConsensusAlgorithm.Transport current = transport;
+            if (current != null) {
+                current.unregister(address(nodeId));
+            }
+            expiryTimer.stop();
+        }
+        
+        /**
+         * Stores an entry; with a non-negative generation the store is skipped if a write or
+         * invalidation happened since then, which is checked under the lock such writes take
+         */
+        private void putLocal(K key, V value, long ttlNanos, long generation) {
+            CacheEntry<K, V> entry = new CacheEntry<>(key, value, spread(key.hashCode()));
+            Segment segment = segmentFor(entry.hash);
+            segment.lock.lock();
+            try {
+                if (generation >= 0 && writeGeneration.get() != generation) {
+                    return;
+                }
+                markWrite();
+                segment.drainReads();
+                CacheEntry<K, V> previous = localCache.put(key, entry);
+                if (previous != null) {
+                    segment.replace(previous, entry);
+                } else {
+                    segment.insert(entry);
+                }
+                if (ttlNanos > 0 && entry.queue != REMOVED) {
+                    entry.expiry = expiryTimer.newTimeout(() -> expire(entry), ttlNanos, TimeUnit.NANOSECONDS);
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        
+        private void removeLocal(K key) {
+            Segment segment = segmentFor(spread(key.hashCode()));
+            segment.lock.lock();
             try {
-                CacheEntry<V> entry = localCache.get(key);
+                markWrite();
+                CacheEntry<K, V> entry = localCache.remove(key);
                 if (entry != null) {
-                    if (entry.isExpired()) {
-                        localCache.remove(key);
-                        System.out.println(nodeId + " removed expired key " + key);
-                        return null;
+                    segment.unlink(entry);
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        
+        private void clearLocal() {
+            for (Segment segment : segments) {
+                segment.lock.lock();
+            }
+            try {
+                markWrite();
+                for (CacheEntry<K, V> entry : localCache.values()) {
+                    if (entry.expiry != null) {
+                        entry.expiry.cancel();
                     }
-                    return entry.value;
+                    entry.queue = REMOVED;
+                }
+                localCache.clear();
+                for (Segment segment : segments) {
+                    segment.reset();
                 }
-                
-                // Key not found locally, try other nodes
-                return fetchFromOtherNodes(key);
             } finally {
-                cacheLock.unlock();
+                for (Segment segment : segments) {
+                    segment.lock.unlock();
+                }
             }
         }
         
         /**
-         * Fetches a value from other nodes
+         * Invalidates loads in flight; only near caches load
          */
-        private V fetchFromOtherNodes(K key) {
+        private void markWrite() {
+            if (loader != null) {
+                writeGeneration.incrementAndGet();
+            }
+        }
+        
+        @SuppressWarnings("unchecked")
+        private Segment[] newSegmentArray(int length) {
+            return (Segment[]) new DistributedCache<?, ?>.Segment[length];
+        }
+        
+        private void expire(CacheEntry<K, V> entry) {
+            Segment segment = segmentFor(entry.hash);
+            segment.lock.lock();
+            try {
+                if (localCache.remove(entry.key, entry)) {
+                    segment.unlink(entry);
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        
+        private void broadcastInvalidation(K key) {
+            ConsensusAlgorithm.Transport current = transport;
+            if (current == null) {
+                return;
+            }
+            Invalidation message = new Invalidation(nodeId, key);
             for (String node : clusterNodes) {
                 if (!node.equals(nodeId)) {
-                    V value = fetchFromNode(node, key);
-                    if (value != null) {
-                        // Cache the value locally
-                        put(key, value, 60, TimeUnit.SECONDS); // Cache for 60 seconds
-                        return value;
-                    }
+                    current.send(address(nodeId), address(node), message);
                 }
             }
-            return null;
+        }
+        
+        @SuppressWarnings("unchecked")
+        private void receiveInvalidation(Object message) {
+            if (!(message instanceof Invalidation)) {
+                return;
+            }
+            invalidationsReceived.increment();
+            Invalidation invalidation = (Invalidation) message;
+            if (invalidation.key == null) {
+                clearLocal();
+            } else {
+                removeLocal((K) invalidation.key);
+            }
         }
         
         /**
-         * Fetches a value from a specific node
+         * Caches share a transport with other services, so they get their own address per node
          */
-        private V fetchFromNode(String node, K key) {
-            // send a network request to the node to fetch the key
-            System.out.println(nodeId + " fetching key " + key + " from node " + node);
-            return null; // Simulated response
+        private static String address(String node) {
+            return node + "/cache";
+        }
+        
+        private static int spread(int hashCode) {
+            int hash = hashCode * 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+        
+        private Segment segmentFor(int hash) {
+            return segments[(hash >>> 8) & (segments.length - 1)];
         }
         
         /**
-         * Removes a value from the cache
+         * Invalidates a key (or every key, if null) in a peer's near cache
          */
-        public void remove(K key) {
-            cacheLock.lock();
-            try {
-                localCache.remove(key);
-                System.out.println(nodeId + " removed key " + key);
-            } finally {
-                cacheLock.unlock();
+        static final class Invalidation implements Serializable {
+            private static final long serialVersionUID = 1L;
+            final String from;
+            final Object key;
+            
+            Invalidation(String from, Object key) {
+                this.from = from;
+                this.key = key;
             }
         }
         
         /**
-         * Clears the cache
+         * One W-TinyLFU policy over a share of the capacity
          */
-        public void clear() {
-            cacheLock.lock();
-            try {
-                localCache.clear();
-                System.out.println(nodeId + " cleared cache");
-            } finally {
-                cacheLock.unlock();
+        private final class Segment {
+            final ReentrantLock lock;
+            final AccessQueue<K, V> window;
+            final AccessQueue<K, V> probation;
+            final AccessQueue<K, V> protectedQueue;
+            final FrequencySketch sketch;
+            final int windowMax;
+            final int mainMax;
+            final int protectedMax;
+            final AtomicReferenceArray<CacheEntry<K, V>> readBuffer;
+            final AtomicLong reads;
+            long drainedReads;
+            
+            Segment(int capacity) {
+                this.lock = new ReentrantLock();
+                this.window = new AccessQueue<>();
+                this.probation = new AccessQueue<>();
+                this.protectedQueue = new AccessQueue<>();
+                this.sketch = new FrequencySketch(capacity);
+                this.windowMax = Math.max(1, capacity / 100);
+                this.mainMax = capacity - windowMax;
+                this.protectedMax = (int) (mainMax * 0.8);
+                this.readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+                this.reads = new AtomicLong();
+            }
+            
+            /**
+             * Buffers a read; a full buffer overwrites older reads, which only loses frequency samples
+             */
+            void recordRead(CacheEntry<K, V> entry) {
+                long count = reads.getAndIncrement();
+                readBuffer.lazySet((int) count & (READ_BUFFER_SIZE - 1), entry);
+                if ((count & (READ_DRAIN_INTERVAL - 1)) == READ_DRAIN_INTERVAL - 1 && lock.tryLock()) {
+                    try {
+                        drainReads();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+            
+            void drainReads() {
+                long count = reads.get();
+                long start = Math.max(drainedReads, count - READ_BUFFER_SIZE);
+                for (long sequence = start; sequence < count; sequence++) {
+                    CacheEntry<K, V> entry = readBuffer.getAndSet((int) sequence & (READ_BUFFER_SIZE - 1), null);
+                    if (entry != null) {
+                        onAccess(entry);
+                    }
+                }
+                drainedReads = count;
+            }
+            
+            void onAccess(CacheEntry<K, V> entry) {
+                sketch.increment(entry.hash);
+                switch (entry.queue) {
+                    case WINDOW:
+                        window.moveToBack(entry);
+                        break;
+                    case PROBATION:
+                        // A second hit promotes the entry; the protected overflow is demoted back
+                        probation.remove(entry);
+                        entry.queue = PROTECTED;
+                        protectedQueue.addLast(entry);
+                        while (protectedQueue.size > protectedMax) {
+                            CacheEntry<K, V> demoted = protectedQueue.head;
+                            protectedQueue.remove(demoted);
+                            demoted.queue = PROBATION;
+                            probation.addLast(demoted);
+                        }
+                        break;
+                    case PROTECTED:
+                        protectedQueue.moveToBack(entry);
+                        break;
+                    default:
+                        // Already removed
+                        break;
+                }
+            }
+            
+            void insert(CacheEntry<K, V> entry) {
+                sketch.increment(entry.hash);
+                entry.queue = WINDOW;
+                window.addLast(entry);
+                
+                while (window.size > windowMax) {
+                    CacheEntry<K, V> candidate = window.head;
+                    window.remove(candidate);
+                    if (probation.size + protectedQueue.size < mainMax) {
+                        candidate.queue = PROBATION;
+                        probation.addLast(candidate);
+                        continue;
+                    }
+                    
+                    // Admit the window's oldest entry only if it is used more often than the main victim
+                    CacheEntry<K, V> victim = probation.head != null ? probation.head : protectedQueue.head;
+                    if (victim != null && sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+                        evict(victim);
+                        candidate.queue = PROBATION;
+                        probation.addLast(candidate);
+                    } else {
+                        candidate.queue = REMOVED;
+                        evict(candidate);
+                    }
+                }
+            }
+            
+            /**
+             * Puts a new entry for the same key in the old entry's place
+             */
+            void replace(CacheEntry<K, V> previous, CacheEntry<K, V> entry) {
+                sketch.increment(entry.hash);
+                if (previous.expiry != null) {
+                    previous.expiry.cancel();
+                }
+                if (previous.queue == REMOVED) {
+                    insert(entry);
+                    return;
+                }
+                entry.queue = previous.queue;
+                queueOf(previous).replace(previous, entry);
+                previous.queue = REMOVED;
+            }
+            
+            void unlink(CacheEntry<K, V> entry) {
+                if (entry.expiry != null) {
+                    entry.expiry.cancel();
+                }
+                if (entry.queue != REMOVED) {
+                    queueOf(entry).remove(entry);
+                    entry.queue = REMOVED;
+                }
+            }
+            
+            private void evict(CacheEntry<K, V> entry) {
+                if (entry.queue != REMOVED) {
+                    queueOf(entry).remove(entry);
+                    entry.queue = REMOVED;
+                }
+                if (entry.expiry != null) {
+                    entry.expiry.cancel();
+                }
+                localCache.remove(entry.key, entry);
+                evictions.increment();
+            }
+            
+            private AccessQueue<K, V> queueOf(CacheEntry<K, V> entry) {
+                return entry.queue == WINDOW ? window : entry.queue == PROBATION ? probation : protectedQueue;
+            }
+            
+            void reset() {
+                window.clear();
+                probation.clear();
+                protectedQueue.clear();
+                for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                    readBuffer.set(i, null);
+                }
+                drainedReads = reads.get();
             }
         }
         
         /**
-         * Gets the cache size
+         * Intrusive doubly linked list in access order, head first
          */
-        public int size() {
-            cacheLock.lock();
-            try {
-                return localCache.size();
-            } finally {
-                cacheLock.unlock();
+        private static final class AccessQueue<K, V> {
+            CacheEntry<K, V> head;
+            CacheEntry<K, V> tail;
+            int size;
+            
+            void addLast(CacheEntry<K, V> entry) {
+                entry.prev = tail;
+                entry.next = null;
+                if (tail == null) {
+                    head = entry;
+                } else {
+                    tail.next = entry;
+                }
+                tail = entry;
+                size++;
+            }
+            
+            void remove(CacheEntry<K, V> entry) {
+                if (entry.prev == null) {
+                    head = entry.next;
+                } else {
+                    entry.prev.next = entry.next;
+                }
+                if (entry.next == null) {
+                    tail = entry.prev;
+                } else {
+                    entry.next.prev = entry.prev;
+                }
+                entry.prev = null;
+                entry.next = null;
+                size--;
+            }
+            
+            void moveToBack(CacheEntry<K, V> entry) {
+                if (tail != entry) {
+                    remove(entry);
+                    addLast(entry);
+                }
+            }
+            
+            void replace(CacheEntry<K, V> previous, CacheEntry<K, V> entry) {
+                entry.prev = previous.prev;
+                entry.next = previous.next;
+                if (entry.prev == null) {
+                    head = entry;
+                } else {
+                    entry.prev.next = entry;
+                }
+                if (entry.next == null) {
+                    tail = entry;
+                } else {
+                    entry.next.prev = entry;
+                }
+                previous.prev = null;
+                previous.next = null;
+            }
+            
+            void clear() {
+                head = null;
+                tail = null;
+                size = 0;
+            }
+        }
+        
+        /**
+         * Count-min sketch of 4-bit counters, four per 64-bit word; counters are halved
+         * periodically so that old popularity fades
+         */
+        private static final class FrequencySketch {
+            private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+            };
+            private static final long RESET_MASK = 0x7777777777777777L;
+            
+            private final long[] table;
+            private final int tableMask;
+            private final int sampleSize;
+            private int additions;
+            
+            FrequencySketch(int capacity) {
+                int size = 16;
+                while (size < capacity) {
+                    size <<= 1;
+                }
+                this.table = new long[size];
+                this.tableMask = size - 1;
+                this.sampleSize = 10 * size;
+            }
+            
+            int frequency(int hash) {
+                int frequency = 15;
+                for (int row = 0; row < 4; row++) {
+                    frequency = Math.min(frequency, (int) ((table[indexOf(hash, row)] >>> shiftOf(hash, row)) & 0xF));
+                }
+                return frequency;
+            }
+            
+            void increment(int hash) {
+                boolean added = false;
+                for (int row = 0; row < 4; row++) {
+                    int index = indexOf(hash, row);
+                    int shift = shiftOf(hash, row);
+                    if (((table[index] >>> shift) & 0xF) < 15) {
+                        table[index] += 1L << shift;
+                        added = true;
+                    }
+                }
+                if (added && ++additions >= sampleSize) {
+                    for (int i = 0; i < table.length; i++) {
+                        table[i] = (table[i] >>> 1) & RESET_MASK;
+                    }
+                    additions >>>= 1;
+                }
+            }
+            
+            private int indexOf(int hash, int row) {
+                long h = (hash + SEEDS[row]) * SEEDS[row];
+                h += h >>> 32;
+                return (int) h & tableMask;
+            }
+            
+            /**
+             * Each row uses its own quarter of the word, so rows never share a counter
+             */
+            private static int shiftOf(int hash, int row) {
+                return ((row << 2) + ((hash >>> (row << 3)) & 3)) << 2;
             }
         }
     }
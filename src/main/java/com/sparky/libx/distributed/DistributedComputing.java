@@ -1,26 +1,48 @@
 package com.sparky.libx.distributed;
 
+import com.sparky.libx.database.LatencyHistogram;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Distributed Computing Framework for Minecraft Plugins
@@ -43,6 +65,7 @@ public class DistributedComputing {
         private long createdAt;
         private long startedAt;
         private long completedAt;
+        volatile long enqueuedAtNanos;
         
         public enum TaskStatus {
             PENDING, RUNNING, COMPLETED, FAILED
@@ -117,17 +140,28 @@ public class DistributedComputing {
     
     /**
      * Represents a node in a distributed computing cluster
+     * Each of the node's worker threads takes tasks from the node's own queue and, once that is
+     * empty, steals a batch from the busiest end of another node's queue in the same cluster.
      */
     public static class ComputeNode {
+        private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+        private static final int STEAL_BATCH = 32;
+        
         private final String id;
         private final String address;
         private final int port;
         private final int coreCount;
         private final long memoryBytes;
-        private NodeStatus status;
-        private final List<DistributedTask<?, ?>> assignedTasks;
+        private volatile NodeStatus status;
+        private final Set<DistributedTask<?, ?>> assignedTasks;
+        private final Deque<DistributedTask<?, ?>> workQueue;
+        private final AtomicInteger queuedCount;
+        private final AtomicInteger runningCount;
+        private final Queue<Thread> idleWorkers;
         private final ExecutorService executorService;
-        private long lastHeartbeat;
+        private volatile ComputeCluster cluster;
+        private volatile boolean stopping;
+        private volatile long lastHeartbeat;
         
         public enum NodeStatus {
             ONLINE, OFFLINE, BUSY, MAINTENANCE
@@ -140,32 +174,203 @@ public class DistributedComputing {
             this.coreCount = coreCount;
             this.memoryBytes = memoryBytes;
             this.status = NodeStatus.ONLINE;
-            this.assignedTasks = new CopyOnWriteArrayList<>();
+            this.assignedTasks = ConcurrentHashMap.newKeySet();
+            this.workQueue = new ConcurrentLinkedDeque<>();
+            this.queuedCount = new AtomicInteger();
+            this.runningCount = new AtomicInteger();
+            this.idleWorkers = new ConcurrentLinkedQueue<>();
             this.executorService = Executors.newFixedThreadPool(coreCount);
             this.lastHeartbeat = System.currentTimeMillis();
+            
+            for (int i = 0; i < coreCount; i++) {
+                executorService.submit(this::runWorker);
+            }
         }
         
         public void submitTask(DistributedTask<?, ?> task) {
-            if (status == NodeStatus.ONLINE) {
+            enqueue(Collections.singletonList(task));
+        }
+        
+        /**
+         * Queues tasks on this node and wakes enough workers to run them
+         * @return false if the node does not accept work
+         */
+        boolean enqueue(List<? extends DistributedTask<?, ?>> tasks) {
+            if (stopping || (status != NodeStatus.ONLINE && status != NodeStatus.BUSY)) {
+                return false;
+            }
+            
+            long now = System.nanoTime();
+            for (DistributedTask<?, ?> task : tasks) {
+                if (task.enqueuedAtNanos == 0) {
+                    task.enqueuedAtNanos = now;
+                }
                 assignedTasks.add(task);
                 task.setAssignedNode(id);
-                
-                executorService.submit(() -> {
-                    try {
-                        task.execute();
-                    } catch (Exception e) {
-                        System.err.println("Task execution failed on node " + id + ": " + e.getMessage());
-                    } finally {
-                        assignedTasks.remove(task);
-                        updateStatus();
+                workQueue.offerLast(task);
+            }
+            queuedCount.addAndGet(tasks.size());
+            updateStatus();
+            
+            int unwoken = wakeWorkers(tasks.size());
+            ComputeCluster owner = cluster;
+            if (unwoken > 0 && owner != null) {
+                // Every local worker is busy, so let idle workers elsewhere steal the surplus
+                owner.wakeThieves(this, unwoken);
+            }
+            return true;
+        }
+        
+        /**
+         * Unparks up to count idle workers
+         * @return how many of the requested wakeups found no idle worker
+         */
+        int wakeWorkers(int count) {
+            while (count > 0) {
+                Thread worker = idleWorkers.poll();
+                if (worker == null) {
+                    break;
+                }
+                LockSupport.unpark(worker);
+                count--;
+            }
+            return count;
+        }
+        
+        private void runWorker() {
+            Thread self = Thread.currentThread();
+            while (true) {
+                DistributedTask<?, ?> task = poll();
+                if (task == null && !stopping) {
+                    task = steal();
+                }
+                if (task == null) {
+                    if (stopping) {
+                        break;
                     }
-                });
-                
+                    idleWorkers.add(self);
+                    // Recheck after registering, so a task queued in between is not left waiting
+                    if (queuedCount.get() == 0 && !stopping) {
+                        if (cluster != null) {
+                            // Thieves are woken on surplus; the timeout is only a fallback probe
+                            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                        } else {
+                            LockSupport.park(this);
+                        }
+                    }
+                    idleWorkers.remove(self);
+                    continue;
+                }
+                run(task);
+            }
+        }
+        
+        private void run(DistributedTask<?, ?> task) {
+            runningCount.incrementAndGet();
+            ComputeCluster owner = cluster;
+            if (owner != null) {
+                owner.recordQueueDelay(System.nanoTime() - task.enqueuedAtNanos);
+            }
+            
+            try {
+                task.execute();
+            } catch (Exception e) {
+                System.err.println("Task execution failed on node " + id + ": " + e.getMessage());
+            } finally {
+                assignedTasks.remove(task);
+                runningCount.decrementAndGet();
                 updateStatus();
             }
         }
         
+        private DistributedTask<?, ?> poll() {
+            DistributedTask<?, ?> task = workQueue.pollFirst();
+            if (task != null) {
+                queuedCount.decrementAndGet();
+            }
+            return task;
+        }
+        
+        /**
+         * Takes a batch from the node with the longest queue, starting the scan at a random
+         * node so thieves spread out
+         */
+        private DistributedTask<?, ?> steal() {
+            ComputeCluster owner = cluster;
+            if (owner == null || (status != NodeStatus.ONLINE && status != NodeStatus.BUSY)) {
+                return null;
+            }
+            
+            ComputeNode[] peers = owner.nodeSnapshot;
+            ComputeNode victim = null;
+            int longest = 0;
+            int start = peers.length > 0 ? ThreadLocalRandom.current().nextInt(peers.length) : 0;
+            for (int i = 0; i < peers.length; i++) {
+                ComputeNode peer = peers[(start + i) % peers.length];
+                int queued = peer.queuedCount.get();
+                if (peer != this && queued > longest) {
+                    victim = peer;
+                    longest = queued;
+                }
+            }
+            if (victim == null) {
+                return null;
+            }
+            
+            List<DistributedTask<?, ?>> stolen = victim.takeForSteal(Math.max(1, Math.min(longest / 2, STEAL_BATCH)));
+            if (stolen.isEmpty()) {
+                return null;
+            }
+            
+            // The tail holds the newest tasks, so run the oldest stolen one first and queue the rest
+            Collections.reverse(stolen);
+            for (DistributedTask<?, ?> task : stolen) {
+                assignedTasks.add(task);
+                task.setAssignedNode(id);
+            }
+            for (int i = 1; i < stolen.size(); i++) {
+                workQueue.offerLast(stolen.get(i));
+            }
+            queuedCount.addAndGet(stolen.size() - 1);
+            updateStatus();
+            return stolen.get(0);
+        }
+        
+        private List<DistributedTask<?, ?>> takeForSteal(int max) {
+            List<DistributedTask<?, ?>> taken = new ArrayList<>(max);
+            while (taken.size() < max) {
+                DistributedTask<?, ?> task = workQueue.pollLast();
+                if (task == null) {
+                    break;
+                }
+                queuedCount.decrementAndGet();
+                assignedTasks.remove(task);
+                taken.add(task);
+            }
+            if (!taken.isEmpty()) {
+                updateStatus();
+            }
+            return taken;
+        }
+        
+        /**
+         * Removes and returns every task still waiting in this node's queue
+         */
+        List<DistributedTask<?, ?>> drainQueued() {
+            List<DistributedTask<?, ?>> drained = new ArrayList<>();
+            DistributedTask<?, ?> task;
+            while ((task = poll()) != null) {
+                assignedTasks.remove(task);
+                drained.add(task);
+            }
+            return drained;
+        }
+        
         public void updateStatus() {
+            NodeStatus current = status;
+            if (current != NodeStatus.ONLINE && current != NodeStatus.BUSY) {
+                return;
+            }
             if (assignedTasks.size() >= coreCount) {
                 status = NodeStatus.BUSY;
             } else if (assignedTasks.isEmpty()) {
@@ -182,8 +387,7 @@ public class DistributedComputing {
         }
         
         public void shutdown() {
-            status = NodeStatus.OFFLINE;
-            executorService.shutdown();
+            stop();
             try {
                 if (!executorService.awaitTermination(60, TimeUnit.SECONDS)) {
                     executorService.shutdownNow();
@@ -194,6 +398,16 @@ public class DistributedComputing {
             }
         }
         
+        /**
+         * Stops accepting work and lets the workers exit once their current task ends, without waiting for them
+         */
+        void stop() {
+            status = NodeStatus.OFFLINE;
+            stopping = true;
+            wakeWorkers(coreCount);
+            executorService.shutdown();
+        }
+        
         public String getId() {
             return id;
         }
@@ -230,6 +444,27 @@ public class DistributedComputing {
             return coreCount - assignedTasks.size();
         }
         
+        /**
+         * Gets the number of tasks waiting in this node's queue
+         */
+        public int getQueuedTaskCount() {
+            return queuedCount.get();
+        }
+        
+        /**
+         * Gets the number of tasks currently executing
+         */
+        public int getRunningTaskCount() {
+            return runningCount.get();
+        }
+        
+        /**
+         * Gets queued and running tasks per core
+         */
+        public double getLoad() {
+            return (double) (queuedCount.get() + runningCount.get()) / Math.max(1, coreCount);
+        }
+        
         public long getLastHeartbeat() {
             return lastHeartbeat;
         }
@@ -237,33 +472,48 @@ public class DistributedComputing {
     
     /**
      * Represents a distributed computing cluster
+     * Submitted tasks are placed immediately on the node with the lowest load per core; tasks
+     * submitted together are placed in batches, and idle nodes steal from busy ones. Tasks wait in
+     * the cluster queue only while it is stopped or no node accepts work.
      */
     public static class ComputeCluster {
         private final String clusterId;
         private final Map<String, ComputeNode> nodes;
         private final Queue<DistributedTask<?, ?>> taskQueue;
         private final ScheduledExecutorService scheduler;
-        private boolean running;
+        private final LatencyHistogram queueDelay;
+        private final int batchSize;
+        private volatile ComputeNode[] nodeSnapshot;
+        private volatile boolean running;
         
         public ComputeCluster(String clusterId) {
+            this(clusterId, 64);
+        }
+        
+        /**
+         * @param batchSize tasks submitted together are placed on a node this many at a time
+         */
+        public ComputeCluster(String clusterId, int batchSize) {
             this.clusterId = clusterId;
             this.nodes = new ConcurrentHashMap<>();
             this.taskQueue = new ConcurrentLinkedQueue<>();
-            this.scheduler = Executors.newScheduledThreadPool(2);
+            this.scheduler = Executors.newScheduledThreadPool(1);
+            this.queueDelay = new LatencyHistogram();
+            this.batchSize = Math.max(1, batchSize);
+            this.nodeSnapshot = new ComputeNode[0];
             this.running = false;
         }
         
-        public void start() {
+        public synchronized void start() {
             if (!running) {
                 running = true;
-                // Start task scheduler
-                scheduler.scheduleAtFixedRate(this::scheduleTasks, 0, 1, TimeUnit.SECONDS);
                 // Start node health checker
                 scheduler.scheduleAtFixedRate(this::checkNodeHealth, 0, 5, TimeUnit.SECONDS);
+                dispatchPending();
             }
         }
         
-        public void stop() {
+        public synchronized void stop() {
             if (running) {
                 running = false;
                 scheduler.shutdown();
@@ -285,51 +535,121 @@ public class DistributedComputing {
         
         public ComputeNode addNode(String id, String address, int port, int coreCount, long memoryBytes) {
             ComputeNode node = new ComputeNode(id, address, port, coreCount, memoryBytes);
+            node.cluster = this;
             nodes.put(id, node);
+            refreshSnapshot();
+            dispatchPending();
             return node;
         }
         
         public void removeNode(String nodeId) {
             ComputeNode node = nodes.remove(nodeId);
             if (node != null) {
+                refreshSnapshot();
                 node.shutdown();
             }
         }
         
         public <T, R> void submitTask(DistributedTask<T, R> task) {
-            taskQueue.offer(task);
+            task.enqueuedAtNanos = System.nanoTime();
+            if (!running || !place(Collections.singletonList(task))) {
+                taskQueue.offer(task);
+            }
+        }
+        
+        /**
+         * Submits many tasks at once; tiny tasks are cheaper to place and wake for in batches
+         */
+        public void submitTasks(Collection<? extends DistributedTask<?, ?>> tasks) {
+            long now = System.nanoTime();
+            List<DistributedTask<?, ?>> batch = new ArrayList<>(Math.min(batchSize, tasks.size()));
+            for (DistributedTask<?, ?> task : tasks) {
+                task.enqueuedAtNanos = now;
+                batch.add(task);
+                if (batch.size() == batchSize) {
+                    submitBatch(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                submitBatch(batch);
+            }
         }
         
-        private void scheduleTasks() {
+        private void submitBatch(List<DistributedTask<?, ?>> batch) {
+            if (!running || !place(batch)) {
+                taskQueue.addAll(batch);
+            }
+        }
+        
+        private boolean place(List<? extends DistributedTask<?, ?>> tasks) {
+            ComputeNode node = findBestNode();
+            return node != null && node.enqueue(tasks);
+        }
+        
+        /**
+         * Moves tasks waiting in the cluster queue onto nodes
+         */
+        private void dispatchPending() {
             if (!running) return;
             
-            // Distribute tasks to available nodes
-            while (!taskQueue.isEmpty()) {
-                DistributedTask<?, ?> task = taskQueue.peek();
-                ComputeNode node = findBestNode();
-                
-                if (node != null && node.getAvailableSlots() > 0) {
-                    taskQueue.poll(); // Remove from queue
-                    node.submitTask(task);
-                } else {
-                    // No available nodes, break to avoid infinite loop
+            DistributedTask<?, ?> task;
+            while ((task = taskQueue.poll()) != null) {
+                if (!place(Collections.singletonList(task))) {
+                    // No node accepts work: keep the task for the next node or restart
+                    taskQueue.offer(task);
                     break;
                 }
             }
         }
         
+        /**
+         * Finds the accepting node with the fewest queued and running tasks per core
+         */
         private ComputeNode findBestNode() {
-            return nodes.values().stream()
-                .filter(node -> node.getStatus() == ComputeNode.NodeStatus.ONLINE && node.getAvailableSlots() > 0)
-                .max(Comparator.comparingInt(ComputeNode::getAvailableSlots))
-                .orElse(null);
+            ComputeNode best = null;
+            double bestLoad = Double.MAX_VALUE;
+            for (ComputeNode node : nodeSnapshot) {
+                ComputeNode.NodeStatus status = node.getStatus();
+                if (status != ComputeNode.NodeStatus.ONLINE && status != ComputeNode.NodeStatus.BUSY) {
+                    continue;
+                }
+                double load = (node.queuedCount.get() + node.runningCount.get() + 1.0) / Math.max(1, node.getCoreCount());
+                if (load < bestLoad) {
+                    best = node;
+                    bestLoad = load;
+                }
+            }
+            return best;
+        }
+        
+        /**
+         * Wakes idle workers on other nodes so they can steal from a node with surplus work
+         */
+        void wakeThieves(ComputeNode source, int count) {
+            for (ComputeNode node : nodeSnapshot) {
+                if (count <= 0) {
+                    return;
+                }
+                if (node != source) {
+                    count = node.wakeWorkers(count);
+                }
+            }
+        }
+        
+        void recordQueueDelay(long nanos) {
+            queueDelay.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+        
+        private void refreshSnapshot() {
+            nodeSnapshot = nodes.values().toArray(new ComputeNode[0]);
         }
         
         private void checkNodeHealth() {
             if (!running) return;
             
-            long currentTime = System.currentTimeMillis();
             Iterator<Map.Entry<String, ComputeNode>> iterator = nodes.entrySet().iterator();
+            boolean removed = false;
             
             while (iterator.hasNext()) {
                 Map.Entry<String, ComputeNode> entry = iterator.next();
@@ -338,13 +658,19 @@ public class DistributedComputing {
                 // Check if node is still alive
                 if (!node.isAlive()) {
                     System.out.println("Node " + node.getId() + " is offline due to missed heartbeat");
-                    // Move tasks back to queue
-                    for (DistributedTask<?, ?> task : node.getAssignedTasks()) {
-                        taskQueue.offer(task);
-                    }
+                    // Stop the node first so nothing new lands on it, then move its waiting tasks back;
+                    // tasks already running there finish where they are rather than running twice
+                    node.stop();
+                    taskQueue.addAll(node.drainQueued());
                     iterator.remove();
+                    removed = true;
                 }
             }
+            
+            if (removed) {
+                refreshSnapshot();
+                dispatchPending();
+            }
         }
         
         public Collection<ComputeNode> getNodes() {
@@ -355,8 +681,36 @@ public class DistributedComputing {
             return nodes.get(id);
         }
         
+        /**
+         * Gets the number of tasks waiting, in the cluster queue or in node queues
+         */
         public int getTaskQueueSize() {
-            return taskQueue.size();
+            int queued = taskQueue.size();
+            for (ComputeNode node : nodeSnapshot) {
+                queued += node.getQueuedTaskCount();
+            }
+            return queued;
+        }
+        
+        /**
+         * Gets a percentile of the time tasks waited between submission and start, in microseconds
+         */
+        public long getQueueDelayPercentile(double percentile) {
+            return queueDelay.getValueAtPercentile(percentile);
+        }
+        
+        /**
+         * Gets the mean time tasks waited between submission and start, in microseconds
+         */
+        public double getMeanQueueDelay() {
+            return queueDelay.getMean();
+        }
+        
+        /**
+         * Clears the queueing delay statistics
+         */
+        public void resetQueueDelayStatistics() {
+            queueDelay.reset();
         }
         
         public String getClusterId() {
@@ -370,8 +724,14 @@ public class DistributedComputing {
     
     /**
      * Represents a map-reduce framework for distributed data processing
+     * Map tasks run on a shared ForkJoinPool and buffer their output per hash partition, merging
+     * values of the same key with an optional combiner. When a task buffers more than the spill
+     * threshold, each partition is sorted by key hash and written to a spill file. Partitions are
+     * reduced in parallel; partitions with spill files are reduced through an external k-way merge,
+     * so only one key's values are held at a time.
      */
     public static class MapReduceFramework {
+        
         public static class KeyValuePair<K, V> {
             private final K key;
             private final V value;
@@ -390,53 +750,339 @@ public class DistributedComputing {
             }
         }
         
+        /**
+         * Represents tuning options for a map-reduce job
+         */
+        public static class JobOptions {
+            private int partitionCount = Runtime.getRuntime().availableProcessors();
+            private int mapChunkSize = 1024;
+            private long spillThreshold = 500_000;
+            private int maxMergeFanIn = 64;
+            private File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+            // Off only for the legacy entry point, whose keys and values need not be Serializable
+            private boolean spillEnabled = true;
+            
+            /**
+             * Sets the number of hash partitions reduced in parallel
+             */
+            public JobOptions setPartitionCount(int partitionCount) {
+                this.partitionCount = Math.max(1, partitionCount);
+                return this;
+            }
+            
+            /**
+             * Sets the number of input items per map task
+             */
+            public JobOptions setMapChunkSize(int mapChunkSize) {
+                this.mapChunkSize = Math.max(1, mapChunkSize);
+                return this;
+            }
+            
+            /**
+             * Sets how many buffered values a map task holds before spilling to disk
+             */
+            public JobOptions setSpillThreshold(long spillThreshold) {
+                this.spillThreshold = Math.max(1, spillThreshold);
+                return this;
+            }
+            
+            /**
+             * Sets how many spill files are merged at once
+             */
+            public JobOptions setMaxMergeFanIn(int maxMergeFanIn) {
+                this.maxMergeFanIn = Math.max(2, maxMergeFanIn);
+                return this;
+            }
+            
+            /**
+             * Sets the directory for spill files
+             */
+            public JobOptions setSpillDirectory(File spillDirectory) {
+                this.spillDirectory = spillDirectory;
+                return this;
+            }
+        }
+        
+        /**
+         * Receives the grouped values of each key in one partition
+         */
+        private interface GroupSink<K, V, O> {
+            void accept(K key, List<V> values, List<O> output) throws IOException;
+            
+            default void finish(List<O> output) {
+            }
+        }
+        
         public static <T, K, V> List<KeyValuePair<K, V>> mapReduce(
                 List<T> inputData,
                 Function<T, List<KeyValuePair<K, V>>> mapFunction,
                 Function<Map<K, List<V>>, List<KeyValuePair<K, V>>> reduceFunction) {
             
-            // Map phase - distribute work across multiple threads
-            ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-            List<Future<List<KeyValuePair<K, V>>>> futures = new ArrayList<>();
+            // Map tasks run in parallel, but everything stays in memory and the reduce function
+            // is called once, on the calling thread, with the whole grouped data set
+            JobOptions options = new JobOptions().setPartitionCount(1);
+            options.spillEnabled = false;
+            List<KeyValuePair<K, List<V>>> groups = runJob(inputData.iterator(), mapFunction, null, options,
+                () -> (key, values, output) -> output.add(new KeyValuePair<>(key, values)));
             
-            // Split data into chunks for parallel processing
-            int chunkSize = Math.max(1, inputData.size() / Runtime.getRuntime().availableProcessors());
-            for (int i = 0; i < inputData.size(); i += chunkSize) {
-                int end = Math.min(i + chunkSize, inputData.size());
-                List<T> chunk = inputData.subList(i, end);
-                
-                Future<List<KeyValuePair<K, V>>> future = executor.submit(() -> {
-                    List<KeyValuePair<K, V>> results = new ArrayList<>();
-                    for (T item : chunk) {
-                        results.addAll(mapFunction.apply(item));
+            Map<K, List<V>> groupedData = new HashMap<>();
+            for (KeyValuePair<K, List<V>> group : groups) {
+                groupedData.put(group.getKey(), group.getValue());
+            }
+            return reduceFunction.apply(groupedData);
+        }
+        
+        /**
+         * Runs a job over a stream of input with a combiner and a per-key reducer
+         * @param combiner merges two values of the same key on the map side, or null
+         * @param reducer receives every value of one key, already combined if a combiner is given
+         */
+        public static <T, K, V, R> List<KeyValuePair<K, R>> mapReduce(
+                Iterator<T> input,
+                Function<T, List<KeyValuePair<K, V>>> mapFunction,
+                BinaryOperator<V> combiner,
+                BiFunction<K, List<V>, R> reducer,
+                JobOptions options) {
+            return runJob(input, mapFunction, combiner, options,
+                () -> (key, values, output) -> output.add(new KeyValuePair<>(key, reducer.apply(key, values))));
+        }
+        
+        /**
+         * Counts words in a stream of lines, spilling to disk when the vocabulary is large
+         */
+        public static List<KeyValuePair<String, Integer>> wordCount(Iterator<String> lines, JobOptions options) {
+            return mapReduce(lines, MapReduceFramework::wordCountMap, Integer::sum, (word, counts) -> {
+                int sum = 0;
+                for (int count : counts) {
+                    sum += count;
+                }
+                return sum;
+            }, options);
+        }
+        
+        private static <T, K, V, O> List<O> runJob(
+                Iterator<T> input,
+                Function<T, List<KeyValuePair<K, V>>> mapFunction,
+                BinaryOperator<V> combiner,
+                JobOptions options,
+                Supplier<GroupSink<K, V, O>> sinks) {
+            
+            ForkJoinPool pool = SharedPool.POOL;
+            int partitionCount = options.partitionCount;
+            List<MapOutput<K, V>> outputs = Collections.synchronizedList(new ArrayList<>());
+            List<ForkJoinTask<?>> mapTasks = new ArrayList<>();
+            // Bounds the input chunks read ahead of the map tasks
+            Semaphore inFlight = new Semaphore(pool.getParallelism() * 2);
+            AtomicLong retainedValues = new AtomicLong();
+            long retainedLimit = options.spillThreshold * pool.getParallelism();
+            
+            try {
+                // Map phase - distribute work across the shared pool
+                while (input.hasNext()) {
+                    List<T> chunk = new ArrayList<>(options.mapChunkSize);
+                    while (chunk.size() < options.mapChunkSize && input.hasNext()) {
+                        chunk.add(input.next());
                     }
-                    return results;
-                });
+                    
+                    inFlight.acquireUninterruptibly();
+                    mapTasks.add(pool.submit(() -> {
+                        MapOutput<K, V> output = new MapOutput<>(partitionCount, combiner, options);
+                        boolean collected = false;
+                        try {
+                            for (T item : chunk) {
+                                for (KeyValuePair<K, V> pair : mapFunction.apply(item)) {
+                                    output.add(pair.getKey(), pair.getValue());
+                                }
+                            }
+                            // Keep the task's output in memory only while the job stays under its budget
+                            if (options.spillEnabled) {
+                                if (output.hasSpilled()) {
+                                    output.spill();
+                                } else if (retainedValues.addAndGet(output.buffered) > retainedLimit) {
+                                    retainedValues.addAndGet(-output.buffered);
+                                    output.spill();
+                                }
+                            }
+                            outputs.add(output);
+                            collected = true;
+                            return null;
+                        } finally {
+                            if (!collected) {
+                                // The job's cleanup only sees collected outputs
+                                output.deleteSpills();
+                            }
+                            inFlight.release();
+                        }
+                    }));
+                }
+                awaitAll(mapTasks, "Map phase failed");
+                
+                // Reduce phase - one task per partition
+                List<ForkJoinTask<List<O>>> reduceTasks = new ArrayList<>();
+                for (int p = 0; p < partitionCount; p++) {
+                    int partition = p;
+                    reduceTasks.add(pool.submit(() -> reducePartition(partition, outputs, combiner, options, sinks.get())));
+                }
+                awaitAll(reduceTasks, "Reduce phase failed");
                 
-                futures.add(future);
+                List<O> results = new ArrayList<>();
+                for (ForkJoinTask<List<O>> task : reduceTasks) {
+                    results.addAll(task.join());
+                }
+                return results;
+            } finally {
+                // After a failure other map tasks may still be running and adding spill files
+                for (ForkJoinTask<?> task : mapTasks) {
+                    task.quietlyJoin();
+                }
+                for (MapOutput<K, V> output : outputs) {
+                    output.deleteSpills();
+                }
             }
-            
-            // Collect map results
-            List<KeyValuePair<K, V>> mappedResults = new ArrayList<>();
-            for (Future<List<KeyValuePair<K, V>>> future : futures) {
+        }
+        
+        private static void awaitAll(List<? extends ForkJoinTask<?>> tasks, String message) {
+            for (ForkJoinTask<?> task : tasks) {
                 try {
-                    mappedResults.addAll(future.get());
-                } catch (InterruptedException | ExecutionException e) {
+                    task.get();
+                } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
-                    throw new RuntimeException("Map phase failed", e);
+                    throw new RuntimeException(message, e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(message, e.getCause());
                 }
             }
+        }
+        
+        private static <K, V, O> List<O> reducePartition(int partition, List<MapOutput<K, V>> outputs,
+                                                         BinaryOperator<V> combiner, JobOptions options,
+                                                         GroupSink<K, V, O> sink) throws IOException {
+            List<O> results = new ArrayList<>();
+            List<File> spills = new ArrayList<>();
+            for (MapOutput<K, V> output : outputs) {
+                spills.addAll(output.spills.get(partition));
+            }
             
-            executor.shutdown();
-            
-            // Group by key
-            Map<K, List<V>> grouped = new HashMap<>();
-            for (KeyValuePair<K, V> pair : mappedResults) {
-                grouped.computeIfAbsent(pair.getKey(), k -> new ArrayList<>()).add(pair.getValue());
+            if (spills.isEmpty()) {
+                // Everything fits in memory: merge the task buffers directly
+                Map<K, List<V>> merged = new HashMap<>();
+                for (MapOutput<K, V> output : outputs) {
+                    for (Map.Entry<K, List<V>> entry : output.buffers[partition].entrySet()) {
+                        List<V> values = merged.get(entry.getKey());
+                        if (values == null) {
+                            merged.put(entry.getKey(), entry.getValue());
+                        } else {
+                            addValues(values, entry.getValue(), combiner);
+                        }
+                    }
+                }
+                for (Map.Entry<K, List<V>> entry : merged.entrySet()) {
+                    sink.accept(entry.getKey(), entry.getValue(), results);
+                }
+                sink.finish(results);
+                return results;
             }
             
-            // Reduce phase
-            return reduceFunction.apply(grouped);
+            // Reduce fan-in with intermediate merge passes so the final merge stays within the limit
+            List<File> temporary = new ArrayList<>();
+            try {
+                while (spills.size() > options.maxMergeFanIn) {
+                    List<File> group = new ArrayList<>(spills.subList(0, options.maxMergeFanIn));
+                    spills.subList(0, options.maxMergeFanIn).clear();
+                    
+                    List<RecordSource<K, V>> sources = new ArrayList<>();
+                    for (File file : group) {
+                        sources.add(new SpillReader<>(file));
+                    }
+                    File merged;
+                    try (SpillWriter<K, V> writer = new SpillWriter<>(options.spillDirectory)) {
+                        merge(sources, combiner, (key, values, ignored) -> {
+                            for (V value : values) {
+                                writer.write(key, value);
+                            }
+                        }, null);
+                        merged = writer.file;
+                    }
+                    temporary.add(merged);
+                    spills.add(merged);
+                }
+                
+                List<RecordSource<K, V>> sources = new ArrayList<>();
+                for (File file : spills) {
+                    sources.add(new SpillReader<>(file));
+                }
+                for (MapOutput<K, V> output : outputs) {
+                    if (!output.buffers[partition].isEmpty()) {
+                        sources.add(new BufferSource<>(output.buffers[partition]));
+                    }
+                }
+                merge(sources, combiner, sink, results);
+                sink.finish(results);
+                return results;
+            } finally {
+                for (File file : temporary) {
+                    file.delete();
+                }
+            }
+        }
+        
+        /**
+         * Merges sources sorted by key hash, grouping each run of equal hashes by key
+         */
+        private static <K, V, O> void merge(List<RecordSource<K, V>> sources, BinaryOperator<V> combiner,
+                                            GroupSink<K, V, O> sink, List<O> output) throws IOException {
+            PriorityQueue<RecordSource<K, V>> heap = new PriorityQueue<>(Math.max(1, sources.size()),
+                (a, b) -> Integer.compare(a.hash, b.hash));
+            try {
+                for (RecordSource<K, V> source : sources) {
+                    if (source.advance()) {
+                        heap.add(source);
+                    }
+                }
+                
+                Map<K, List<V>> run = new HashMap<>();
+                while (!heap.isEmpty()) {
+                    int hash = heap.peek().hash;
+                    while (!heap.isEmpty() && heap.peek().hash == hash) {
+                        RecordSource<K, V> source = heap.poll();
+                        List<V> values = run.computeIfAbsent(source.key, k -> new ArrayList<>(1));
+                        addValue(values, source.value, combiner);
+                        if (source.advance()) {
+                            heap.add(source);
+                        }
+                    }
+                    for (Map.Entry<K, List<V>> entry : run.entrySet()) {
+                        sink.accept(entry.getKey(), entry.getValue(), output);
+                    }
+                    run.clear();
+                }
+            } finally {
+                for (RecordSource<K, V> source : sources) {
+                    source.close();
+                }
+            }
+        }
+        
+        private static <V> void addValue(List<V> values, V value, BinaryOperator<V> combiner) {
+            if (combiner != null && !values.isEmpty()) {
+                values.set(0, combiner.apply(values.get(0), value));
+            } else {
+                values.add(value);
+            }
+        }
+        
+        private static <V> void addValues(List<V> values, List<V> more, BinaryOperator<V> combiner) {
+            for (V value : more) {
+                addValue(values, value, combiner);
+            }
+        }
+        
+        /**
+         * Spreads hash codes so partitions and merge order do not depend on low bits only
+         */
+        private static int hash(Object key) {
+            int h = key != null ? key.hashCode() : 0;
+            return h ^ (h >>> 16);
         }
         
         /**
@@ -471,6 +1117,192 @@ public class DistributedComputing {
             
             return results;
         }
+        
+        /**
+         * Pool shared by all jobs, created on first use
+         */
+        private static class SharedPool {
+            static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        
+        /**
+         * Output of one map task: a buffer per partition and the spill files written so far
+         */
+        private static class MapOutput<K, V> {
+            private final Map<K, List<V>>[] buffers;
+            private final List<List<File>> spills;
+            private final BinaryOperator<V> combiner;
+            private final JobOptions options;
+            private long buffered;
+            
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            MapOutput(int partitionCount, BinaryOperator<V> combiner, JobOptions options) {
+                this.buffers = new Map[partitionCount];
+                this.spills = new ArrayList<>(partitionCount);
+                for (int i = 0; i < partitionCount; i++) {
+                    buffers[i] = new HashMap<>();
+                    spills.add(new ArrayList<>());
+                }
+                this.combiner = combiner;
+                this.options = options;
+            }
+            
+            void add(K key, V value) throws IOException {
+                List<V> values = buffers[Math.floorMod(hash(key), buffers.length)]
+                    .computeIfAbsent(key, k -> new ArrayList<>(1));
+                int before = values.size();
+                addValue(values, value, combiner);
+                buffered += values.size() - before;
+                if (buffered >= options.spillThreshold && options.spillEnabled) {
+                    spill();
+                }
+            }
+            
+            boolean hasSpilled() {
+                for (List<File> files : spills) {
+                    if (!files.isEmpty()) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            
+            /**
+             * Writes every non-empty partition buffer to its own file, sorted by key hash
+             */
+            void spill() throws IOException {
+                for (int p = 0; p < buffers.length; p++) {
+                    if (buffers[p].isEmpty()) {
+                        continue;
+                    }
+                    
+                    List<Map.Entry<K, List<V>>> entries = new ArrayList<>(buffers[p].entrySet());
+                    entries.sort((a, b) -> Integer.compare(hash(a.getKey()), hash(b.getKey())));
+                    try (SpillWriter<K, V> writer = new SpillWriter<>(options.spillDirectory)) {
+                        spills.get(p).add(writer.file);
+                        for (Map.Entry<K, List<V>> entry : entries) {
+                            for (V value : entry.getValue()) {
+                                writer.write(entry.getKey(), value);
+                            }
+                        }
+                    }
+                    buffers[p] = new HashMap<>();
+                }
+                buffered = 0;
+            }
+            
+            void deleteSpills() {
+                for (List<File> files : spills) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+        
+        /**
+         * A sorted stream of records with the current record exposed in fields
+         */
+        private abstract static class RecordSource<K, V> {
+            int hash;
+            K key;
+            V value;
+            
+            abstract boolean advance() throws IOException;
+            
+            void close() throws IOException {
+            }
+        }
+        
+        private static class BufferSource<K, V> extends RecordSource<K, V> {
+            private final Iterator<Map.Entry<K, List<V>>> entries;
+            private Iterator<V> values;
+            
+            BufferSource(Map<K, List<V>> buffer) {
+                List<Map.Entry<K, List<V>>> sorted = new ArrayList<>(buffer.entrySet());
+                sorted.sort((a, b) -> Integer.compare(hash(a.getKey()), hash(b.getKey())));
+                this.entries = sorted.iterator();
+                this.values = Collections.emptyIterator();
+            }
+            
+            @Override
+            boolean advance() {
+                while (!values.hasNext()) {
+                    if (!entries.hasNext()) {
+                        return false;
+                    }
+                    Map.Entry<K, List<V>> entry = entries.next();
+                    key = entry.getKey();
+                    hash = hash(key);
+                    values = entry.getValue().iterator();
+                }
+                value = values.next();
+                return true;
+            }
+        }
+        
+        private static class SpillReader<K, V> extends RecordSource<K, V> {
+            private final ObjectInputStream input;
+            
+            SpillReader(File file) throws IOException {
+                this.input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            }
+            
+            @Override
+            @SuppressWarnings("unchecked")
+            boolean advance() throws IOException {
+                if (!input.readBoolean()) {
+                    return false;
+                }
+                try {
+                    hash = input.readInt();
+                    key = (K) input.readObject();
+                    value = (V) input.readObject();
+                    return true;
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Corrupt spill file", e);
+                }
+            }
+            
+            @Override
+            void close() throws IOException {
+                input.close();
+            }
+        }
+        
+        /**
+         * Writes records as [true, hash, key, value] and a final false; keys and values must be Serializable
+         */
+        private static class SpillWriter<K, V> implements AutoCloseable {
+            private static final int RESET_INTERVAL = 1024;
+            
+            private final File file;
+            private final ObjectOutputStream output;
+            private int sinceReset;
+            
+            SpillWriter(File directory) throws IOException {
+                this.file = File.createTempFile("mapreduce-", ".spill", directory);
+                this.output = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            }
+            
+            void write(K key, V value) throws IOException {
+                output.writeBoolean(true);
+                output.writeInt(hash(key));
+                output.writeObject(key);
+                output.writeObject(value);
+                // Drop back-references periodically so the stream does not retain every object written
+                if (++sinceReset >= RESET_INTERVAL) {
+                    output.reset();
+                    sinceReset = 0;
+                }
+            }
+            
+            @Override
+            public void close() throws IOException {
+                output.writeBoolean(false);
+                output.close();
+            }
+        }
     }
     
     /**
@@ -5,11 +5,19 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.*;
+import java.util.function.Function;
+import java.lang.reflect.Method;
 import java.nio.*;
 import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
+import java.time.Duration;
 import javax.net.ssl.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
@@ -25,22 +33,105 @@ public class AdvancedNetworking {
     
     /**
      * Represents a TCP server
+     * BLOCKING and VIRTUAL_THREADS modes speak newline-delimited text with a thread per client;
+     * SELECTOR mode multiplexes all clients over a few selector threads and speaks length-prefixed
+     * frames (4-byte big-endian length followed by a UTF-8 payload).
      */
     public static class TCPServer {
+        
+        /**
+         * Server I/O model
+         */
+        public enum Mode {
+            BLOCKING,
+            SELECTOR,
+            VIRTUAL_THREADS
+        }
+        
+        private static final int FRAME_HEADER_SIZE = 4;
+        private static final int MAX_GATHER = 16;
+        
         private final int port;
+        private final Mode mode;
         private final ServerSocket serverSocket;
+        private final ServerSocketChannel serverChannel;
         private final ExecutorService threadPool;
-        private final List<ClientHandler> clients;
-        private final Lock clientsLock;
+        private final Set<ClientHandler> clients;
+        private final Set<FrameConnection> frameClients;
+        private final BufferPool bufferPool;
+        private final SelectorLoop[] selectorLoops;
+        private final AtomicInteger nextLoop;
+        private volatile Function<String, String> messageHandler;
         private volatile boolean running;
         
         public TCPServer(int port) throws IOException {
+            this(port, Mode.BLOCKING);
+        }
+        
+        public TCPServer(int port, Mode mode) throws IOException {
+            this(port, mode, Runtime.getRuntime().availableProcessors(), new BufferPool(64 * 1024, 1024));
+        }
+        
+        public TCPServer(int port, Mode mode, int selectorThreads, BufferPool bufferPool) throws IOException {
             this.port = port;
-            this.serverSocket = new ServerSocket(port);
-            this.threadPool = Executors.newCachedThreadPool();
-            this.clients = new ArrayList<>();
-            this.clientsLock = new ReentrantLock();
+            this.mode = mode;
+            this.clients = ConcurrentHashMap.newKeySet();
+            this.frameClients = ConcurrentHashMap.newKeySet();
+            this.bufferPool = bufferPool;
+            this.nextLoop = new AtomicInteger();
+            this.messageHandler = message -> {
+                System.out.println("Received from client: " + message);
+                // Echo the message back to the client
+                return "Echo: " + message;
+            };
             this.running = false;
+            
+            if (mode == Mode.SELECTOR) {
+                this.serverSocket = null;
+                this.serverChannel = ServerSocketChannel.open();
+                this.serverChannel.bind(new InetSocketAddress(port));
+                this.serverChannel.configureBlocking(false);
+                this.selectorLoops = new SelectorLoop[Math.max(1, selectorThreads)];
+                for (int i = 0; i < selectorLoops.length; i++) {
+                    selectorLoops[i] = new SelectorLoop(Selector.open());
+                }
+                this.threadPool = Executors.newFixedThreadPool(selectorLoops.length);
+            } else {
+                this.serverSocket = new ServerSocket(port);
+                this.serverChannel = null;
+                this.selectorLoops = new SelectorLoop[0];
+                this.threadPool = mode == Mode.VIRTUAL_THREADS
+                    ? newVirtualThreadExecutor()
+                    : Executors.newCachedThreadPool();
+            }
+        }
+        
+        /**
+         * Creates a virtual-thread-per-task executor when the runtime has one.
+         * The library targets Java 17, so the factory is looked up reflectively.
+         */
+        private static ExecutorService newVirtualThreadExecutor() {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads are not available on this runtime, using platform threads");
+                return Executors.newCachedThreadPool();
+            }
+        }
+        
+        /**
+         * Sets the handler for incoming messages; a non-null result is sent back as the reply
+         */
+        public void setMessageHandler(Function<String, String> messageHandler) {
+            this.messageHandler = messageHandler;
+        }
+        
+        /**
+         * Gets the server I/O model
+         */
+        public Mode getMode() {
+            return mode;
         }
         
         /**
@@ -52,7 +143,19 @@ public class AdvancedNetworking {
             }
             
             running = true;
-            threadPool.submit(this::acceptClients);
+            if (mode == Mode.SELECTOR) {
+                try {
+                    serverChannel.register(selectorLoops[0].selector, SelectionKey.OP_ACCEPT);
+                } catch (ClosedChannelException e) {
+                    running = false;
+                    throw new IllegalStateException("Server channel is closed", e);
+                }
+                for (SelectorLoop loop : selectorLoops) {
+                    threadPool.submit(loop);
+                }
+            } else {
+                threadPool.submit(this::acceptClients);
+            }
             System.out.println("TCP Server started on port " + port);
         }
         
@@ -68,18 +171,25 @@ public class AdvancedNetworking {
             
             try {
                 // Close all client connections
-                clientsLock.lock();
-                try {
-                    for (ClientHandler client : clients) {
-                        client.disconnect();
-                    }
-                    clients.clear();
-                } finally {
-                    clientsLock.unlock();
+                for (ClientHandler client : clients) {
+                    client.disconnect();
                 }
+                clients.clear();
+                for (FrameConnection client : frameClients) {
+                    client.disconnect();
+                }
+                frameClients.clear();
                 
                 // Close server socket
-                serverSocket.close();
+                if (serverSocket != null) {
+                    serverSocket.close();
+                }
+                if (serverChannel != null) {
+                    serverChannel.close();
+                }
+                for (SelectorLoop loop : selectorLoops) {
+                    loop.selector.wakeup();
+                }
             } catch (IOException e) {
                 System.err.println("Error stopping server: " + e.getMessage());
             }
@@ -106,14 +216,7 @@ public class AdvancedNetworking {
                 try {
                     Socket clientSocket = serverSocket.accept();
                     ClientHandler clientHandler = new ClientHandler(clientSocket);
-                    
-                    clientsLock.lock();
-                    try {
-                        clients.add(clientHandler);
-                    } finally {
-                        clientsLock.unlock();
-                    }
-                    
+                    clients.add(clientHandler);
                     threadPool.submit(clientHandler);
                 } catch (IOException e) {
                     if (running) {
@@ -124,33 +227,43 @@ public class AdvancedNetworking {
         }
         
         /**
-         * Sends a message to all connected clients
+         * Sends a message to all connected clients; framed clients share one encoded frame
+         * @throws IllegalArgumentException if the message does not fit in a frame
          */
         public void broadcast(String message) {
-            clientsLock.lock();
-            try {
-                Iterator<ClientHandler> iterator = clients.iterator();
-                while (iterator.hasNext()) {
-                    ClientHandler client = iterator.next();
-                    if (!client.sendMessage(message)) {
-                        iterator.remove();
+            ByteBuffer frame = frameClients.isEmpty() ? null : encodeFrame(message);
+            for (ClientHandler client : clients) {
+                if (!client.sendMessage(message)) {
+                    client.disconnect();
+                }
+            }
+            if (frame != null) {
+                for (FrameConnection client : frameClients) {
+                    if (!client.send(frame.asReadOnlyBuffer())) {
+                        client.disconnect();
                     }
                 }
-            } finally {
-                clientsLock.unlock();
             }
         }
         
+        /**
+         * Encodes a length-prefixed frame sized to the message
+         */
+        private ByteBuffer encodeFrame(String message) {
+            byte[] data = message.getBytes(StandardCharsets.UTF_8);
+            if (FRAME_HEADER_SIZE + data.length > bufferPool.getBufferSize()) {
+                throw new IllegalArgumentException("Frame of " + data.length + " bytes exceeds the maximum frame size");
+            }
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + data.length);
+            frame.putInt(data.length).put(data).flip();
+            return frame;
+        }
+        
         /**
          * Gets the number of connected clients
          */
         public int getClientCount() {
-            clientsLock.lock();
-            try {
-                return clients.size();
-            } finally {
-                clientsLock.unlock();
-            }
+            return clients.size() + frameClients.size();
         }
         
         /**
@@ -190,9 +303,10 @@ public class AdvancedNetworking {
              * Handles a message from the client
              */
             private void handleMessage(String message) {
-                System.out.println("Received from client: " + message);
-                // Echo the message back to the client
-                sendMessage("Echo: " + message);
+                String reply = messageHandler.apply(message);
+                if (reply != null) {
+                    sendMessage(reply);
+                }
             }
             
             /**
@@ -238,16 +352,408 @@ public class AdvancedNetworking {
                 }
                 
                 // Remove client from server list
-                clientsLock.lock();
+                clients.remove(this);
+                
+                System.out.println("Client disconnected");
+            }
+        }
+        
+        /**
+         * Runs one selector thread; the first loop also accepts new connections
+         */
+        private class SelectorLoop implements Runnable {
+            private final Selector selector;
+            private final Queue<FrameConnection> pendingRegistrations;
+            private final Queue<FrameConnection> pendingWrites;
+            private volatile Thread thread;
+            
+            SelectorLoop(Selector selector) {
+                this.selector = selector;
+                this.pendingRegistrations = new ConcurrentLinkedQueue<>();
+                this.pendingWrites = new ConcurrentLinkedQueue<>();
+            }
+            
+            @Override
+            public void run() {
+                thread = Thread.currentThread();
                 try {
-                    clients.remove(this);
+                    while (running) {
+                        selector.select();
+                        
+                        FrameConnection connection;
+                        while ((connection = pendingRegistrations.poll()) != null) {
+                            connection.register();
+                        }
+                        while ((connection = pendingWrites.poll()) != null) {
+                            connection.writeScheduled.set(false);
+                            connection.flush();
+                        }
+                        
+                        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            if (!key.isValid()) {
+                                continue;
+                            }
+                            if (key.isAcceptable()) {
+                                acceptFrameClients();
+                                continue;
+                            }
+                            
+                            FrameConnection client = (FrameConnection) key.attachment();
+                            if (key.isReadable()) {
+                                client.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                client.flush();
+                            }
+                        }
+                    }
+                } catch (IOException | ClosedSelectorException e) {
+                    if (running) {
+                        System.err.println("Selector loop failed: " + e.getMessage());
+                    }
                 } finally {
-                    clientsLock.unlock();
+                    try {
+                        selector.close();
+                    } catch (IOException e) {
+                        System.err.println("Error closing selector: " + e.getMessage());
+                    }
+                }
+            }
+            
+            /**
+             * Accepts every pending connection and spreads them across the selector loops
+             */
+            private void acceptFrameClients() {
+                try {
+                    SocketChannel channel;
+                    while ((channel = serverChannel.accept()) != null) {
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        
+                        SelectorLoop loop = selectorLoops[Math.floorMod(nextLoop.getAndIncrement(), selectorLoops.length)];
+                        FrameConnection connection = new FrameConnection(channel, loop);
+                        frameClients.add(connection);
+                        if (loop == this) {
+                            connection.register();
+                        } else {
+                            loop.pendingRegistrations.offer(connection);
+                            loop.selector.wakeup();
+                        }
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        System.err.println("Error accepting client: " + e.getMessage());
+                    }
+                }
+            }
+            
+            boolean inLoop() {
+                return Thread.currentThread() == thread;
+            }
+        }
+        
+        /**
+         * A non-blocking client connection speaking length-prefixed frames.
+         * The read buffer is borrowed from the pool only while a frame is incomplete,
+         * so idle connections hold no buffer at all.
+         */
+        private class FrameConnection {
+            private final SocketChannel channel;
+            private final SelectorLoop loop;
+            private final Queue<ByteBuffer> writeQueue;
+            private final AtomicBoolean writeScheduled;
+            private final ByteBuffer[] gather;
+            private SelectionKey key;
+            private ByteBuffer readBuffer;
+            private volatile boolean connected;
+            
+            FrameConnection(SocketChannel channel, SelectorLoop loop) {
+                this.channel = channel;
+                this.loop = loop;
+                this.writeQueue = new ConcurrentLinkedQueue<>();
+                this.writeScheduled = new AtomicBoolean(false);
+                this.gather = new ByteBuffer[MAX_GATHER];
+                this.connected = true;
+            }
+            
+            void register() {
+                try {
+                    key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                    if (!writeQueue.isEmpty()) {
+                        flush();
+                    }
+                } catch (ClosedChannelException e) {
+                    disconnect();
+                }
+            }
+            
+            /**
+             * Reads available bytes and dispatches every complete frame
+             */
+            void read() {
+                if (readBuffer == null) {
+                    readBuffer = bufferPool.acquire();
                 }
                 
-                System.out.println("Client disconnected");
+                try {
+                    if (channel.read(readBuffer) < 0) {
+                        disconnect();
+                    }
+                } catch (IOException e) {
+                    disconnect();
+                }
+                
+                readBuffer.flip();
+                while (connected && readBuffer.remaining() >= FRAME_HEADER_SIZE) {
+                    int length = readBuffer.getInt(readBuffer.position());
+                    if (length < 0 || length > readBuffer.capacity() - FRAME_HEADER_SIZE) {
+                        System.err.println("Invalid frame length " + length + " from client, disconnecting");
+                        disconnect();
+                        break;
+                    }
+                    if (readBuffer.remaining() < FRAME_HEADER_SIZE + length) {
+                        break;
+                    }
+                    
+                    int start = readBuffer.position() + FRAME_HEADER_SIZE;
+                    ByteBuffer payload = readBuffer.slice(start, length);
+                    readBuffer.position(start + length);
+                    handleFrame(payload);
+                }
+                
+                if (connected && readBuffer.hasRemaining()) {
+                    // Keep the partial frame for the next read
+                    readBuffer.compact();
+                } else {
+                    bufferPool.release(readBuffer);
+                    readBuffer = null;
+                }
+            }
+            
+            private void handleFrame(ByteBuffer payload) {
+                String reply = messageHandler.apply(StandardCharsets.UTF_8.decode(payload).toString());
+                if (reply != null) {
+                    try {
+                        sendMessage(reply);
+                    } catch (IllegalArgumentException e) {
+                        System.err.println(e.getMessage() + ", disconnecting");
+                        disconnect();
+                    }
+                }
+            }
+            
+            /**
+             * Queues a frame; the selector thread writes it
+             */
+            boolean sendMessage(String message) {
+                return connected && send(encodeFrame(message));
+            }
+            
+            /**
+             * Queues an encoded frame; returns false once the connection is closed
+             */
+            boolean send(ByteBuffer frame) {
+                if (!connected) {
+                    return false;
+                }
+                writeQueue.offer(frame);
+                
+                if (loop.inLoop()) {
+                    flush();
+                } else if (writeScheduled.compareAndSet(false, true)) {
+                    loop.pendingWrites.offer(this);
+                    loop.selector.wakeup();
+                }
+                return connected;
+            }
+            
+            /**
+             * Writes queued frames with gathering writes until the socket would block
+             */
+            void flush() {
+                if (key == null || !connected) {
+                    return;
+                }
+                
+                try {
+                    while (true) {
+                        int count = 0;
+                        for (ByteBuffer buffer : writeQueue) {
+                            gather[count++] = buffer;
+                            if (count == MAX_GATHER) {
+                                break;
+                            }
+                        }
+                        if (count == 0) {
+                            break;
+                        }
+                        
+                        channel.write(gather, 0, count);
+                        
+                        boolean drained = true;
+                        for (int i = 0; i < count; i++) {
+                            if (gather[i].hasRemaining()) {
+                                drained = false;
+                                break;
+                            }
+                            writeQueue.poll();
+                        }
+                        Arrays.fill(gather, 0, count, null);
+                        
+                        if (!drained) {
+                            // Socket buffer is full, wait for OP_WRITE
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                } catch (IOException | CancelledKeyException e) {
+                    disconnect();
+                }
+            }
+            
+            void disconnect() {
+                if (!connected) {
+                    return;
+                }
+                
+                connected = false;
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing socket: " + e.getMessage());
+                }
+                writeQueue.clear();
+                frameClients.remove(this);
+            }
+        }
+    }
+    
+    /**
+     * Represents a pool of direct byte buffers of one fixed size
+     */
+    public static class BufferPool {
+        private final int bufferSize;
+        private final int maxPooled;
+        private final Queue<ByteBuffer> buffers;
+        private final AtomicInteger pooled;
+        
+        public BufferPool(int bufferSize, int maxPooled) {
+            this.bufferSize = bufferSize;
+            this.maxPooled = maxPooled;
+            this.buffers = new ConcurrentLinkedQueue<>();
+            this.pooled = new AtomicInteger();
+        }
+        
+        /**
+         * Takes a cleared buffer from the pool, allocating one if the pool is empty
+         */
+        public ByteBuffer acquire() {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer == null) {
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+            pooled.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        
+        /**
+         * Takes a buffer from the pool wrapped in a reference count that returns it on the last release
+         */
+        public PooledBuffer acquirePooled() {
+            return new PooledBuffer(acquire(), this);
+        }
+        
+        /**
+         * Returns a buffer to the pool; buffers of another size or beyond the pool limit are dropped
+         */
+        public void release(ByteBuffer buffer) {
+            if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+                return;
+            }
+            if (pooled.incrementAndGet() > maxPooled) {
+                pooled.decrementAndGet();
+                return;
+            }
+            buffer.clear();
+            buffers.offer(buffer);
+        }
+        
+        /**
+         * Gets the size of the pooled buffers
+         */
+        public int getBufferSize() {
+            return bufferSize;
+        }
+        
+        /**
+         * Gets the number of idle buffers in the pool
+         */
+        public int getPooledCount() {
+            return pooled.get();
+        }
+    }
+    
+    /**
+     * Represents a reference-counted buffer that goes back to its pool when the last reference is released
+     */
+    public static final class PooledBuffer {
+        private final ByteBuffer buffer;
+        private final BufferPool pool;
+        private final AtomicInteger refCount;
+        
+        public PooledBuffer(ByteBuffer buffer, BufferPool pool) {
+            this.buffer = buffer;
+            this.pool = pool;
+            this.refCount = new AtomicInteger(1);
+        }
+        
+        /**
+         * Gets the underlying buffer
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+        
+        /**
+         * Adds a reference
+         */
+        public PooledBuffer retain() {
+            while (true) {
+                int count = refCount.get();
+                if (count <= 0) {
+                    throw new IllegalStateException("Buffer was already released");
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return this;
+                }
             }
         }
+        
+        /**
+         * Drops a reference and returns the buffer to the pool when none remain
+         */
+        public boolean release() {
+            int count = refCount.decrementAndGet();
+            if (count < 0) {
+                throw new IllegalStateException("Buffer was already released");
+            }
+            if (count == 0 && pool != null) {
+                pool.release(buffer);
+            }
+            return count == 0;
+        }
+        
+        /**
+         * Gets the current reference count
+         */
+        public int refCount() {
+            return refCount.get();
+        }
     }
     
     /**
@@ -257,19 +763,38 @@ public class AdvancedNetworking {
         private Socket socket;
         private BufferedReader reader;
         private PrintWriter writer;
+        private DataInputStream frameInput;
+        private DataOutputStream frameOutput;
         private volatile boolean connected;
         
         /**
          * Connects to a server
          */
         public void connect(String host, int port) throws IOException {
+            connect(host, port, false);
+        }
+        
+        /**
+         * Connects to a server, optionally using length-prefixed frames for a SELECTOR mode server
+         */
+        public void connect(String host, int port, boolean framed) throws IOException {
             if (connected) {
                 throw new IllegalStateException("Client is already connected");
             }
             
             socket = new Socket(host, port);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream(), true);
+            if (framed) {
+                socket.setTcpNoDelay(true);
+                frameInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                frameOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                reader = null;
+                writer = null;
+            } else {
+                reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                writer = new PrintWriter(socket.getOutputStream(), true);
+                frameInput = null;
+                frameOutput = null;
+            }
             connected = true;
             
             System.out.println("Connected to server at " + host + ":" + port);
@@ -297,6 +822,17 @@ public class AdvancedNetworking {
                 writer.close();
             }
             
+            try {
+                if (frameInput != null) {
+                    frameInput.close();
+                }
+                if (frameOutput != null) {
+                    frameOutput.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Error closing streams: " + e.getMessage());
+            }
+            
             try {
                 if (socket != null) {
                     socket.close();
@@ -317,7 +853,16 @@ public class AdvancedNetworking {
             }
             
             try {
-                writer.println(message);
+                if (frameOutput != null) {
+                    byte[] data = message.getBytes(StandardCharsets.UTF_8);
+                    synchronized (frameOutput) {
+                        frameOutput.writeInt(data.length);
+                        frameOutput.write(data);
+                        frameOutput.flush();
+                    }
+                } else {
+                    writer.println(message);
+                }
                 return true;
             } catch (Exception e) {
                 System.err.println("Error sending message: " + e.getMessage());
@@ -334,6 +879,17 @@ public class AdvancedNetworking {
                 throw new IllegalStateException("Client is not connected");
             }
             
+            if (frameInput != null) {
+                int length;
+                try {
+                    length = frameInput.readInt();
+                } catch (EOFException e) {
+                    return null;
+                }
+                byte[] data = new byte[length];
+                frameInput.readFully(data);
+                return new String(data, StandardCharsets.UTF_8);
+            }
             return reader.readLine();
         }
         
@@ -484,20 +1040,45 @@ public class AdvancedNetworking {
      */
     public static class HTTPClient {
         private final int timeout;
+        private final int maxConnectionsPerHost;
+        private final java.net.http.HttpClient client;
+        private final Map<String, HostLimiter> hostLimiters;
+        private final Map<String, CompletableFuture<HTTPResponse>> inFlightGets;
+        private final AtomicLong coalescedRequests;
         
         public HTTPClient() {
             this(5000); // 5 second default timeout
         }
         
         public HTTPClient(int timeout) {
-            this.timeout = timeout;
+            this(timeout, 16);
         }
         
         /**
-         * Sends an HTTP GET request
+         * Creates a client; connections are kept alive and reused, and at most
+         * maxConnectionsPerHost requests per host are in flight at once. The timeout bounds connecting,
+         * waiting for a free per-host slot and waiting for the response; 0 disables timeouts.
          */
-        public HTTPResponse get(String url) throws IOException {
-            return sendRequest("GET", url, null, null);
+        public HTTPClient(int timeout, int maxConnectionsPerHost) {
+            this.timeout = timeout;
+            this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+            java.net.http.HttpClient.Builder builder = java.net.http.HttpClient.newBuilder()
+                .version(java.net.http.HttpClient.Version.HTTP_1_1)
+                .followRedirects(java.net.http.HttpClient.Redirect.NORMAL);
+            if (timeout > 0) {
+                builder.connectTimeout(Duration.ofMillis(timeout));
+            }
+            this.client = builder.build();
+            this.hostLimiters = new ConcurrentHashMap<>();
+            this.inFlightGets = new ConcurrentHashMap<>();
+            this.coalescedRequests = new AtomicLong();
+        }
+        
+        /**
+         * Sends an HTTP GET request
+         */
+        public HTTPResponse get(String url) throws IOException {
+            return sendRequest("GET", url, null, null);
         }
         
         /**
@@ -525,78 +1106,340 @@ public class AdvancedNetworking {
             return sendRequest("DELETE", url, null, null);
         }
         
+        /**
+         * Sends an HTTP GET request asynchronously
+         */
+        public CompletableFuture<HTTPResponse> getAsync(String url) {
+            return sendAsync("GET", url, null, null);
+        }
+        
+        /**
+         * Sends an HTTP GET request asynchronously, optionally sharing an identical GET already in flight.
+         * A shared response may predate the caller's own earlier writes, so only coalesce reads that tolerate that.
+         */
+        public CompletableFuture<HTTPResponse> getAsync(String url, boolean coalesce) {
+            return sendAsync("GET", url, null, null, coalesce);
+        }
+        
+        /**
+         * Sends an HTTP POST request asynchronously
+         */
+        public CompletableFuture<HTTPResponse> postAsync(String url, String contentType, String body) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", contentType);
+            return sendAsync("POST", url, headers, body);
+        }
+        
+        /**
+         * Sends an HTTP PUT request asynchronously
+         */
+        public CompletableFuture<HTTPResponse> putAsync(String url, String contentType, String body) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", contentType);
+            return sendAsync("PUT", url, headers, body);
+        }
+        
+        /**
+         * Sends an HTTP DELETE request asynchronously
+         */
+        public CompletableFuture<HTTPResponse> deleteAsync(String url) {
+            return sendAsync("DELETE", url, null, null);
+        }
+        
+        /**
+         * Sends an HTTP request asynchronously
+         */
+        public CompletableFuture<HTTPResponse> sendAsync(String method, String url, Map<String, String> headers, String body) {
+            return execute(method, url, headers, body);
+        }
+        
+        /**
+         * Sends an HTTP request asynchronously. With coalesce set, a GET identical to one already
+         * in flight shares its network request and response instead of sending its own.
+         */
+        public CompletableFuture<HTTPResponse> sendAsync(String method, String url, Map<String, String> headers, String body,
+                                                         boolean coalesce) {
+            if (!coalesce || !"GET".equals(method)) {
+                return execute(method, url, headers, body);
+            }
+            
+            String key = url + '\n' + (headers != null ? new TreeMap<>(headers) : "");
+            CompletableFuture<HTTPResponse> created = new CompletableFuture<>();
+            CompletableFuture<HTTPResponse> existing = inFlightGets.putIfAbsent(key, created);
+            if (existing != null) {
+                coalescedRequests.incrementAndGet();
+                return existing.thenApply(response -> response);
+            }
+            
+            execute(method, url, headers, body).whenComplete((response, error) -> {
+                inFlightGets.remove(key, created);
+                if (error != null) {
+                    created.completeExceptionally(error);
+                } else {
+                    created.complete(response);
+                }
+            });
+            // Callers get their own stage so cancelling one does not cancel the shared request
+            return created.thenApply(response -> response);
+        }
+        
+        /**
+         * Sends an HTTP request and streams the response body instead of buffering it.
+         * The per-host slot is held until the returned response is closed.
+         */
+        public CompletableFuture<HTTPStreamResponse> streamAsync(String method, String url, Map<String, String> headers, String body) {
+            java.net.http.HttpRequest request;
+            try {
+                request = buildRequest(method, url, headers, body);
+            } catch (IllegalArgumentException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            
+            HostLimiter limiter = limiterFor(request.uri());
+            CompletableFuture<HTTPStreamResponse> result = new CompletableFuture<>();
+            limiter.execute(result, () -> send(limiter, result, () -> client.sendAsync(request, java.net.http.HttpResponse.BodyHandlers.ofInputStream())
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        limiter.release();
+                        result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                        return;
+                    }
+                    
+                    AtomicBoolean released = new AtomicBoolean(false);
+                    InputStream stream = new FilterInputStream(response.body()) {
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                if (released.compareAndSet(false, true)) {
+                                    limiter.release();
+                                }
+                            }
+                        }
+                    };
+                    result.complete(new HTTPStreamResponse(response.statusCode(), response.headers().map(), stream));
+                })));
+            return result;
+        }
+        
+        /**
+         * Gets the number of GET requests served by an identical request already in flight
+         */
+        public long getCoalescedRequestCount() {
+            return coalescedRequests.get();
+        }
+        
+        /**
+         * Gets the maximum number of concurrent requests per host
+         */
+        public int getMaxConnectionsPerHost() {
+            return maxConnectionsPerHost;
+        }
+        
         /**
          * Sends an HTTP request
          */
         private HTTPResponse sendRequest(String method, String url, Map<String, String> headers, String body) throws IOException {
-            URL urlObj = new URL(url);
-            HttpURLConnection connection = (HttpURLConnection) urlObj.openConnection();
+            CompletableFuture<HTTPResponse> response = sendAsync(method, url, headers, body);
+            try {
+                if (timeout <= 0) {
+                    return response.get();
+                }
+                // A request may wait up to the timeout for a slot and then up to the timeout for its response
+                return response.get(2L * timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                response.cancel(false);
+                throw new java.net.http.HttpTimeoutException(method + " " + url + " timed out after " + 2L * timeout + "ms");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + method + " " + url);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(method + " " + url + " failed", cause);
+            }
+        }
+        
+        /**
+         * Sends a request through the per-host limiter
+         */
+        private CompletableFuture<HTTPResponse> execute(String method, String url, Map<String, String> headers, String body) {
+            java.net.http.HttpRequest request;
+            try {
+                request = buildRequest(method, url, headers, body);
+            } catch (IllegalArgumentException e) {
+                return CompletableFuture.failedFuture(e);
+            }
             
+            HostLimiter limiter = limiterFor(request.uri());
+            CompletableFuture<HTTPResponse> result = new CompletableFuture<>();
+            limiter.execute(result, () -> send(limiter, result, () -> client.sendAsync(request, java.net.http.HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+                .whenComplete((response, error) -> {
+                    limiter.release();
+                    if (error != null) {
+                        result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                    } else {
+                        result.complete(new HTTPResponse(response.statusCode(), reasonPhrase(response.statusCode()),
+                            response.body(), response.headers().map()));
+                    }
+                })));
+            return result;
+        }
+        
+        /**
+         * Starts a request that holds a per-host slot, freeing the slot if it fails to start
+         */
+        private static void send(HostLimiter limiter, CompletableFuture<?> result, Runnable request) {
             try {
-                // Set request method
-                connection.setRequestMethod(method);
-                
-                // Set timeout
-                connection.setConnectTimeout(timeout);
-                connection.setReadTimeout(timeout);
-                
-                // Set headers
-                if (headers != null) {
-                    for (Map.Entry<String, String> entry : headers.entrySet()) {
-                        connection.setRequestProperty(entry.getKey(), entry.getValue());
+                request.run();
+            } catch (RuntimeException e) {
+                limiter.release();
+                result.completeExceptionally(e);
+            }
+        }
+        
+        private java.net.http.HttpRequest buildRequest(String method, String url, Map<String, String> headers, String body) {
+            java.net.http.HttpRequest.Builder builder = java.net.http.HttpRequest.newBuilder(URI.create(url));
+            if (timeout > 0) {
+                builder.timeout(Duration.ofMillis(timeout));
+            }
+            
+            // Set headers
+            if (headers != null) {
+                for (Map.Entry<String, String> entry : headers.entrySet()) {
+                    builder.header(entry.getKey(), entry.getValue());
+                }
+            }
+            
+            // Set request body for POST/PUT
+            java.net.http.HttpRequest.BodyPublisher publisher = body != null && ("POST".equals(method) || "PUT".equals(method))
+                ? java.net.http.HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8)
+                : java.net.http.HttpRequest.BodyPublishers.noBody();
+            return builder.method(method, publisher).build();
+        }
+        
+        private HostLimiter limiterFor(URI uri) {
+            String host = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+            return hostLimiters.computeIfAbsent(host, key -> new HostLimiter(maxConnectionsPerHost, timeout));
+        }
+        
+        /**
+         * The JDK client does not expose the status line text, so common codes are mapped here
+         */
+        private static String reasonPhrase(int statusCode) {
+            switch (statusCode) {
+                case 200: return "OK";
+                case 201: return "Created";
+                case 202: return "Accepted";
+                case 204: return "No Content";
+                case 301: return "Moved Permanently";
+                case 302: return "Found";
+                case 304: return "Not Modified";
+                case 400: return "Bad Request";
+                case 401: return "Unauthorized";
+                case 403: return "Forbidden";
+                case 404: return "Not Found";
+                case 409: return "Conflict";
+                case 429: return "Too Many Requests";
+                case 500: return "Internal Server Error";
+                case 502: return "Bad Gateway";
+                case 503: return "Service Unavailable";
+                case 504: return "Gateway Timeout";
+                default: return "";
+            }
+        }
+        
+        /**
+         * Limits in-flight requests to one host without blocking the caller;
+         * a queued request fails if no slot frees up within the timeout
+         */
+        private static class HostLimiter {
+            private final int maxConcurrent;
+            private final int queueTimeout;
+            private final Deque<Runnable> waiting;
+            private int active;
+            
+            HostLimiter(int maxConcurrent, int queueTimeout) {
+                this.maxConcurrent = maxConcurrent;
+                this.queueTimeout = queueTimeout;
+                this.waiting = new ArrayDeque<>();
+            }
+            
+            void execute(CompletableFuture<?> result, Runnable request) {
+                synchronized (this) {
+                    if (active >= maxConcurrent) {
+                        waiting.add(request);
+                        if (queueTimeout > 0) {
+                            CompletableFuture.delayedExecutor(queueTimeout, TimeUnit.MILLISECONDS)
+                                .execute(() -> expire(result, request));
+                        }
+                        return;
                     }
+                    active++;
                 }
-                
-                // Set request body for POST/PUT
-                if (body != null && ("POST".equals(method) || "PUT".equals(method))) {
-                    connection.setDoOutput(true);
-                    try (OutputStream os = connection.getOutputStream()) {
-                        byte[] input = body.getBytes("utf-8");
-                        os.write(input, 0, input.length);
+                request.run();
+            }
+            
+            private void expire(CompletableFuture<?> result, Runnable request) {
+                synchronized (this) {
+                    if (!waiting.remove(request)) {
+                        return;
                     }
                 }
-                
-                // Get response
-                int statusCode = connection.getResponseCode();
-                String statusMessage = connection.getResponseMessage();
-                
-                // Read response body
-                String responseBody;
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(
-                                connection.getInputStream(), "utf-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-                    responseBody = response.toString();
-                } catch (IOException e) {
-                    // Try to read error stream
-                    try (BufferedReader br = new BufferedReader(
-                            new InputStreamReader(
-                                    connection.getErrorStream(), "utf-8"))) {
-                        StringBuilder response = new StringBuilder();
-                        String responseLine;
-                        while ((responseLine = br.readLine()) != null) {
-                            response.append(responseLine.trim());
-                        }
-                        responseBody = response.toString();
-                    } catch (IOException e2) {
-                        responseBody = "";
+                result.completeExceptionally(new java.net.http.HttpTimeoutException(
+                    "No connection to the host became free within " + queueTimeout + "ms"));
+            }
+            
+            void release() {
+                Runnable next;
+                synchronized (this) {
+                    next = waiting.poll();
+                    if (next == null) {
+                        active--;
+                        return;
                     }
                 }
-                
-                // Get response headers
-                Map<String, List<String>> responseHeaders = connection.getHeaderFields();
-                
-                return new HTTPResponse(statusCode, statusMessage, responseBody, responseHeaders);
-            } finally {
-                connection.disconnect();
+                // The freed slot passes straight to the next queued request
+                next.run();
             }
         }
     }
     
+    /**
+     * Represents a streamed HTTP response; the body must be closed
+     */
+    public static class HTTPStreamResponse implements Closeable {
+        private final int statusCode;
+        private final Map<String, List<String>> headers;
+        private final InputStream body;
+        
+        public HTTPStreamResponse(int statusCode, Map<String, List<String>> headers, InputStream body) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+        }
+        
+        public int getStatusCode() {
+            return statusCode;
+        }
+        
+        public Map<String, List<String>> getHeaders() {
+            return headers;
+        }
+        
+        public InputStream getBody() {
+            return body;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+    
     /**
      * Represents an HTTP response
      */
@@ -711,68 +1554,151 @@ public class AdvancedNetworking {
     
     /**
      * Represents a distributed key-value store
+     * Keys are placed on a consistent-hash ring with virtual nodes and stored on replicationFactor
+     * distinct nodes, so a membership change only moves the keys of the ring ranges that changed hands.
+     * Node ids are the host:port addresses the nodes serve on (see startServer).
+     * Wire protocol: GET/PUT/DELETE /store/{key} with the raw value as body, and POST /store/_mget and
+     * /store/_mput with one URL-encoded key or key=value pair per line.
      */
     public static class DistributedKeyValueStore {
+        private static final String STORE_PATH = "/store/";
+        private static final String MULTI_GET_PATH = "/store/_mget";
+        private static final String MULTI_PUT_PATH = "/store/_mput";
+        
         private final Map<String, String> localStore;
         private final List<String> clusterNodes;
         private final String nodeId;
-        private final Lock storeLock;
+        private final int virtualNodes;
+        private final int replicationFactor;
+        private final HTTPClient httpClient;
+        private volatile HashRing ring;
+        private com.sun.net.httpserver.HttpServer server;
+        private ExecutorService serverExecutor;
         
         public DistributedKeyValueStore(String nodeId) {
+            this(nodeId, 128, 1);
+        }
+        
+        public DistributedKeyValueStore(String nodeId, int virtualNodes, int replicationFactor) {
             this.localStore = new ConcurrentHashMap<>();
             this.clusterNodes = new CopyOnWriteArrayList<>();
             this.nodeId = nodeId;
-            this.storeLock = new ReentrantLock();
+            this.virtualNodes = Math.max(1, virtualNodes);
+            this.replicationFactor = Math.max(1, replicationFactor);
+            this.httpClient = new HTTPClient(2000, 32);
+            this.ring = HashRing.build(Collections.singletonList(nodeId), this.virtualNodes);
         }
         
         /**
          * Adds a node to the cluster
          */
-        public void addNode(String nodeAddress) {
+        public synchronized void addNode(String nodeAddress) {
+            if (nodeAddress.equals(nodeId) || clusterNodes.contains(nodeAddress)) {
+                return;
+            }
             clusterNodes.add(nodeAddress);
-            System.out.println("Added node " + nodeAddress + " to cluster");
+            rebuildRing();
         }
         
         /**
          * Removes a node from the cluster
          */
-        public void removeNode(String nodeAddress) {
-            clusterNodes.remove(nodeAddress);
-            System.out.println("Removed node " + nodeAddress + " from cluster");
+        public synchronized void removeNode(String nodeAddress) {
+            if (clusterNodes.remove(nodeAddress)) {
+                rebuildRing();
+            }
+        }
+        
+        private void rebuildRing() {
+            List<String> members = new ArrayList<>(clusterNodes);
+            members.add(nodeId);
+            ring = HashRing.build(members, virtualNodes);
         }
         
         /**
-         * Puts a key-value pair in the store
+         * Puts a key-value pair in the store on every replica of the key
          */
         public void put(String key, String value) {
-            // Determine which node should store this key (consistent hashing)
-            String targetNode = getTargetNode(key);
+            Map<String, String> entries = new HashMap<>();
+            entries.put(key, value);
+            putAll(entries);
+        }
+        
+        /**
+         * Puts many key-value pairs with one request per replica node
+         */
+        public void putAll(Map<String, String> entries) {
+            store(entries);
+        }
+        
+        /**
+         * Writes entries to their replicas
+         * @return the keys every replica acknowledged
+         */
+        private Set<String> store(Map<String, String> entries) {
+            Map<String, Map<String, String>> byNode = new HashMap<>();
+            Map<String, Integer> unacknowledged = new HashMap<>();
+            HashRing current = ring;
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                List<String> replicas = current.replicasFor(entry.getKey(), replicationFactor);
+                for (String node : replicas) {
+                    byNode.computeIfAbsent(node, n -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+                }
+                unacknowledged.put(entry.getKey(), replicas.size());
+            }
             
-            if (nodeId.equals(targetNode)) {
-                // Store locally
-                localStore.put(key, value);
-                System.out.println("Stored key " + key + " locally");
-            } else {
-                // Forward to target node
-                forwardPut(targetNode, key, value);
+            List<CompletableFuture<Set<String>>> pending = new ArrayList<>();
+            for (Map.Entry<String, Map<String, String>> entry : byNode.entrySet()) {
+                String node = entry.getKey();
+                if (nodeId.equals(node)) {
+                    localStore.putAll(entry.getValue());
+                    pending.add(CompletableFuture.completedFuture(entry.getValue().keySet()));
+                } else {
+                    pending.add(sendMultiPut(node, entry.getValue()));
+                }
+            }
+            awaitAll(pending);
+            
+            for (CompletableFuture<Set<String>> future : pending) {
+                // Requests still running after an interrupt count as unacknowledged
+                for (String key : future.getNow(Collections.emptySet())) {
+                    unacknowledged.merge(key, -1, Integer::sum);
+                }
+            }
+            Set<String> acknowledged = new HashSet<>();
+            for (Map.Entry<String, Integer> entry : unacknowledged.entrySet()) {
+                if (entry.getValue() <= 0) {
+                    acknowledged.add(entry.getKey());
+                }
             }
+            return acknowledged;
         }
         
         /**
-         * Gets a value from the store
+         * Gets a value from the store, asking only the replicas that own the key
          */
         public String get(String key) {
-            // Check local store first
-            if (localStore.containsKey(key)) {
-                return localStore.get(key);
+            List<String> replicas = ring.replicasFor(key, replicationFactor);
+            if (replicas.contains(nodeId)) {
+                String value = localStore.get(key);
+                if (value != null) {
+                    return value;
+                }
             }
             
-            // Check other nodes
-            for (String node : clusterNodes) {
+            for (String node : replicas) {
                 if (!node.equals(nodeId)) {
-                    String value = fetchFromNode(node, key);
-                    if (value != null) {
-                        return value;
+                    try {
+                        HTTPResponse response = httpClient.get("http://" + node + STORE_PATH + encode(key));
+                        if (response.getStatusCode() == 200) {
+                            return response.getBody();
+                        }
+                        if (response.getStatusCode() == 404) {
+                            continue;
+                        }
+                        System.err.println("Failed to fetch key " + key + " from node " + node + ": HTTP " + response.getStatusCode());
+                    } catch (IOException e) {
+                        System.err.println("Failed to fetch key " + key + " from node " + node + ": " + e.getMessage());
                     }
                 }
             }
@@ -781,105 +1707,265 @@ public class AdvancedNetworking {
         }
         
         /**
-         * Removes a key-value pair from the store
+         * Gets many values with one request per owning node; missing keys are absent from the result
          */
-        public void remove(String key) {
-            // Determine which node stores this key
-            String targetNode = getTargetNode(key);
+        public Map<String, String> getAll(Collection<String> keys) {
+            Map<String, String> result = new HashMap<>();
+            HashRing current = ring;
             
-            if (nodeId.equals(targetNode)) {
-                // Remove locally
-                localStore.remove(key);
-                System.out.println("Removed key " + key + " locally");
-            } else {
-                // Forward to target node
-                forwardRemove(targetNode, key);
+            // Each round asks every key's next untried replica; failed or empty answers move on
+            Map<String, List<String>> remaining = new HashMap<>();
+            for (String key : keys) {
+                List<String> replicas = new ArrayList<>(current.replicasFor(key, replicationFactor));
+                if (replicas.remove(nodeId)) {
+                    String value = localStore.get(key);
+                    if (value != null) {
+                        result.put(key, value);
+                        continue;
+                    }
+                }
+                remaining.put(key, replicas);
+            }
+            
+            remaining.values().removeIf(List::isEmpty);
+            while (!remaining.isEmpty()) {
+                Map<String, List<String>> byNode = new HashMap<>();
+                for (Map.Entry<String, List<String>> entry : remaining.entrySet()) {
+                    byNode.computeIfAbsent(entry.getValue().remove(0), n -> new ArrayList<>()).add(entry.getKey());
+                }
+                
+                Map<String, CompletableFuture<Map<String, String>>> requests = new HashMap<>();
+                for (Map.Entry<String, List<String>> entry : byNode.entrySet()) {
+                    requests.put(entry.getKey(), sendMultiGet(entry.getKey(), entry.getValue()));
+                }
+                for (Map.Entry<String, CompletableFuture<Map<String, String>>> entry : requests.entrySet()) {
+                    try {
+                        result.putAll(entry.getValue().get());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return result;
+                    } catch (ExecutionException e) {
+                        System.err.println("Failed to fetch keys from node " + entry.getKey() + ": " + e.getCause().getMessage());
+                    }
+                }
+                
+                remaining.keySet().removeAll(result.keySet());
+                remaining.values().removeIf(List::isEmpty);
+            }
+            
+            return result;
+        }
+        
+        /**
+         * Removes a key-value pair from every replica
+         */
+        public void remove(String key) {
+            List<CompletableFuture<?>> pending = new ArrayList<>();
+            for (String node : ring.replicasFor(key, replicationFactor)) {
+                if (nodeId.equals(node)) {
+                    localStore.remove(key);
+                } else {
+                    pending.add(httpClient.deleteAsync("http://" + node + STORE_PATH + encode(key))
+                        .whenComplete((response, error) -> {
+                            if (error != null) {
+                                System.err.println("Failed to forward remove to node " + node + ": " + error.getMessage());
+                            }
+                        }));
+                }
             }
+            awaitAll(pending);
         }
         
         /**
-         * Determines which node should store a key
+         * Hands local keys this node no longer replicates to their new owners and drops them locally.
+         * Call after membership changes; only keys of ring ranges that changed hands move.
+         * A key is dropped only once all its new replicas acknowledged it; the rest stay for the next call.
+         * @return the number of keys handed off
          */
-        private String getTargetNode(String key) {
-            // Simple hash-based distribution
-            int hash = key.hashCode();
-            int index = Math.abs(hash) % (clusterNodes.size() + 1); // +1 for local node
+        public int rebalance() {
+            HashRing current = ring;
+            Map<String, String> moved = new HashMap<>();
+            for (Map.Entry<String, String> entry : localStore.entrySet()) {
+                if (!current.replicasFor(entry.getKey(), replicationFactor).contains(nodeId)) {
+                    moved.put(entry.getKey(), entry.getValue());
+                }
+            }
             
-            if (index == clusterNodes.size()) {
-                return nodeId; // Local node
-            } else {
-                return clusterNodes.get(index);
+            if (moved.isEmpty()) {
+                return 0;
             }
+            Set<String> acknowledged = store(moved);
+            for (String key : acknowledged) {
+                localStore.remove(key, moved.get(key));
+            }
+            return acknowledged.size();
         }
         
         /**
-         * Forwards a put operation to another node
+         * Gets the nodes that replicate a key, primary first
          */
-        private void forwardPut(String targetNode, String key, String value) {
-            try {
-                // Create HTTP client and send PUT request to target node
-                java.net.http.HttpClient client = java.net.http.HttpClient.newHttpClient();
-                String requestBody = "{\"key\":\"" + key + "\",\"value\":\"" + value + "\"}";
-                java.net.http.HttpRequest request = java.net.http.HttpRequest.newBuilder()
-                    .uri(java.net.URI.create("http://" + targetNode + "/store"))
-                    .header("Content-Type", "application/json")
-                    .PUT(java.net.http.HttpRequest.BodyPublishers.ofString(requestBody))
-                    .build();
-                
-                java.net.http.HttpResponse<String> response = client.send(request, java.net.http.HttpResponse.BodyHandlers.ofString());
-                System.out.println("Forwarded put(" + key + ", " + value + ") to node " + targetNode + ", response: " + response.statusCode());
-            } catch (Exception e) {
-                System.err.println("Failed to forward put to node " + targetNode + ": " + e.getMessage());
+        public List<String> getReplicas(String key) {
+            return ring.replicasFor(key, replicationFactor);
+        }
+        
+        /**
+         * Starts serving this node's replica data over HTTP on the given port
+         */
+        public synchronized void startServer(int port) throws IOException {
+            if (server != null) {
+                throw new IllegalStateException("Server is already running");
+            }
+            server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(port), 0);
+            serverExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+            server.setExecutor(serverExecutor);
+            server.createContext(STORE_PATH, this::handleRequest);
+            server.start();
+        }
+        
+        /**
+         * Stops the HTTP server
+         */
+        public synchronized void stopServer() {
+            if (server == null) {
+                return;
             }
+            server.stop(0);
+            serverExecutor.shutdownNow();
+            server = null;
+            serverExecutor = null;
         }
         
         /**
-         * Forwards a remove operation to another node
+         * Serves replica-local reads and writes; requests are never forwarded again
          */
-        private void forwardRemove(String targetNode, String key) {
+        private void handleRequest(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
             try {
-                // Create HTTP client and send DELETE request to target node
-                java.net.http.HttpClient client = java.net.http.HttpClient.newHttpClient();
-                java.net.http.HttpRequest request = java.net.http.HttpRequest.newBuilder()
-                    .uri(java.net.URI.create("http://" + targetNode + "/store/" + key))
-                    .DELETE()
-                    .build();
+                String path = exchange.getRequestURI().getRawPath();
+                String method = exchange.getRequestMethod();
                 
-                java.net.http.HttpResponse<String> response = client.send(request, java.net.http.HttpResponse.BodyHandlers.ofString());
-                System.out.println("Forwarded remove(" + key + ") to node " + targetNode + ", response: " + response.statusCode());
-            } catch (Exception e) {
-                System.err.println("Failed to forward remove to node " + targetNode + ": " + e.getMessage());
+                if (MULTI_GET_PATH.equals(path) && "POST".equals(method)) {
+                    StringBuilder body = new StringBuilder();
+                    for (String line : readBody(exchange).split("\n")) {
+                        if (!line.isEmpty()) {
+                            String value = localStore.get(decode(line));
+                            if (value != null) {
+                                body.append(line).append('=').append(encode(value)).append('\n');
+                            }
+                        }
+                    }
+                    respond(exchange, 200, body.toString());
+                } else if (MULTI_PUT_PATH.equals(path) && "POST".equals(method)) {
+                    for (String line : readBody(exchange).split("\n")) {
+                        int separator = line.indexOf('=');
+                        if (separator > 0) {
+                            localStore.put(decode(line.substring(0, separator)), decode(line.substring(separator + 1)));
+                        }
+                    }
+                    respond(exchange, 204, null);
+                } else {
+                    String key = decode(path.substring(STORE_PATH.length()));
+                    switch (method) {
+                        case "GET":
+                            String value = localStore.get(key);
+                            respond(exchange, value != null ? 200 : 404, value);
+                            break;
+                        case "PUT":
+                            localStore.put(key, readBody(exchange));
+                            respond(exchange, 204, null);
+                            break;
+                        case "DELETE":
+                            localStore.remove(key);
+                            respond(exchange, 204, null);
+                            break;
+                        default:
+                            respond(exchange, 405, null);
+                    }
+                }
+            } catch (RuntimeException e) {
+                respond(exchange, 400, null);
+            } finally {
+                exchange.close();
             }
         }
         
         /**
-         * Fetches a value from another node
+         * Sends entries to one replica
+         * @return the keys the node stored, or an empty set if the request failed
          */
-        private String fetchFromNode(String node, String key) {
+        private CompletableFuture<Set<String>> sendMultiPut(String node, Map<String, String> entries) {
+            StringBuilder body = new StringBuilder();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                body.append(encode(entry.getKey())).append('=').append(encode(entry.getValue())).append('\n');
+            }
+            return httpClient.postAsync("http://" + node + MULTI_PUT_PATH, "text/plain", body.toString())
+                .handle((response, error) -> {
+                    if (error == null && response.getStatusCode() / 100 == 2) {
+                        return entries.keySet();
+                    }
+                    String reason = error != null ? error.getMessage() : "HTTP " + response.getStatusCode();
+                    System.err.println("Failed to forward " + entries.size() + " puts to node " + node + ": " + reason);
+                    return Collections.emptySet();
+                });
+        }
+        
+        private CompletableFuture<Map<String, String>> sendMultiGet(String node, List<String> keys) {
+            StringBuilder body = new StringBuilder();
+            for (String key : keys) {
+                body.append(encode(key)).append('\n');
+            }
+            return httpClient.postAsync("http://" + node + MULTI_GET_PATH, "text/plain", body.toString())
+                .thenApply(response -> {
+                    if (response.getStatusCode() != 200) {
+                        throw new CompletionException(new IOException("HTTP " + response.getStatusCode()));
+                    }
+                    Map<String, String> values = new HashMap<>();
+                    for (String line : response.getBody().split("\n")) {
+                        int separator = line.indexOf('=');
+                        if (separator > 0) {
+                            values.put(decode(line.substring(0, separator)), decode(line.substring(separator + 1)));
+                        }
+                    }
+                    return values;
+                });
+        }
+        
+        private static void awaitAll(List<? extends CompletableFuture<?>> pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
             try {
-                // Create HTTP client and send GET request to target node
-                java.net.http.HttpClient client = java.net.http.HttpClient.newHttpClient();
-                java.net.http.HttpRequest request = java.net.http.HttpRequest.newBuilder()
-                    .uri(java.net.URI.create("http://" + node + "/store/" + key))
-                    .GET()
-                    .build();
-                
-                java.net.http.HttpResponse<String> response = client.send(request, java.net.http.HttpResponse.BodyHandlers.ofString());
-                if (response.statusCode() == 200) {
-                    // Parse JSON response to extract value
-                    String responseBody = response.body();
-                    // Simple JSON parsing (in a real implementation, you'd use a proper JSON library)
-                    if (responseBody.contains("\"value\":\"")) {
-                        int start = responseBody.indexOf("\"value\":\"") + 9;
-                        int end = responseBody.indexOf("\"", start);
-                        return responseBody.substring(start, end);
-                    }
-                }
-                System.out.println("Fetched key " + key + " from node " + node + ", response: " + response.statusCode());
-            } catch (Exception e) {
-                System.err.println("Failed to fetch key " + key + " from node " + node + ": " + e.getMessage());
+                CompletableFuture.allOf(pending.toArray(CompletableFuture<?>[]::new)).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // Failures were already reported per node
+            }
+        }
+        
+        private static String readBody(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
+            try (InputStream input = exchange.getRequestBody()) {
+                return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+        
+        private static void respond(com.sun.net.httpserver.HttpExchange exchange, int status, String body) throws IOException {
+            if (body == null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
             }
-            return null; // Simulated response
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            if (bytes.length > 0) {
+                exchange.getResponseBody().write(bytes);
+            }
+        }
+        
+        private static String encode(String value) {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8);
+        }
+        
+        private static String decode(String value) {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8);
         }
         
         /**
@@ -902,21 +1988,169 @@ public class AdvancedNetworking {
         public List<String> getClusterNodes() {
             return new ArrayList<>(clusterNodes);
         }
-    }
-    
-    /**
-     * Represents a message queue for distributed systems
-     */
+        
+        /**
+         * Gets the replication factor
+         */
+        public int getReplicationFactor() {
+            return replicationFactor;
+        }
+        
+        /**
+         * Immutable ring snapshot: sorted tokens with the node owning each one
+         */
+        private static final class HashRing {
+            private final long[] tokens;
+            private final String[] owners;
+            private final int nodeCount;
+            
+            private HashRing(long[] tokens, String[] owners, int nodeCount) {
+                this.tokens = tokens;
+                this.owners = owners;
+                this.nodeCount = nodeCount;
+            }
+            
+            static HashRing build(Collection<String> nodes, int virtualNodes) {
+                TreeMap<Long, String> sorted = new TreeMap<>();
+                for (String node : nodes) {
+                    for (int i = 0; i < virtualNodes; i++) {
+                        // On a token collision the smaller node id wins, so every member builds the same ring
+                        sorted.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+                    }
+                }
+                
+                long[] tokens = new long[sorted.size()];
+                String[] owners = new String[sorted.size()];
+                int i = 0;
+                for (Map.Entry<Long, String> entry : sorted.entrySet()) {
+                    tokens[i] = entry.getKey();
+                    owners[i] = entry.getValue();
+                    i++;
+                }
+                return new HashRing(tokens, owners, nodes.size());
+            }
+            
+            /**
+             * Walks clockwise from the key's token collecting distinct nodes
+             */
+            List<String> replicasFor(String key, int count) {
+                int wanted = Math.min(count, nodeCount);
+                List<String> replicas = new ArrayList<>(wanted);
+                int index = Arrays.binarySearch(tokens, hash(key));
+                if (index < 0) {
+                    index = -index - 1;
+                }
+                
+                for (int step = 0; step < tokens.length && replicas.size() < wanted; step++) {
+                    String owner = owners[(index + step) % tokens.length];
+                    if (!replicas.contains(owner)) {
+                        replicas.add(owner);
+                    }
+                }
+                return replicas;
+            }
+            
+            /**
+             * 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer
+             */
+            static long hash(String value) {
+                long h = 0xcbf29ce484222325L;
+                for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                    h ^= b;
+                    h *= 0x100000001b3L;
+                }
+                h ^= h >>> 33;
+                h *= 0xff51afd7ed558ccdL;
+                h ^= h >>> 33;
+                h *= 0xc4ceb9fe1a85ec53L;
+                h ^= h >>> 33;
+                return h;
+            }
+        }
+    }
+    
+    /**
+     * Represents a message queue for distributed systems
+     * The default constructor keeps the unbounded LinkedBlockingQueue with competing consumers.
+     * The ring-buffer mode splits messages into partitions by key, each a bounded ring of
+     * preallocated slots drained in batches by one worker thread, so messages with the same key
+     * are delivered in order while partitions are processed in parallel.
+     * With a MessageLog attached, every message is appended to the log before it is queued, and
+     * messages not yet consumed when the queue stopped are replayed on the next start.
+     */
     public static class MessageQueue {
+        private static final String LOG_CONSUMER = "message-queue";
+        
+        
+        /**
+         * How idle ring workers and blocked producers wait
+         */
+        public enum WaitStrategy {
+            SPIN,
+            YIELD,
+            PARK
+        }
+        
+        /**
+         * What a producer does when its partition is full
+         */
+        public enum OverflowPolicy {
+            BLOCK,
+            DROP
+        }
+        
         private final BlockingQueue<Message> queue;
         private final List<MessageConsumer> consumers;
         private final ExecutorService consumerPool;
+        private final RingPartition[] partitions;
+        private final WaitStrategy waitStrategy;
+        private final OverflowPolicy overflowPolicy;
+        private final int batchSize;
+        private final AtomicLong droppedMessages;
+        private final Object appendLock;
+        private final ConcurrentSkipListSet<Long> inFlightOffsets;
+        private volatile MessageLog messageLog;
+        private volatile long highestOffset;
+        private long replayEnd;
         private volatile boolean running;
         
         public MessageQueue() {
             this.queue = new LinkedBlockingQueue<>();
             this.consumers = new CopyOnWriteArrayList<>();
             this.consumerPool = Executors.newCachedThreadPool();
+            this.partitions = null;
+            this.waitStrategy = WaitStrategy.PARK;
+            this.overflowPolicy = OverflowPolicy.BLOCK;
+            this.batchSize = 1;
+            this.droppedMessages = new AtomicLong();
+            this.appendLock = new Object();
+            this.inFlightOffsets = new ConcurrentSkipListSet<>();
+            this.running = false;
+        }
+        
+        /**
+         * Creates a ring-buffer backed queue
+         * @param capacity slots per partition, rounded up to a power of two
+         * @param partitionCount number of partitions, each consumed by one worker thread
+         * @param singleProducer true if only one thread ever sends, which skips the CAS on publish
+         * @param batchSize maximum messages a worker drains at once
+         */
+        public MessageQueue(int capacity, int partitionCount, boolean singleProducer, int batchSize,
+                            WaitStrategy waitStrategy, OverflowPolicy overflowPolicy) {
+            this.queue = null;
+            this.consumers = new CopyOnWriteArrayList<>();
+            this.partitions = new RingPartition[Math.max(1, partitionCount)];
+            int slots = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            for (int i = 0; i < partitions.length; i++) {
+                partitions[i] = new RingPartition(slots, singleProducer);
+            }
+            this.consumerPool = Executors.newFixedThreadPool(partitions.length);
+            this.waitStrategy = waitStrategy;
+            this.overflowPolicy = overflowPolicy;
+            this.batchSize = Math.max(1, batchSize);
+            this.droppedMessages = new AtomicLong();
+            this.appendLock = new Object();
+            this.inFlightOffsets = new ConcurrentSkipListSet<>();
             this.running = false;
         }
         
@@ -930,6 +2164,9 @@ public class AdvancedNetworking {
             
             running = true;
             startConsumers();
+            if (messageLog != null) {
+                replay();
+            }
             System.out.println("Message queue started");
         }
         
@@ -953,6 +2190,15 @@ public class AdvancedNetworking {
                 Thread.currentThread().interrupt();
             }
             
+            MessageLog log = messageLog;
+            if (log != null) {
+                try {
+                    log.checkpointOffsets();
+                } catch (IOException e) {
+                    System.err.println("Error checkpointing message offsets: " + e.getMessage());
+                }
+            }
+            
             System.out.println("Message queue stopped");
         }
         
@@ -960,13 +2206,123 @@ public class AdvancedNetworking {
          * Sends a message to the queue
          */
         public void sendMessage(String topic, String content) {
-            Message message = new Message(topic, content, System.currentTimeMillis());
+            sendMessage(topic, topic, content);
+        }
+        
+        /**
+         * Sends a message; in ring-buffer mode messages with the same key go to the same partition
+         * and are consumed in order
+         * @return false if the message was dropped because its partition was full
+         */
+        public boolean sendMessage(String topic, String key, String content) {
+            long timestamp = System.currentTimeMillis();
+            MessageLog log = messageLog;
+            if (log == null) {
+                return enqueue(new Message(topic, content, timestamp), key, overflowPolicy == OverflowPolicy.BLOCK);
+            }
+            
+            // Appending and queueing under one lock keeps queue order equal to log order
+            synchronized (appendLock) {
+                long offset;
+                try {
+                    offset = log.append(topic, key, content, timestamp);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to persist message", e);
+                }
+                return enqueuePersisted(new Message(topic, content, timestamp, offset), key,
+                    overflowPolicy == OverflowPolicy.BLOCK);
+            }
+        }
+        
+        /**
+         * Attaches a durable log; must be called before start. Messages in the log after the
+         * committed consumer offset are replayed into the queue when it starts.
+         */
+        public void enablePersistence(MessageLog log) {
+            if (running) {
+                throw new IllegalStateException("Persistence must be enabled before the queue starts");
+            }
+            
+            synchronized (appendLock) {
+                this.messageLog = log;
+                this.highestOffset = log.getCommittedOffset(LOG_CONSUMER);
+                this.replayEnd = log.getNextOffset();
+            }
+        }
+        
+        /**
+         * Gets the attached log, or null
+         */
+        public MessageLog getMessageLog() {
+            return messageLog;
+        }
+        
+        /**
+         * Replays unconsumed messages that were in the log when persistence was enabled
+         */
+        private void replay() {
+            MessageLog log = messageLog;
+            long from = log.getCommittedOffset(LOG_CONSUMER) + 1;
+            synchronized (appendLock) {
+                try {
+                    log.replay(Math.max(from, log.getStartOffset()), (offset, topic, key, content, timestamp) -> {
+                        if (offset < replayEnd) {
+                            enqueuePersisted(new Message(topic, content, timestamp, offset), key, true);
+                        }
+                    });
+                } catch (IOException e) {
+                    System.err.println("Error replaying message log: " + e.getMessage());
+                }
+            }
+        }
+        
+        private boolean enqueuePersisted(Message message, String key, boolean block) {
+            inFlightOffsets.add(message.getOffset());
+            highestOffset = message.getOffset();
+            if (!enqueue(message, key, block)) {
+                acknowledge(message);
+                return false;
+            }
+            return true;
+        }
+        
+        private boolean enqueue(Message message, String key, boolean block) {
+            if (partitions == null) {
+                try {
+                    queue.put(message);
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while sending message", e);
+                }
+            }
+            
+            RingPartition partition = partitions[Math.floorMod(key != null ? key.hashCode() : 0, partitions.length)];
+            if (!partition.publish(message, block)) {
+                droppedMessages.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+        
+        /**
+         * Marks a persisted message as handled and commits the offset below which every message is handled
+         */
+        private void acknowledge(Message message) {
+            MessageLog log = messageLog;
+            if (log == null || message.getOffset() < 0) {
+                return;
+            }
+            
+            // Read before the in-flight set, so an offset registered in between is never skipped
+            long safe = highestOffset;
+            inFlightOffsets.remove(message.getOffset());
             try {
-                queue.put(message);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException("Interrupted while sending message", e);
+                safe = inFlightOffsets.first() - 1;
+            } catch (NoSuchElementException e) {
+                // Nothing in flight: everything up to the highest seen offset is handled
             }
+            log.commitOffset(LOG_CONSUMER, safe);
         }
         
         /**
@@ -974,7 +2330,7 @@ public class AdvancedNetworking {
          */
         public void addConsumer(MessageConsumer consumer) {
             consumers.add(consumer);
-            if (running) {
+            if (running && partitions == null) {
                 consumerPool.submit(new ConsumerWorker(consumer));
             }
         }
@@ -986,15 +2342,115 @@ public class AdvancedNetworking {
             consumers.remove(consumer);
         }
         
+        /**
+         * Gets the number of messages waiting to be consumed
+         */
+        public long getPendingCount() {
+            if (partitions == null) {
+                return queue.size();
+            }
+            long pending = 0;
+            for (RingPartition partition : partitions) {
+                pending += partition.size();
+            }
+            return pending;
+        }
+        
+        /**
+         * Gets the number of messages dropped by the DROP overflow policy
+         */
+        public long getDroppedCount() {
+            return droppedMessages.get();
+        }
+        
         /**
          * Starts consumer workers
          */
         private void startConsumers() {
+            if (partitions != null) {
+                for (RingPartition partition : partitions) {
+                    consumerPool.submit(new PartitionWorker(partition));
+                }
+                return;
+            }
             for (MessageConsumer consumer : consumers) {
                 consumerPool.submit(new ConsumerWorker(consumer));
             }
         }
         
+        /**
+         * Waits one step of the configured strategy; spins and yields before parking
+         */
+        private void idle(int attempt) {
+            if (waitStrategy == WaitStrategy.SPIN || attempt < 100) {
+                Thread.onSpinWait();
+            } else if (waitStrategy == WaitStrategy.YIELD || attempt < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(50_000);
+            }
+        }
+        
+        /**
+         * Waits for a full partition to free up. Producers always escalate to parking, so a
+         * spinning consumer strategy does not leave blocked producers burning the same cores.
+         */
+        private static void backoff(int attempt) {
+            if (attempt < 100) {
+                Thread.onSpinWait();
+            } else if (attempt < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(1_000);
+            }
+        }
+        
+        /**
+         * Hands a batch to the consumers: each message goes to the first consumer that accepts it
+         */
+        private void dispatch(List<Message> batch) {
+            for (MessageConsumer consumer : consumers) {
+                if (consumer instanceof BatchMessageConsumer) {
+                    List<Message> accepted = new ArrayList<>(batch.size());
+                    Iterator<Message> iterator = batch.iterator();
+                    while (iterator.hasNext()) {
+                        Message message = iterator.next();
+                        if (consumer.canConsume(message)) {
+                            accepted.add(message);
+                            iterator.remove();
+                        }
+                    }
+                    if (!accepted.isEmpty()) {
+                        consume(consumer, accepted);
+                    }
+                } else {
+                    Iterator<Message> iterator = batch.iterator();
+                    while (iterator.hasNext()) {
+                        Message message = iterator.next();
+                        if (consumer.canConsume(message)) {
+                            iterator.remove();
+                            try {
+                                consumer.consume(message);
+                            } catch (Exception e) {
+                                System.err.println("Error processing message: " + e.getMessage());
+                            }
+                        }
+                    }
+                }
+                if (batch.isEmpty()) {
+                    return;
+                }
+            }
+        }
+        
+        private static void consume(MessageConsumer consumer, List<Message> batch) {
+            try {
+                ((BatchMessageConsumer) consumer).consumeBatch(batch);
+            } catch (Exception e) {
+                System.err.println("Error processing message batch: " + e.getMessage());
+            }
+        }
+        
         /**
          * Represents a message in the queue
          */
@@ -1002,11 +2458,17 @@ public class AdvancedNetworking {
             private final String topic;
             private final String content;
             private final long timestamp;
+            private final long offset;
             
             public Message(String topic, String content, long timestamp) {
+                this(topic, content, timestamp, -1);
+            }
+            
+            private Message(String topic, String content, long timestamp, long offset) {
                 this.topic = topic;
                 this.content = content;
                 this.timestamp = timestamp;
+                this.offset = offset;
             }
             
             public String getTopic() {
@@ -1020,6 +2482,13 @@ public class AdvancedNetworking {
             public long getTimestamp() {
                 return timestamp;
             }
+            
+            /**
+             * Gets the position of the message in the attached log, or -1 if it is not persisted
+             */
+            public long getOffset() {
+                return offset;
+            }
         }
         
         /**
@@ -1030,6 +2499,18 @@ public class AdvancedNetworking {
             void consume(Message message);
         }
         
+        /**
+         * Represents a consumer that receives the accepted part of a drained batch in one call
+         */
+        public interface BatchMessageConsumer extends MessageConsumer {
+            void consumeBatch(List<Message> messages);
+            
+            @Override
+            default void consume(Message message) {
+                consumeBatch(Collections.singletonList(message));
+            }
+        }
+        
         /**
          * Worker that processes messages for a consumer
          */
@@ -1045,8 +2526,12 @@ public class AdvancedNetworking {
                 while (running) {
                     try {
                         Message message = queue.take();
-                        if (consumer.canConsume(message)) {
-                            consumer.consume(message);
+                        try {
+                            if (consumer.canConsume(message)) {
+                                consumer.consume(message);
+                            }
+                        } finally {
+                            acknowledge(message);
                         }
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
@@ -1057,48 +2542,778 @@ public class AdvancedNetworking {
                 }
             }
         }
+        
+        /**
+         * Drains one ring partition in batches
+         */
+        private class PartitionWorker implements Runnable {
+            private final RingPartition partition;
+            
+            PartitionWorker(RingPartition partition) {
+                this.partition = partition;
+            }
+            
+            @Override
+            public void run() {
+                List<Message> batch = new ArrayList<>(batchSize);
+                int attempt = 0;
+                while (true) {
+                    partition.drainTo(batch, batchSize);
+                    if (batch.isEmpty()) {
+                        if (!running) {
+                            break;
+                        }
+                        idle(attempt++);
+                        continue;
+                    }
+                    
+                    attempt = 0;
+                    // Dispatch removes messages from the batch as consumers accept them
+                    List<Message> persisted = messageLog != null ? new ArrayList<>(batch) : null;
+                    dispatch(batch);
+                    batch.clear();
+                    if (persisted != null) {
+                        for (Message message : persisted) {
+                            acknowledge(message);
+                        }
+                    }
+                }
+            }
+        }
+        
+        /**
+         * A bounded ring of preallocated slots with one consumer.
+         * Producers claim sequences (with a CAS unless there is a single producer) and publish by
+         * stamping the slot with its lap number; the consumer reads every contiguous published slot
+         * and then advances its sequence once per batch.
+         */
+        private class RingPartition {
+            private final Message[] slots;
+            private final AtomicIntegerArray published;
+            private final int mask;
+            private final int indexShift;
+            private final boolean singleProducer;
+            private final AtomicLong claimed;
+            private final AtomicLong consumed;
+            private volatile long cachedConsumed;
+            
+            RingPartition(int capacity, boolean singleProducer) {
+                this.slots = new Message[capacity];
+                this.published = new AtomicIntegerArray(capacity);
+                for (int i = 0; i < capacity; i++) {
+                    published.set(i, -1);
+                }
+                this.mask = capacity - 1;
+                this.indexShift = Integer.numberOfTrailingZeros(capacity);
+                this.singleProducer = singleProducer;
+                this.claimed = new AtomicLong(-1);
+                this.consumed = new AtomicLong(-1);
+                this.cachedConsumed = -1;
+            }
+            
+            boolean publish(Message message, boolean block) {
+                long sequence;
+                int attempt = 0;
+                while (true) {
+                    long current = claimed.get();
+                    sequence = current + 1;
+                    long wrapPoint = sequence - slots.length;
+                    
+                    // The cached consumer position is only a hint, so a stale read just rechecks
+                    if (wrapPoint > cachedConsumed) {
+                        long position = consumed.get();
+                        cachedConsumed = position;
+                        if (wrapPoint > position) {
+                            if (!block) {
+                                return false;
+                            }
+                            backoff(attempt++);
+                            continue;
+                        }
+                    }
+                    
+                    if (singleProducer) {
+                        claimed.lazySet(sequence);
+                        break;
+                    }
+                    if (claimed.compareAndSet(current, sequence)) {
+                        break;
+                    }
+                }
+                
+                int index = (int) sequence & mask;
+                slots[index] = message;
+                published.lazySet(index, (int) (sequence >>> indexShift));
+                return true;
+            }
+            
+            void drainTo(List<Message> batch, int max) {
+                long next = consumed.get() + 1;
+                long end = next;
+                while (end - next < max) {
+                    int index = (int) end & mask;
+                    if (published.get(index) != (int) (end >>> indexShift)) {
+                        break;
+                    }
+                    batch.add(slots[index]);
+                    slots[index] = null;
+                    end++;
+                }
+                if (end > next) {
+                    consumed.lazySet(end - 1);
+                }
+            }
+            
+            long size() {
+                return Math.max(0, claimed.get() - consumed.get());
+            }
+        }
     }
     
     /**
-     * Represents a network packet for custom protocols
+     * Represents a durable, segmented append-only log of queue messages
+     * The active segment is a preallocated memory-mapped file; each record is
+     * [int body length][int CRC32 of body][long offset][long timestamp][topic][key][content],
+     * and a zero length marks the end of written data. A sparse offset index per segment is kept
+     * in memory and written next to the segment when it rolls. Consumer offsets are checkpointed
+     * to a separate file. Recovery validates the active segment record by record and truncates
+     * after the last intact record.
      */
-    public static class NetworkPacket {
-        private final int packetId;
-        private final byte[] data;
-        private final long timestamp;
-        private final String source;
-        private final String destination;
+    public static class MessageLog implements Closeable {
         
-        public NetworkPacket(int packetId, byte[] data, String source, String destination) {
-            this.packetId = packetId;
-            this.data = data != null ? data.clone() : new byte[0];
-            this.timestamp = System.currentTimeMillis();
-            this.source = source;
-            this.destination = destination;
+        /**
+         * When appended records are forced to disk
+         */
+        public enum FsyncPolicy {
+            EVERY_MESSAGE,
+            EVERY_BATCH,
+            INTERVAL
         }
         
-        public int getPacketId() {
-            return packetId;
-        }
+        private static final int RECORD_HEADER_SIZE = 8;
+        private static final int INDEX_INTERVAL_BYTES = 4096;
+        private static final String LOG_SUFFIX = ".log";
+        private static final String INDEX_SUFFIX = ".index";
+        private static final String CHECKPOINT_FILE = "offsets.checkpoint";
         
-        public byte[] getData() {
-            return data.clone();
-        }
+        private final File directory;
+        private final int segmentSize;
+        private final FsyncPolicy fsyncPolicy;
+        private final int fsyncBatchSize;
+        private final long retentionMillis;
+        private final TreeMap<Long, Segment> segments;
+        private final Map<String, Long> committedOffsets;
+        private final ScheduledExecutorService flusher;
+        private final CRC32 crc;
+        private Segment active;
+        private long nextOffset;
+        private int unflushedMessages;
+        private volatile boolean offsetsDirty;
+        private volatile boolean closed;
         
-        public long getTimestamp() {
-            return timestamp;
+        /**
+         * Opens or creates a log
+         * @param segmentSize bytes per segment file
+         * @param fsyncBatchSize messages per fsync under EVERY_BATCH
+         * @param flushIntervalMillis period of the background flush (INTERVAL policy, EVERY_BATCH tail, offset checkpoints, retention)
+         * @param retentionMillis age after which rolled segments are deleted, 0 to keep everything
+         */
+        public MessageLog(File directory, int segmentSize, FsyncPolicy fsyncPolicy, int fsyncBatchSize,
+                          long flushIntervalMillis, long retentionMillis) throws IOException {
+            this.directory = directory;
+            this.segmentSize = segmentSize;
+            this.fsyncPolicy = fsyncPolicy;
+            this.fsyncBatchSize = Math.max(1, fsyncBatchSize);
+            this.retentionMillis = retentionMillis;
+            this.segments = new TreeMap<>();
+            this.committedOffsets = new ConcurrentHashMap<>();
+            this.crc = new CRC32();
+            
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create log directory " + directory);
+            }
+            load();
+            
+            this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "MessageLog-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (flushIntervalMillis > 0) {
+                flusher.scheduleWithFixedDelay(this::backgroundFlush, flushIntervalMillis, flushIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+            }
         }
         
-        public String getSource() {
-            return source;
+        /**
+         * Appends a message and returns its offset
+         */
+        public synchronized long append(String topic, String key, String content, long timestamp) throws IOException {
+            long offset = write(topic, key, content, timestamp);
+            if (fsyncPolicy == FsyncPolicy.EVERY_MESSAGE
+                || (fsyncPolicy == FsyncPolicy.EVERY_BATCH && ++unflushedMessages >= fsyncBatchSize)) {
+                flush();
+            }
+            return offset;
         }
         
-        public String getDestination() {
-            return destination;
+        private long write(String topic, String key, String content, long timestamp) throws IOException {
+            if (closed) {
+                throw new IOException("Message log is closed");
+            }
+            
+            byte[] topicBytes = encodeShortString(topic);
+            byte[] keyBytes = encodeShortString(key);
+            byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+            int bodySize = 8 + 8 + 2 + topicBytes.length + 2 + keyBytes.length + contentBytes.length;
+            int recordSize = RECORD_HEADER_SIZE + bodySize;
+            if (recordSize + 4 > segmentSize) {
+                throw new IOException("Message of " + recordSize + " bytes does not fit in a segment");
+            }
+            if (active.writePosition + recordSize + 4 > segmentSize) {
+                roll();
+            }
+            
+            long offset = nextOffset;
+            MappedByteBuffer map = active.map;
+            int position = active.writePosition;
+            
+            map.position(position + RECORD_HEADER_SIZE);
+            map.putLong(offset)
+                .putLong(timestamp)
+                .putShort((short) topicBytes.length)
+                .put(topicBytes)
+                .putShort((short) keyBytes.length)
+                .put(keyBytes)
+                .put(contentBytes);
+            // End-of-data marker, so recovery never mistakes stale bytes for a record
+            map.putInt(0);
+            
+            crc.reset();
+            crc.update(map.duplicate().position(position + RECORD_HEADER_SIZE).limit(position + recordSize));
+            map.putInt(position + 4, (int) crc.getValue());
+            // Length last: a record is visible to recovery only once it is complete
+            map.putInt(position, bodySize);
+            
+            active.append(offset, position, recordSize, timestamp);
+            nextOffset = offset + 1;
+            return offset;
         }
         
         /**
-         * Serializes the packet to bytes
+         * Forces appended records of the active segment to disk
+         */
+        public synchronized void flush() {
+            if (active != null && active.flushedPosition < active.writePosition) {
+                active.map.force(active.flushedPosition, active.writePosition - active.flushedPosition);
+                active.flushedPosition = active.writePosition;
+            }
+            unflushedMessages = 0;
+        }
+        
+        /**
+         * Replays every record from the given offset up to the end of the log
+         */
+        public void replay(long fromOffset, RecordHandler handler) throws IOException {
+            List<Segment> snapshot;
+            long end;
+            synchronized (this) {
+                Long floor = segments.floorKey(fromOffset);
+                snapshot = new ArrayList<>(segments.tailMap(floor != null ? floor : Long.MIN_VALUE, true).values());
+                end = nextOffset;
+            }
+            
+            for (Segment segment : snapshot) {
+                ByteBuffer buffer = segment.readView();
+                buffer.position(segment.positionFor(fromOffset));
+                
+                while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                    int bodySize = buffer.getInt(buffer.position());
+                    if (bodySize <= 0) {
+                        break;
+                    }
+                    buffer.position(buffer.position() + RECORD_HEADER_SIZE);
+                    int bodyEnd = buffer.position() + bodySize;
+                    
+                    long offset = buffer.getLong();
+                    if (offset >= end) {
+                        return;
+                    }
+                    long timestamp = buffer.getLong();
+                    String topic = readShortString(buffer);
+                    String key = readShortString(buffer);
+                    byte[] content = new byte[bodyEnd - buffer.position()];
+                    buffer.get(content);
+                    
+                    if (offset >= fromOffset) {
+                        handler.onRecord(offset, topic, key, new String(content, StandardCharsets.UTF_8), timestamp);
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Records that a consumer has processed everything up to and including the offset
+         */
+        public void commitOffset(String consumer, long offset) {
+            committedOffsets.merge(consumer, offset, Math::max);
+            offsetsDirty = true;
+        }
+        
+        /**
+         * Gets the last committed offset of a consumer, or -1
+         */
+        public long getCommittedOffset(String consumer) {
+            return committedOffsets.getOrDefault(consumer, -1L);
+        }
+        
+        /**
+         * Writes committed consumer offsets to the checkpoint file atomically
+         */
+        public synchronized void checkpointOffsets() throws IOException {
+            offsetsDirty = false;
+            File temp = new File(directory, CHECKPOINT_FILE + ".tmp");
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> entry : committedOffsets.entrySet()) {
+                    writer.write(URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8) + " " + entry.getValue() + "\n");
+                }
+            }
+            java.nio.file.Files.move(temp.toPath(), new File(directory, CHECKPOINT_FILE).toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        }
+        
+        /**
+         * Deletes rolled segments whose newest message is older than the retention period
+         * @return number of deleted segments
+         */
+        public synchronized int applyRetention() {
+            if (retentionMillis <= 0) {
+                return 0;
+            }
+            
+            long cutoff = System.currentTimeMillis() - retentionMillis;
+            int deleted = 0;
+            Iterator<Segment> iterator = segments.values().iterator();
+            while (iterator.hasNext()) {
+                Segment segment = iterator.next();
+                if (segment == active || segment.maxTimestamp >= cutoff) {
+                    break;
+                }
+                iterator.remove();
+                segment.delete();
+                deleted++;
+            }
+            return deleted;
+        }
+        
+        /**
+         * Gets the offset the next message will get
+         */
+        public synchronized long getNextOffset() {
+            return nextOffset;
+        }
+        
+        /**
+         * Gets the oldest offset still in the log
+         */
+        public synchronized long getStartOffset() {
+            return segments.firstKey();
+        }
+        
+        /**
+         * Gets the number of segment files
+         */
+        public synchronized int getSegmentCount() {
+            return segments.size();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            flusher.shutdownNow();
+            synchronized (this) {
+                flush();
+                active.writeIndex();
+                checkpointOffsets();
+                for (Segment segment : segments.values()) {
+                    segment.closeChannel();
+                }
+            }
+        }
+        
+        private void backgroundFlush() {
+            try {
+                // Also syncs an EVERY_BATCH tail that never filled a batch
+                if (fsyncPolicy != FsyncPolicy.EVERY_MESSAGE) {
+                    flush();
+                }
+                if (offsetsDirty) {
+                    checkpointOffsets();
+                }
+                applyRetention();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Message log flush failed: " + e.getMessage());
+            }
+        }
+        
+        /**
+         * Opens existing segments, recovers the last one and loads consumer offsets
+         */
+        private void load() throws IOException {
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(LOG_SUFFIX));
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    long baseOffset = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+                    segments.put(baseOffset, new Segment(baseOffset, file));
+                }
+            }
+            
+            if (segments.isEmpty()) {
+                active = openSegment(0);
+                nextOffset = 0;
+            } else {
+                for (Segment segment : segments.headMap(segments.lastKey()).values()) {
+                    if (!segment.readIndex()) {
+                        segment.recover();
+                    }
+                }
+                active = segments.lastEntry().getValue();
+                active.mapForWrite(segmentSize);
+                active.recover();
+                nextOffset = active.lastOffset + 1;
+            }
+            
+            File checkpoint = new File(directory, CHECKPOINT_FILE);
+            if (checkpoint.isFile()) {
+                for (String line : java.nio.file.Files.readAllLines(checkpoint.toPath(), StandardCharsets.UTF_8)) {
+                    int separator = line.lastIndexOf(' ');
+                    if (separator > 0) {
+                        committedOffsets.put(URLDecoder.decode(line.substring(0, separator), StandardCharsets.UTF_8),
+                            Long.parseLong(line.substring(separator + 1)));
+                    }
+                }
+            }
+        }
+        
+        private void roll() throws IOException {
+            flush();
+            active.writeIndex();
+            active.seal();
+            active = openSegment(nextOffset);
+            applyRetention();
+        }
+        
+        private Segment openSegment(long baseOffset) throws IOException {
+            Segment segment = new Segment(baseOffset, new File(directory, String.format("%020d", baseOffset) + LOG_SUFFIX));
+            segment.mapForWrite(segmentSize);
+            segment.lastOffset = baseOffset - 1;
+            segments.put(baseOffset, segment);
+            return segment;
+        }
+        
+        private static byte[] encodeShortString(String value) throws IOException {
+            byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IOException("Topic or key is too long");
+            }
+            return bytes;
+        }
+        
+        private static String readShortString(ByteBuffer buffer) {
+            byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        
+        /**
+         * Receives replayed records
+         */
+        @FunctionalInterface
+        public interface RecordHandler {
+            void onRecord(long offset, String topic, String key, String content, long timestamp);
+        }
+        
+        /**
+         * One segment file with its sparse offset index
+         */
+        private static class Segment {
+            private final long baseOffset;
+            private final File file;
+            private final File indexFile;
+            private final List<long[]> index;
+            private FileChannel channel;
+            private MappedByteBuffer map;
+            private int writePosition;
+            private int flushedPosition;
+            private int lastIndexedPosition;
+            private long lastOffset;
+            private long maxTimestamp;
+            
+            Segment(long baseOffset, File file) {
+                this.baseOffset = baseOffset;
+                this.file = file;
+                String name = file.getName();
+                this.indexFile = new File(file.getParentFile(), name.substring(0, name.length() - LOG_SUFFIX.length()) + INDEX_SUFFIX);
+                this.index = new ArrayList<>();
+                this.lastOffset = baseOffset - 1;
+                this.lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+            }
+            
+            void mapForWrite(int size) throws IOException {
+                channel = FileChannel.open(file.toPath(), java.nio.file.StandardOpenOption.CREATE,
+                    java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE);
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+            }
+            
+            void append(long offset, int position, int recordSize, long timestamp) {
+                if (position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+                    index.add(new long[] {offset, position});
+                    lastIndexedPosition = position;
+                }
+                writePosition = position + recordSize;
+                lastOffset = offset;
+                maxTimestamp = Math.max(maxTimestamp, timestamp);
+            }
+            
+            /**
+             * Finds the file position of the last indexed record at or before the offset
+             */
+            int positionFor(long offset) {
+                int low = 0;
+                int high = index.size() - 1;
+                int position = 0;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    long[] entry = index.get(mid);
+                    if (entry[0] <= offset) {
+                        position = (int) entry[1];
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                return position;
+            }
+            
+            ByteBuffer readView() throws IOException {
+                // Replay runs outside the log lock, so the segment may be sealed meanwhile
+                MappedByteBuffer current = map;
+                if (current != null) {
+                    return current.duplicate().limit(writePosition).position(0);
+                }
+                try (FileChannel reader = FileChannel.open(file.toPath(), java.nio.file.StandardOpenOption.READ)) {
+                    return reader.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(reader.size(), writePosition));
+                }
+            }
+            
+            /**
+             * Scans records from the start, keeping every intact one and cutting the log after it
+             */
+            void recover() throws IOException {
+                index.clear();
+                lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+                lastOffset = baseOffset - 1;
+                maxTimestamp = 0;
+                
+                ByteBuffer buffer;
+                if (map != null) {
+                    buffer = map.duplicate().clear();
+                } else {
+                    try (FileChannel reader = FileChannel.open(file.toPath(), java.nio.file.StandardOpenOption.READ)) {
+                        buffer = reader.map(FileChannel.MapMode.READ_ONLY, 0, reader.size());
+                    }
+                }
+                
+                CRC32 checksum = new CRC32();
+                int position = 0;
+                while (position + RECORD_HEADER_SIZE <= buffer.limit()) {
+                    int bodySize = buffer.getInt(position);
+                    if (bodySize < 16 || position + RECORD_HEADER_SIZE + bodySize > buffer.limit()) {
+                        break;
+                    }
+                    checksum.reset();
+                    checksum.update(buffer.duplicate().position(position + RECORD_HEADER_SIZE)
+                        .limit(position + RECORD_HEADER_SIZE + bodySize));
+                    long offset = buffer.getLong(position + RECORD_HEADER_SIZE);
+                    if ((int) checksum.getValue() != buffer.getInt(position + 4) || offset != lastOffset + 1) {
+                        break;
+                    }
+                    append(offset, position, RECORD_HEADER_SIZE + bodySize, buffer.getLong(position + RECORD_HEADER_SIZE + 8));
+                    position += RECORD_HEADER_SIZE + bodySize;
+                }
+                writePosition = position;
+                flushedPosition = position;
+                
+                if (map != null && position + 4 <= map.limit()) {
+                    // Drop a torn tail record
+                    map.putInt(position, 0);
+                }
+            }
+            
+            void writeIndex() throws IOException {
+                try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+                    output.writeLong(lastOffset);
+                    output.writeLong(maxTimestamp);
+                    output.writeInt(writePosition);
+                    output.writeInt(index.size());
+                    for (long[] entry : index) {
+                        output.writeLong(entry[0]);
+                        output.writeInt((int) entry[1]);
+                    }
+                }
+            }
+            
+            /**
+             * Loads a rolled segment's index; false if it is missing or unreadable
+             */
+            boolean readIndex() {
+                if (!indexFile.isFile()) {
+                    return false;
+                }
+                try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                    lastOffset = input.readLong();
+                    maxTimestamp = input.readLong();
+                    writePosition = input.readInt();
+                    flushedPosition = writePosition;
+                    int entries = input.readInt();
+                    index.clear();
+                    for (int i = 0; i < entries; i++) {
+                        index.add(new long[] {input.readLong(), input.readInt()});
+                    }
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            
+            /**
+             * Forces the whole mapping, end marker included, and releases the file once the segment rolls;
+             * later reads map it read-only
+             */
+            void seal() throws IOException {
+                if (map != null) {
+                    map.force();
+                    map = null;
+                }
+                closeChannel();
+            }
+            
+            void closeChannel() throws IOException {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+            }
+            
+            void delete() {
+                try {
+                    closeChannel();
+                } catch (IOException e) {
+                    System.err.println("Error closing segment " + file + ": " + e.getMessage());
+                }
+                map = null;
+                if (!file.delete() || (indexFile.exists() && !indexFile.delete())) {
+                    System.err.println("Could not delete segment " + file);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Represents a network packet for custom protocols
+     */
+    public static class NetworkPacket {
+        private final int packetId;
+        private final ByteBuffer payload;
+        private final long timestamp;
+        private final String source;
+        private final String destination;
+        private final PooledBuffer owner;
+        
+        public NetworkPacket(int packetId, byte[] data, String source, String destination) {
+            this(packetId, ByteBuffer.wrap(data != null ? data.clone() : new byte[0]), source, destination,
+                System.currentTimeMillis(), null);
+        }
+        
+        private NetworkPacket(int packetId, ByteBuffer payload, String source, String destination,
+                              long timestamp, PooledBuffer owner) {
+            this.packetId = packetId;
+            this.payload = payload.asReadOnlyBuffer();
+            this.timestamp = timestamp;
+            this.source = source;
+            this.destination = destination;
+            this.owner = owner;
+        }
+        
+        /**
+         * Creates a packet over the remaining bytes of the buffer without copying them.
+         * The caller must not modify the buffer contents while the packet is in use.
+         */
+        public static NetworkPacket wrap(int packetId, ByteBuffer payload, String source, String destination) {
+            return new NetworkPacket(packetId, payload.slice(), source, destination, System.currentTimeMillis(), null);
+        }
+        
+        public int getPacketId() {
+            return packetId;
+        }
+        
+        public byte[] getData() {
+            byte[] data = new byte[payload.remaining()];
+            payload.duplicate().get(data);
+            return data;
+        }
+        
+        /**
+         * Gets a read-only view of the payload, without copying
+         */
+        public ByteBuffer getPayload() {
+            return payload.duplicate();
+        }
+        
+        public int getPayloadLength() {
+            return payload.remaining();
+        }
+        
+        public long getTimestamp() {
+            return timestamp;
+        }
+        
+        public String getSource() {
+            return source;
+        }
+        
+        public String getDestination() {
+            return destination;
+        }
+        
+        /**
+         * Retains the pooled buffer backing this packet, if any
+         */
+        public NetworkPacket retain() {
+            if (owner != null) {
+                owner.retain();
+            }
+            return this;
+        }
+        
+        /**
+         * Releases the pooled buffer backing this packet, if any.
+         * Packets decoded by a PacketCodec.PacketReader must be released once handled.
+         */
+        public void release() {
+            if (owner != null) {
+                owner.release();
+            }
+        }
+        
+        /**
+         * Serializes the packet to bytes
          */
         public byte[] serialize() throws IOException {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -1108,36 +3323,272 @@ public class AdvancedNetworking {
             dos.writeUTF(source);
             dos.writeUTF(destination);
             dos.writeLong(timestamp);
-            dos.writeInt(data.length);
-            dos.write(data);
+            dos.writeInt(payload.remaining());
+            dos.write(getData());
+            
+            return baos.toByteArray();
+        }
+        
+        /**
+         * Deserializes a packet from bytes
+         */
+        public static NetworkPacket deserialize(byte[] bytes) throws IOException {
+            ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+            DataInputStream dis = new DataInputStream(bais);
+            
+            int packetId = dis.readInt();
+            String source = dis.readUTF();
+            String destination = dis.readUTF();
+            long timestamp = dis.readLong();
+            int dataLength = dis.readInt();
+            byte[] data = new byte[dataLength];
+            dis.readFully(data);
+            
+            return new NetworkPacket(packetId, ByteBuffer.wrap(data), source, destination, timestamp, null);
+        }
+        
+        @Override
+        public String toString() {
+            return "NetworkPacket{packetId=" + packetId + ", source='" + source +
+                   "', destination='" + destination + "', dataLength=" + payload.remaining() + "}";
+        }
+    }
+    
+    /**
+     * Represents a framed wire codec for network packets.
+     * Frame layout: int frame length, int packet id, long timestamp, unsigned short + UTF-8 source,
+     * unsigned short + UTF-8 destination, int payload length, payload.
+     * Writes gather the encoded header and the payload buffer in one call, and decoded packets are
+     * slices of the pooled read buffer, so payloads are never copied between the socket and the application.
+     */
+    public static class PacketCodec {
+        private static final int FIXED_HEADER_SIZE = 4 + 4 + 8 + 2 + 2 + 4;
+        private static final int MAX_CACHED_ENDPOINTS = 4096;
+        private static final int MAX_GATHER = 1024;
+        
+        // Endpoint names repeat across packets, so they are encoded and decoded once
+        private static final Map<String, byte[]> ENCODED_ENDPOINTS = new ConcurrentHashMap<>();
+        private static final Map<ByteBuffer, String> DECODED_ENDPOINTS = new ConcurrentHashMap<>();
+        
+        private final BufferPool bufferPool;
+        private final int maxFrameSize;
+        
+        public PacketCodec(BufferPool bufferPool, int maxFrameSize) {
+            this.bufferPool = bufferPool;
+            this.maxFrameSize = maxFrameSize;
+        }
+        
+        /**
+         * Writes a packet to a blocking channel
+         */
+        public long write(GatheringByteChannel channel, NetworkPacket packet) throws IOException {
+            return write(channel, Collections.singletonList(packet));
+        }
+        
+        /**
+         * Writes packets to a blocking channel with as few gathering writes as possible
+         */
+        public long write(GatheringByteChannel channel, List<NetworkPacket> packets) throws IOException {
+            ByteBuffer headers = bufferPool.acquire();
+            try {
+                List<ByteBuffer> parts = new ArrayList<>(packets.size() * 2);
+                long written = 0;
+                
+                for (NetworkPacket packet : packets) {
+                    byte[] source = encodeEndpoint(packet.getSource());
+                    byte[] destination = encodeEndpoint(packet.getDestination());
+                    int headerSize = FIXED_HEADER_SIZE + source.length + destination.length;
+                    int frameLength = headerSize - 4 + packet.getPayloadLength();
+                    if (headerSize > headers.capacity() || frameLength > maxFrameSize) {
+                        throw new IOException("Packet " + packet.getPacketId() + " exceeds the maximum frame size");
+                    }
+                    
+                    if (headers.remaining() < headerSize || parts.size() + 2 > MAX_GATHER) {
+                        // Header buffer is full: send what is encoded so far and reuse it
+                        written += writeFully(channel, parts);
+                        parts.clear();
+                        headers.clear();
+                    }
+                    
+                    int start = headers.position();
+                    headers.putInt(frameLength)
+                        .putInt(packet.getPacketId())
+                        .putLong(packet.getTimestamp())
+                        .putShort((short) source.length)
+                        .put(source)
+                        .putShort((short) destination.length)
+                        .put(destination)
+                        .putInt(packet.getPayloadLength());
+                    parts.add(headers.slice(start, headerSize));
+                    if (packet.getPayloadLength() > 0) {
+                        parts.add(packet.getPayload());
+                    }
+                }
+                
+                return written + writeFully(channel, parts);
+            } finally {
+                bufferPool.release(headers);
+            }
+        }
+        
+        /**
+         * Creates a reader that decodes packets from one channel
+         */
+        public PacketReader newReader() {
+            return new PacketReader();
+        }
+        
+        private static long writeFully(GatheringByteChannel channel, List<ByteBuffer> parts) throws IOException {
+            ByteBuffer[] buffers = parts.toArray(new ByteBuffer[0]);
+            long written = 0;
+            int offset = 0;
+            while (offset < buffers.length) {
+                written += channel.write(buffers, offset, buffers.length - offset);
+                while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                    offset++;
+                }
+            }
+            return written;
+        }
+        
+        private static byte[] encodeEndpoint(String endpoint) throws IOException {
+            String value = endpoint != null ? endpoint : "";
+            byte[] encoded = ENCODED_ENDPOINTS.get(value);
+            if (encoded == null) {
+                encoded = value.getBytes(StandardCharsets.UTF_8);
+                if (encoded.length > 0xFFFF) {
+                    throw new IOException("Endpoint name is too long");
+                }
+                if (ENCODED_ENDPOINTS.size() < MAX_CACHED_ENDPOINTS) {
+                    ENCODED_ENDPOINTS.put(value, encoded);
+                }
+            }
+            return encoded;
+        }
+        
+        private static String decodeEndpoint(ByteBuffer buffer) {
+            int length = Short.toUnsignedInt(buffer.getShort());
+            ByteBuffer bytes = buffer.slice(buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            
+            String endpoint = DECODED_ENDPOINTS.get(bytes);
+            if (endpoint == null) {
+                byte[] data = new byte[length];
+                bytes.get(data);
+                endpoint = new String(data, StandardCharsets.UTF_8);
+                if (DECODED_ENDPOINTS.size() < MAX_CACHED_ENDPOINTS) {
+                    DECODED_ENDPOINTS.put(ByteBuffer.wrap(data), endpoint);
+                }
+            }
+            return endpoint;
+        }
+        
+        /**
+         * Decodes packets from a channel into pooled, reference-counted buffers
+         */
+        public class PacketReader implements AutoCloseable {
+            private PooledBuffer current;
+            private boolean endOfStream;
+            
+            /**
+             * Reads once from the channel and returns every packet completed by the read.
+             * Each packet holds a reference to the read buffer until it is released.
+             */
+            public List<NetworkPacket> read(ReadableByteChannel channel) throws IOException {
+                if (current == null) {
+                    current = allocate(bufferPool.getBufferSize());
+                }
+                
+                ByteBuffer buffer = current.buffer();
+                if (channel.read(buffer) < 0) {
+                    endOfStream = true;
+                }
+                buffer.flip();
+                
+                List<NetworkPacket> packets = new ArrayList<>();
+                while (buffer.remaining() >= 4) {
+                    int frameLength = buffer.getInt(buffer.position());
+                    if (frameLength < FIXED_HEADER_SIZE - 4 || frameLength > maxFrameSize) {
+                        throw new IOException("Invalid frame length " + frameLength);
+                    }
+                    if (buffer.remaining() < 4 + frameLength) {
+                        break;
+                    }
+                    packets.add(decode(buffer, frameLength));
+                }
+                
+                carryOver(buffer);
+                return packets;
+            }
+            
+            /**
+             * Checks if the channel reached end of stream
+             */
+            public boolean isEndOfStream() {
+                return endOfStream;
+            }
             
-            return baos.toByteArray();
-        }
-        
-        /**
-         * Deserializes a packet from bytes
-         */
-        public static NetworkPacket deserialize(byte[] bytes) throws IOException {
-            ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-            DataInputStream dis = new DataInputStream(bais);
+            @Override
+            public void close() {
+                if (current != null) {
+                    current.release();
+                    current = null;
+                }
+            }
             
-            int packetId = dis.readInt();
-            String source = dis.readUTF();
-            String destination = dis.readUTF();
-            long timestamp = dis.readLong();
-            int dataLength = dis.readInt();
-            byte[] data = new byte[dataLength];
-            dis.readFully(data);
+            private NetworkPacket decode(ByteBuffer buffer, int frameLength) throws IOException {
+                int frameEnd = buffer.position() + 4 + frameLength;
+                try {
+                    buffer.position(buffer.position() + 4);
+                    int packetId = buffer.getInt();
+                    long timestamp = buffer.getLong();
+                    String source = decodeEndpoint(buffer);
+                    String destination = decodeEndpoint(buffer);
+                    int payloadLength = buffer.getInt();
+                    if (buffer.position() + payloadLength != frameEnd) {
+                        throw new IOException("Malformed frame for packet " + packetId);
+                    }
+                    
+                    ByteBuffer payload = buffer.slice(buffer.position(), payloadLength);
+                    buffer.position(frameEnd);
+                    return new NetworkPacket(packetId, payload, source, destination, timestamp, current.retain());
+                } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+                    throw new IOException("Malformed frame", e);
+                }
+            }
             
-            NetworkPacket packet = new NetworkPacket(packetId, data, source, destination);
-            // Note: We can't directly set timestamp, so we'll have to live with the current time
-            return packet;
-        }
-        
-        @Override
-        public String toString() {
-            return "NetworkPacket{packetId=" + packetId + ", source='" + source + 
-                   "', destination='" + destination + "', dataLength=" + data.length + "}";
+            /**
+             * Keeps the incomplete tail frame for the next read
+             */
+            private void carryOver(ByteBuffer buffer) {
+                if (!buffer.hasRemaining()) {
+                    current.release();
+                    current = null;
+                    return;
+                }
+                
+                int needed = buffer.remaining() >= 4
+                    ? 4 + buffer.getInt(buffer.position())
+                    : bufferPool.getBufferSize();
+                
+                // Decoded packets still point into this buffer, so it can only be compacted when unshared
+                if (current.refCount() == 1 && buffer.capacity() >= needed) {
+                    buffer.compact();
+                    return;
+                }
+                
+                PooledBuffer next = allocate(Math.max(needed, bufferPool.getBufferSize()));
+                next.buffer().put(buffer);
+                current.release();
+                current = next;
+            }
+            
+            private PooledBuffer allocate(int size) {
+                if (size <= bufferPool.getBufferSize()) {
+                    return bufferPool.acquirePooled();
+                }
+                return new PooledBuffer(ByteBuffer.allocateDirect(size), null);
+            }
         }
     }
     
@@ -1223,29 +3674,47 @@ public class AdvancedNetworking {
     
     /**
      * Represents a network load balancer
+     * Selection reads an immutable snapshot of the backends without locking; adding or removing a
+     * server publishes a new snapshot. Requests taken through acquire() are tracked in flight and
+     * their outcomes, directly or through an attached NetworkMonitor, drive the peak EWMA latency,
+     * the success-rate weight and passive ejection of failing backends.
      */
-    public static class LoadBalancer {
-        private final List<String> servers;
+    public static class LoadBalancer implements NetworkMonitor.ObservationListener {
+        private static final double DECAY_TIME_NANOS = TimeUnit.SECONDS.toNanos(10);
+        private static final double SUCCESS_RATE_ALPHA = 0.05;
+        private static final double MIN_HEALTH = 0.05;
+        private static final int MAX_SCHEDULE_LENGTH = 4096;
+        private static final int SCHEDULE_WEIGHT_RESOLUTION = 20;
+        private static final long ANALYSIS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+        private static final int OUTLIER_MIN_REQUESTS = 20;
+        private static final int OUTLIER_MIN_BACKENDS = 3;
+        private static final double OUTLIER_STDEV_FACTOR = 1.9;
+        
         private final LoadBalancingAlgorithm algorithm;
-        private final Map<String, Integer> serverWeights;
         private final AtomicInteger currentIndex;
+        private final AtomicLong lastAnalysis;
+        private volatile Snapshot snapshot;
+        private volatile NetworkMonitor monitor;
+        private volatile int consecutiveFailureThreshold;
+        private volatile long baseEjectionNanos;
+        private volatile int maxEjectionPercent;
         
         public enum LoadBalancingAlgorithm {
-            ROUND_ROBIN, WEIGHTED_ROUND_ROBIN, LEAST_CONNECTIONS, IP_HASH
+            ROUND_ROBIN, WEIGHTED_ROUND_ROBIN, LEAST_CONNECTIONS, IP_HASH, POWER_OF_TWO_CHOICES, PEAK_EWMA
         }
         
         public LoadBalancer() {
-            this.servers = new ArrayList<>();
-            this.algorithm = LoadBalancingAlgorithm.ROUND_ROBIN;
-            this.serverWeights = new HashMap<>();
-            this.currentIndex = new AtomicInteger(0);
+            this(LoadBalancingAlgorithm.ROUND_ROBIN);
         }
         
         public LoadBalancer(LoadBalancingAlgorithm algorithm) {
-            this.servers = new ArrayList<>();
             this.algorithm = algorithm;
-            this.serverWeights = new HashMap<>();
             this.currentIndex = new AtomicInteger(0);
+            this.lastAnalysis = new AtomicLong(System.nanoTime());
+            this.snapshot = new Snapshot(new Backend[0]);
+            this.consecutiveFailureThreshold = 5;
+            this.baseEjectionNanos = TimeUnit.SECONDS.toNanos(30);
+            this.maxEjectionPercent = 50;
         }
         
         /**
@@ -1256,83 +3725,399 @@ public class AdvancedNetworking {
         }
         
         /**
-         * Adds a server with weight to the load balancer
+         * Adds a server with weight to the load balancer; adding a known server updates its weight
          */
-        public void addServer(String serverAddress, int weight) {
-            servers.add(serverAddress);
-            serverWeights.put(serverAddress, weight);
+        public synchronized void addServer(String serverAddress, int weight) {
+            Backend[] current = snapshot.backends;
+            Backend[] next;
+            int existing = indexOf(current, serverAddress);
+            if (existing >= 0) {
+                current[existing].weight = Math.max(1, weight);
+                next = current.clone();
+            } else {
+                next = Arrays.copyOf(current, current.length + 1);
+                next[current.length] = new Backend(serverAddress, Math.max(1, weight));
+            }
+            snapshot = new Snapshot(next);
             System.out.println("Added server " + serverAddress + " with weight " + weight);
         }
         
         /**
          * Removes a server from the load balancer
          */
-        public void removeServer(String serverAddress) {
-            servers.remove(serverAddress);
-            serverWeights.remove(serverAddress);
+        public synchronized void removeServer(String serverAddress) {
+            Backend[] current = snapshot.backends;
+            int index = indexOf(current, serverAddress);
+            if (index < 0) {
+                return;
+            }
+            
+            Backend[] next = new Backend[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, next.length - index);
+            snapshot = new Snapshot(next);
             System.out.println("Removed server " + serverAddress);
         }
         
+        /**
+         * Feeds this balancer from a monitor: every success and error recorded by the monitor
+         * updates the matching backend
+         */
+        public void attachMonitor(NetworkMonitor monitor) {
+            NetworkMonitor previous = this.monitor;
+            if (previous != null) {
+                previous.removeListener(this);
+            }
+            this.monitor = monitor;
+            if (monitor != null) {
+                monitor.addListener(this);
+            }
+        }
+        
+        /**
+         * Configures passive ejection
+         * @param consecutiveFailures failures in a row that eject a backend
+         * @param baseEjectionMillis ejection time, multiplied by the number of times the backend was ejected
+         * @param maxEjectionPercent upper bound on the share of backends ejected at once
+         */
+        public void configureOutlierDetection(int consecutiveFailures, long baseEjectionMillis, int maxEjectionPercent) {
+            this.consecutiveFailureThreshold = Math.max(1, consecutiveFailures);
+            this.baseEjectionNanos = TimeUnit.MILLISECONDS.toNanos(baseEjectionMillis);
+            this.maxEjectionPercent = Math.max(0, Math.min(100, maxEjectionPercent));
+        }
+        
         /**
          * Selects a server for a request
          */
         public String selectServer(String clientIp) {
-            if (servers.isEmpty()) {
+            return select(clientIp).address;
+        }
+        
+        /**
+         * Selects a server and tracks the request until the returned lease completes
+         */
+        public ServerLease acquire(String clientIp) {
+            Backend backend = select(clientIp);
+            backend.active.incrementAndGet();
+            return new ServerLease(backend);
+        }
+        
+        @Override
+        public void onSuccess(String server, long responseTimeNanos) {
+            Backend backend = snapshot.byAddress.get(server);
+            if (backend == null) {
+                return;
+            }
+            
+            long now = System.nanoTime();
+            backend.observeLatency(responseTimeNanos, now);
+            backend.observeOutcome(true);
+            backend.consecutiveFailures.set(0);
+            backend.windowSuccesses.increment();
+            maybeAnalyze(now);
+        }
+        
+        @Override
+        public void onError(String server) {
+            Backend backend = snapshot.byAddress.get(server);
+            if (backend == null) {
+                return;
+            }
+            
+            long now = System.nanoTime();
+            backend.observeOutcome(false);
+            backend.windowFailures.increment();
+            if (backend.consecutiveFailures.incrementAndGet() >= consecutiveFailureThreshold) {
+                eject(backend, now);
+            }
+            maybeAnalyze(now);
+        }
+        
+        private Backend select(String clientIp) {
+            Snapshot current = snapshot;
+            Backend[] backends = current.backends;
+            if (backends.length == 0) {
                 throw new IllegalStateException("No servers available");
             }
             
+            long now = System.nanoTime();
             switch (algorithm) {
-                case ROUND_ROBIN:
-                    return selectRoundRobin();
                 case WEIGHTED_ROUND_ROBIN:
-                    return selectWeightedRoundRobin();
+                    return selectWeightedRoundRobin(current, now);
                 case LEAST_CONNECTIONS:
-                    return selectLeastConnections();
+                    return selectLeastConnections(backends, now);
                 case IP_HASH:
-                    return selectIpHash(clientIp);
+                    return selectIpHash(backends, clientIp, now);
+                case POWER_OF_TWO_CHOICES:
+                case PEAK_EWMA:
+                    return selectPowerOfTwo(backends, now);
+                case ROUND_ROBIN:
                 default:
-                    return selectRoundRobin();
+                    return selectRoundRobin(backends, now);
             }
         }
         
         /**
-         * Selects a server using round-robin algorithm
+         * Selects a server using round-robin algorithm, skipping ejected servers
+         */
+        private Backend selectRoundRobin(Backend[] backends, long now) {
+            int start = Math.floorMod(currentIndex.getAndIncrement(), backends.length);
+            return firstAvailable(backends, start, now);
+        }
+        
+        /**
+         * Selects a server using smooth weighted round-robin over the effective weights,
+         * as of the last outcome analysis
+         */
+        private Backend selectWeightedRoundRobin(Snapshot current, long now) {
+            int[] schedule = current.schedule;
+            int start = schedule[Math.floorMod(currentIndex.getAndIncrement(), schedule.length)];
+            return firstAvailable(current.backends, start, now);
+        }
+        
+        /**
+         * Selects the server with the fewest requests in flight relative to its effective weight
+         */
+        private Backend selectLeastConnections(Backend[] backends, long now) {
+            Backend best = null;
+            double bestLoad = Double.MAX_VALUE;
+            int offset = ThreadLocalRandom.current().nextInt(backends.length);
+            for (int i = 0; i < backends.length; i++) {
+                // Start at a random position so ties do not all land on the first server
+                Backend backend = backends[(offset + i) % backends.length];
+                if (backend.isEjected(now)) {
+                    continue;
+                }
+                double load = (backend.active.get() + 1) / backend.effectiveWeight();
+                if (load < bestLoad) {
+                    best = backend;
+                    bestLoad = load;
+                }
+            }
+            return best != null ? best : backends[offset];
+        }
+        
+        /**
+         * Selects a server using IP hash; an ejected server's clients move to the next available one
+         */
+        private Backend selectIpHash(Backend[] backends, String clientIp, long now) {
+            int hash = clientIp != null ? clientIp.hashCode() : 0;
+            return firstAvailable(backends, Math.floorMod(hash, backends.length), now);
+        }
+        
+        /**
+         * Samples two distinct available servers and keeps the cheaper one: fewest requests in
+         * flight, or lowest peak EWMA latency times load for PEAK_EWMA
          */
-        private String selectRoundRobin() {
-            int index = currentIndex.getAndIncrement() % servers.size();
-            return servers.get(index);
+        private Backend selectPowerOfTwo(Backend[] backends, long now) {
+            if (backends.length == 1) {
+                return backends[0];
+            }
+            
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Backend first = null;
+            Backend second = null;
+            for (int attempt = 0; attempt < 4 && second == null; attempt++) {
+                int i = random.nextInt(backends.length);
+                int j = random.nextInt(backends.length - 1);
+                if (j >= i) {
+                    j++;
+                }
+                Backend a = backends[i];
+                Backend b = backends[j];
+                boolean aUp = !a.isEjected(now);
+                boolean bUp = !b.isEjected(now);
+                if (aUp && bUp) {
+                    first = a;
+                    second = b;
+                } else if (first == null && (aUp || bUp)) {
+                    first = aUp ? a : b;
+                }
+            }
+            
+            if (second == null) {
+                return first != null ? first : firstAvailable(backends, random.nextInt(backends.length), now);
+            }
+            return cost(first, now) <= cost(second, now) ? first : second;
+        }
+        
+        private double cost(Backend backend, long now) {
+            int active = backend.active.get();
+            if (algorithm != LoadBalancingAlgorithm.PEAK_EWMA) {
+                return (active + 1) / backend.effectiveWeight();
+            }
+            
+            double latency = backend.decayedLatency(now);
+            if (latency == 0) {
+                // No latency observed yet: try it while idle, penalise it once loaded
+                return active == 0 ? 0 : Double.MAX_VALUE / 2;
+            }
+            return latency * (active + 1) / backend.effectiveWeight();
         }
         
         /**
-         * Selects a server using weighted round-robin algorithm
+         * Returns the first server at or after start that is not ejected, or the server at start
+         * if all of them are ejected
          */
-        private String selectWeightedRoundRobin() {
-            // Simplified implementation - in practice, you would use a more sophisticated algorithm
-            return selectRoundRobin();
+        private static Backend firstAvailable(Backend[] backends, int start, long now) {
+            for (int i = 0; i < backends.length; i++) {
+                Backend backend = backends[(start + i) % backends.length];
+                if (!backend.isEjected(now)) {
+                    return backend;
+                }
+            }
+            return backends[start];
+        }
+        
+        private void eject(Backend backend, long now) {
+            Backend[] backends = snapshot.backends;
+            long ejectionNanos;
+            synchronized (this) {
+                if (backend.isEjected(now)) {
+                    return;
+                }
+                int ejected = 0;
+                for (Backend other : backends) {
+                    if (other.isEjected(now)) {
+                        ejected++;
+                    }
+                }
+                if ((ejected + 1) * 100 > backends.length * maxEjectionPercent) {
+                    return;
+                }
+                
+                backend.ejectionCount++;
+                ejectionNanos = baseEjectionNanos * backend.ejectionCount;
+                backend.ejectedUntil = now + ejectionNanos;
+                backend.consecutiveFailures.set(0);
+            }
+            System.err.println("Ejected server " + backend.address + " for "
+                + TimeUnit.NANOSECONDS.toMillis(ejectionNanos) + "ms");
         }
         
         /**
-         * Selects a server with the least connections
+         * Success-rate outlier detection, run at most once per interval by whichever thread
+         * records an outcome after the interval has passed
          */
-        private String selectLeastConnections() {
-            // Simplified implementation - in practice, you would track connection counts
-            return selectRoundRobin();
+        private void maybeAnalyze(long now) {
+            long last = lastAnalysis.get();
+            if (now - last < ANALYSIS_INTERVAL_NANOS || !lastAnalysis.compareAndSet(last, now)) {
+                return;
+            }
+            
+            Backend[] backends = snapshot.backends;
+            double[] rates = new double[backends.length];
+            int measured = 0;
+            double sum = 0;
+            for (int i = 0; i < backends.length; i++) {
+                Backend backend = backends[i];
+                long successes = backend.windowSuccesses.sumThenReset();
+                long failures = backend.windowFailures.sumThenReset();
+                rates[i] = -1;
+                if (successes + failures >= OUTLIER_MIN_REQUESTS) {
+                    rates[i] = (double) successes / (successes + failures);
+                    sum += rates[i];
+                    measured++;
+                }
+                if (!backend.isEjected(now) && backend.ejectionCount > 0) {
+                    // A healthy interval shortens the next ejection
+                    synchronized (this) {
+                        backend.ejectionCount--;
+                    }
+                }
+            }
+            refreshSchedule();
+            if (measured < OUTLIER_MIN_BACKENDS) {
+                return;
+            }
+            
+            double mean = sum / measured;
+            double variance = 0;
+            for (double rate : rates) {
+                if (rate >= 0) {
+                    variance += (rate - mean) * (rate - mean);
+                }
+            }
+            double threshold = mean - OUTLIER_STDEV_FACTOR * Math.sqrt(variance / measured);
+            for (int i = 0; i < backends.length; i++) {
+                if (rates[i] >= 0 && rates[i] < threshold) {
+                    eject(backends[i], now);
+                }
+            }
         }
         
         /**
-         * Selects a server using IP hash
+         * Rebuilds the weighted round-robin schedule when the effective weights have moved
          */
-        private String selectIpHash(String clientIp) {
-            int hash = clientIp.hashCode();
-            int index = Math.abs(hash) % servers.size();
-            return servers.get(index);
+        private void refreshSchedule() {
+            if (algorithm != LoadBalancingAlgorithm.WEIGHTED_ROUND_ROBIN) {
+                return;
+            }
+            synchronized (this) {
+                Snapshot current = snapshot;
+                if (!Arrays.equals(current.weights, Snapshot.scheduleWeights(current.backends))) {
+                    snapshot = new Snapshot(current.backends);
+                }
+            }
+        }
+        
+        private static int indexOf(Backend[] backends, String address) {
+            for (int i = 0; i < backends.length; i++) {
+                if (backends[i].address.equals(address)) {
+                    return i;
+                }
+            }
+            return -1;
         }
         
         /**
          * Gets the list of servers
          */
         public List<String> getServers() {
-            return new ArrayList<>(servers);
+            Backend[] backends = snapshot.backends;
+            List<String> servers = new ArrayList<>(backends.length);
+            for (Backend backend : backends) {
+                servers.add(backend.address);
+            }
+            return servers;
+        }
+        
+        /**
+         * Gets the servers that are currently ejected
+         */
+        public List<String> getEjectedServers() {
+            long now = System.nanoTime();
+            List<String> ejected = new ArrayList<>();
+            for (Backend backend : snapshot.backends) {
+                if (backend.isEjected(now)) {
+                    ejected.add(backend.address);
+                }
+            }
+            return ejected;
+        }
+        
+        /**
+         * Gets the number of requests in flight to a server
+         */
+        public int getActiveRequests(String server) {
+            Backend backend = snapshot.byAddress.get(server);
+            return backend != null ? backend.active.get() : 0;
+        }
+        
+        /**
+         * Gets the peak EWMA latency estimate of a server in milliseconds
+         */
+        public double getLatencyEstimate(String server) {
+            Backend backend = snapshot.byAddress.get(server);
+            return backend != null ? backend.decayedLatency(System.nanoTime()) / 1_000_000.0 : 0;
+        }
+        
+        /**
+         * Gets the configured weight scaled by the observed success rate
+         */
+        public double getEffectiveWeight(String server) {
+            Backend backend = snapshot.byAddress.get(server);
+            return backend != null ? backend.effectiveWeight() : 0;
         }
         
         /**
@@ -1341,32 +4126,251 @@ public class AdvancedNetworking {
         public LoadBalancingAlgorithm getAlgorithm() {
             return algorithm;
         }
+        
+        /**
+         * Represents one request sent to a selected server
+         */
+        public class ServerLease implements AutoCloseable {
+            private final Backend backend;
+            private final long startNanos;
+            private final AtomicBoolean completed;
+            
+            ServerLease(Backend backend) {
+                this.backend = backend;
+                this.startNanos = System.nanoTime();
+                this.completed = new AtomicBoolean(false);
+            }
+            
+            public String getServer() {
+                return backend.address;
+            }
+            
+            /**
+             * Completes the request successfully, recording its latency
+             */
+            public void success() {
+                if (complete()) {
+                    long latency = System.nanoTime() - startNanos;
+                    NetworkMonitor current = monitor;
+                    if (current != null) {
+                        current.recordSuccessNanos(backend.address, latency);
+                    } else {
+                        onSuccess(backend.address, latency);
+                    }
+                }
+            }
+            
+            /**
+             * Completes the request as failed
+             */
+            public void failure() {
+                if (complete()) {
+                    NetworkMonitor current = monitor;
+                    if (current != null) {
+                        current.recordError(backend.address);
+                    } else {
+                        onError(backend.address);
+                    }
+                }
+            }
+            
+            /**
+             * Releases the server without recording an outcome if none was recorded
+             */
+            @Override
+            public void close() {
+                complete();
+            }
+            
+            private boolean complete() {
+                if (!completed.compareAndSet(false, true)) {
+                    return false;
+                }
+                backend.active.decrementAndGet();
+                return true;
+            }
+        }
+        
+        /**
+         * Immutable view of the backends used for selection
+         */
+        private static final class Snapshot {
+            final Backend[] backends;
+            final Map<String, Backend> byAddress;
+            final int[] weights;
+            final int[] schedule;
+            
+            Snapshot(Backend[] backends) {
+                this.backends = backends;
+                this.byAddress = new HashMap<>();
+                for (Backend backend : backends) {
+                    byAddress.put(backend.address, backend);
+                }
+                this.weights = scheduleWeights(backends);
+                this.schedule = buildSchedule(backends.length, weights);
+            }
+            
+            /**
+             * Quantises the effective weights so the schedule stays within its maximum length
+             */
+            static int[] scheduleWeights(Backend[] backends) {
+                double total = 0;
+                for (Backend backend : backends) {
+                    total += backend.effectiveWeight() * SCHEDULE_WEIGHT_RESOLUTION;
+                }
+                double scale = total > MAX_SCHEDULE_LENGTH ? MAX_SCHEDULE_LENGTH / total : 1;
+                int[] weights = new int[backends.length];
+                for (int i = 0; i < backends.length; i++) {
+                    weights[i] = Math.max(1, (int) Math.round(backends[i].effectiveWeight() * SCHEDULE_WEIGHT_RESOLUTION * scale));
+                }
+                return weights;
+            }
+            
+            /**
+             * Smooth weighted round-robin: every step adds each weight to its counter, picks the
+             * largest counter and subtracts the total, which interleaves heavy servers evenly
+             */
+            private static int[] buildSchedule(int count, int[] weights) {
+                if (count == 0) {
+                    return new int[] {0};
+                }
+                
+                int length = 0;
+                for (int weight : weights) {
+                    length += weight;
+                }
+                
+                int[] schedule = new int[length];
+                int[] counters = new int[count];
+                for (int step = 0; step < length; step++) {
+                    int best = 0;
+                    for (int i = 0; i < count; i++) {
+                        counters[i] += weights[i];
+                        if (counters[i] > counters[best]) {
+                            best = i;
+                        }
+                    }
+                    counters[best] -= length;
+                    schedule[step] = best;
+                }
+                return schedule;
+            }
+        }
+        
+        /**
+         * Live state of one server
+         */
+        private static final class Backend {
+            final String address;
+            final AtomicInteger active;
+            final AtomicInteger consecutiveFailures;
+            final LongAdder windowSuccesses;
+            final LongAdder windowFailures;
+            volatile int weight;
+            volatile double successRate;
+            volatile double latencyNanos;
+            volatile long latencyStamp;
+            volatile long ejectedUntil;
+            // Changed only under the balancer's lock
+            volatile int ejectionCount;
+            
+            Backend(String address, int weight) {
+                this.address = address;
+                this.weight = weight;
+                this.active = new AtomicInteger();
+                this.consecutiveFailures = new AtomicInteger();
+                this.windowSuccesses = new LongAdder();
+                this.windowFailures = new LongAdder();
+                this.successRate = 1.0;
+                this.ejectedUntil = Long.MIN_VALUE;
+            }
+            
+            boolean isEjected(long now) {
+                return ejectedUntil != Long.MIN_VALUE && now - ejectedUntil < 0;
+            }
+            
+            double effectiveWeight() {
+                return weight * Math.max(MIN_HEALTH, successRate);
+            }
+            
+            /**
+             * Peak EWMA: a slower response replaces the estimate at once, faster ones are blended
+             * in with a weight that grows with the time since the last observation
+             */
+            synchronized void observeLatency(long rtt, long now) {
+                double current = decayedLatency(now);
+                if (rtt > current) {
+                    latencyNanos = rtt;
+                } else {
+                    double w = Math.exp(-(now - latencyStamp) / DECAY_TIME_NANOS);
+                    latencyNanos = current * w + rtt * (1 - w);
+                }
+                latencyStamp = now;
+            }
+            
+            synchronized void observeOutcome(boolean success) {
+                successRate += SUCCESS_RATE_ALPHA * ((success ? 1.0 : 0.0) - successRate);
+            }
+            
+            double decayedLatency(long now) {
+                double latency = latencyNanos;
+                if (latency == 0) {
+                    return 0;
+                }
+                return latency * Math.exp(-Math.max(0, now - latencyStamp) / DECAY_TIME_NANOS);
+            }
+        }
     }
     
     /**
      * Represents a network monitoring utility
+     * Recorded observations are also passed to registered listeners, such as a LoadBalancer.
      */
     public static class NetworkMonitor {
         private final Map<String, ServerStats> serverStats;
         private final ScheduledExecutorService scheduler;
+        private final List<ObservationListener> listeners;
         
         private static class ServerStats {
-            volatile long requestCount;
-            volatile long errorCount;
-            volatile long totalResponseTime;
+            final LongAdder requestCount;
+            final LongAdder errorCount;
+            final LongAdder totalResponseTimeNanos;
             volatile long lastCheckTime;
             
             ServerStats() {
-                this.requestCount = 0;
-                this.errorCount = 0;
-                this.totalResponseTime = 0;
+                this.requestCount = new LongAdder();
+                this.errorCount = new LongAdder();
+                this.totalResponseTimeNanos = new LongAdder();
                 this.lastCheckTime = System.currentTimeMillis();
             }
         }
         
+        /**
+         * Receives every recorded request outcome
+         */
+        public interface ObservationListener {
+            void onSuccess(String server, long responseTimeNanos);
+            void onError(String server);
+        }
+        
         public NetworkMonitor() {
             this.serverStats = new ConcurrentHashMap<>();
             this.scheduler = Executors.newScheduledThreadPool(1);
+            this.listeners = new CopyOnWriteArrayList<>();
+        }
+        
+        /**
+         * Adds a listener for recorded observations
+         */
+        public void addListener(ObservationListener listener) {
+            listeners.add(listener);
+        }
+        
+        /**
+         * Removes a listener
+         */
+        public void removeListener(ObservationListener listener) {
+            listeners.remove(listener);
         }
         
         /**
@@ -1387,9 +4391,19 @@ public class AdvancedNetworking {
          * Records a successful request
          */
         public void recordSuccess(String server, long responseTime) {
+            recordSuccessNanos(server, TimeUnit.MILLISECONDS.toNanos(responseTime));
+        }
+        
+        /**
+         * Records a successful request with its response time in nanoseconds
+         */
+        public void recordSuccessNanos(String server, long responseTimeNanos) {
             ServerStats stats = serverStats.computeIfAbsent(server, k -> new ServerStats());
-            stats.requestCount++;
-            stats.totalResponseTime += responseTime;
+            stats.requestCount.increment();
+            stats.totalResponseTimeNanos.add(responseTimeNanos);
+            for (ObservationListener listener : listeners) {
+                listener.onSuccess(server, responseTimeNanos);
+            }
         }
         
         /**
@@ -1397,8 +4411,11 @@ public class AdvancedNetworking {
          */
         public void recordError(String server) {
             ServerStats stats = serverStats.computeIfAbsent(server, k -> new ServerStats());
-            stats.requestCount++;
-            stats.errorCount++;
+            stats.requestCount.increment();
+            stats.errorCount.increment();
+            for (ObservationListener listener : listeners) {
+                listener.onError(server);
+            }
         }
         
         /**
@@ -1410,10 +4427,13 @@ public class AdvancedNetworking {
                 return new ServerStatistics(0, 0, 0, 0);
             }
             
-            long requestCount = stats.requestCount;
-            long errorCount = stats.errorCount;
+            long requestCount = stats.requestCount.sum();
+            long errorCount = stats.errorCount.sum();
+            long successCount = requestCount - errorCount;
             double errorRate = requestCount > 0 ? (double) errorCount / requestCount : 0;
-            double avgResponseTime = requestCount > 0 ? (double) stats.totalResponseTime / requestCount : 0;
+            double avgResponseTime = successCount > 0
+                ? stats.totalResponseTimeNanos.sum() / 1_000_000.0 / successCount
+                : 0;
             
             return new ServerStatistics(requestCount, errorCount, errorRate, avgResponseTime);
         }
@@ -212,32 +212,19 @@ public class NetworkUtils {
      */
     public static class HTTPClient {
         
+        // час очікування з'єднання і відповіді, щоб завислий сервер не блокував викликача назавжди
+        private static final int TIMEOUT_MILLIS = 30000;
+        
+        // спільний клієнт тримає з'єднання відкритими між викликами, тому кожен запит не відкриває нове
+        private static final AdvancedNetworking.HTTPClient CLIENT = new AdvancedNetworking.HTTPClient(TIMEOUT_MILLIS);
+        
         /**
          * виконати GET запит
          * @param url URL
          * @return відповідь
          */
         public static String get(String url) throws IOException {
-            URL obj = new URL(url);
-            HttpURLConnection connection = (HttpURLConnection) obj.openConnection();
-            connection.setRequestMethod("GET");
-            
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                    String inputLine;
-                    StringBuilder response = new StringBuilder();
-                    
-                    while ((inputLine = in.readLine()) != null) {
-                        response.append(inputLine);
-                        response.append("\n");
-                    }
-                    
-                    return response.toString();
-                }
-            } else {
-                throw new IOException("HTTP error code: " + responseCode);
-            }
+            return bodyOrThrow(CLIENT.get(url));
         }
         
         /**
@@ -247,31 +234,41 @@ public class NetworkUtils {
          * @return відповідь
          */
         public static String post(String url, String data) throws IOException {
-            URL obj = new URL(url);
-            HttpURLConnection connection = (HttpURLConnection) obj.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
-            
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = data.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
+            return bodyOrThrow(CLIENT.post(url, "application/x-www-form-urlencoded", data));
+        }
+        
+        /**
+         * виконати GET запит асинхронно, однакові паралельні запити об'єднуються в один,
+         * тому відповідь може не бачити записів, зроблених перед викликом; для таких читань є get
+         * @param url URL
+         * @return майбутня відповідь
+         */
+        public static CompletableFuture<String> getAsync(String url) {
+            return CLIENT.getAsync(url, true).thenApply(HTTPClient::bodyOrFail);
+        }
+        
+        /**
+         * виконати POST запит асинхронно
+         * @param url URL
+         * @param data дані
+         * @return майбутня відповідь
+         */
+        public static CompletableFuture<String> postAsync(String url, String data) {
+            return CLIENT.postAsync(url, "application/x-www-form-urlencoded", data).thenApply(HTTPClient::bodyOrFail);
+        }
+        
+        private static String bodyOrThrow(AdvancedNetworking.HTTPResponse response) throws IOException {
+            if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP error code: " + response.getStatusCode());
             }
-            
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                    String inputLine;
-                    StringBuilder response = new StringBuilder();
-                    
-                    while ((inputLine = in.readLine()) != null) {
-                        response.append(inputLine);
-                        response.append("\n");
-                    }
-                    
-                    return response.toString();
-                }
-            } else {
-                throw new IOException("HTTP error code: " + responseCode);
+            return response.getBody();
+        }
+        
+        private static String bodyOrFail(AdvancedNetworking.HTTPResponse response) {
+            try {
+                return bodyOrThrow(response);
+            } catch (IOException e) {
+                throw new CompletionException(e);
             }
         }
     }
@@ -3,6 +3,7 @@ package com.sparky.libx.visualization.render;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -25,10 +26,18 @@ import com.sparky.libx.visualization.RegionVisualizer;
 public class AnimatedRegionRenderer implements RegionRenderer {
     
     private final Map<UUID, AnimationTask> activeAnimations = new ConcurrentHashMap<>();
+    private final Map<BakeKey, BakedAnimation> bakedAnimations = new ConcurrentHashMap<>();
     private final RegionVisualizer visualizer;
+    private final ParticleBatcher batcher;
+    private volatile boolean keyframeBaking = true;
     
     public AnimatedRegionRenderer(RegionVisualizer visualizer) {
+        this(visualizer, ParticleBatcher.getShared());
+    }
+    
+    public AnimatedRegionRenderer(RegionVisualizer visualizer, ParticleBatcher batcher) {
         this.visualizer = visualizer;
+        this.batcher = batcher;
     }
     
     /**
@@ -60,6 +69,7 @@ public class AnimatedRegionRenderer implements RegionRenderer {
         AnimationTask task = activeAnimations.remove(player.getUniqueId());
         if (task != null) {
             task.cancel();
+            batcher.discard(this, player);
         }
     }
     
@@ -71,6 +81,51 @@ public class AnimatedRegionRenderer implements RegionRenderer {
             task.cancel();
         }
         activeAnimations.clear();
+        bakedAnimations.clear();
+    }
+    
+    /**
+     * Включает или выключает запекание ключевых кадров.
+     * Влияет только на анимации, запущенные после вызова.
+     */
+    public void setKeyframeBaking(boolean keyframeBaking) {
+        this.keyframeBaking = keyframeBaking;
+    }
+    
+    public boolean isKeyframeBaking() {
+        return keyframeBaking;
+    }
+    
+    /**
+     * Получает количество запеченных анимаций в кэше
+     */
+    public int getBakedAnimationCount() {
+        return bakedAnimations.size();
+    }
+    
+    /**
+     * Получает запеченную анимацию для пары (регион, стиль) и регистрирует зрителя
+     */
+    private BakedAnimation acquireBaked(Region region, AnimationStyle style) {
+        return bakedAnimations.compute(new BakeKey(region, style), (key, baked) -> {
+            if (baked == null) {
+                baked = new BakedAnimation(key, generatePoints(region, style), style);
+            }
+            baked.viewers++;
+            return baked;
+        });
+    }
+    
+    /**
+     * Снимает зрителя с запеченной анимации и удаляет ее, когда зрителей не осталось
+     */
+    private void releaseBaked(BakedAnimation baked) {
+        bakedAnimations.computeIfPresent(baked.key, (key, current) -> {
+            if (current != baked) {
+                return current;
+            }
+            return --current.viewers > 0 ? current : null;
+        });
     }
     
     /**
@@ -81,14 +136,24 @@ public class AnimatedRegionRenderer implements RegionRenderer {
         private final Region region;
         private final AnimationStyle style;
         private final List<Vector> points;
+        private final BakedAnimation baked;
         private int frame = 0;
+        private int step = 0;
         private double animationProgress = 0.0;
+        private boolean released = false;
         
         public AnimationTask(Player player, Region region, AnimationStyle style) {
             this.player = player;
             this.region = region;
             this.style = style;
-            this.points = generatePoints(region);
+            
+            if (keyframeBaking) {
+                this.baked = acquireBaked(region, style);
+                this.points = null;
+            } else {
+                this.baked = null;
+                this.points = generatePoints(region, style);
+            }
         }
         
         @Override
@@ -101,6 +166,17 @@ public class AnimatedRegionRenderer implements RegionRenderer {
             World world = player.getWorld();
             Location playerLoc = player.getLocation();
             
+            if (baked != null) {
+                step++;
+                if (step >= baked.steps) {
+                    step = 0;
+                    frame++;
+                }
+                
+                renderBakedFrame(playerLoc, frame, step);
+                return;
+            }
+            
             animationProgress += style.getSpeed();
             if (animationProgress >= 1.0) {
                 animationProgress = 0.0;
@@ -110,12 +186,25 @@ public class AnimatedRegionRenderer implements RegionRenderer {
             renderFrame(world, playerLoc, frame, animationProgress);
         }
         
+        @Override
+        public synchronized void cancel() {
+            if (baked != null && !released) {
+                released = true;
+                releaseBaked(baked);
+            }
+            super.cancel();
+        }
+        
         /**
          * Отображает один кадр анимации
          */
         private void renderFrame(World world, Location playerLoc, int frame, double progress) {
+            if (points.isEmpty()) {
+                return;
+            }
+            
             int particlesToShow = Math.min(
-                style.getParticlesPerFrame(), 
+                style.getParticlesPerFrame(),
                 (int)(points.size() * style.getDensity())
             );
             
@@ -127,17 +216,20 @@ public class AnimatedRegionRenderer implements RegionRenderer {
                 
                 Location particleLoc = new Location(world, point.getX(), point.getY(), point.getZ());
                 
-                if (playerLoc.distanceSquared(particleLoc) < 1024 && 
+                if (playerLoc.distanceSquared(particleLoc) < 1024 &&
                     player.getLocation().getDirection().dot(particleLoc.toVector().subtract(playerLoc.toVector())) > 0) {
                     
-                    Location animatedLoc = applyAnimationEffects(particleLoc, progress);
-                    Particle particle = getAnimatedParticle(progress);
-                    Object particleData = getAnimatedParticleData(progress);
+                    Location animatedLoc = applyAnimationEffects(style, particleLoc, progress);
+                    Particle particle = getAnimatedParticle(style, progress);
+                    Object particleData = getAnimatedParticleData(style, progress);
                     
-                    player.spawnParticle(
+                    batcher.queue(
+                        AnimatedRegionRenderer.this,
+                        player,
                         particle,
-                        animatedLoc,
-                        1,
+                        animatedLoc.getX(),
+                        animatedLoc.getY(),
+                        animatedLoc.getZ(),
                         particleData
                     );
                 }
@@ -145,106 +237,236 @@ public class AnimatedRegionRenderer implements RegionRenderer {
         }
         
         /**
-         * Применяет эффекты анимации к позиции частицы
+         * Отображает кадр из запеченных ключевых кадров без пересчета эффектов
          */
-        private Location applyAnimationEffects(Location original, double progress) {
-            Location animated = original.clone();
+        private void renderBakedFrame(Location playerLoc, int frame, int step) {
+            int pointCount = baked.size();
+            if (pointCount == 0) {
+                return;
+            }
             
-            switch (style.getEffect()) {
-                case PULSE:
-                    double scale = 1.0 + 0.5 * Math.sin(progress * Math.PI * 2);
-                    break;
-                    
-                case WAVE:
-                    double waveOffset = Math.sin(progress * Math.PI * 4) * 0.5;
-                    animated.add(0, waveOffset, 0);
-                    break;
-                    
-                case SPIRAL:
-                    double angle = progress * Math.PI * 4;
-                    double radius = 0.3 * progress;
-                    animated.add(
-                        Math.cos(angle) * radius,
-                        0,
-                        Math.sin(angle) * radius
+            int particlesToShow = Math.min(style.getParticlesPerFrame(), (int)(pointCount * style.getDensity()));
+            int startIndex = (int)(((long) frame * style.getParticlesPerFrame()) % pointCount);
+            
+            double px = playerLoc.getX();
+            double py = playerLoc.getY();
+            double pz = playerLoc.getZ();
+            Vector direction = playerLoc.getDirection();
+            double dirX = direction.getX();
+            double dirY = direction.getY();
+            double dirZ = direction.getZ();
+            
+            Particle particle = baked.particles[step];
+            Object particleData = baked.particleData[step];
+            double offsetX = baked.offsetX[step];
+            double offsetY = baked.offsetY[step];
+            double offsetZ = baked.offsetZ[step];
+            
+            for (int i = 0; i < particlesToShow; i++) {
+                int index = (startIndex + i) % pointCount;
+                double dx = baked.pointX[index] - px;
+                double dy = baked.pointY[index] - py;
+                double dz = baked.pointZ[index] - pz;
+                
+                if (dx * dx + dy * dy + dz * dz < 1024 && dirX * dx + dirY * dy + dirZ * dz > 0) {
+                    batcher.queue(
+                        AnimatedRegionRenderer.this,
+                        player,
+                        particle,
+                        baked.pointX[index] + offsetX,
+                        baked.pointY[index] + offsetY,
+                        baked.pointZ[index] + offsetZ,
+                        particleData
                     );
-                    break;
+                }
             }
+        }
+    }
+    
+    /**
+     * Применяет эффекты анимации к позиции частицы
+     */
+    private static Location applyAnimationEffects(AnimationStyle style, Location original, double progress) {
+        return original.clone().add(getAnimationOffset(style, progress));
+    }
+    
+    /**
+     * Получает смещение частиц для текущего кадра анимации
+     */
+    private static Vector getAnimationOffset(AnimationStyle style, double progress) {
+        switch (style.getEffect()) {
+            case WAVE:
+                double waveOffset = Math.sin(progress * Math.PI * 4) * 0.5;
+                return new Vector(0, waveOffset, 0);
+            
+            case SPIRAL:
+                double angle = progress * Math.PI * 4;
+                double radius = 0.3 * progress;
+                return new Vector(Math.cos(angle) * radius, 0, Math.sin(angle) * radius);
             
-            return animated;
+            case PULSE:
+            default:
+                return new Vector(0, 0, 0);
         }
+    }
+    
+    /**
+     * Получает частицу для текущего кадра анимации
+     */
+    private static Particle getAnimatedParticle(AnimationStyle style, double progress) {
+        switch (style.getParticleTransition()) {
+            case COLOR_SHIFT:
+                return Particle.REDSTONE;
+            
+            case TYPE_CYCLE:
+                Particle[] particles = {Particle.REDSTONE, Particle.VILLAGER_HAPPY, Particle.FLAME};
+                return particles[(int)(progress * particles.length) % particles.length];
+            
+            default:
+                return style.getBaseParticle();
+        }
+    }
+    
+    /**
+     * Получает данные частицы для текущего кадра анимации
+     */
+    private static Object getAnimatedParticleData(AnimationStyle style, double progress) {
+        switch (style.getParticleTransition()) {
+            case COLOR_SHIFT:
+                int red = (int)(255 * (1 - progress));
+                int blue = (int)(255 * progress);
+                return new Particle.DustOptions(Color.fromRGB(red, 0, blue), 1.0f);
+            
+            default:
+                return style.getBaseParticleData();
+        }
+    }
+    
+    /**
+     * Генерирует точки для отображения границ региона
+     */
+    private static List<Vector> generatePoints(Region region, AnimationStyle style) {
+        List<Vector> points = new ArrayList<>();
         
-        /**
-         * Получает частицу для текущего кадра анимации
-         */
-        private Particle getAnimatedParticle(double progress) {
-            switch (style.getParticleTransition()) {
-                case COLOR_SHIFT:
-                    return Particle.REDSTONE;
-                    
-                case TYPE_CYCLE:
-                    Particle[] particles = {Particle.REDSTONE, Particle.VILLAGER_HAPPY, Particle.FLAME};
-                    return particles[(int)(progress * particles.length) % particles.length];
-                    
-                default:
-                    return style.getBaseParticle();
-            }
+        Location min = region.getMinPoint();
+        Location max = region.getMaxPoint();
+        double spacing = style.getPointSpacing();
+        
+        generateLinePoints(points, min, new Location(min.getWorld(), max.getX(), min.getY(), min.getZ()), spacing);
+        generateLinePoints(points, min, new Location(min.getWorld(), min.getX(), max.getY(), min.getZ()), spacing);
+        generateLinePoints(points, min, new Location(min.getWorld(), min.getX(), min.getY(), max.getZ()), spacing);
+        generateLinePoints(points, max, new Location(max.getWorld(), min.getX(), max.getY(), max.getZ()), spacing);
+        generateLinePoints(points, max, new Location(max.getWorld(), max.getX(), min.getY(), max.getZ()), spacing);
+        generateLinePoints(points, max, new Location(max.getWorld(), max.getX(), max.getY(), min.getZ()), spacing);
+        
+        generateLinePoints(points, new Location(min.getWorld(), min.getX(), min.getY(), max.getZ()),
+                          new Location(min.getWorld(), max.getX(), min.getY(), min.getZ()), spacing);
+        generateLinePoints(points, new Location(min.getWorld(), min.getX(), max.getY(), min.getZ()),
+                          new Location(min.getWorld(), max.getX(), max.getY(), max.getZ()), spacing);
+        
+        return points;
+    }
+    
+    /**
+     * Генерирует точки вдоль линии
+     */
+    private static void generateLinePoints(List<Vector> points, Location start, Location end, double spacing) {
+        Vector direction = end.toVector().subtract(start.toVector());
+        double length = direction.length();
+        direction.normalize();
+        
+        int pointCount = (int)(length / spacing) + 1;
+        
+        for (int i = 0; i <= pointCount; i++) {
+            Vector point = start.toVector().clone().add(direction.clone().multiply(i * spacing));
+            points.add(point);
+        }
+    }
+    
+    /**
+     * Ключ кэша запеченных анимаций
+     */
+    private static final class BakeKey {
+        private final Region region;
+        private final AnimationStyle style;
+        
+        BakeKey(Region region, AnimationStyle style) {
+            this.region = region;
+            this.style = style;
         }
         
-        /**
-         * Получает данные частицы для текущего кадра анимации
-         */
-        private Object getAnimatedParticleData(double progress) {
-            switch (style.getParticleTransition()) {
-                case COLOR_SHIFT:
-                    int red = (int)(255 * (1 - progress));
-                    int blue = (int)(255 * progress);
-                    return new Particle.DustOptions(Color.fromRGB(red, 0, blue), 1.0f);
-                    
-                default:
-                    return style.getBaseParticleData();
-            }
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof BakeKey)) return false;
+            BakeKey other = (BakeKey) o;
+            return style == other.style && region.equals(other.region);
         }
         
-        /**
-         * Генерирует точки для отображения границ региона
-         */
-        private List<Vector> generatePoints(Region region) {
-            List<Vector> points = new ArrayList<>();
-            
-            Location min = region.getMinPoint();
-            Location max = region.getMaxPoint();
-            
-            generateLinePoints(points, min, new Location(min.getWorld(), max.getX(), min.getY(), min.getZ()));
-            generateLinePoints(points, min, new Location(min.getWorld(), min.getX(), max.getY(), min.getZ()));
-            generateLinePoints(points, min, new Location(min.getWorld(), min.getX(), min.getY(), max.getZ()));
-            generateLinePoints(points, max, new Location(max.getWorld(), min.getX(), max.getY(), max.getZ()));
-            generateLinePoints(points, max, new Location(max.getWorld(), max.getX(), min.getY(), max.getZ()));
-            generateLinePoints(points, max, new Location(max.getWorld(), max.getX(), max.getY(), min.getZ()));
-            
-            generateLinePoints(points, new Location(min.getWorld(), min.getX(), min.getY(), max.getZ()), 
-                              new Location(min.getWorld(), max.getX(), min.getY(), min.getZ()));
-            generateLinePoints(points, new Location(min.getWorld(), min.getX(), max.getY(), min.getZ()), 
-                              new Location(min.getWorld(), max.getX(), max.getY(), max.getZ()));
-            
-            return points;
+        @Override
+        public int hashCode() {
+            return Objects.hash(region, System.identityHashCode(style));
         }
+    }
+    
+    /**
+     * Ключевые кадры одного периода анимации для пары (регион, стиль).
+     * Смещение и данные частицы зависят только от фазы анимации, поэтому
+     * на каждый шаг периода хранится одно смещение и один общий объект данных.
+     */
+    private static final class BakedAnimation {
+        private final BakeKey key;
+        private final double[] pointX;
+        private final double[] pointY;
+        private final double[] pointZ;
+        private final int steps;
+        private final double[] offsetX;
+        private final double[] offsetY;
+        private final double[] offsetZ;
+        private final Particle[] particles;
+        private final Object[] particleData;
+        private int viewers;
         
-        /**
-         * Генерирует точки вдоль линии
-         */
-        private void generateLinePoints(List<Vector> points, Location start, Location end) {
-            Vector direction = end.toVector().subtract(start.toVector());
-            double length = direction.length();
-            direction.normalize();
+        BakedAnimation(BakeKey key, List<Vector> points, AnimationStyle style) {
+            this.key = key;
+            this.pointX = new double[points.size()];
+            this.pointY = new double[points.size()];
+            this.pointZ = new double[points.size()];
+            for (int i = 0; i < points.size(); i++) {
+                Vector point = points.get(i);
+                pointX[i] = point.getX();
+                pointY[i] = point.getY();
+                pointZ[i] = point.getZ();
+            }
             
-            int pointCount = (int)(length / style.getPointSpacing()) + 1;
+            List<Double> phases = new ArrayList<>();
+            double progress = 0.0;
+            do {
+                phases.add(progress);
+                progress += style.getSpeed();
+            } while (progress < 1.0 && style.getSpeed() > 0);
             
-            for (int i = 0; i <= pointCount; i++) {
-                Vector point = start.toVector().clone().add(direction.clone().multiply(i * style.getPointSpacing()));
-                points.add(point);
+            this.steps = phases.size();
+            this.offsetX = new double[steps];
+            this.offsetY = new double[steps];
+            this.offsetZ = new double[steps];
+            this.particles = new Particle[steps];
+            this.particleData = new Object[steps];
+            
+            for (int i = 0; i < steps; i++) {
+                double phase = phases.get(i);
+                Vector offset = getAnimationOffset(style, phase);
+                offsetX[i] = offset.getX();
+                offsetY[i] = offset.getY();
+                offsetZ[i] = offset.getZ();
+                particles[i] = getAnimatedParticle(style, phase);
+                particleData[i] = getAnimatedParticleData(style, phase);
             }
         }
+        
+        int size() {
+            return pointX.length;
+        }
     }
     
     /**
@@ -0,0 +1,173 @@
+package com.sparky.libx.visualization.render;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.entity.BlockDisplay;
+import org.bukkit.entity.Display;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.util.Transformation;
+import org.joml.AxisAngle4f;
+import org.joml.Vector3f;
+
+import com.sparky.libx.region.Region;
+
+/**
+ * Рендерер, отображающий ребра региона растянутыми блочными дисплеями.
+ * Сущности создаются один раз, видны только своему игроку и живут до очистки,
+ * поэтому в установившемся режиме рендерер ничего не отправляет каждый тик.
+ * @author Андрій Будильников
+ */
+public class DisplayEntityRenderer implements RegionRenderer {
+
+    /**
+     * Максимальная длина одного сегмента ребра. Клиент отсекает дисплей по его позиции,
+     * поэтому длинные ребра делятся на части, чтобы не пропадать при обзоре издалека.
+     */
+    public static final double MAX_SEGMENT_LENGTH = 16.0;
+
+    private final Map<UUID, List<BlockDisplay>> activeRenders = new ConcurrentHashMap<>();
+    private final BlockData blockData;
+    private final float thickness;
+    private final int duration;
+    private final boolean glowing;
+
+    public DisplayEntityRenderer(Material material, double thickness, int duration, boolean glowing) {
+        this.blockData = Bukkit.createBlockData(material);
+        this.thickness = (float) Math.max(0.01, thickness);
+        this.duration = duration;
+        this.glowing = glowing;
+    }
+
+    @Override
+    public void render(Player player, Region region) {
+        clear(player);
+
+        Plugin plugin = Bukkit.getPluginManager().getPlugin("SparkyLibX");
+        List<BlockDisplay> displays = new ArrayList<>();
+
+        Location min = region.getMinPoint();
+        Location max = region.getMaxPoint();
+        double x0 = min.getX(), y0 = min.getY(), z0 = min.getZ();
+        double x1 = max.getX(), y1 = max.getY(), z1 = max.getZ();
+
+        for (double y : new double[] {y0, y1}) {
+            for (double z : new double[] {z0, z1}) {
+                spawnEdge(plugin, player, region.getWorld(), displays, x0, y, z, x1 - x0, Axis.X);
+            }
+        }
+        for (double x : new double[] {x0, x1}) {
+            for (double z : new double[] {z0, z1}) {
+                spawnEdge(plugin, player, region.getWorld(), displays, x, y0, z, y1 - y0, Axis.Y);
+            }
+        }
+        for (double x : new double[] {x0, x1}) {
+            for (double y : new double[] {y0, y1}) {
+                spawnEdge(plugin, player, region.getWorld(), displays, x, y, z0, z1 - z0, Axis.Z);
+            }
+        }
+
+        activeRenders.put(player.getUniqueId(), displays);
+
+        if (duration > 0) {
+            Bukkit.getScheduler().runTaskLater(plugin, () -> clear(player), duration);
+        }
+    }
+
+    @Override
+    public void clear(Player player) {
+        List<BlockDisplay> displays = activeRenders.remove(player.getUniqueId());
+        if (displays != null) {
+            removeDisplays(displays);
+        }
+    }
+
+    /**
+     * Удаляет все созданные дисплеи
+     */
+    public void clearAll() {
+        for (List<BlockDisplay> displays : activeRenders.values()) {
+            removeDisplays(displays);
+        }
+        activeRenders.clear();
+    }
+
+    /**
+     * Получает количество живых дисплеев у игрока
+     */
+    public int getDisplayCount(Player player) {
+        List<BlockDisplay> displays = activeRenders.get(player.getUniqueId());
+        return displays != null ? displays.size() : 0;
+    }
+
+    /**
+     * Создает дисплеи для одного ребра, разбивая его на сегменты
+     */
+    private void spawnEdge(Plugin plugin, Player player, World world, List<BlockDisplay> displays,
+                           double x, double y, double z, double length, Axis axis) {
+        if (length <= 0) {
+            return;
+        }
+
+        int segments = (int) Math.ceil(length / MAX_SEGMENT_LENGTH);
+        double segmentLength = length / segments;
+        double half = thickness / 2.0;
+
+        for (int i = 0; i < segments; i++) {
+            double offset = i * segmentLength;
+            Location origin;
+            Vector3f scale;
+
+            switch (axis) {
+                case X:
+                    origin = new Location(world, x + offset, y - half, z - half);
+                    scale = new Vector3f((float) segmentLength, thickness, thickness);
+                    break;
+                case Y:
+                    origin = new Location(world, x - half, y + offset, z - half);
+                    scale = new Vector3f(thickness, (float) segmentLength, thickness);
+                    break;
+                default:
+                    origin = new Location(world, x - half, y - half, z + offset);
+                    scale = new Vector3f(thickness, thickness, (float) segmentLength);
+                    break;
+            }
+
+            BlockDisplay display = world.spawn(origin, BlockDisplay.class, entity -> {
+                entity.setVisibleByDefault(false);
+                entity.setPersistent(false);
+                entity.setBlock(blockData);
+                entity.setTransformation(new Transformation(
+                    new Vector3f(), new AxisAngle4f(), scale, new AxisAngle4f()));
+                entity.setBrightness(new Display.Brightness(15, 15));
+                entity.setShadowRadius(0);
+                entity.setGlowing(glowing);
+            });
+
+            player.showEntity(plugin, display);
+            displays.add(display);
+        }
+    }
+
+    private void removeDisplays(List<BlockDisplay> displays) {
+        for (BlockDisplay display : displays) {
+            if (display.isValid()) {
+                display.remove();
+            }
+        }
+        displays.clear();
+    }
+
+    private enum Axis {
+        X, Y, Z
+    }
+}
@@ -0,0 +1,328 @@
+package com.sparky.libx.visualization.render;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Particle;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Пакетная отправка частиц для рендереров регионов.
+ * Рендереры складывают частицы кадра в очередь игрока, а в следующем тике
+ * все очереди отправляются за один проход с учетом общего бюджета частиц на тик.
+ * Совпадающие точки одного рендерера в кадре отправляются только один раз.
+ * @author Андрій Будильников
+ */
+public class ParticleBatcher {
+
+    public static final int DEFAULT_MAX_PARTICLES_PER_TICK = 2000;
+    public static final double DEFAULT_POINT_RESOLUTION = 0.05;
+
+    private static final long TICK_NANOS = 50_000_000L;
+
+    private static final ParticleBatcher SHARED = new ParticleBatcher(
+        DEFAULT_MAX_PARTICLES_PER_TICK, DEFAULT_POINT_RESOLUTION);
+
+    private final Map<UUID, Frame> pendingFrames = new ConcurrentHashMap<>();
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong emittedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong deduplicatedCount = new AtomicLong();
+    private final double pointResolution;
+    private volatile int maxParticlesPerTick;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Окно тика и израсходованная в нем часть бюджета; защищены монитором батчера
+    private long budgetWindow = Long.MIN_VALUE;
+    private int budgetUsed;
+
+    public ParticleBatcher(int maxParticlesPerTick, double pointResolution) {
+        this.maxParticlesPerTick = Math.max(1, maxParticlesPerTick);
+        this.pointResolution = Math.max(0.001, pointResolution);
+    }
+
+    /**
+     * Получает общий батчер, бюджет которого делят все рендереры сервера
+     */
+    public static ParticleBatcher getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Добавляет частицу в кадр игрока без владельца
+     */
+    public void queue(Player player, Particle particle, double x, double y, double z, Object data) {
+        queue(null, player, particle, x, y, z, data);
+    }
+
+    /**
+     * Добавляет частицу рендерера в кадр игрока
+     * @param owner рендерер, частицы которого потом можно отбросить через {@link #discard(Object, Player)}
+     */
+    public void queue(Object owner, Player player, Particle particle, double x, double y, double z, Object data) {
+        Frame frame = pendingFrames.computeIfAbsent(player.getUniqueId(), id -> new Frame(player));
+        queuedCount.incrementAndGet();
+
+        if (!frame.add(owner, particle, x, y, z, data)) {
+            deduplicatedCount.incrementAndGet();
+            return;
+        }
+
+        scheduleFlush();
+    }
+
+    /**
+     * Отбрасывает все неотправленные частицы игрока, в том числе частицы других рендереров
+     */
+    public void discard(Player player) {
+        pendingFrames.remove(player.getUniqueId());
+    }
+
+    /**
+     * Отбрасывает неотправленные частицы игрока, добавленные этим владельцем
+     */
+    public void discard(Object owner, Player player) {
+        pendingFrames.computeIfPresent(player.getUniqueId(), (id, frame) -> frame.removeOwner(owner) ? null : frame);
+    }
+
+    /**
+     * Отправляет все накопленные кадры, распределяя бюджет тика поровну между игроками.
+     * Бюджет считается по окнам в 50 мс, поэтому несколько отправок за один тик делят его
+     */
+    public synchronized void flush() {
+        flushScheduled.set(false);
+        if (pendingFrames.isEmpty()) {
+            return;
+        }
+
+        // Кадры забираются по одному, чтобы не потерять частицы, добавленные во время отправки
+        List<Frame> frames = new ArrayList<>(pendingFrames.size());
+        for (UUID id : pendingFrames.keySet()) {
+            Frame frame = pendingFrames.remove(id);
+            if (frame != null) {
+                frames.add(frame);
+            }
+        }
+
+        long window = System.nanoTime() / TICK_NANOS;
+        if (window != budgetWindow) {
+            budgetWindow = window;
+            budgetUsed = 0;
+        }
+        int budget = Math.max(0, maxParticlesPerTick - budgetUsed);
+        int framesLeft = frames.size();
+
+        for (Frame frame : frames) {
+            int share = budget / framesLeft--;
+            int size = frame.size();
+
+            if (!frame.player.isOnline()) {
+                droppedCount.addAndGet(size);
+                continue;
+            }
+
+            int toEmit = Math.min(size, share);
+            frame.emit(toEmit);
+            budget -= toEmit;
+            budgetUsed += toEmit;
+
+            emittedCount.addAndGet(toEmit);
+            droppedCount.addAndGet(size - toEmit);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        Plugin plugin = Bukkit.getPluginManager().getPlugin("SparkyLibX");
+        if (plugin == null || !plugin.isEnabled()) {
+            // Планировщик недоступен, поэтому частицы отправляются сразу, а не копятся;
+            // общий бюджет тика при этом соблюдается окном в flush
+            flush();
+            return;
+        }
+
+        Bukkit.getScheduler().runTask(plugin, this::flush);
+    }
+
+    public int getMaxParticlesPerTick() {
+        return maxParticlesPerTick;
+    }
+
+    public void setMaxParticlesPerTick(int maxParticlesPerTick) {
+        this.maxParticlesPerTick = Math.max(1, maxParticlesPerTick);
+    }
+
+    public double getPointResolution() {
+        return pointResolution;
+    }
+
+    /**
+     * Получает статистику батчера
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<>();
+        stats.put("queued", queuedCount.get());
+        stats.put("emitted", emittedCount.get());
+        stats.put("dropped", droppedCount.get());
+        stats.put("deduplicated", deduplicatedCount.get());
+        return stats;
+    }
+
+    public long getEmittedCount() {
+        return emittedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getDeduplicatedCount() {
+        return deduplicatedCount.get();
+    }
+
+    /**
+     * Сбрасывает счетчики
+     */
+    public void resetStats() {
+        queuedCount.set(0);
+        emittedCount.set(0);
+        droppedCount.set(0);
+        deduplicatedCount.set(0);
+    }
+
+    /**
+     * Кадр частиц одного игрока
+     */
+    private class Frame {
+        private final Player player;
+        private final Set<PointKey> keys = new HashSet<>();
+        private final List<PointKey> pointKeys = new ArrayList<>();
+        private final List<Particle> particles = new ArrayList<>();
+        private final List<Object> data = new ArrayList<>();
+        private double[] coords = new double[48];
+
+        Frame(Player player) {
+            this.player = player;
+        }
+
+        boolean add(Object owner, Particle particle, double x, double y, double z, Object particleData) {
+            PointKey key = new PointKey(
+                Math.round(x / pointResolution),
+                Math.round(y / pointResolution),
+                Math.round(z / pointResolution),
+                particle,
+                particleData,
+                owner
+            );
+            if (!keys.add(key)) {
+                return false;
+            }
+
+            int offset = particles.size() * 3;
+            if (offset + 3 > coords.length) {
+                double[] grown = new double[coords.length * 2];
+                System.arraycopy(coords, 0, grown, 0, offset);
+                coords = grown;
+            }
+            coords[offset] = x;
+            coords[offset + 1] = y;
+            coords[offset + 2] = z;
+            pointKeys.add(key);
+            particles.add(particle);
+            data.add(particleData);
+            return true;
+        }
+
+        /**
+         * Удаляет частицы владельца, сохраняя порядок остальных
+         * @return true, если кадр опустел
+         */
+        boolean removeOwner(Object owner) {
+            int kept = 0;
+            for (int i = 0; i < pointKeys.size(); i++) {
+                PointKey key = pointKeys.get(i);
+                if (key.owner == owner) {
+                    keys.remove(key);
+                    continue;
+                }
+                if (kept != i) {
+                    pointKeys.set(kept, key);
+                    particles.set(kept, particles.get(i));
+                    data.set(kept, data.get(i));
+                    System.arraycopy(coords, i * 3, coords, kept * 3, 3);
+                }
+                kept++;
+            }
+            pointKeys.subList(kept, pointKeys.size()).clear();
+            particles.subList(kept, particles.size()).clear();
+            data.subList(kept, data.size()).clear();
+            return kept == 0;
+        }
+
+        int size() {
+            return particles.size();
+        }
+
+        void emit(int count) {
+            for (int i = 0; i < count; i++) {
+                int offset = i * 3;
+                player.spawnParticle(
+                    particles.get(i),
+                    coords[offset],
+                    coords[offset + 1],
+                    coords[offset + 2],
+                    1,
+                    data.get(i)
+                );
+            }
+        }
+    }
+
+    /**
+     * Ключ точки, округленной до разрешения батчера
+     */
+    private static final class PointKey {
+        private final long x;
+        private final long y;
+        private final long z;
+        private final Particle particle;
+        private final Object data;
+        private final Object owner;
+
+        PointKey(long x, long y, long z, Particle particle, Object data, Object owner) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.particle = particle;
+            this.data = data;
+            this.owner = owner;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PointKey)) return false;
+            PointKey other = (PointKey) o;
+            return x == other.x && y == other.y && z == other.z
+                && particle == other.particle && data == other.data && owner == other.owner;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = x * 0x9E3779B97F4A7C15L + y * 0xC2B2AE3D27D4EB4FL + z;
+            return (int) (h ^ (h >>> 32)) * 31 + particle.ordinal();
+        }
+    }
+}
@@ -31,14 +31,21 @@ public class ParticleRenderer implements RegionRenderer {
     private final double density;
     private final int particlesPerTick;
     private final int duration;
+    private final ParticleBatcher batcher;
     
     public ParticleRenderer(Particle particle, Object particleData, 
                            double density, int particlesPerTick, int duration) {
+        this(particle, particleData, density, particlesPerTick, duration, ParticleBatcher.getShared());
+    }
+    
+    public ParticleRenderer(Particle particle, Object particleData, 
+                           double density, int particlesPerTick, int duration, ParticleBatcher batcher) {
         this.particle = particle;
         this.particleData = particleData;
         this.density = Math.max(0.05, density);
         this.particlesPerTick = Math.max(1, particlesPerTick);
         this.duration = duration;
+        this.batcher = batcher;
     }
     
     @Override
@@ -63,6 +70,7 @@ public class ParticleRenderer implements RegionRenderer {
         RenderTask task = activeRenders.remove(player.getUniqueId());
         if (task != null) {
             task.cancel();
+            batcher.discard(this, player);
         }
     }
     
@@ -114,12 +122,7 @@ public class ParticleRenderer implements RegionRenderer {
                 Location particleLoc = new Location(world, point.getX(), point.getY(), point.getZ());
 
                 if (isInView(player, particleLoc)) {
-                    player.spawnParticle(
-                        particle,
-                        particleLoc,
-                        1,
-                        particleData
-                    );
+                    batcher.queue(ParticleRenderer.this, player, particle, point.getX(), point.getY(), point.getZ(), particleData);
                 }
             }
         }
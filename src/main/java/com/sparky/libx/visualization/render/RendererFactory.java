@@ -19,6 +19,8 @@ public class RendererFactory {
         switch (type) {
             case "block":
                 return createBlockRenderer(config);
+            case "display":
+                return createDisplayRenderer(config);
             case "particle":
             default:
                 return createParticleRenderer(config);
@@ -64,6 +66,22 @@ public class RendererFactory {
         return new BlockRenderer(material, duration, wireframe);
     }
     
+    /**
+     * Создает рендерер на блочных дисплеях
+     */
+    public static DisplayEntityRenderer createDisplayRenderer(ConfigurationSection config) {
+        Material material = Material.matchMaterial(config.getString("material", "LIME_STAINED_GLASS"));
+        if (material == null || !material.isBlock()) {
+            material = Material.LIME_STAINED_GLASS;
+        }
+
+        double thickness = config.getDouble("thickness", 0.05);
+        int duration = config.getInt("duration", 0);
+        boolean glowing = config.getBoolean("glowing", false);
+        
+        return new DisplayEntityRenderer(material, thickness, duration, glowing);
+    }
+    
     /**
      * Создает стандартный рендерер для выделения
      */